@@ -8,9 +8,13 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.imaging.FastIntegralImage;
 import mpicbg.trakem2.util.Downsampler;
+import mpicbg.trakem2.util.Downsampler.Entry;
 import mpicbg.trakem2.util.Downsampler.Pair;
 import mpicbg.util.Timer;
 
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * License: GPL
  *
@@ -173,6 +177,172 @@ public class DownsamplerTest
 	}
 	
 	
+	/** Levels until the width is not larger than 32, as in the tests above. */
+	final private static int nLevels( int width )
+	{
+		int n = 0;
+		for ( ; width > 32; width /= 2 ) ++n;
+		return n;
+	}
+	
+	final private static void testPyramid( final ImageProcessor ip, final ByteProcessor alpha, final ByteProcessor outside )
+	{
+		Downsampler.downsamplePyramid( ip, alpha, outside, nLevels( ip.getWidth() ), Runtime.getRuntime().availableProcessors() );
+	}
+	
+	
+	/**
+	 * Random image of type 0 to 3: byte, short, float or color.
+	 */
+	final private static ImageProcessor randomImage( final int type, final int width, final int height, final Random rnd )
+	{
+		final int n = width * height;
+		switch ( type )
+		{
+		case 0:
+			final byte[] b = new byte[ n ];
+			rnd.nextBytes( b );
+			return new ByteProcessor( width, height, b, null );
+		case 1:
+			final short[] s = new short[ n ];
+			for ( int i = 0; i < n; ++i )
+				s[ i ] = ( short )rnd.nextInt( 65536 );
+			final ShortProcessor sp = new ShortProcessor( width, height, s, null );
+			sp.setMinAndMax( 1000, 60000 );
+			return sp;
+		case 2:
+			final float[] f = new float[ n ];
+			for ( int i = 0; i < n; ++i )
+				f[ i ] = rnd.nextFloat() * 100 - 10;
+			final FloatProcessor fp = new FloatProcessor( width, height, f, null );
+			fp.setMinAndMax( -5, 80 );
+			return fp;
+		default:
+			final int[] c = new int[ n ];
+			for ( int i = 0; i < n; ++i )
+				c[ i ] = rnd.nextInt();
+			return new ColorProcessor( width, height, c );
+		}
+	}
+	
+	/**
+	 * Compare every level of {@link Downsampler#downsamplePyramid} with the
+	 * level by level methods, for all image types, with alpha, outside, both
+	 * or no mask, for odd sizes, and for images large enough to be
+	 * downsampled in parallel.
+	 * 
+	 * @return the number of mismatches
+	 */
+	final private static int testPyramidEquality()
+	{
+		final Random rnd = new Random( 50 );
+		// 2049 x 1500 is above MIN_PARALLEL_PIXELS of Downsampler
+		final int[][] sizes = { { 1537, 1029 }, { 64, 64 }, { 2049, 1500 }, { 33, 1000 }, { 1000, 33 }, { 100, 3 } };
+		final int nLevels = 5;
+		int nErrors = 0;
+		for ( final int[] size : sizes )
+		{
+			for ( int type = 0; type < 4; ++type )
+			{
+				for ( int masks = 0; masks < 4; ++masks )
+				{
+					final int width = size[ 0 ], height = size[ 1 ];
+					final ImageProcessor ip = randomImage( type, width, height, rnd );
+					ByteProcessor alpha = null, outside = null;
+					if ( 1 == ( masks & 1 ) )
+						alpha = ( ByteProcessor )randomImage( 0, width, height, rnd );
+					if ( 2 == ( masks & 2 ) )
+					{
+						final byte[] o = new byte[ width * height ];
+						for ( int i = 0; i < o.length; ++i )
+							o[ i ] = ( byte )( 0 == rnd.nextInt( 10 ) ? 0 : 255 );
+						outside = new ByteProcessor( width, height, o, null );
+					}
+					
+					final Entry[] entries = Downsampler.downsamplePyramid( ip, alpha, outside, nLevels, 4 );
+					
+					ImageProcessor a = ip;
+					ByteProcessor aAlpha = alpha, aOutside = outside;
+					for ( int k = 1; k <= nLevels; ++k )
+					{
+						final byte[][] expected;
+						switch ( type )
+						{
+						case 0:
+							a = Downsampler.downsampleByteProcessor( ( ByteProcessor )a );
+							expected = new byte[][]{ ( byte[] )a.getPixels() };
+							break;
+						case 1:
+							final Pair< ShortProcessor, byte[] > ps = Downsampler.downsampleShort( ( ShortProcessor )a );
+							a = ps.a;
+							expected = new byte[][]{ ps.b };
+							break;
+						case 2:
+							final Pair< FloatProcessor, byte[] > pf = Downsampler.downsampleFloat( ( FloatProcessor )a );
+							a = pf.a;
+							expected = new byte[][]{ pf.b };
+							break;
+						default:
+							final Pair< ColorProcessor, byte[][] > pc = Downsampler.downsampleColor( ( ColorProcessor )a );
+							a = pc.a;
+							expected = pc.b;
+						}
+						
+						byte[] mask = null;
+						if ( null != aAlpha && null != aOutside )
+						{
+							final Pair< ByteProcessor, ByteProcessor > pm = Downsampler.downsampleAlphaAndOutside( aAlpha, aOutside );
+							aAlpha = pm.a;
+							aOutside = pm.b;
+							mask = ( byte[] )aAlpha.getPixels();
+						}
+						else if ( null != aAlpha )
+						{
+							aAlpha = Downsampler.downsampleByteProcessor( aAlpha );
+							mask = ( byte[] )aAlpha.getPixels();
+						}
+						else if ( null != aOutside )
+						{
+							aOutside = Downsampler.downsampleOutside( aOutside );
+							mask = ( byte[] )aOutside.getPixels();
+						}
+						
+						final Entry e = entries[ k - 1 ];
+						final String what = width + "x" + height + " " + ip.getClass().getSimpleName() +
+								( null == alpha ? "" : " + alpha" ) + ( null == outside ? "" : " + outside" ) + ", level " + k;
+						if ( e.width != a.getWidth() || e.height != a.getHeight() )
+						{
+							System.out.println( "ERROR size of " + what + ": " + e.width + "x" + e.height + " != " + a.getWidth() + "x" + a.getHeight() );
+							++nErrors;
+							continue;
+						}
+						if ( e.data.length != expected.length + ( null == mask ? 0 : 1 ) )
+						{
+							System.out.println( "ERROR number of channels of " + what + ": " + e.data.length );
+							++nErrors;
+							continue;
+						}
+						for ( int c = 0; c < expected.length; ++c )
+						{
+							if ( !Arrays.equals( expected[ c ], e.data[ c ] ) )
+							{
+								System.out.println( "ERROR channel " + c + " of " + what );
+								++nErrors;
+							}
+						}
+						if ( null != mask && !Arrays.equals( mask, e.data[ expected.length ] ) )
+						{
+							System.out.println( "ERROR mask of " + what );
+							++nErrors;
+						}
+					}
+				}
+			}
+		}
+		return nErrors;
+	}
+	
+	
 	final private static void testByteIntegral( ByteProcessor ipByte )
 	{
 		while( ipByte.getWidth() > 32 )
@@ -193,6 +363,9 @@ public class DownsamplerTest
 	 */
 	public static void main( final String[] args )
 	{
+		final int nErrors = testPyramidEquality();
+		System.out.println( "downsamplePyramid() against level by level: " + ( 0 == nErrors ? "OK" : nErrors + " errors" ) );
+		
 		new ImageJ();
 		final Timer timer = new Timer();
 		
@@ -339,6 +512,34 @@ public class DownsamplerTest
 		}
 		
 		
+		System.out.println( "downsamplePyramid() short, byte, color (single pass)" );
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			timer.start();
+			testPyramid( ipShort, null, null );
+			testPyramid( ipByte, null, null );
+			testPyramid( ipColor, null, null );
+			final long t = timer.stop();
+			System.out.println( i + ": " + t  + "ms" );
+		}
+		
+		System.out.println( "downsamplePyramid() short + alpha + outside (single pass)" );
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			final ByteProcessor alpha = new ByteProcessor( ipShort.getWidth(), ipShort.getHeight(), ( byte[] )ipShort.convertToByte( true ).getPixels(), null );
+			ByteProcessor outside = new ByteProcessor( ipByte.getWidth(), ipByte.getHeight() );
+			outside.setRoi( new OvalRoi( 100, 100, ipByte.getWidth() - 200, ipByte.getHeight() - 200 ) );
+			outside.setValue( 255 );
+			outside.fill(outside.getMask());
+			timer.start();
+			testPyramid( ipShort, alpha, outside );
+			final long t = timer.stop();
+			System.out.println( i + ": " + t  + "ms" );
+		}
+		
+		
 //		System.out.println( "byte integral" );
 //		final ByteProcessor ipByteI = ( ByteProcessor )ipShort.convertToByte( true );
 //		
@@ -0,0 +1,81 @@
+package ini.trakem2.benchmarks;
+
+import ini.trakem2.persistence.Cache;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Lookups and insertions in the mipmap {@link Cache}, for a full cache.
+ *  The Cache is guarded by the Loader's lock, so these run in a single thread. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+	/** Number of distinct images that fit in the cache. */
+	@Param({"1000", "100000"})
+	public int n_images;
+
+	private Cache cache;
+	private Image[] images;
+	private long next_id;
+	private int k;
+
+	@Setup
+	public void setup() {
+		// All images are 32x32 ARGB, i.e. 4096 bytes each
+		images = new Image[64];
+		for (int i=0; i<images.length; i++) images[i] = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+		cache = new Cache(n_images * 4096L);
+		for (int i=0; i<n_images; i++) {
+			cache.put(i, images[i % images.length], i % 4);
+		}
+		next_id = n_images;
+		k = 0;
+	}
+
+	/** Hit, at a pseudo-random position of the LRU order. */
+	@Benchmark
+	public Image getHit() {
+		k = (k + 7919) % n_images;
+		return cache.get(k, k % 4);
+	}
+
+	@Benchmark
+	public Image getMiss() {
+		k = (k + 7919) % n_images;
+		return cache.get(k, (k + 1) % 4);
+	}
+
+	/** Each put of a new image evicts the least recently used one. */
+	@Benchmark
+	public long putEvicting() {
+		final long id = next_id++;
+		cache.put(id, images[(int)(id % images.length)], (int)(id % 4));
+		return cache.getBytes();
+	}
+
+	/** Replace an image at an existing level, which moves its pyramid to the front. */
+	@Benchmark
+	public long putReplace() {
+		k = (k + 7919) % n_images;
+		cache.put(k, images[(k + 1) % images.length], k % 4);
+		return cache.getBytes();
+	}
+}
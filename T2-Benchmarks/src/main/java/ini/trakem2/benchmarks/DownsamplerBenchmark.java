@@ -0,0 +1,119 @@
+package ini.trakem2.benchmarks;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.display.Patch;
+import ini.trakem2.persistence.DownsamplerMipMaps;
+import ini.trakem2.persistence.ImageBytes;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.trakem2.util.Downsampler;
+import mpicbg.trakem2.util.Downsampler.Pair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Single 2x downsampling steps of {@link Downsampler} for each image type,
+ *  and whole mipmap pyramids as made by {@link DownsamplerMipMaps}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownsamplerBenchmark {
+
+	/** Width and height of the source image. */
+	@Param({"1024", "4096"})
+	public int side;
+
+	private SyntheticProject sp;
+	private Patch patch;
+	private ByteProcessor bp, alpha, outside;
+	private ShortProcessor sp16;
+	private FloatProcessor fp;
+	private ColorProcessor cp;
+
+	@Setup
+	public void setup() throws Exception {
+		sp = new SyntheticProject(1, 1, 1, side, 0, 0);
+		patch = sp.patches.get(0);
+		bp = SyntheticProject.noise(side, side, new Random(1));
+		sp16 = (ShortProcessor)bp.convertToShort(false);
+		fp = (FloatProcessor)bp.convertToFloat();
+		cp = (ColorProcessor)bp.convertToRGB();
+		// An alpha mask with a soft disc, and an outside mask as left by a coordinate transform
+		alpha = new ByteProcessor(side, side);
+		outside = new ByteProcessor(side, side);
+		final byte[] a = (byte[])alpha.getPixels(),
+		             o = (byte[])outside.getPixels();
+		final double c = side / 2.0;
+		for (int y=0, i=0; y<side; y++) {
+			for (int x=0; x<side; x++, i++) {
+				final double d = Math.sqrt((x - c) * (x - c) + (y - c) * (y - c)) / c;
+				a[i] = (byte)(d < 0.8 ? 255 : Math.max(0, (int)(255 * (1 - d) * 5)));
+				o[i] = (byte)(x + y > side / 4 ? 255 : 0);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		sp.destroy();
+	}
+
+	@Benchmark
+	public ByteProcessor downsampleByte() {
+		return Downsampler.downsampleByteProcessor(bp);
+	}
+
+	@Benchmark
+	public Pair<ShortProcessor, byte[]> downsampleShort() {
+		return Downsampler.downsampleShort(sp16);
+	}
+
+	@Benchmark
+	public Pair<FloatProcessor, byte[]> downsampleFloat() {
+		return Downsampler.downsampleFloat(fp);
+	}
+
+	@Benchmark
+	public Pair<ColorProcessor, byte[][]> downsampleColor() {
+		return Downsampler.downsampleColor(cp);
+	}
+
+	@Benchmark
+	public Pair<ByteProcessor, ByteProcessor> downsampleAlphaAndOutside() {
+		return Downsampler.downsampleAlphaAndOutside(alpha, outside);
+	}
+
+	@Benchmark
+	public ImageBytes[] pyramidByte() {
+		return DownsamplerMipMaps.create(patch, ImagePlus.GRAY8, bp, null, null);
+	}
+
+	@Benchmark
+	public ImageBytes[] pyramidByteWithMasks() {
+		return DownsamplerMipMaps.create(patch, ImagePlus.GRAY8, bp, alpha, outside);
+	}
+
+	@Benchmark
+	public ImageBytes[] pyramidColor() {
+		return DownsamplerMipMaps.create(patch, ImagePlus.COLOR_RGB, cp, null, null);
+	}
+}
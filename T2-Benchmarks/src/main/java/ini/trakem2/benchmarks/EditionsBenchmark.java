@@ -0,0 +1,74 @@
+package ini.trakem2.benchmarks;
+
+import ini.trakem2.vector.Editions;
+import ini.trakem2.vector.VectorString2D;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The string-matching of two resampled curves by {@link Editions}, whose
+ *  cost grows with the product of their lengths. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EditionsBenchmark {
+
+	/** Approximate number of points of each curve after resampling. */
+	@Param({"200", "1000"})
+	public int length;
+
+	@Param({"true", "false"})
+	public boolean closed;
+
+	private VectorString2D vs1, vs2;
+	private final double delta = 1.0;
+
+	@Setup
+	public void setup() throws Exception {
+		final Random rnd = new Random(13);
+		vs1 = wobblyCircle(length, rnd);
+		vs2 = wobblyCircle(length, rnd);
+		vs1.resample(delta);
+		vs2.resample(delta);
+	}
+
+	/** A circle of about {@param n} units of perimeter, with its radius perturbed. */
+	private VectorString2D wobblyCircle(final int n, final Random rnd) throws Exception {
+		final int k = Math.max(8, n / 4);
+		final double[] x = new double[k],
+		               y = new double[k];
+		final double r = n / (2 * Math.PI);
+		for (int i=0; i<k; i++) {
+			final double a = 2 * Math.PI * i / k,
+			             ri = r * (1 + 0.1 * (rnd.nextDouble() - 0.5));
+			x[i] = ri * Math.cos(a);
+			y[i] = ri * Math.sin(a);
+		}
+		return new VectorString2D(x, y, 0, closed);
+	}
+
+	@Benchmark
+	public double editions() {
+		return new Editions(vs1, vs2, delta, closed).getDistance();
+	}
+
+	@Benchmark
+	public double similarity() {
+		return new Editions(vs1, vs2, delta, closed).getSimilarity();
+	}
+}
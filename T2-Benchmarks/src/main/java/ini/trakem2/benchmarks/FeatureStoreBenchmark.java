@@ -0,0 +1,100 @@
+package ini.trakem2.benchmarks;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.trakem2.align.FeatureStore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Reading synthetic SIFT {@link Feature Features} from a Java serialized file,
+ *  as they used to be stored, versus the binary format of {@link FeatureStore},
+ *  with and without quantized descriptors. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureStoreBenchmark {
+
+	@Param({"1000", "10000"})
+	public int n;
+
+	static private final String KEY = "benchmark";
+
+	private File folder;
+	private File ser;
+	private String bin, qbin;
+
+	@Setup
+	public void setup() throws Exception {
+		folder = File.createTempFile("trakem2-bench-", "");
+		if (!folder.delete() || !folder.mkdirs()) throw new Exception("Could not create " + folder);
+		final Random rnd = new Random(1234);
+		final ArrayList<Feature> features = new ArrayList<Feature>(n);
+		for (int i=0; i<n; i++) {
+			final float[] d = new float[128];
+			for (int j=0; j<d.length; j++) d[j] = rnd.nextFloat() * 0.2f;
+			features.add(new Feature(rnd.nextFloat() * 8, rnd.nextFloat() * 6.28f, new float[]{rnd.nextFloat() * 4096, rnd.nextFloat() * 4096}, d));
+		}
+		ser = new File(folder, "features.ser");
+		bin = new File(folder, "features" + FeatureStore.EXTENSION).getAbsolutePath();
+		qbin = new File(folder, "features.quantized" + FeatureStore.EXTENSION).getAbsolutePath();
+		final ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(ser));
+		try {
+			out.writeObject(KEY);
+			out.writeObject(features);
+		} finally {
+			out.close();
+		}
+		if (!FeatureStore.writeFeatures(bin, KEY, features, false)
+		 || !FeatureStore.writeFeatures(qbin, KEY, features, true)) {
+			throw new Exception("Could not write the features to " + folder);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		SyntheticProject.delete(folder);
+	}
+
+	@Benchmark
+	public Object readSerialized() throws Exception {
+		final ObjectInputStream in = new ObjectInputStream(new FileInputStream(ser));
+		try {
+			in.readObject();
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public ArrayList<Feature> readBinary() {
+		return FeatureStore.readFeatures(bin, KEY);
+	}
+
+	@Benchmark
+	public ArrayList<Feature> readQuantized() {
+		return FeatureStore.readFeatures(qbin, KEY);
+	}
+}
@@ -0,0 +1,135 @@
+package ini.trakem2.benchmarks;
+
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.display.Treeline;
+
+import java.awt.Rectangle;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Bucket searches through {@link Layer#find(Rectangle, boolean)} and the
+ *  LayerSet's ZDisplayable buckets, alone and while another thread keeps
+ *  moving images around, which takes the write lock of the Layer; and adding
+ *  and removing an image, alone and while other threads search. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayerFindBenchmark {
+
+	/** Images per side of the square grid in each layer. */
+	@Param({"10", "40"})
+	public int grid;
+
+	private SyntheticProject sp;
+	private Layer layer;
+	private Rectangle world;
+	/** An image not in the layer, to add and remove. */
+	private Patch extra;
+
+	@Setup
+	public void setup() throws Exception {
+		sp = new SyntheticProject(2, grid, grid, 512, 20, 50);
+		layer = sp.layer_set.getLayer(0);
+		world = new Rectangle(0, 0, (int)sp.layer_set.getLayerWidth(), (int)sp.layer_set.getLayerHeight());
+		extra = (Patch)sp.patches.get(sp.patches.size() / 2).clone(sp.project, false);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sp.destroy();
+	}
+
+	/** A window-sized query at a random position, per thread. */
+	@State(Scope.Thread)
+	public static class Viewport {
+		private final Random rnd = new Random(7);
+		final Rectangle r = new Rectangle(0, 0, 1024, 768);
+		Rectangle next(final Rectangle world) {
+			r.x = rnd.nextInt(Math.max(1, world.width - r.width));
+			r.y = rnd.nextInt(Math.max(1, world.height - r.height));
+			return r;
+		}
+	}
+
+	@Benchmark
+	public Collection<Displayable> findRectangle(final Viewport v) {
+		return layer.find(v.next(world), true);
+	}
+
+	@Benchmark
+	public Collection<Displayable> findPatches(final Viewport v) {
+		return layer.find(Patch.class, v.next(world), true);
+	}
+
+	@Benchmark
+	public Collection<Displayable> findPoint(final Viewport v) {
+		final Rectangle r = v.next(world);
+		return layer.find(r.x, r.y, true);
+	}
+
+	@Benchmark
+	public Collection<Displayable> findTreelines(final Viewport v) {
+		return sp.layer_set.findZDisplayables(Treeline.class, layer, v.next(world), true);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public Collection<Displayable> contendedFind(final Viewport v) {
+		return layer.find(v.next(world), true);
+	}
+
+	/** Move one image back and forth, updating its bucket each time. */
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void contendedMove(final Viewport v) {
+		final Patch p = sp.patches.get(v.rnd.nextInt(grid * grid));
+		final Rectangle b = p.getBoundingBox();
+		p.setLocation(b.x + 3, b.y);
+		p.setLocation(b.x, b.y);
+	}
+
+	/** Add an image on top and remove it again; each rebuilds the buckets of the layer. */
+	@Benchmark
+	public void addRemove() {
+		layer.add(extra, false);
+		layer.remove(extra);
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(3)
+	public Collection<Displayable> churnFind(final Viewport v) {
+		return layer.find(v.next(world), true);
+	}
+
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(1)
+	public void churnAddRemove() {
+		layer.add(extra, false);
+		layer.remove(extra);
+	}
+}
@@ -0,0 +1,89 @@
+package ini.trakem2.benchmarks;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.trakem2.transform.HomographyModel2D;
+import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Rendering of an image through a non-linear transform, as done by
+ *  Patch.createTransformedImage: a {@link TransformMesh} of the given
+ *  resolution mapped by {@link TransformMeshMappingWithMasks}, with and
+ *  without an alpha mask. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshMappingBenchmark {
+
+	@Param({"2048"})
+	public int side;
+
+	/** Number of mesh vertices along the width. */
+	@Param({"32", "128"})
+	public int mesh_resolution;
+
+	@Param({"1", "4"})
+	public int n_threads;
+
+	private TransformMeshMappingWithMasks<TransformMesh> mapping;
+	private Rectangle box;
+	private ImageProcessorWithMasks source, source_masked;
+
+	@Setup
+	public void setup() {
+		final HomographyModel2D h = new HomographyModel2D();
+		h.init("1.02 0.05 10 -0.03 0.98 20 0.00002 0.00001 1");
+		final TransformMesh mesh = new TransformMesh(h, mesh_resolution, side, side);
+		box = mesh.getBoundingBox();
+		mapping = new TransformMeshMappingWithMasks<TransformMesh>(mesh);
+
+		final ByteProcessor bp = SyntheticProject.noise(side, side, new Random(3));
+		final ByteProcessor alpha = new ByteProcessor(side, side);
+		final byte[] a = (byte[])alpha.getPixels();
+		for (int i=0; i<a.length; i++) a[i] = (byte)((i % side) < side / 2 ? 255 : 128);
+		source = new ImageProcessorWithMasks(bp, null, null);
+		source_masked = new ImageProcessorWithMasks(bp.convertToFloat(), alpha, null);
+	}
+
+	@Benchmark
+	public ImageProcessorWithMasks map() {
+		final ImageProcessorWithMasks target = new ImageProcessorWithMasks(new ByteProcessor(box.width, box.height), null, null);
+		mapping.map(source, target, n_threads);
+		return target;
+	}
+
+	@Benchmark
+	public ImageProcessorWithMasks mapInterpolated() {
+		final ImageProcessorWithMasks target = new ImageProcessorWithMasks(new ByteProcessor(box.width, box.height), null, null);
+		mapping.mapInterpolated(source, target, n_threads);
+		return target;
+	}
+
+	@Benchmark
+	public ImageProcessorWithMasks mapInterpolatedMasked() {
+		final ImageProcessorWithMasks target = new ImageProcessorWithMasks(new FloatProcessor(box.width, box.height), new ByteProcessor(box.width, box.height), null);
+		mapping.mapInterpolated(source_masked, target, n_threads);
+		return target;
+	}
+}
@@ -0,0 +1,105 @@
+package ini.trakem2.benchmarks;
+
+import ini.trakem2.io.RagMipMaps;
+import ini.trakem2.io.RawMipMaps;
+import ini.trakem2.persistence.ImageBytes;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Writing and reading mipmap files in the uncompressed {@link RawMipMaps}
+ *  format and in the {@link RagMipMaps} format, whose alpha channel is gzipped.
+ *  Files are read right after being written, so mostly from the OS page cache. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MipMapIOBenchmark {
+
+	@Param({"512", "2048"})
+	public int side;
+
+	/** Number of channels: 1 for grey, 2 for grey with alpha, 4 for RGBA. */
+	@Param({"1", "2", "4"})
+	public int channels;
+
+	private File folder;
+	private byte[][] b;
+	private String raw, rag;
+
+	@Setup
+	public void setup() throws Exception {
+		folder = File.createTempFile("trakem2-bench-", "");
+		if (!folder.delete() || !folder.mkdirs()) throw new Exception("Could not create " + folder);
+		final Random rnd = new Random(5);
+		b = new byte[channels][];
+		for (int c=0; c<channels; c++) {
+			b[c] = (byte[])SyntheticProject.noise(side, side, rnd).getPixels();
+		}
+		if (channels > 1) {
+			// The alpha channel: mostly opaque, with a transparent margin
+			final byte[] alpha = b[channels -1];
+			for (int y=0, i=0; y<side; y++) {
+				for (int x=0; x<side; x++, i++) {
+					alpha[i] = (byte)(x < side / 8 || y < side / 8 ? 0 : 255);
+				}
+			}
+		}
+		raw = new File(folder, "mipmap.raw").getAbsolutePath();
+		rag = new File(folder, "mipmap.rag").getAbsolutePath();
+		RawMipMaps.save(raw, b, side, side);
+		RagMipMaps.save(rag, b, side, side);
+	}
+
+	@TearDown
+	public void tearDown() {
+		SyntheticProject.delete(folder);
+	}
+
+	@Benchmark
+	public boolean rawSave() {
+		return RawMipMaps.save(raw, b, side, side);
+	}
+
+	@Benchmark
+	public ImageBytes rawLoad() {
+		return RawMipMaps.load(raw);
+	}
+
+	@Benchmark
+	public BufferedImage rawRead() {
+		return RawMipMaps.read(raw);
+	}
+
+	@Benchmark
+	public boolean ragSave() {
+		return RagMipMaps.save(rag, b, side, side);
+	}
+
+	@Benchmark
+	public ImageBytes ragLoad() {
+		return RagMipMaps.load(rag);
+	}
+
+	@Benchmark
+	public BufferedImage ragRead() {
+		return RagMipMaps.read(rag);
+	}
+}
@@ -0,0 +1,105 @@
+package ini.trakem2.benchmarks;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.trakem2.align.SparseAffineSolver;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Montage of a grid of affine tiles with the iterative optimizer of {@link TileConfiguration},
+ *  versus the {@link SparseAffineSolver} followed by the same optimizer as a refinement.
+ *  Each invocation starts from a fresh grid, since solving changes the models of the tiles. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SparseAffineSolverBenchmark {
+
+	/** Tiles per side of the grid. */
+	@Param({"10", "30"})
+	public int size;
+
+	/** Point matches per pair of overlapping tiles. */
+	@Param({"20"})
+	public int matches;
+
+	private ArrayList<Tile<?>> grid;
+	private TileConfiguration tc;
+
+	@Setup(Level.Invocation)
+	public void setup() {
+		grid = createGrid(size, matches, new Random(1234));
+		tc = new TileConfiguration();
+		tc.addTiles(grid);
+		tc.fixTile(grid.get(0));
+	}
+
+	@Benchmark
+	public double iterativeOptimizer() throws Exception {
+		tc.optimize(0.01f, 10000, 200);
+		return tc.getError();
+	}
+
+	@Benchmark
+	public double sparseThenRefinement() throws Exception {
+		final SparseAffineSolver solver = new SparseAffineSolver(grid, tc.getFixedTiles(), Runtime.getRuntime().availableProcessors());
+		solver.solve(10 * grid.size(), 1e-12);
+		tc.optimize(0.01f, 10000, 200);
+		return tc.getError();
+	}
+
+	/** Grid of size x size tiles of 1000x1000 px with 10% overlap, displaced by small random affines. */
+	static ArrayList<Tile<?>> createGrid(final int size, final int numMatches, final Random rnd) {
+		final ArrayList<Tile<?>> grid = new ArrayList<Tile<?>>();
+		for (int i=0; i<size * size; i++) {
+			final AffineModel2D model = new AffineModel2D();
+			model.set(
+					1 + (rnd.nextFloat() - 0.5f) * 0.02f, (rnd.nextFloat() - 0.5f) * 0.02f,
+					(rnd.nextFloat() - 0.5f) * 0.02f, 1 + (rnd.nextFloat() - 0.5f) * 0.02f,
+					(i % size) * 900 + (rnd.nextFloat() - 0.5f) * 50,
+					(i / size) * 900 + (rnd.nextFloat() - 0.5f) * 50);
+			grid.add(new Tile<AffineModel2D>(model));
+		}
+		for (int y=0; y<size; y++) {
+			for (int x=0; x<size; x++) {
+				final Tile<?> t = grid.get(y * size + x);
+				if (x + 1 < size) connect(t, grid.get(y * size + x + 1), 900, 0, numMatches, rnd);
+				if (y + 1 < size) connect(t, grid.get((y + 1) * size + x), 0, 900, numMatches, rnd);
+			}
+		}
+		return grid;
+	}
+
+	static private void connect(final Tile<?> t1, final Tile<?> t2, final float dx, final float dy, final int numMatches, final Random rnd) {
+		final ArrayList<PointMatch> pms = new ArrayList<PointMatch>();
+		for (int k=0; k<numMatches; k++) {
+			// A point in the overlap, in local coordinates of both tiles, with some noise
+			final float x = dx > 0 ? 900 + rnd.nextFloat() * 100 : rnd.nextFloat() * 1000;
+			final float y = dy > 0 ? 900 + rnd.nextFloat() * 100 : rnd.nextFloat() * 1000;
+			pms.add(new PointMatch(
+					new Point(new float[]{x, y}),
+					new Point(new float[]{x - dx + (rnd.nextFloat() - 0.5f), y - dy + (rnd.nextFloat() - 0.5f)})));
+		}
+		t1.connect(t2, pms);
+	}
+}
@@ -0,0 +1,132 @@
+package ini.trakem2.benchmarks;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Node;
+import ini.trakem2.display.Patch;
+import ini.trakem2.display.Treeline;
+
+import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+/** A headless project in a temporary folder, with a grid of overlapping 8-bit
+ *  images in every layer and treelines that run across all layers.
+ *  Everything is generated from a fixed seed, so that runs are comparable. */
+final class SyntheticProject {
+
+	final File folder;
+	final Project project;
+	final LayerSet layer_set;
+	final ArrayList<Patch> patches = new ArrayList<Patch>();
+	final ArrayList<Treeline> trees = new ArrayList<Treeline>();
+	final int side;
+
+	/**
+	 * @param n_layers Number of layers.
+	 * @param cols Columns of images per layer.
+	 * @param rows Rows of images per layer.
+	 * @param side Width and height of each image; neighbouring images overlap by 10%.
+	 * @param n_trees Number of treelines.
+	 * @param nodes_per_layer Nodes of each treeline in each layer.
+	 */
+	SyntheticProject(final int n_layers, final int cols, final int rows, final int side, final int n_trees, final int nodes_per_layer) throws Exception {
+		ControlWindow.setGUIEnabled(false);
+		this.side = side;
+		this.folder = File.createTempFile("trakem2-bench-", "");
+		if (!folder.delete() || !folder.mkdirs()) throw new Exception("Could not create " + folder);
+		final String storage_folder = folder.getAbsolutePath().replace('\\', '/') + "/";
+		this.project = Project.newFSProject("blank", null, storage_folder, false);
+		if (null == project) throw new Exception("Could not create a project at " + storage_folder);
+		this.layer_set = project.getRootLayerSet();
+
+		final Random rnd = new Random(42);
+
+		// One image file per grid position, shared by all layers
+		final String[] paths = new String[cols * rows];
+		for (int i=0; i<paths.length; i++) {
+			paths[i] = storage_folder + "tile_" + i + ".tif";
+			new FileSaver(new ImagePlus("tile_" + i, noise(side, side, rnd))).saveAsTiff(paths[i]);
+		}
+
+		final int step = side - side / 10;
+		for (int z=0; z<n_layers; z++) {
+			final Layer layer = new Layer(project, z, 1, layer_set);
+			layer_set.add(layer);
+			for (int row=0; row<rows; row++) {
+				for (int col=0; col<cols; col++) {
+					final AffineTransform at = new AffineTransform();
+					at.translate(col * step + rnd.nextInt(5), row * step + rnd.nextInt(5));
+					final Patch patch = new Patch(project, "tile_" + (row * cols + col), side, side, side, side,
+							ImagePlus.GRAY8, 1.0f, Color.yellow, false, 0, 255, at, paths[row * cols + col]);
+					layer.add(patch, false);
+					patches.add(patch);
+				}
+			}
+		}
+		layer_set.setMinimumDimensions();
+
+		final double width = layer_set.getLayerWidth(),
+		             height = layer_set.getLayerHeight();
+		for (int t=0; t<n_trees; t++) {
+			final Treeline tree = new Treeline(project, "tree " + t);
+			layer_set.add(tree);
+			float x = (float)(rnd.nextDouble() * width),
+			      y = (float)(rnd.nextDouble() * height);
+			Node<Float> parent = null;
+			Node<Float> root = null;
+			for (final Layer layer : layer_set.getLayers()) {
+				for (int k=0; k<nodes_per_layer; k++) {
+					x = (float)Math.max(0, Math.min(width, x + rnd.nextGaussian() * 20));
+					y = (float)Math.max(0, Math.min(height, y + rnd.nextGaussian() * 20));
+					final Node<Float> nd = new Treeline.RadiusNode(x, y, layer, 5);
+					if (null == parent) root = nd;
+					else parent.add(nd, Node.MAX_EDGE_CONFIDENCE);
+					parent = nd;
+				}
+			}
+			tree.setRoot(root);
+			tree.calculateBoundingBox(null);
+			trees.add(tree);
+		}
+
+		layer_set.recreateBuckets(true);
+	}
+
+	/** Smooth gradients plus noise, so that compression and downsampling see realistic data. */
+	static ByteProcessor noise(final int width, final int height, final Random rnd) {
+		final ByteProcessor bp = new ByteProcessor(width, height);
+		final byte[] pix = (byte[])bp.getPixels();
+		for (int y=0, i=0; y<height; y++) {
+			for (int x=0; x<width; x++, i++) {
+				pix[i] = (byte)(((x + y) / 4 + rnd.nextInt(32)) & 0xff);
+			}
+		}
+		return bp;
+	}
+
+	/** Save the project as XML in its folder, and return the path to the file. */
+	String save() {
+		return project.saveAs(folder.getAbsolutePath().replace('\\', '/') + "/project.xml", true);
+	}
+
+	void destroy() {
+		project.destroy();
+		delete(folder);
+	}
+
+	static void delete(final File f) {
+		final File[] files = f.listFiles();
+		if (null != files) {
+			for (final File c : files) delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,59 @@
+package ini.trakem2.benchmarks;
+
+import ini.trakem2.Project;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Opening a saved project without displays: the XML file is parsed by the
+ *  TMLHandler and the project, its trees and buckets are reconstructed.
+ *  The opened project is destroyed within the measurement, since only
+ *  one copy of a project may be open at a time. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TMLHandlerBenchmark {
+
+	@Param({"10", "50"})
+	public int n_layers;
+
+	private SyntheticProject sp;
+	private String xml_path;
+
+	@Setup
+	public void setup() throws Exception {
+		// 100 images per layer and 10 treelines with 20 nodes per layer
+		sp = new SyntheticProject(n_layers, 10, 10, 512, 10, 20);
+		xml_path = sp.save();
+		if (null == xml_path) throw new Exception("Could not save the synthetic project");
+	}
+
+	@TearDown
+	public void tearDown() {
+		sp.destroy();
+	}
+
+	@Benchmark
+	public int open() throws Exception {
+		final Project project = Project.openFSProject(xml_path, false);
+		if (null == project) throw new Exception("Could not open " + xml_path);
+		final int n = project.getRootLayerSet().size();
+		project.destroy();
+		return n;
+	}
+}
@@ -0,0 +1,86 @@
+package ini.trakem2.benchmarks;
+
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Node;
+import ini.trakem2.display.Treeline;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Painting a large treeline, which first selects the nodes of the active
+ *  and color-cue layers and then filters out those outside the srcRect.
+ *  With a small viewport the node selection dominates the cost. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreePaintBenchmark {
+
+	@Param({"100", "2000"})
+	public int nodes_per_layer;
+
+	private SyntheticProject sp;
+	private Treeline tree;
+	private Layer layer;
+	private List<Layer> color_cue_layers;
+	private BufferedImage canvas;
+	private Graphics2D g;
+	private final Random rnd = new Random(11);
+	private final Rectangle viewport = new Rectangle(0, 0, 800, 600);
+	private Rectangle all;
+
+	@Setup
+	public void setup() throws Exception {
+		sp = new SyntheticProject(5, 8, 8, 512, 1, nodes_per_layer);
+		tree = sp.trees.get(0);
+		layer = sp.layer_set.getLayer(2);
+		color_cue_layers = sp.layer_set.getColorCueLayerRange(layer);
+		canvas = new BufferedImage(viewport.width, viewport.height, BufferedImage.TYPE_INT_ARGB);
+		g = canvas.createGraphics();
+		all = new Rectangle(0, 0, (int)sp.layer_set.getLayerWidth(), (int)sp.layer_set.getLayerHeight());
+	}
+
+	@TearDown
+	public void tearDown() {
+		g.dispose();
+		sp.destroy();
+	}
+
+	/** The viewport at a random position, at magnification 1. */
+	@Benchmark
+	public void paintViewport() {
+		viewport.x = 1 + rnd.nextInt(all.width - viewport.width);
+		viewport.y = 1 + rnd.nextInt(all.height - viewport.height);
+		tree.paint(g, viewport, 1.0, true, 0xffffffff, layer, color_cue_layers);
+	}
+
+	/** The whole layer scaled into the canvas, as done by the navigator and snapshots. */
+	@Benchmark
+	public void paintAll() {
+		tree.paint(g, all, viewport.width / (double)all.width, false, 0xffffffff, layer, color_cue_layers);
+	}
+
+	@Benchmark
+	public Node<Float> findClosestNode() {
+		return tree.findClosestNodeW(rnd.nextInt(all.width), rnd.nextInt(all.height), layer, 1.0);
+	}
+}
@@ -45,6 +45,9 @@ import ini.trakem2.display.Stack;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.YesNoDialog;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.imaging.RoiImageSource;
+import ini.trakem2.imaging.SeamBlending;
+import ini.trakem2.imaging.StackBlocks;
 import ini.trakem2.persistence.DBLoader;
 import ini.trakem2.persistence.DBObject;
 import ini.trakem2.persistence.XMLOptions;
@@ -647,6 +650,7 @@ public class Project extends DBObject {
 		}
 		
 		project.restartAutosaving();
+		StackBlocks.removeUnused(project);
 
 		return project;
 	}
@@ -792,6 +796,8 @@ public class Project extends DBObject {
 		if (null != project_tree) project_tree.destroy();
 		if (null != layer_tree) layer_tree.destroy();
 		Polyline.flushTraceCache(this);
+		SeamBlending.clear(this);
+		RoiImageSource.clear(this);
 		this.template_tree = null; // flag to mean: we're closing
 		// close all open Displays
 		Display.close(this);
@@ -1510,6 +1516,12 @@ public class Project extends DBObject {
 		gd.addSlider("Number of threads for mipmaps", 1, n_mipmap_threads, n_mipmap_threads);
 		int meshResolution = getProperty("mesh_resolution", 32);
 		gd.addSlider("Default mesh resolution for images", 1, 512, meshResolution);
+		int mesh_triangle_budget = getProperty("mesh_triangle_budget", 0);
+		gd.addNumericField("Mesh_triangle_budget:", mesh_triangle_budget, 0, 8, "(0 for no decimation)");
+		boolean no_mesh_cache = "true".equals(ht_props.get("no_mesh_cache"));
+		gd.addCheckbox("No_mesh_cache on disk", no_mesh_cache);
+		boolean blend_seams = "true".equals(ht_props.get("blend_seams"));
+		gd.addCheckbox("Blend_image_seams while rendering", blend_seams);
 		//
 		gd.showDialog();
 		//
@@ -1596,6 +1608,17 @@ public class Project extends DBObject {
 				Utils.log("WARNING: ignoring invalid mesh resolution value " + meshResolution2);
 			}
 		}
+		final double mesh_triangle_budget2 = gd.getNextNumber();
+		if (!Double.isNaN(mesh_triangle_budget2) && mesh_triangle_budget2 >= 0) {
+			if (0 == mesh_triangle_budget2) ht_props.remove("mesh_triangle_budget");
+			else setProperty("mesh_triangle_budget", Integer.toString((int)mesh_triangle_budget2));
+		} else {
+			Utils.log("WARNING: ignoring invalid mesh triangle budget " + mesh_triangle_budget2);
+		}
+		adjustProp("no_mesh_cache", no_mesh_cache, gd.getNextBoolean());
+		if (adjustProp("blend_seams", blend_seams, gd.getNextBoolean())) {
+			Display.repaint(layer_set);
+		}
 	}
 
 	/** Return the Universal Near-Unique Id of this project, which may be null for non-FSLoader projects. */
@@ -41,6 +41,9 @@ import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Line3D;
 import ini.trakem2.display.Pipe;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -76,9 +79,9 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import javax.media.j3d.Transform3D;
@@ -89,7 +92,6 @@ import javax.vecmath.Point3d;
 import javax.vecmath.Tuple3d;
 import javax.vecmath.Vector3d;
 
-import mpi.fruitfly.general.MultiThreading;
 import mpicbg.models.AffineModel3D;
 import mpicbg.models.MovingLeastSquaresTransform;
 import mpicbg.models.PointMatch;
@@ -1488,18 +1490,30 @@ public class Compare {
 	static public float[][] scoreAllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final Worker worker) {
 		final float[][] scores = new float[vs.length][vs.length];
 
+		// Balance the triangular workload: threads take pairs a few at a time rather than whole rows,
+		// starting with the longest sequences, whose pairs take longest.
+		final Integer[] order = new Integer[vs.length];
+		for (int k=0; k<order.length; k++) order[k] = k;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				return vs[b].length() - vs[a].length();
+			}
+		});
+		final long n_pairs = (long)vs.length * (vs.length - 1) / 2;
+		final int batch = (int)Math.max(1, Math.min(16, n_pairs / (64 * Runtime.getRuntime().availableProcessors())));
 
-		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicLong al = new AtomicLong(0);
 
-		final Thread[] threads = MultiThreading.newThreads();
-		for (int ithread=0; ithread<threads.length; ithread++) {
-			threads[ithread] = new Thread() { public void run() {
+		final Runnable task = new Runnable() { public void run() {
 				////
 
-		for (int i=ai.getAndIncrement(); i<vs.length; i=ai.getAndIncrement()) {
-			final VectorString3D vs1 = vs[i];
-			for (int j=i+1; j<vs.length; j++) {
+		for (long first=al.getAndAdd(batch); first<n_pairs; first=al.getAndAdd(batch)) {
+			final long last = Math.min(n_pairs, first + batch);
+			for (long k=first; k<last; k++) {
 				if (null != worker && worker.hasQuitted()) return;
+				final int[] pair = pairAt(k, vs.length);
+				final int i = Math.min(order[pair[0]], order[pair[1]]),
+				          j = Math.max(order[pair[0]], order[pair[1]]);
 				final Object[] ob = findBestMatch(vs[i], vs[j], delta, skip_ends, max_mut, min_chunk, distance_type, direct, substring_matching); // TODO should add 'distance_type' as well for the selection of the best match when not direct.
 				/*
 				switch (distance_type) {
@@ -1534,15 +1548,29 @@ public class Compare {
 		}
 
 			////
-			}};
+		}};
+		try {
+			ExecutorProvider.runParallel(Priority.BATCH, Runtime.getRuntime().availableProcessors(), task);
+		} catch (InterruptedException ie) {
+			return null;
 		}
-		MultiThreading.startAndJoin(threads);
 
 		if (null != worker && worker.hasQuitted()) return null;
 
 		return scores;
 	}
 
+	/** Returns the pair {a, b}, with a &lt; b &lt; n, at index @param k of the n * (n - 1) / 2 pairs in row order:
+	 *  {0,1}, {0,2} ... {0,n-1}, {1,2} ... {n-2,n-1}. */
+	static private final int[] pairAt(final long k, final int n) {
+		// rows before row a hold a * (2n - a - 1) / 2 pairs
+		int a = (int)(n - 2 - Math.floor(Math.sqrt(4.0 * n * (n - 1) - 8.0 * k - 7) / 2 - 0.5));
+		// correct numerical error
+		while (a > 0 && (long)a * (2 * n - a - 1) / 2 > k) a--;
+		while ((long)(a + 1) * (2 * n - a - 2) / 2 <= k) a++;
+		return new int[]{a, (int)(k - (long)a * (2 * n - a - 1) / 2) + a + 1};
+	}
+
 	/** Creates a transform with the 4 given vectors: X, Y, Z and translation of origin. */
 	static public Transform3D createTransform(final Vector3d[] o) {
 		return new Transform3D(new Matrix4d(
@@ -2314,7 +2342,7 @@ public class Compare {
 		//    - score against all other brains in which that pipe name exists,
 		//    - record the score position within that brain.
 		//
-		final ExecutorService exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final ExecutorService exec = ExecutorProvider.newExecutorService("compare", Runtime.getRuntime().availableProcessors(), Priority.BATCH, Resource.CPU);
 
 		// for each individual lineage:
 		final TreeMap<String,ArrayList<Integer>> indices = new TreeMap<String,ArrayList<Integer>>();
@@ -24,6 +24,8 @@ package ini.trakem2.display;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
 
@@ -49,6 +51,7 @@ public abstract class AbstractOffscreenThread extends CachingThread {
 	}
 
 	public void run() {
+		ExecutorProvider.setPriority(Priority.INTERACTIVE); // painting
 		while (!isInterrupted()) {
 			try {
 				if (mustRepaint.getAndSet(false)) {
@@ -22,6 +22,8 @@ Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
 
 package ini.trakem2.display;
 
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
 import ini.trakem2.utils.CachingThread;
 
 import java.awt.Component;
@@ -80,6 +82,7 @@ public abstract class AbstractRepaintThread extends CachingThread {
 	}
 
 	public void run() {
+		ExecutorProvider.setPriority(Priority.INTERACTIVE); // painting
 		while (!isInterrupted()) {
 			try {
 				// wait until anyone issues a repaint event
@@ -40,6 +40,8 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.Project;
+import ini.trakem2.display.d3d.MeshCache;
+import ini.trakem2.display.d3d.MeshDecimation;
 import ini.trakem2.display.paint.USHORTPaint;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.AreaUtils;
@@ -64,7 +66,11 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.PathIterator;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -93,6 +99,14 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 
 	/** Contains the table of layer ids and their associated Area object.*/
 	private HashMap<Long,Area> ht_areas = new HashMap<Long,Area>();
+	/** Transformed and simplified areas for painting, per layer. */
+	private final AreaPaintCache paint_cache = new AreaPaintCache();
+	/** The chunks of the last mesh made with {@link #updateTriangles(double, int)}, to re-mesh only the edited layers. */
+	private AreaUtils.ChunkedMesh mesh_state = null;
+	/** Ids of the layers edited since the last {@link #updateTriangles(double, int)}. */
+	private final HashSet<Long> mesh_dirty = new HashSet<Long>();
+	/** Whether a mesh of this AreaList may be stored in the {@link MeshCache}, such as by an earlier session. */
+	private volatile boolean mesh_stored = true;
 
 	/** Flag to signal dynamic loading from the database for the Area of a given layer id in the ht_areas HashMap. */
 	static private final Area UNLOADED = new Area();
@@ -149,9 +163,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 						if (null == area) continue;
 					}
 					g.setColor(c);
-
-					if (fill_paint) g.fill(area.createTransformedArea(this.at));
-					else 		g.draw(area.createTransformedArea(this.at));  // the contour only
+					paint_cache.paint(g, srcRect, magnification, la.getId(), area, this.at, fill_paint);
 				}
 				if (1.0f == alpha) g.setComposite(original_composite);
 			}
@@ -171,9 +183,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 					if (null == area) return;
 				}
 				g.setColor(this.color);
-
-				if (fill_paint) g.fill(area.createTransformedArea(this.at));
-				else 		g.draw(area.createTransformedArea(this.at));  // the contour only
+				paint_cache.paint(g, srcRect, magnification, active_layer.getId(), area, this.at, fill_paint);
 			}
 		} finally {
 			//Transparency: fix alpha composite back to original.
@@ -370,11 +380,25 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		aw = null;
 	}
 
+	/** Forget the cached painting of the area at la, which is being edited in place;
+	 *  unlike {@link #calculateBoundingBox(Layer)}, cheap enough to call while painting with the brush. */
+	void invalidatePaintCache(final Layer la) {
+		paint_cache.invalidate(la.getId());
+	}
+
 	/** Calculate box, make this width,height be that of the box, and translate all areas to fit in.
 	 * @param la is the currently active Layer.
 	 */
 	@Override
 	public boolean calculateBoundingBox(final Layer la) {
+		// The area of la, or any area if unknown, may have been edited
+		if (null == la) paint_cache.invalidateAll();
+		else paint_cache.invalidate(la.getId());
+		synchronized (mesh_dirty) {
+			if (null == la) mesh_state = null;
+			else mesh_dirty.add(la.getId());
+		}
+		removeStoredMesh();
 		try {
 			// check preconditions
 			if (0 == ht_areas.size()) return false;
@@ -561,6 +585,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		Area area = (Area) o;
 
 		new AreaWrapper(this, area).fillHoles();
+		calculateBoundingBox(la);
 	}
 
 	public boolean paintsAt(final Layer layer) {
@@ -704,12 +729,95 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	}
 
 
+	/** Generate the mesh, or load it from the {@link MeshCache} if unchanged since last generated.
+	 *  If the project property "mesh_triangle_budget" is larger than zero, the mesh is decimated to that many triangles. */
 	public List<Point3f> generateTriangles(final double scale, final int resample) {
+		final int budget = project.getProperty("mesh_triangle_budget", 0);
+		final boolean cache = MeshCache.isEnabled(project);
+		final long version = cache ? getMeshVersion(scale, resample, budget) : 0;
+		if (cache) {
+			final List<Point3f> triangles = MeshCache.load(this, version);
+			if (null != triangles) {
+				mesh_stored = true;
+				return triangles;
+			}
+		}
+		final HashMap<Layer,Area> areas = new HashMap<Layer,Area>();
+		for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
+			areas.put(layer_set.getLayer((Long)e.getKey()), (Area)e.getValue());
+		}
+		List<Point3f> triangles = AreaUtils.generateTriangles(this, scale, resample, areas);
+		if (budget > 0) triangles = MeshDecimation.decimate(triangles, budget);
+		if (cache && null != triangles && MeshCache.store(this, version, triangles)) mesh_stored = true;
+		return triangles;
+	}
+
+	/** Delete the mesh stored in the {@link MeshCache}, if any, which no longer matches the areas. */
+	private void removeStoredMesh() {
+		if (!mesh_stored) return;
+		mesh_stored = false;
+		MeshCache.remove(this);
+	}
+
+	@Override
+	public boolean remove(final boolean check) {
+		if (super.remove(check)) {
+			removeStoredMesh();
+			return true;
+		}
+		return false;
+	}
+
+	/** Update the mesh after an edit, meshing again only the chunks of layers that include
+	 *  layers edited since the last call, as reported to {@link #calculateBoundingBox(Layer)},
+	 *  or restored to a different area by undo or redo.
+	 *  Meshes all layers when called for the first time or with different parameters. */
+	public List<Point3f> updateTriangles(final double scale, final int resample) {
+		final AreaUtils.ChunkedMesh mesh;
+		final HashSet<Layer> dirty = new HashSet<Layer>();
+		synchronized (mesh_dirty) {
+			if (null == mesh_state || !mesh_state.isFor(scale, resample)) {
+				mesh_state = new AreaUtils.ChunkedMesh(this, scale, resample);
+			}
+			mesh = mesh_state;
+			for (final Long lid : mesh_dirty) {
+				final Layer la = layer_set.getLayer(lid);
+				if (null != la) dirty.add(la);
+			}
+			mesh_dirty.clear();
+		}
 		final HashMap<Layer,Area> areas = new HashMap<Layer,Area>();
 		for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
 			areas.put(layer_set.getLayer((Long)e.getKey()), (Area)e.getValue());
 		}
-		return AreaUtils.generateTriangles(this, scale, resample, areas);
+		List<Point3f> triangles = mesh.update(areas, dirty);
+		final int budget = project.getProperty("mesh_triangle_budget", 0);
+		if (budget > 0) triangles = MeshDecimation.decimate(triangles, budget);
+		return triangles;
+	}
+
+	/** Hash of everything the mesh depends on: the areas, the Z and thickness of their layers,
+	 *  the transform, the calibration and the meshing parameters. */
+	synchronized private long getMeshVersion(final double scale, final int resample, final int budget) {
+		final MeshCache.Version v = new MeshCache.Version();
+		v.add(scale).add(resample).add(budget).add(width).add(height);
+		final double[] m = new double[6];
+		this.at.getMatrix(m);
+		for (final double d : m) v.add(d);
+		final Calibration cal = layer_set.getCalibration();
+		v.add(cal.pixelWidth).add(cal.pixelHeight);
+		final double[] coords = new double[6];
+		for (final Map.Entry<Long,Area> e : new TreeMap<Long,Area>(ht_areas).entrySet()) {
+			final Layer la = layer_set.getLayer(e.getKey());
+			v.add(e.getKey()).add(la.getZ()).add(la.getThickness());
+			final Area area = UNLOADED == e.getValue() ? loadLayer(e.getKey()) : e.getValue();
+			if (null == area) continue;
+			for (final PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
+				v.add(pit.currentSegment(coords));
+				for (final double d : coords) v.add(d);
+			}
+		}
+		return v.get();
 	}
 
 	/** Directly place an Area for the specified layer. Keep in mind it will be added in this AreaList coordinate space, not the overall LayerSet coordinate space. Does not make it local, you should call calculateBoundingBox() after setting an area. */
@@ -1469,30 +1577,91 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		return DPAreaList.class;
 	}
 
+	/** The most recent undo data package, to share the copies of unchanged areas with the next one. */
+	private WeakReference<DPAreaList> last_package = null;
+
 	@Override
 	Object getDataPackage() {
 		// The width,height,links,transform and list of areas
-		return new DPAreaList(this);
+		final DPAreaList pkg = new DPAreaList(this, null == last_package ? null : last_package.get());
+		last_package = new WeakReference<DPAreaList>(pkg);
+		return pkg;
 	}
 
+	/** Stores a copy of the area of each layer, sharing the copies of the previous package
+	 *  for the areas that are unchanged since, so that each undo step costs as much as the
+	 *  layers that were edited rather than the whole AreaList. */
 	static private final class DPAreaList extends Displayable.DataPackage {
-		final protected HashMap<Long,Area> ht;
-		DPAreaList(final AreaList ali) {
+		private HashMap<Long,Area> ht;
+		/** Approximate size of the areas not shared with the previous package. */
+		private long bytes = 0;
+		DPAreaList(final AreaList ali, final DPAreaList previous) {
 			super(ali);
+			final HashMap<Long,Area> prev = null == previous ? null : previous.getAreas();
 			this.ht = new HashMap<Long,Area>();
 			for (final Map.Entry<Long,Area> e : ali.ht_areas.entrySet()) {
-				this.ht.put(e.getKey(), new Area(e.getValue()));
+				final Area area = e.getValue();
+				final Area copy = null == prev ? null : prev.get(e.getKey());
+				if (null != copy && M.isIdentical(area, copy)) {
+					this.ht.put(e.getKey(), copy);
+				} else {
+					this.ht.put(e.getKey(), new Area(area));
+					this.bytes += UndoStore.estimateBytes(area);
+				}
 			}
 		}
+		/** May return null when spilled to disk. */
+		synchronized private HashMap<Long,Area> getAreas() {
+			return ht;
+		}
 		final boolean to2(final Displayable d) {
 			super.to1(d);
 			final AreaList ali = (AreaList)d;
+			final HashMap<Long,Area> restored = getAreas();
+			// Layers whose area changes, for the chunks of the 3D mesh to be remade
+			final HashSet<Long> changed = new HashSet<Long>();
+			for (final Map.Entry<Long,Area> e : ali.ht_areas.entrySet()) {
+				final Area area = restored.get(e.getKey());
+				if (null == area || !M.isIdentical(e.getValue(), area)) changed.add(e.getKey());
+			}
+			for (final Long lid : restored.keySet()) {
+				if (!ali.ht_areas.containsKey(lid)) changed.add(lid);
+			}
 			ali.ht_areas.clear();
-			for (final Map.Entry<Long,Area> e : ht.entrySet()) {
+			for (final Map.Entry<Long,Area> e : restored.entrySet()) {
 				ali.ht_areas.put(e.getKey(), new Area(e.getValue()));
 			}
+			synchronized (ali.mesh_dirty) {
+				ali.mesh_dirty.addAll(changed);
+			}
+			if (!changed.isEmpty()) ali.removeStoredMesh();
+			ali.last_package = new WeakReference<DPAreaList>(this);
 			return true;
 		}
+		@Override
+		long estimateBytes() {
+			return 256 + 64 * ht.size() + bytes;
+		}
+		@Override
+		synchronized boolean spill(final DataOutputStream out) throws IOException {
+			out.writeInt(ht.size());
+			for (final Map.Entry<Long,Area> e : ht.entrySet()) {
+				out.writeLong(e.getKey());
+				UndoStore.writeArea(out, e.getValue());
+			}
+			ht = null;
+			return true;
+		}
+		@Override
+		synchronized void unspill(final DataInputStream in) throws IOException {
+			final int n = in.readInt();
+			final HashMap<Long,Area> m = new HashMap<Long,Area>();
+			for (int i=0; i<n; i++) {
+				final long lid = in.readLong();
+				m.put(lid, UndoStore.readArea(in));
+			}
+			ht = m;
+		}
 	}
 
 	/** Retain the data within the layer range, and through out all the rest. */
@@ -0,0 +1,180 @@
+package ini.trakem2.display;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Caches, for each layer of an {@link AreaContainer}, the Area in world coordinates
+ *  at mipmap-like levels of detail: level 0 is the transformed Area at full precision,
+ *  and each further level halves the magnification, with its outline simplified to a
+ *  tolerance of half a screen pixel and specks smaller than that removed. Large shapes
+ *  are also split into tiles, so that only the tiles intersecting the visible area
+ *  are filled.
+ *
+ *  An entry is rebuilt when the Area instance of its layer is replaced, when its bounds
+ *  or the AffineTransform differ from those it was made with, or when invalidated
+ *  explicitly after an edit. Entries are softly referenced. */
+final class AreaPaintCache {
+
+	static private final int MAX_LEVEL = 12;
+	/** Side of a tile, in screen pixels. */
+	static private final int TILE_SIZE = 512;
+	/** At most MAX_TILES x MAX_TILES tiles per shape. */
+	static private final int MAX_TILES = 8;
+
+	static private final class Level {
+		final Shape shape;
+		final Rectangle2D bounds;
+		Shape[] tiles = null;
+		Rectangle2D[] tile_bounds = null;
+		Level(final Shape shape) {
+			this.shape = shape;
+			this.bounds = shape.getBounds2D();
+		}
+	}
+
+	static private final class Entry {
+		final Area source;
+		final Rectangle2D source_bounds;
+		final AffineTransform at;
+		final Level[] levels = new Level[MAX_LEVEL + 1];
+		Entry(final Area source, final AffineTransform at) {
+			this.source = source;
+			this.source_bounds = source.getBounds2D();
+			this.at = new AffineTransform(at);
+		}
+		final boolean isValid(final Area area, final AffineTransform aff) {
+			return area == source && aff.equals(at) && area.getBounds2D().equals(source_bounds);
+		}
+	}
+
+	private final HashMap<Long,SoftReference<Entry>> entries = new HashMap<Long,SoftReference<Entry>>();
+
+	synchronized void invalidate(final long layer_id) {
+		entries.remove(layer_id);
+	}
+
+	synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	/** Fill or draw the area, in local coordinates of a Displayable with transform at, for the given layer. */
+	void paint(final Graphics2D g, final Rectangle srcRect, final double magnification, final long layer_id, final Area area, final AffineTransform at, final boolean fill) {
+		final Level level = getLevel(layer_id, area, at, magnification);
+		if (null == level || !level.bounds.intersects(srcRect)) return;
+		if (!fill) {
+			g.draw(level.shape); // the contour only
+			return;
+		}
+		if (null == level.tiles || srcRect.contains(level.bounds)) {
+			g.fill(level.shape);
+			return;
+		}
+		for (int i=0; i<level.tiles.length; i++) {
+			if (level.tile_bounds[i].intersects(srcRect)) g.fill(level.tiles[i]);
+		}
+	}
+
+	private final Level getLevel(final long layer_id, final Area area, final AffineTransform at, final double magnification) {
+		final int k = magnification >= 1 ? 0 : Math.min(MAX_LEVEL, (int)(Math.log(1 / magnification) / Math.log(2)));
+		Entry entry;
+		synchronized (this) {
+			final SoftReference<Entry> ref = entries.get(layer_id);
+			entry = null == ref ? null : ref.get();
+			if (null == entry || !entry.isValid(area, at)) {
+				entry = new Entry(area, at);
+				entries.put(layer_id, new SoftReference<Entry>(entry));
+			}
+		}
+		synchronized (entry) {
+			if (null == entry.levels[k]) entry.levels[k] = createLevel(entry, k);
+			return entry.levels[k];
+		}
+	}
+
+	static private final Level createLevel(final Entry entry, final int k) {
+		final Area world = entry.source.createTransformedArea(entry.at);
+		final Level level;
+		if (0 == k) {
+			level = new Level(world);
+		} else {
+			final Area simplified = simplify(world, (1 << k) / 2.0);
+			if (simplified.isEmpty()) return null;
+			level = new Level(simplified);
+		}
+		split(level, level.shape instanceof Area ? (Area)level.shape : new Area(level.shape), TILE_SIZE * (double)(1 << k));
+		return level;
+	}
+
+	/** Flatten the outline and drop vertices closer than tolerance to the last kept one,
+	 *  and subpaths whose bounds are smaller than tolerance. */
+	static private final Area simplify(final Area area, final double tolerance) {
+		final Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO);
+		final Path2D.Double sub = new Path2D.Double(Path2D.WIND_NON_ZERO);
+		final double tol2 = tolerance * tolerance;
+		final double[] c = new double[6];
+		double lx = 0, ly = 0,
+		       minx = 0, miny = 0, maxx = 0, maxy = 0;
+		int n = 0;
+		for (final PathIterator pit = area.getPathIterator(null, tolerance / 2); !pit.isDone(); pit.next()) {
+			switch (pit.currentSegment(c)) {
+				case PathIterator.SEG_MOVETO:
+					sub.reset();
+					sub.moveTo(c[0], c[1]);
+					lx = minx = maxx = c[0];
+					ly = miny = maxy = c[1];
+					n = 1;
+					break;
+				case PathIterator.SEG_LINETO:
+					final double dx = c[0] - lx,
+					             dy = c[1] - ly;
+					if (dx * dx + dy * dy < tol2) break;
+					sub.lineTo(c[0], c[1]);
+					lx = c[0];
+					ly = c[1];
+					minx = Math.min(minx, lx); maxx = Math.max(maxx, lx);
+					miny = Math.min(miny, ly); maxy = Math.max(maxy, ly);
+					n++;
+					break;
+				case PathIterator.SEG_CLOSE:
+					if (n > 2 && (maxx - minx >= tolerance || maxy - miny >= tolerance)) {
+						sub.closePath();
+						path.append(sub, false);
+					}
+					n = 0;
+					break;
+			}
+		}
+		return new Area(path);
+	}
+
+	/** If the shape spans more than one tile, split it into at most MAX_TILES x MAX_TILES tiles. */
+	static private final void split(final Level level, final Area area, final double tile_size) {
+		final Rectangle2D b = level.bounds;
+		final double side = Math.max(tile_size, Math.max(b.getWidth(), b.getHeight()) / MAX_TILES);
+		final int nx = (int)Math.ceil(b.getWidth() / side),
+		          ny = (int)Math.ceil(b.getHeight() / side);
+		if (nx * ny < 2) return;
+		final ArrayList<Shape> tiles = new ArrayList<Shape>();
+		final ArrayList<Rectangle2D> bounds = new ArrayList<Rectangle2D>();
+		for (int j=0; j<ny; j++) {
+			for (int i=0; i<nx; i++) {
+				final Area tile = new Area(new Rectangle2D.Double(b.getX() + i * side, b.getY() + j * side, side, side));
+				tile.intersect(area);
+				if (tile.isEmpty()) continue;
+				tiles.add(tile);
+				bounds.add(tile.getBounds2D());
+			}
+		}
+		level.tiles = tiles.toArray(new Shape[tiles.size()]);
+		level.tile_bounds = bounds.toArray(new Rectangle2D[bounds.size()]);
+	}
+}
@@ -125,6 +125,13 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 			return new Area(this.aw.getArea());
 		}
 
+		@Override
+		protected final synchronized boolean isDataIdenticalTo(final Node<Area> other) {
+			final AreaWrapper aw2 = ((AreaNode)other).aw;
+			if (null == this.aw || null == aw2) return this.aw == aw2;
+			return M.isIdentical(this.aw.getArea(), aw2.getArea());
+		}
+
 		/** Return Area in local coords. The area includes a little square for the point, always. */
 		@Override
 		public final Area getArea() {
@@ -255,74 +262,37 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 		return true;
 	}
 
-	public boolean calculateBoundingBox(final Layer la) {
-		try {
-			if (null == root) {
-				this.at.setToIdentity();
-				this.width = 0;
-				this.height = 0;
-				return false;
-			}
-			
-			Rectangle box = null;
-			int countNodes = 0;
-			// Compute bounds for all nodes in all layers
-			synchronized (node_layer_map) {
-				for (final Collection<? extends Node<Area>> nodes : node_layer_map.values()) {
-					Rectangle b = getBounds(nodes);
-					if (null == b) continue;
-					if (null == box) box = b;
-					else box.add(b);
-					countNodes += nodes.size();
+	/** Translate the areas of the nodes as well, in parallel when there are many. */
+	@Override
+	protected void translateNodes(final float dx, final float dy) {
+		final AffineTransform aff = new AffineTransform(1, 0, 0, 1, dx, dy);
+		int countNodes = 0;
+		for (final Collection<? extends Node<Area>> nodes : node_layer_map.values()) {
+			countNodes += nodes.size();
+		}
+		if (node_layer_map.size() < 10 && countNodes < 100 ) {
+			for (final Collection<? extends Node<Area>> nodes : node_layer_map.values()) {
+				for (final AreaNode nd : (Collection<AreaNode>) nodes) {
+					nd.translate(dx, dy); // just the x,y itself
+					if (null != nd.aw) nd.aw.getArea().transform(aff);
 				}
 			}
-
-			if (null == box) return false; // empty
-			
-			this.width = box.width;
-			this.height = box.height;
-
-			if (0 == box.x && 0 == box.y) {
-				// No need to translate
-				return false;
-			}
-
-			final AffineTransform aff = new AffineTransform(1, 0, 0, 1, -box.x, -box.y);
-
-			// now adjust points to make min_x,min_y be the x,y
-			synchronized (node_layer_map) {
-				if (node_layer_map.size() < 10 && countNodes < 100 ) {
-					for (final Collection<? extends Node<Area>> nodes : node_layer_map.values()) {
+		} else {
+			ExecutorService exe = Utils.newFixedThreadPool("AreaTree-CBB");
+			Collection<Future<?>> fus = new ArrayList<Future<?>>();
+			for (final Collection<? extends Node<Area>> nodes : node_layer_map.values()) {
+				fus.add(exe.submit(new Runnable() {
+					public void run() {
+						// WARNING potential concurrent modification exception of 'nodes'
 						for (final AreaNode nd : (Collection<AreaNode>) nodes) {
-							nd.translate(-box.x, -box.y); // just the x,y itself
+							nd.translate(dx, dy); // just the x,y itself
 							if (null != nd.aw) nd.aw.getArea().transform(aff);
 						}
 					}
-				} else {
-					ExecutorService exe = Utils.newFixedThreadPool("AreaTree-CBB");
-					Collection<Future<?>> fus = new ArrayList<Future<?>>();
-					final float dx = -box.x;
-					final float dy = -box.y;
-					for (final Collection<? extends Node<Area>> nodes : node_layer_map.values()) {
-						fus.add(exe.submit(new Runnable() {
-							public void run() {
-								// WARNING potential concurrent modification exception of 'nodes'
-								for (final AreaNode nd : (Collection<AreaNode>) nodes) {
-									nd.translate(dx, dy); // just the x,y itself
-									if (null != nd.aw) nd.aw.getArea().transform(aff);
-								}
-							}
-						}));
-					}
-					Utils.wait(fus);
-					exe.shutdown();
-				}
+				}));
 			}
-			this.at.translate(box.x, box.y); // not using super.translate(...) because a preConcatenation is not needed; here we deal with the data.
-
-			return true;
-		} finally {
-			updateBucket(la);
+			Utils.wait(fus);
+			exe.shutdown();
 		}
 	}
 
@@ -7,6 +7,9 @@ import ij.gui.Roi;
 import ij.gui.ShapeRoi;
 import ij.process.FloatPolygon;
 import ini.trakem2.imaging.Segmentation;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.OptionPanel;
@@ -33,7 +36,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -164,8 +166,8 @@ public class AreaWrapper {
 			brush_size = ProjectToolbar.getBrushSize();
 			brush = makeBrush(brush_size, mag);
 			if (null == brush) throw new RuntimeException("Can't paint with brush of size 0.");
-			accumulator = Utils.newFixedThreadPool(1, "AreaWrapper-accumulator");
-			composer = Executors.newScheduledThreadPool(1);
+			accumulator = ExecutorProvider.newExecutorService("AreaWrapper-accumulator", 1, Priority.INTERACTIVE, Resource.CPU);
+			composer = ExecutorProvider.newScheduledExecutorService("AreaWrapper-composer", Priority.INTERACTIVE, Resource.CPU);
 			this.interpolator = new Runnable() {
 				public void run() {
 					final ArrayList<Point> ps;
@@ -193,6 +195,7 @@ public class AreaWrapper {
 							if (adding) Painter.this.area.add(chunk);
 							else Painter.this.area.subtract(chunk);
 						}
+						areaChanged(source, la);
 						return;
 					}
 					try {
@@ -253,6 +256,7 @@ public class AreaWrapper {
 							if (adding) Painter.this.area.add(chunk);
 							else Painter.this.area.subtract(chunk);
 						}
+						areaChanged(source, la);
 
 						Display.repaint(Painter.this.la, 3, r_old, false, false);
 
@@ -320,6 +324,7 @@ public class AreaWrapper {
 						synchronized (arealock) {
 							this.target_area.add(area);
 						}
+						areaChanged(source, la);
 					} else {
 						// If subtracting, it was already done
 						return;
@@ -384,6 +389,9 @@ public class AreaWrapper {
 							for (final Runnable r : ops.values()) {
 								r.run();
 							}
+							for (final Displayable d : ops.keySet()) {
+								if (d instanceof AreaContainer) ((AreaContainer)d).calculateBoundingBox(la);
+							}
 							something_eroded = true;
 						}
 					}
@@ -391,6 +399,7 @@ public class AreaWrapper {
 						this.target_area.reset();
 						this.target_area.add(added);
 					}
+					areaChanged(source, la);
 				}
 				// else do nothing, the subtract is already done
 
@@ -438,6 +447,7 @@ public class AreaWrapper {
 								area.subtract(slash);
 							}
 						}
+						areaChanged(source, la);
 						synchronized (pointslock) {
 							points.add(p);
 						}
@@ -702,6 +712,8 @@ public class AreaWrapper {
 				public void run() {
 					// Add data edit step when done for undo/redo
 					src.getLayerSet().addDataEditStep(src);
+					// Re-mesh only the edited layer, if shown in 3D
+					Display3D.updateMesh(src);
 				}
 			});
 
@@ -768,6 +780,9 @@ public class AreaWrapper {
 			something_eroded = false;
 		}
 
+		// Re-mesh only the edited layer, if shown in 3D
+		Display3D.updateMesh(source);
+
 		// Repaint instead the last rectangle, to erase the circle
 		if (null != r_old) {
 			Display.repaint(la, r_old, 3, false);
@@ -844,6 +859,7 @@ public class AreaWrapper {
 				case KeyEvent.VK_F: // fill all holes
 					source.getLayerSet().addDataEditStep(source);
 					fillHoles();
+					((AreaContainer)source).calculateBoundingBox(la);
 					source.getLayerSet().addDataEditStep(source);
 					ke.consume();
 					return;
@@ -900,6 +916,13 @@ public class AreaWrapper {
 		}
 	}
 
+	/** The area of source at layer la was, or is about to be, modified in place while painting, by adding
+	 *  or subtracting a stroke that may not change its bounds: have it repainted anew. */
+	static private final void areaChanged(final Displayable source, final Layer la) {
+		if (source instanceof AreaList) ((AreaList)source).invalidatePaintCache(la);
+	}
+
+	/** Modifies the area in place; call calculateBoundingBox on the source afterwards. */
 	public void fillHoles() {
 		Polygon pol = new Polygon();
 		for (PathIterator pit = area.getPathIterator(null); !pit.isDone(); ) {
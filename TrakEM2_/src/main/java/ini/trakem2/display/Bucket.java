@@ -42,11 +42,14 @@ import java.awt.geom.AffineTransform;
 
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.M;
+import ini.trakem2.utils.Metrics;
 
 
 /** 
  * A Bucket is a subarea of the Layer area, which contains either other Buckets or a map of stack_index vs. Displayable instances. VERY IMPORTANT: either children is null, or map is null, but both cannot be null at the same time neither not null at the same time.
  *
+ * The find methods don't lock: callers hold the read lock of the {@link Bucketable} that owns the bucket,
+ * and the methods that modify buckets are called while holding its write lock.
  */
 public class Bucket {
 
@@ -77,7 +80,11 @@ public class Bucket {
 		return "Bucket: " + x + ",  " + y + ", " + w + ", " + h;
 	}
 
+	static private final Metrics.Counter n_populated = Metrics.counter("buckets.rebuilds");
+	static private final Metrics.Histogram populate_time = Metrics.histogram("buckets.rebuild.ns");
+
 	synchronized final void populate(final Bucketable container, final Layer layer, final HashMap<Displayable,HashSet<Bucket>> db_map) {
+		final long t0 = System.nanoTime();
 		// Reset
 		if (null != this.map) this.map.clear();
 		this.children = null;
@@ -93,6 +100,8 @@ public class Bucket {
 			if (null != a) areas.put(d, a);
 		}
 		populate(container, db_map, w+w, h+h, w, h, list, areas);
+		n_populated.inc();
+		populate_time.recordSince(t0);
 	}
 
 	/** Recursive initialization of buckets. This method is meant to be used as init, when root is null or is made new from scratch. Returns true if not empty. */
@@ -191,7 +200,7 @@ public class Bucket {
 	}
 
 	/** Find All Displayable objects that intersect with the given srcRect and return them ordered by stack_index. Of @param visible_only is true, then hidden Displayable objects are ignored. */
-	synchronized final Collection<Displayable> find(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
+	final Collection<Displayable> find(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
 		find(accum, srcRect, layer, visible_only);
 		return accum.values(); // sorted by integer key
@@ -220,7 +229,7 @@ public class Bucket {
 	/** Find All Displayable objects that intersect with the given srcRect and return them ordered by stack_index. Of @param visible_only is true, then hidden Displayable objects are ignored.
 	 *
 	 * Fast and dirty, never returns a false negative but may return a false positive. */
-	synchronized final Collection<Displayable> roughlyFind(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
+	final Collection<Displayable> roughlyFind(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
 		roughlyFind(accum, srcRect, layer, visible_only);
 		return accum.values(); // sorted by integer key
@@ -256,7 +265,7 @@ public class Bucket {
 	}
 
 	/** Find All Displayable objects that intersect with the given srcRect and return them ordered by stack_index. Of @param visible_only is true, then hidden Displayable objects are ignored. */
-	synchronized final Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
+	final Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
 		find(accum, c, srcRect, layer, visible_only, instance_of);
 		return accum.values(); // sorted by integer key
@@ -298,7 +307,7 @@ public class Bucket {
 	}
 
 	/** Find all Displayable objects that contain the given point at the given layer (here layer acts as the Z coordinate, then) and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
-	synchronized final Collection<Displayable> find(final double px, final double py, final Layer layer, final boolean visible_only) {
+	final Collection<Displayable> find(final double px, final double py, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
 		find(accum, px, py, layer, visible_only);
 		return accum.values(); // sorted by integer key
@@ -323,7 +332,7 @@ public class Bucket {
 	}
 
 	/** Find all Displayable objects that contain the given point at the given layer (here layer acts as the Z coordinate, then) and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
-	synchronized final Collection<Displayable> find(final Class<?> c, final double px, final double py, final Layer layer, final boolean visible_only, final boolean instance_of) {
+	final Collection<Displayable> find(final Class<?> c, final double px, final double py, final Layer layer, final boolean visible_only, final boolean instance_of) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
 		find(accum, c, px, py, layer, visible_only, instance_of);
 		return accum.values(); // sorted by integer key
@@ -357,7 +366,7 @@ public class Bucket {
 	}
 
 	/** Find all Displayable objects that intersect the given Area and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
-	synchronized final Collection<Displayable> find(final Area area, final Layer layer, final boolean visible_only) {
+	final Collection<Displayable> find(final Area area, final Layer layer, final boolean visible_only) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
 		find(accum, area, layer, visible_only);
 		return accum.values(); // sorted by integer key
@@ -380,7 +389,7 @@ public class Bucket {
 		}
 	}
 	/** Find all Displayable objects that intersect the given Area and return them ordered by stack_index. If @param visible_only is trye, then hidden Displayable objects are ignored. */
-	synchronized final Collection<Displayable> find(final Class<?> c, final Area area, final Layer layer, final boolean visible_only, final boolean instance_of) {
+	final Collection<Displayable> find(final Class<?> c, final Area area, final Layer layer, final boolean visible_only, final boolean instance_of) {
 		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
 		find(accum, c, area, layer, visible_only, instance_of);
 		return accum.values(); // sorted by integer key
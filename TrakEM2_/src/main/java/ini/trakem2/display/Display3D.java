@@ -4,12 +4,16 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.measure.Calibration;
 import ij3d.Content;
+import ij3d.ContentNode;
 import ij3d.Image3DUniverse;
 import ij3d.ImageWindow3D;
 import ij3d.UniverseListener;
 import ini.trakem2.display.d3d.ControlClickBehavior;
 import ini.trakem2.display.d3d.Display3DGUI;
 import ini.trakem2.imaging.PatchStack;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -30,10 +34,10 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
@@ -48,6 +52,7 @@ import javax.vecmath.Point3f;
 
 import customnode.CustomLineMesh;
 import customnode.CustomMesh;
+import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
 import customnode.CustomTriangleMesh;
 
@@ -74,16 +79,19 @@ public final class Display3D {
 	/** The dimensions of the LayerSet in 2D. */
 	private double width, height;
 	private int resample = -1; // unset
+
+	/** Ids of the Displayable instances with a pending {@link #updateMesh(Displayable)}. */
+	private final Set<Long> pending_updates = Collections.synchronizedSet(new HashSet<Long>());
 	static private final int DEFAULT_RESAMPLE = 4;
 	/** If the LayerSet dimensions are too large, then limit to max 2048 for width or height and setup a scale.*/
 	private final double scale = 1.0; // OBSOLETE: meshes are now generated with imglib ShapeList images.
 
 
 	// To fork away from the EventDispatchThread
-	static private ExecutorService launchers = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Display3D-launchers");
+	static private ExecutorService launchers = ExecutorProvider.newExecutorService("Display3D-launchers", Runtime.getRuntime().availableProcessors(), Priority.INTERACTIVE, Resource.CPU);
 
 	// To build meshes, or edit them
-	private ExecutorService executors = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Display3D-executors");
+	private ExecutorService executors = ExecutorProvider.newExecutorService("Display3D-executors", Runtime.getRuntime().availableProcessors(), Priority.REGENERATION, Resource.CPU);
 
 	/*
 	static private KeyAdapter ka = new KeyAdapter() {
@@ -425,7 +433,7 @@ public final class Display3D {
 
 		// Start new scheduler to publish/add meshes to the 3D Viewer every 5 seconds and when done.
 		final Hashtable<Display3D,Vector<Content>> contents = new Hashtable<Display3D,Vector<Content>>();
-		final ScheduledExecutorService updater = Executors.newScheduledThreadPool(1);
+		final ScheduledExecutorService updater = ExecutorProvider.newScheduledExecutorService("Display3D-updater", Priority.INTERACTIVE, Resource.CPU);
 		final AtomicInteger counter = new AtomicInteger();
 		updater.scheduleWithFixedDelay(new Runnable() {
 			public void run() {
@@ -1149,6 +1157,48 @@ public final class Display3D {
 		return d3d.addMesh(d.getProject().findProjectThing(d), d, d3d.resample);
 	}
 
+	/** Patch in place the mesh of the Displayable after an edit, if it's shown in a Display3D
+	 *  (otherwise returns null). An AreaList meshes again only the chunks of its edited layers,
+	 *  and a Tree regenerates its skeleton, which is cheap. Trees shown with a tube or area mesh
+	 *  and any other type are meshed anew. Calls for a Displayable whose update is still
+	 *  pending are merged into it. */
+	static public Future<Boolean> updateMesh(final Displayable d) {
+		final LayerSet ls = d.getLayerSet();
+		if (null == ls) return null;
+		final Display3D d3d = ht_layer_sets.get(ls);
+		if (null == d3d || null == d3d.universe.getContent(makeTitle(d))) return null;
+		if (!d3d.pending_updates.add(d.getId())) return null;
+		return d3d.executors.submit(new Callable<Boolean>() { public Boolean call() {
+			d3d.pending_updates.remove(d.getId());
+			try {
+				final Content content = d3d.universe.getContent(makeTitle(d));
+				if (null == content) return false;
+				final ContentNode node = content.getContent();
+				final CustomMesh cm = node instanceof CustomMeshNode && !(node instanceof CustomMultiMesh) ? ((CustomMeshNode)node).getMesh() : null;
+				List<Point3f> triangles = null;
+				List<Color3f> colors = null;
+				if (d instanceof AreaList && cm instanceof CustomTriangleMesh) {
+					triangles = ((AreaList)d).updateTriangles(1.0, Math.max(1, d3d.resample));
+				} else if (d instanceof Tree<?> && cm instanceof CustomLineMesh) {
+					final Tree.MeshData skeleton = ((Tree<?>)d).generateSkeleton(1.0, 12, 1);
+					triangles = skeleton.verts;
+					colors = skeleton.colors;
+				}
+				if (null == triangles || triangles.isEmpty()) {
+					// Can't patch: make it anew
+					d3d.addMesh(d.getProject().findProjectThing(d), d, d3d.resample);
+					return true;
+				}
+				cm.setMesh(triangles);
+				if (null != colors) cm.setColor(colors);
+				return true;
+			} catch (Exception e) {
+				IJError.print(e);
+				return false;
+			}
+		}});
+	}
+
 	/*
 	static public final double computeTriangleArea() {
 		return 0.5 *  Math.sqrt(Math.pow(xA*yB + xB*yC + xC*yA, 2) +
@@ -1169,7 +1219,7 @@ public final class Display3D {
 
 	static public void init() {
 		if (launchers.isShutdown()) {
-			launchers = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Display3D-launchers");
+			launchers = ExecutorProvider.newExecutorService("Display3D-launchers", Runtime.getRuntime().availableProcessors(), Priority.INTERACTIVE, Resource.CPU);
 		}
 	}
 
@@ -40,6 +40,7 @@ import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Lock;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.ProjectToolbar;
 import ini.trakem2.utils.Search;
 import ini.trakem2.utils.Utils;
@@ -2378,6 +2379,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 		}
 	}
 
+	/** Time to paint the offscreen image of a frame, in nanoseconds, for all canvases. */
+	static private final Metrics.Histogram offscreen_time = Metrics.histogram("display.offscreen.ns");
+
 	private final class OffscreenThread extends AbstractOffscreenThread {
 
 		OffscreenThread() {
@@ -2449,7 +2453,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			//Utils.log2("Found target " + target + "\n  with al_top.size() = " + al_top.size());
 
 			if (null == target) {
+				final long t0 = System.nanoTime();
 				target = paintOffscreen(active_layer, layers, g_width, g_height, srcRect, magnification, active, c_alphas, clipRect, loader, hm, blending_list, mode, graphics_source, active_layer.getParent().prepaint, al_top, true);
+				offscreen_time.recordSince(t0);
 				// Store it:
 				/* CAN'T, may have prePaint in it
 				if (null != sc && display.getProject().getProperty("look_ahead_cache", 0) > 0) {
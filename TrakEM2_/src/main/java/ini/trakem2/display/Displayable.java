@@ -56,6 +56,9 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -145,6 +148,21 @@ public abstract class Displayable extends DBObject implements Paintable  {
 	/** The Displayable objects this one is linked to. Can be null. */
 	protected HashSet<Displayable> hs_linked = null;
 
+	/** All Displayable objects linked directly or indirectly to each other, and how many of them are locked.
+	 *  Shared by all its members, so that the locking state and the linked group of any member are known
+	 *  without walking the links. */
+	static private final class LinkGroup {
+		final HashSet<Displayable> members = new HashSet<Displayable>();
+		int n_locked = 0;
+	}
+
+	/** Guards all {@link LinkGroup} instances and the link_group field of all Displayable objects. */
+	static private final Object links_lock = new Object();
+
+	/** The group this Displayable belongs to, or null when not known: made anew when needed from the links,
+	 *  after they were removed or replaced. */
+	private LinkGroup link_group = null;
+
 	/** The table of key/value property pairs of this Displayable. */
 	protected Map<String,String> props = null;
 
@@ -324,19 +342,37 @@ public abstract class Displayable extends DBObject implements Paintable  {
 
 		if (null == hs_linked) {
 			if (locked == lock) return;
-			locked = lock;
+			synchronized (links_lock) {
+				if (null != link_group) link_group.n_locked += lock ? 1 : -1;
+				locked = lock;
+			}
 			updateInDatabase("locked");
 			return;
 		}
 
 		// Update linked ones even if the locking state for this one is the same: linked ones may have been added.
 
-		for (final Displayable d : getLinkedGroup(new HashSet<Displayable>())) {
-			d.locked = lock;
+		final HashSet<Displayable> group;
+		synchronized (links_lock) {
+			final LinkGroup lg = getLinkGroup();
+			for (final Displayable d : lg.members) d.locked = lock;
+			lg.n_locked = lock ? lg.members.size() : 0;
+			group = new HashSet<Displayable>(lg.members);
+		}
+		for (final Displayable d : group) {
 			d.updateInDatabase("locked");
 		}
 	}
 
+	/** Set the field 'locked' of this Displayable alone, keeping the count of locked members of its group. */
+	private void setLocked2(final boolean lock) {
+		synchronized (links_lock) {
+			if (locked == lock) return;
+			if (null != link_group) link_group.n_locked += lock ? 1 : -1;
+			locked = lock;
+		}
+	}
+
 	/** Return the value of the field 'locked'. */
 	public boolean isLocked2() {
 		return locked;
@@ -344,18 +380,68 @@ public abstract class Displayable extends DBObject implements Paintable  {
 	/** Check if this or any of the Displayables in the linked group is locked. */
 	public boolean isLocked() {
 		if (locked) return true;
-		return isLocked(new HashSet<Displayable>());
+		if (null == hs_linked || hs_linked.isEmpty()) return false;
+		synchronized (links_lock) {
+			return getLinkGroup().n_locked > 0;
+		}
+	}
+
+	/** Return the group of this Displayable, finding its members by walking the links, without recursion,
+	 *  if not known. Call while synchronized on links_lock. */
+	private final LinkGroup getLinkGroup() {
+		if (null != link_group) return link_group;
+		final LinkGroup lg = new LinkGroup();
+		final ArrayList<Displayable> next = new ArrayList<Displayable>();
+		next.add(this);
+		lg.members.add(this);
+		while (!next.isEmpty()) {
+			// Groups are known for all members of a group or for none, so d has no group yet
+			final Displayable d = next.remove(next.size() -1);
+			d.link_group = lg;
+			if (d.locked) lg.n_locked++;
+			if (null == d.hs_linked) continue;
+			for (final Displayable ln : d.hs_linked) {
+				if (lg.members.add(ln)) next.add(ln);
+			}
+		}
+		return lg;
 	}
-	private final boolean isLocked(final HashSet<Displayable> hs) {
-		if (locked) return true;
-		else if (hs.contains(this)) return false;
-		hs.add(this);
-		if (null != hs_linked && hs_linked.size() > 0) {
-			for (final Displayable d : hs_linked) {
-				if (d.isLocked(hs)) return true;
+
+	/** Set the links of each key to those of its value, or to none if the value is null, such as when undoing.
+	 *  Done while synchronized on links_lock, together with forgetting the groups of all involved, so that
+	 *  no group can be made from a mix of old and new links. */
+	static final void replaceLinks(final Map<Displayable,Set<Displayable>> links) {
+		synchronized (links_lock) {
+			final HashSet<Displayable> all = new HashSet<Displayable>(links.keySet());
+			for (final Map.Entry<Displayable,Set<Displayable>> e : links.entrySet()) {
+				if (null != e.getKey().hs_linked) all.addAll(e.getKey().hs_linked);
+				if (null != e.getValue()) all.addAll(e.getValue());
+			}
+			invalidateLinkGroups(all);
+			for (final Map.Entry<Displayable,Set<Displayable>> e : links.entrySet()) {
+				final Set<Displayable> hs = e.getKey().hs_linked;
+				if (null != hs) {
+					final Set<Displayable> hs2 = e.getValue();
+					if (null == hs2) e.getKey().hs_linked = null;
+					else {
+						hs.clear();
+						hs.addAll(hs2);
+					}
+				}
+			}
+		}
+	}
+
+	/** Forget the group of each of the given Displayable objects, and that of all the other members of those groups,
+	 *  because links between them were removed or replaced. */
+	static final void invalidateLinkGroups(final Collection<? extends Displayable> ds) {
+		synchronized (links_lock) {
+			for (final Displayable d : ds) {
+				final LinkGroup lg = d.link_group;
+				if (null == lg) continue;
+				for (final Displayable m : lg.members) m.link_group = null;
 			}
 		}
-		return false;
 	}
 	////////////////////////////////////////////////////
 	/** The minimal public Displayable constructor. */
@@ -715,10 +801,12 @@ public abstract class Displayable extends DBObject implements Paintable  {
 	public HashSet<Displayable> getLinkedGroup(HashSet<Displayable> hs) {
 		if (null == hs) hs = new HashSet<Displayable>();
 		else if (hs.contains(this)) return hs;
-		hs.add(this);
-		if (null == hs_linked) return hs;
-		for (final Displayable d : hs_linked) {
-			d.getLinkedGroup(hs);
+		if (null == hs_linked || hs_linked.isEmpty()) {
+			hs.add(this);
+			return hs;
+		}
+		synchronized (links_lock) {
+			hs.addAll(getLinkGroup().members);
 		}
 		return hs;
 	}
@@ -894,16 +982,38 @@ public abstract class Displayable extends DBObject implements Paintable  {
 	/** Link the given Displayable with this Displayable, and then tell the given Displayable to link this. Since the link is stored as Displayable objects in a HashSet, there'll never be repeated entries.*/
 	public void link(final Displayable d, final boolean update_database) { // the boolean is used by the loader when reconstructing links.
 		if (this == d) return;
-		if (null == this.hs_linked) this.hs_linked = new HashSet<Displayable>();
-		// link the other to this
-		this.hs_linked.add(d);
-		// link this to the other
-		if (null == d.hs_linked) d.hs_linked = new HashSet<Displayable>();
-		d.hs_linked.add(this);
+		synchronized (links_lock) {
+			if (null == this.hs_linked) this.hs_linked = new HashSet<Displayable>();
+			// link the other to this
+			this.hs_linked.add(d);
+			// link this to the other
+			if (null == d.hs_linked) d.hs_linked = new HashSet<Displayable>();
+			d.hs_linked.add(this);
+			mergeLinkGroups(this, d);
+		}
 		// update the database
 		if (update_database) project.getLoader().addCrossLink(project.getId(), this.id, d.id);
 	}
 
+	/** Join the groups of two Displayable objects that were just linked, moving the members of the smaller
+	 *  group into the larger. Call while synchronized on links_lock. */
+	static private final void mergeLinkGroups(final Displayable d1, final Displayable d2) {
+		final LinkGroup g1 = d1.link_group,
+		                g2 = d2.link_group;
+		if (g1 == g2 && null != g1) return;
+		if (null == g1 || null == g2) {
+			// Not known for one of them: will be made anew from the links when needed
+			if (null != g1) for (final Displayable m : g1.members) m.link_group = null;
+			if (null != g2) for (final Displayable m : g2.members) m.link_group = null;
+			return;
+		}
+		final LinkGroup large = g1.members.size() >= g2.members.size() ? g1 : g2,
+		                small = large == g1 ? g2 : g1;
+		for (final Displayable m : small.members) m.link_group = large;
+		large.members.addAll(small.members);
+		large.n_locked += small.n_locked;
+	}
+
 	/** Remove all links held by this Displayable.*/
 	public void unlink() {
 		if (null == this.hs_linked) return;
@@ -925,7 +1035,13 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		}
 		if (null == this.hs_linked) return; // should not happen
 		// unlink the other from this, and this from the other
-		if (!( hs_linked.remove(d) && d.hs_linked.remove(this))) {
+		final boolean reciprocal;
+		synchronized (links_lock) {
+			reciprocal = hs_linked.remove(d) && null != d.hs_linked && d.hs_linked.remove(this);
+			// The group may have split in two
+			if (null != link_group) for (final Displayable m : link_group.members) m.link_group = null;
+		}
+		if (!reciprocal) {
 			// signal database inconsistency (should not happen)
 			Utils.log("Database inconsistency: two displayables had a non-reciprocal link. BEWARE of other errors.");
 		}
@@ -1942,7 +2058,9 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			final Class<?>[] c = new Class[]{Displayable.class, d.getClass(), ZDisplayable.class};
 			for (int k=0; k<fields.length; k++) {
 				if ("data".equals(fields[k])) {
-					content.put(fields[k], d.getDataPackage());
+					final Object pkg = d.getDataPackage();
+					if (pkg instanceof DataPackage) UndoStore.register((DataPackage)pkg);
+					content.put(fields[k], pkg);
 				} else {
 					// Search for the field in the entire parent chain specified in c
 					boolean got_it = false;
@@ -1998,6 +2116,9 @@ public abstract class Displayable extends DBObject implements Paintable  {
 				} else if ("at".equals(field)) {
 					// Otherwise, I would have to assign a clone of it
 					d.at.setTransform((AffineTransform)e.getValue());
+				} else if ("locked".equals(field)) {
+					// Not via reflection: the group of d counts its locked members
+					d.setLocked2((Boolean)e.getValue());
 				} else {
 					try {
 						for (int i=0; i<c.length; i++) {
@@ -2085,7 +2206,15 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			return false;
 		}
 		try {
-			return pkg.to2(this);
+			if (!UndoStore.load(pkg)) {
+				Utils.log("Could not read back undo data for " + this);
+				return false;
+			}
+			try {
+				return pkg.to2(this);
+			} finally {
+				UndoStore.unpin(pkg);
+			}
 
 		} catch (Exception e) {
 			IJError.print(e);
@@ -2129,6 +2258,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			d.setAffineTransform(at); // updates bucket
 			if (null != links) {
 				HashSet<Displayable> all_links = new HashSet<Displayable>();
+				invalidateLinkGroups(links.keySet());
 				for (final Map.Entry<Displayable,HashSet<Displayable>> e : links.entrySet()) {
 					Displayable o = e.getKey();
 
@@ -2138,6 +2268,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 					e.getKey().hs_linked = new HashSet<Displayable>(e.getValue());
 					//Utils.log2("setting links to " + d);
 				}
+				invalidateLinkGroups(all_links);
 				Display.updateCheckboxes(all_links, DisplayablePanel.LINK_STATE);
 			}
 			return true;
@@ -2148,6 +2279,16 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		// subclass' one! I call it "defensive programming"
 		/** Set the subclass specific data fields. */
 		abstract boolean to2(final Displayable d);
+
+		/** Approximate number of bytes retained by this package and not shared
+		 *  with other packages, for the {@link UndoStore} budget.
+		 *  Packages returning zero are not accounted for. */
+		long estimateBytes() { return 0; }
+		/** Write the subclass specific data to out and release it from memory.
+		 *  Returns false if not supported, in which case nothing is released. */
+		boolean spill(final DataOutputStream out) throws IOException { return false; }
+		/** Read back the subclass specific data written by {@link #spill(DataOutputStream)}. */
+		void unspill(final DataInputStream in) throws IOException {}
 	}
 
 	/** Returns true if any Displayable objects of different layers in sublist are linked to each other.
@@ -41,6 +41,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -48,6 +49,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import mpicbg.models.NoninvertibleModelException;
 
@@ -58,6 +60,14 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	Bucket root = null;
 	private HashMap<Displayable,HashSet<Bucket>> db_map = null;
 
+	/** Guards {@link #al_displayables} and the buckets. Queries share the read lock,
+	 *  so that painting, preloading and scripting threads don't wait for each other;
+	 *  changes take the write lock, and never notify the displays while holding it. */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/** A copy of {@link #al_displayables} for queries to iterate without any lock,
+	 *  made on the first query after a change. Writers set it to null before unlocking. */
+	private volatile Displayable[] snapshot = null;
+
 	private double z = 0;
 	private double thickness = 0;
 
@@ -209,87 +219,95 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	public void add(final Displayable displ, final boolean update_displays, final boolean update_db) {
-		if (null == displ || -1 != al_displayables.indexOf(displ)) return;
+		if (null == displ) return;
 		if (displ.getProject() != this.project)
 			throw new IllegalArgumentException("Layer rejected a Displayable: belongs to a different project.");
 
-		int i=-1, j=-1;
-		final Displayable[] d = new Displayable[al_displayables.size()];
-		al_displayables.toArray(d);
-		int stack_index = 0;
-		// what is it?
-		if (displ instanceof Patch) {
-			// find last Patch (which start at 0)
-			for (i=0; i<d.length; i++) {
-				if (d[i] instanceof Patch) { j = i;}
-				else break;
-			}
-			if (-1 != j) {
-				j++;
-				if (j >= d.length) {
+		lock.writeLock().lock();
+		try {
+			if (-1 != al_displayables.indexOf(displ)) return;
+
+			int i=-1, j=-1;
+			final Displayable[] d = new Displayable[al_displayables.size()];
+			al_displayables.toArray(d);
+			int stack_index = 0;
+			// what is it?
+			if (displ instanceof Patch) {
+				// find last Patch (which start at 0)
+				for (i=0; i<d.length; i++) {
+					if (d[i] instanceof Patch) { j = i;}
+					else break;
+				}
+				if (-1 != j) {
+					j++;
+					if (j >= d.length) {
+						al_displayables.add(displ); // at the end
+						stack_index = d.length;
+					} else {
+						al_displayables.add(j, displ);
+						stack_index = j;
+					}
+				} else {
+					// no patches
+					al_displayables.add(0, displ); // at the very beggining
+					stack_index = 0;
+				}
+			} else if (displ instanceof Profile) {
+				// find first LayerSet or if none, first DLabel, add before it
+				for (i=d.length-1; i>-1; i--) {
+					if (! (d[i] instanceof DLabel || d[i] instanceof LayerSet)) { j = i; break; }
+				}
+				if (-1 != j) {
+					j++;
+					if (j >= d.length) { al_displayables.add(displ); stack_index = d.length; }
+					else { al_displayables.add(j, displ); stack_index = j; }
+				} else {
+					// no labels or LayerSets
 					al_displayables.add(displ); // at the end
 					stack_index = d.length;
+				}
+			} else if (displ instanceof LayerSet) {
+				// find first DLabel, add before it
+				for (i=d.length-1; i>-1; i--) {
+					if (! (d[i] instanceof DLabel)) { j = i; break; }
+				}
+				if (-1 != j) {
+					j++; // add it after the non-label one, displacing the label one position
+					if (j >= d.length) { al_displayables.add(displ); stack_index = d.length; } // at the end
+					else { al_displayables.add(j, displ); stack_index = j; }
 				} else {
-					al_displayables.add(j, displ);
-					stack_index = j;
+					// no labels
+					al_displayables.add(displ); // at the end
+					stack_index = d.length;
 				}
 			} else {
-				// no patches
-				al_displayables.add(0, displ); // at the very beggining
-				stack_index = 0;
-			}
-		} else if (displ instanceof Profile) {
-			// find first LayerSet or if none, first DLabel, add before it
-			for (i=d.length-1; i>-1; i--) {
-				if (! (d[i] instanceof DLabel || d[i] instanceof LayerSet)) { j = i; break; }
-			}
-			if (-1 != j) {
-				j++;
-				if (j >= d.length) { al_displayables.add(displ); stack_index = d.length; }
-				else { al_displayables.add(j, displ); stack_index = j; }
-			} else {
-				// no labels or LayerSets
+				// displ is a DLabel
 				al_displayables.add(displ); // at the end
 				stack_index = d.length;
 			}
-		} else if (displ instanceof LayerSet) {
-			// find first DLabel, add before it
-			for (i=d.length-1; i>-1; i--) {
-				if (! (d[i] instanceof DLabel)) { j = i; break; }
-			}
-			if (-1 != j) {
-				j++; // add it after the non-label one, displacing the label one position
-				if (j >= d.length) { al_displayables.add(displ); stack_index = d.length; } // at the end
-				else { al_displayables.add(j, displ); stack_index = j; }
+
+			if (update_db) {
+				updateInDatabase("stack_index"); // of the displayables ...
+				displ.setLayer(this);
 			} else {
-				// no labels
-				al_displayables.add(displ); // at the end
-				stack_index = d.length;
+				displ.setLayer(this, false);
 			}
-		} else {
-			// displ is a DLabel
-			al_displayables.add(displ); // at the end
-			stack_index = d.length;
-		}
 
-		if (update_db) {
-			updateInDatabase("stack_index"); // of the displayables ...
-			displ.setLayer(this);
-		} else {
-			displ.setLayer(this, false);
-		}
-
-		// insert into bucket
-		if (null != root) {
-			if (d.length == stack_index) {
-				// append at the end
-				root.put(stack_index, displ, this, db_map);
-			} else {
-				// add as last first, then update
-				root.put(d.length, displ, this, db_map);
-				// find and update the range of affected Displayable objects
-				root.updateRange(this, displ, stack_index, d.length); // first to last indices affected
+			// insert into bucket
+			if (null != root) {
+				if (d.length == stack_index) {
+					// append at the end
+					root.put(stack_index, displ, this, db_map);
+				} else {
+					// add as last first, then update
+					root.put(d.length, displ, this, db_map);
+					// find and update the range of affected Displayable objects
+					root.updateRange(this, displ, stack_index, d.length); // first to last indices affected
+				}
 			}
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
 		}
 
 		if (update_displays) {
@@ -304,48 +322,70 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	/** Used for reconstruction purposes. Assumes the displ are given in the proper order! */
 	public void addSilently(final DBObject displ) { // why DBObject and not Displayable ?? TODO
-		if (null == displ || -1 != al_displayables.indexOf(displ)) return;
+		if (null == displ) return;
+		lock.writeLock().lock();
 		try {
+			if (-1 != al_displayables.indexOf(displ)) return;
 			((Displayable)displ).setLayer(this, false);
 			al_displayables.add((Displayable)displ);
 		} catch (final Exception e) {
 			Utils.log("Layer.addSilently: Not a Displayable/LayerSet, not adding DBObject id=" + displ.getId());
 			return;
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
 		}
 	}
 
 	/** Will recreate the buckets; if you intend to remove many, use "removeAll" instead,
 	 *  so that the expensive operation of recreating the buckets is done only once. */
-	public synchronized boolean remove(final Displayable displ) {
+	public boolean remove(final Displayable displ) {
 		if (null == displ || null == al_displayables) {
 			Utils.log2("Layer can't remove Displayable " + displ.getId());
 			return false;
 		}
-		final int old_stack_index = al_displayables.indexOf(displ);
-		if (-1 == old_stack_index) {
-			Utils.log2("Layer.remove: not found: " + displ);
-			return false;
+		lock.writeLock().lock();
+		try {
+			final int old_stack_index = al_displayables.indexOf(displ);
+			if (-1 == old_stack_index) {
+				Utils.log2("Layer.remove: not found: " + displ);
+				return false;
+			}
+			al_displayables.remove(old_stack_index);
+			if (null != root) recreateBuckets();
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
 		}
-		al_displayables.remove(old_stack_index);
-		if (null != root) recreateBuckets();
 		parent.removeFromOffscreens(this);
 		Display.remove(this, displ);
 		return true;
 	}
-	
+
 	/** Remove a set of children. Does not destroy the children nor remove them from the database, only from the Layer and the Display. */
-	public synchronized boolean removeAll(final Set<Displayable> ds) {
+	public boolean removeAll(final Set<Displayable> ds) {
 		if (null == ds || null == al_displayables) return false;
-		// Ensure list is iterated only once: don't ask for index every time!
-		for (final Iterator<Displayable> it = al_displayables.iterator(); it.hasNext(); ) {
-			final Displayable d = it.next();
-			if (ds.contains(d)) {
-				it.remove();
-				parent.removeFromOffscreens(this);
-				Display.remove(this, d);
+		final ArrayList<Displayable> removed = new ArrayList<Displayable>();
+		lock.writeLock().lock();
+		try {
+			// Ensure list is iterated only once: don't ask for index every time!
+			for (final Iterator<Displayable> it = al_displayables.iterator(); it.hasNext(); ) {
+				final Displayable d = it.next();
+				if (ds.contains(d)) {
+					it.remove();
+					removed.add(d);
+				}
 			}
+			if (null != root) recreateBuckets();
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
+		}
+		// Notify outside the lock, so that painting threads can query this layer meanwhile
+		if (!removed.isEmpty()) parent.removeFromOffscreens(this);
+		for (final Displayable d : removed) {
+			Display.remove(this, d);
 		}
-		if (null != root) recreateBuckets();
 		Display.updateVisibleTabs(this.project);
 		return true;
 	}
@@ -385,15 +425,20 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 			// destroy the Display objects that show this layer
 			Display.remove(this);
 			// proceed to remove all the children
-			final Displayable[] displ = new Displayable[al_displayables.size()]; // to avoid concurrent modifications
-			al_displayables.toArray(displ);
+			final Displayable[] displ = snapshot(); // to avoid concurrent modifications
 			for (int i=0; i<displ.length; i++) {
 				if (!displ[i].remove2(false)) { // will call back Layer.remove(Displayable)
 					Utils.log("Could not delete " + displ[i]);
 					return false;
 				}
 			}
-			al_displayables.clear();
+			lock.writeLock().lock();
+			try {
+				al_displayables.clear();
+			} finally {
+				snapshot = null;
+				lock.writeLock().unlock();
+			}
 			// remove from the parent
 			/*can't ever be null//if (null != parent) */
 			parent.remove(this);
@@ -433,12 +478,12 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	public boolean contains(final Displayable displ) {
-		return -1 != al_displayables.indexOf(displ);
+		return -1 != indexOf(displ);
 	}
 
 	/** Returns true if any of the Displayable objects are of the given class. */
 	public boolean contains(final Class<?> c) {
-		for (final Object ob : al_displayables) {
+		for (final Displayable ob : snapshot()) {
 			if (ob.getClass() == c) return true;
 		}
 		return false;
@@ -447,7 +492,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Returns true if any of the Displayable objects are of the given class; if {@param visible_only} is true,
 	 * will return true only if at least one of the matched objects is visible. */
 	public boolean contains(final Class<?> c, final boolean visible_only) {
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (visible_only && !d.isVisible()) continue;
 			if (d.getClass() == c) return true;
 		}
@@ -457,7 +502,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Count instances of the given Class. */
 	public int count(final Class<?> c) {
 		int n = 0;
-		for (final Object ob : al_displayables) {
+		for (final Displayable ob : snapshot()) {
 			if (ob.getClass() == c) n++;
 		}
 		return n;
@@ -465,12 +510,12 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	/** Checks if there are any Displayable or if any ZDisplayable paints in this layer. */
 	public boolean isEmpty() {
-		return 0 == al_displayables.size() && parent.isEmptyAt(this); // check for ZDisplayable painting here as well
+		return 0 == snapshot().length && parent.isEmptyAt(this); // check for ZDisplayable painting here as well
 	}
 
 	/** Returns a copy of the list of Displayable objects.*/
-	synchronized public ArrayList<Displayable> getDisplayables() {
-		return new ArrayList<Displayable>(al_displayables);
+	public ArrayList<Displayable> getDisplayables() {
+		return new ArrayList<Displayable>(Arrays.asList(snapshot()));
 	}
 
 	/** Returns the real list of displayables, not a copy. If you modify this list, Thor may ground you with His lightning. */
@@ -479,49 +524,76 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		return al_displayables;
 	}
 
-	synchronized public int getNDisplayables() {
-		return al_displayables.size();
+	/** Returns the current contents, in stacking order. The array is shared by all queries until
+	 *  the next change, and must not be modified. */
+	private final Displayable[] snapshot() {
+		Displayable[] s = snapshot;
+		if (null != s) return s;
+		lock.readLock().lock();
+		try {
+			s = al_displayables.toArray(new Displayable[al_displayables.size()]);
+			snapshot = s; // a writer holding the lock will reset it when done
+		} finally {
+			lock.readLock().unlock();
+		}
+		return s;
+	}
+
+	/** Replace the contents, for undo and redo; the caller recreates the buckets if needed. */
+	void setDisplayables(final Collection<Displayable> ds) {
+		lock.writeLock().lock();
+		try {
+			al_displayables.clear();
+			al_displayables.addAll(ds);
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int getNDisplayables() {
+		return snapshot().length;
 	}
 
 	/** Returns a list of Displayable of class c only.*/
-	synchronized public<T extends Displayable> ArrayList<T> getAll(final Class<T> c) {
+	public<T extends Displayable> ArrayList<T> getAll(final Class<T> c) {
 		// So yes, it can be done to return a typed list of any kind: this WORKS:
 		final ArrayList<T> al = new ArrayList<T>();
 		if (null == c) return al;
 		if (Displayable.class == c) {
-			al.addAll((Collection<T>)al_displayables); // T is Displayable
+			al.addAll((Collection<T>)Arrays.asList(snapshot())); // T is Displayable
 			return al;
 		}
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (d.getClass() == c) al.add((T)d);
 		}
 		return al;
 	}
 
 	/** Returns a list of Displayable of class c only.*/
-	synchronized public ArrayList<Displayable> getDisplayables(final Class<?> c) {
+	public ArrayList<Displayable> getDisplayables(final Class<?> c) {
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		if (null == c) return al;
 		if (Displayable.class == c) {
-			al.addAll(al_displayables);
+			al.addAll(Arrays.asList(snapshot()));
 			return al;
 		}
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (d.getClass() == c) al.add(d);
 		}
 		return al;
 	}
 
-	synchronized public ArrayList<Displayable> getDisplayables(final Class<?> c, final boolean visible_only, final boolean instance_of) {
+	public ArrayList<Displayable> getDisplayables(final Class<?> c, final boolean visible_only, final boolean instance_of) {
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		if (null == c) return al;
 		if (instance_of) {
-			for (final Displayable d : al_displayables) {
+			for (final Displayable d : snapshot()) {
 				if (visible_only && !d.isVisible()) continue;
 				if (c.isAssignableFrom(d.getClass())) al.add(d);
 			}
 		} else {
-			for (final Displayable d : al_displayables) {
+			for (final Displayable d : snapshot()) {
 				if (visible_only && !d.isVisible()) continue;
 				if (d.getClass() == c) al.add(d);
 			}
@@ -536,17 +608,22 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Returns a list of all Displayable of class c that intersect the given area. */
-	synchronized public Collection<Displayable> getDisplayables(final Class<?> c, final Area aroi, final boolean visible_only) {
+	public Collection<Displayable> getDisplayables(final Class<?> c, final Area aroi, final boolean visible_only) {
 		return getDisplayables(c, aroi, visible_only, false);
 	}
 
 	/** Check class identity by instanceof instead of equality. */
-	synchronized public Collection<Displayable> getDisplayables(final Class<?> c, final Area aroi, final boolean visible_only, final boolean instance_of) {
-		if (null != root) return root.find(c, aroi, this, visible_only, instance_of);
+	public Collection<Displayable> getDisplayables(final Class<?> c, final Area aroi, final boolean visible_only, final boolean instance_of) {
+		lock.readLock().lock();
+		try {
+			if (null != root) return root.find(c, aroi, this, visible_only, instance_of);
+		} finally {
+			lock.readLock().unlock();
+		}
 		// Else, the slow way
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		if (Displayable.class == c) {
-			for (final Displayable d : al_displayables) {
+			for (final Displayable d : snapshot()) {
 				if (visible_only && !d.isVisible()) continue;
 				final Area area = d.getArea();
 				area.intersect(aroi);
@@ -556,7 +633,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 			return al;
 		}
 		if (instance_of) {
-			for (final Displayable d : al_displayables) {
+			for (final Displayable d : snapshot()) {
 				if (visible_only && !d.isVisible()) continue;
 				if (c.isAssignableFrom(d.getClass())) {
 					final Area area = d.getArea();
@@ -566,7 +643,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 				}
 			}
 		} else {
-			for (final Displayable d : al_displayables) {
+			for (final Displayable d : snapshot()) {
 				if (visible_only && !d.isVisible()) continue;
 				if (d.getClass() == c) {
 					final Area area = d.getArea();
@@ -580,9 +657,9 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Check class identity with equality, so no superclasses or interfaces are possible. */
-	synchronized public ArrayList<Displayable> getDisplayables(final Class<?> c, final boolean visible_only) {
+	public ArrayList<Displayable> getDisplayables(final Class<?> c, final boolean visible_only) {
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (d.getClass() == c) {
 				if (visible_only && !d.isVisible()) continue;
 				al.add(d);
@@ -592,7 +669,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	public Displayable get(final long id) {
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (d.getId() == id) return d;
 		}
 		return null;
@@ -612,11 +689,17 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Find the Displayable objects that contain the point. */
-	synchronized public Collection<Displayable> find(final double x, final double y, final boolean visible_only) {
-		if (null != root) return root.find(x, y, this, visible_only);
+	public Collection<Displayable> find(final double x, final double y, final boolean visible_only) {
+		lock.readLock().lock();
+		try {
+			if (null != root) return root.find(x, y, this, visible_only);
+		} finally {
+			lock.readLock().unlock();
+		}
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (int i = al_displayables.size() -1; i>-1; i--) {
-			final Displayable d = (Displayable)al_displayables.get(i);
+		final Displayable[] ds = snapshot();
+		for (int i = ds.length -1; i>-1; i--) {
+			final Displayable d = ds[i];
 			if (visible_only && !d.isVisible()) continue;
 			if (d.contains(x, y)) {
 				al.add(d);
@@ -630,16 +713,22 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Find the Displayable objects of Class c that contain the point, with class equality. */
-	synchronized public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only) {
+	public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only) {
 		return find(c, x, y, visible_only, false);
 	}
 	/** Find the Displayable objects of Class c that contain the point, with instanceof if instance_of is true. */
-	synchronized public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only, final boolean instance_of) {		
-		if (null != root) return root.find(c, x, y, this, visible_only, instance_of);
+	public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only, final boolean instance_of) {		
+		lock.readLock().lock();
+		try {
+			if (null != root) return root.find(c, x, y, this, visible_only, instance_of);
+		} finally {
+			lock.readLock().unlock();
+		}
 		if (Displayable.class == c) return find(x, y, visible_only); // search among all
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (int i = al_displayables.size() -1; i>-1; i--) {
-			final Displayable d = al_displayables.get(i);
+		final Displayable[] ds = snapshot();
+		for (int i = ds.length -1; i>-1; i--) {
+			final Displayable d = ds[i];
 			if (visible_only && !d.isVisible()) continue;
 			if (d.getClass() == c && d.contains(x, y)) {
 				al.add(d);
@@ -653,10 +742,15 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Find the Displayable objects whose bounding box intersects with the given rectangle. */
-	synchronized public Collection<Displayable> find(final Rectangle r, final boolean visible_only) {
-		if (null != root && root.isBetter(r, this)) return root.find(r, this, visible_only);
+	public Collection<Displayable> find(final Rectangle r, final boolean visible_only) {
+		lock.readLock().lock();
+		try {
+			if (null != root && root.isBetter(r, this)) return root.find(r, this, visible_only);
+		} finally {
+			lock.readLock().unlock();
+		}
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (visible_only && !d.isVisible()) continue;
 			if (d.getBoundingBox().intersects(r)) {
 				al.add(d);
@@ -665,16 +759,21 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		return al;
 	}
 	
-	synchronized public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only) {
+	public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only) {
 		return find(c, r, visible_only, false);
 	}
 
 	/** Find the Displayable objects whose bounding box intersects with the given rectangle. */
-	synchronized public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only, final boolean instance_of) {
+	public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only, final boolean instance_of) {
 		if (Displayable.class == c) return find(r, visible_only);
-		if (null != root && root.isBetter(r, this)) return root.find(c, r, this, visible_only, instance_of);
+		lock.readLock().lock();
+		try {
+			if (null != root && root.isBetter(r, this)) return root.find(c, r, this, visible_only, instance_of);
+		} finally {
+			lock.readLock().unlock();
+		}
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (visible_only && !d.isVisible()) continue;
 			if (d.getClass() != c) continue;
 			if (d.getBoundingBox().intersects(r)) {
@@ -686,16 +785,22 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	/** Find the Displayable objects of class 'target' whose perimeter (not just the bounding box)
 	 * intersect the given Displayable (which is itself included if present in this very Layer). */
-	synchronized public <T extends Displayable> Collection<T> getIntersecting(final Displayable d, final Class<T> target) {
-		if (null != root) {
-			final Area area = new Area(d.getPerimeter());
-			if (root.isBetter(area.getBounds(), this)) {
-				return (Collection<T>) root.find(target, area, this, false, true);
+	public <T extends Displayable> Collection<T> getIntersecting(final Displayable d, final Class<T> target) {
+		lock.readLock().lock();
+		try {
+			if (null != root) {
+				final Area area = new Area(d.getPerimeter());
+				if (root.isBetter(area.getBounds(), this)) {
+					return (Collection<T>) root.find(target, area, this, false, true);
+				}
 			}
+		} finally {
+			lock.readLock().unlock();
 		}
 		final ArrayList<T> al = new ArrayList<T>();
-		for (int i = al_displayables.size() -1; i>-1; i--) {
-			final Object ob = al_displayables.get(i);
+		final Displayable[] ds = snapshot();
+		for (int i = ds.length -1; i>-1; i--) {
+			final Object ob = ds[i];
 			if (target.isAssignableFrom(ob.getClass())) continue;
 			final Displayable da = (Displayable)ob;
 			if (d.intersects(da)) {
@@ -707,119 +812,150 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	/** Returns -1 if not found. */
 	public final int indexOf(final Displayable d) {
-		return al_displayables.indexOf(d);
+		lock.readLock().lock();
+		try {
+			return al_displayables.indexOf(d);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/** Within its own class only.
 	 * 'up' is at the last element of the ArrayList (since when painting, the first one gets painted first, and thus gets buried the most while the last paints last, on top). */
 	public void moveUp(final Displayable d) {
-		final int i = al_displayables.indexOf(d);
-		if (null == d || -1 == i || al_displayables.size() -1 == i) return;
-		if (al_displayables.get(i+1).getClass() == d.getClass()) {
-			//swap
-			al_displayables.remove(d);
-			al_displayables.add(i+1, d);
-		} else return;
+		lock.writeLock().lock();
+		try {
+			final int i = al_displayables.indexOf(d);
+			if (null == d || -1 == i || al_displayables.size() -1 == i) return;
+			if (al_displayables.get(i+1).getClass() == d.getClass()) {
+				//swap
+				al_displayables.remove(d);
+				al_displayables.add(i+1, d);
+			} else return;
+			if (null != root) root.updateRange(this, d, i, i+1);
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
+		}
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, i, i+1);
 	}
 
 	/** Within its own class only. */
 	public void moveDown(final Displayable d) {
-		final int i = al_displayables.indexOf(d);
-		if (null == d || -1 == i || 0 == i) return;
-		if (al_displayables.get(i-1).getClass() == d.getClass()) {
-			//swap
-			final Displayable o = al_displayables.remove(i-1);
-			al_displayables.add(i, o);
-		} else return;
+		lock.writeLock().lock();
+		try {
+			final int i = al_displayables.indexOf(d);
+			if (null == d || -1 == i || 0 == i) return;
+			if (al_displayables.get(i-1).getClass() == d.getClass()) {
+				//swap
+				final Displayable o = al_displayables.remove(i-1);
+				al_displayables.add(i, o);
+			} else return;
+			if (null != root) root.updateRange(this, d, i-1, i);
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
+		}
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, i-1, i);
 	}
 
 	/** Within its own class only. */
 	public void moveTop(final Displayable d) { // yes I could have made several lists and make my life easier. Whatever
-		final int i = al_displayables.indexOf(d);
-		final int size = al_displayables.size();
-		if (null == d || -1 == i || size -1 == i) return;
-		final Class<?> c = d.getClass();
-		boolean done = false;
-		int j = i + 1;
-		for (; j<size; j++) {
-			if (al_displayables.get(j).getClass() == c) continue;
-			else {
+		lock.writeLock().lock();
+		try {
+			final int i = al_displayables.indexOf(d);
+			final int size = al_displayables.size();
+			if (null == d || -1 == i || size -1 == i) return;
+			final Class<?> c = d.getClass();
+			boolean done = false;
+			int j = i + 1;
+			for (; j<size; j++) {
+				if (al_displayables.get(j).getClass() == c) continue;
+				else {
+					al_displayables.remove(d);
+					al_displayables.add(--j, d); // j-1
+					done = true;
+					break;
+				}
+			}
+			// solves case of no other class present
+			if (!done) {
+				//add at the end
 				al_displayables.remove(d);
-				al_displayables.add(--j, d); // j-1
-				done = true;
-				break;
+				al_displayables.add(d);
+				j = size-1;
 			}
-		}
-		// solves case of no other class present
-		if (!done) {
-			//add at the end
-			al_displayables.remove(d);
-			al_displayables.add(d);
-			j = size-1;
+			if (null != root) root.updateRange(this, d, i, j);
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
 		}
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, i, j);
 	}
 
 	/** Within its own class only. */
 	public void moveBottom(final Displayable d) {
-		final int i = al_displayables.indexOf(d);
-		if (null == d || -1 == i || 0 == i) return;
-		final Class<?> c = d.getClass();
-		boolean done = false;
-		int j = i - 1;
-		for (; j > -1; j--) {
-			if (al_displayables.get(j).getClass() == c) continue;
-			else {
+		lock.writeLock().lock();
+		try {
+			final int i = al_displayables.indexOf(d);
+			if (null == d || -1 == i || 0 == i) return;
+			final Class<?> c = d.getClass();
+			boolean done = false;
+			int j = i - 1;
+			for (; j > -1; j--) {
+				if (al_displayables.get(j).getClass() == c) continue;
+				else {
+					al_displayables.remove(d);
+					al_displayables.add(++j, d); // j+1
+					done = true;
+					break;
+				}
+			}
+			// solve case of no other class present
+			if (!done) {
 				al_displayables.remove(d);
-				al_displayables.add(++j, d); // j+1
-				done = true;
-				break;
+				al_displayables.add(0, d);
+				j = 0;
 			}
-		}
-		// solve case of no other class present
-		if (!done) {
-			al_displayables.remove(d);
-			al_displayables.add(0, d);
-			j = 0;
+			if (null != root) root.updateRange(this, d, j, i);
+		} finally {
+			snapshot = null;
+			lock.writeLock().unlock();
 		}
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, j, i);
 	}
 
 	/** Within its own class only. */
 	public boolean isTop(final Displayable d) {
-		final int i = al_displayables.indexOf(d);
-		final int size = al_displayables.size();
-		if (size -1 == i) return true;
-		if (al_displayables.get(i+1).getClass() == d.getClass()) return false;
+		final Displayable[] ds = snapshot();
+		final int i = Arrays.asList(ds).indexOf(d);
+		if (ds.length -1 == i) return true;
+		if (ds[i+1].getClass() == d.getClass()) return false;
 		return true;
 	} // these two methods will throw an Exception if the Displayable is not found (-1 == i) (the null.getClass() *should* throw it)
 	/** Within its own class only. */
 	public boolean isBottom(final Displayable d) {
-		final int i = al_displayables.indexOf(d);
+		final Displayable[] ds = snapshot();
+		final int i = Arrays.asList(ds).indexOf(d);
 		if (0 == i) return true;
-		if (al_displayables.get(i-1).getClass() == d.getClass()) return false;
+		if (ds[i-1].getClass() == d.getClass()) return false;
 		return true;
 	}
 
 	/** Get the index of the given Displayable relative to the rest of its class. Beware that the order of the al_displayables is bottom at zero, top at last, but the relative index returned here is inverted: top at zero, bottom at last -to match the tabs' vertical orientation in a Display.*/
 	public int relativeIndexOf(final Displayable d) {
-		final int k = al_displayables.indexOf(d);
+		final Displayable[] ds = snapshot();
+		final int k = Arrays.asList(ds).indexOf(d);
 		if (-1 == k) return -1;
 		final Class<?> c = d.getClass();
-		final int size = al_displayables.size();
+		final int size = ds.length;
 		int i = k+1;
 		for (; i<size; i++) {
-			if (al_displayables.get(i).getClass() == c) continue;
+			if (ds[i].getClass() == c) continue;
 			else {
 				return i - k -1;
 			}
@@ -836,7 +972,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		type = type.toLowerCase();
 		if (type.equals("image")) type = "patch";
 		final HashSet<Displayable> hs = new HashSet<Displayable>();
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (visible != d.isVisible() && d.getClass().getName().toLowerCase().endsWith(type)) {
 				d.setVisible(visible, false); // don't repaint
 				hs.add(d);
@@ -851,7 +987,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Returns the collection of Displayable whose visibility state has changed. */
 	public Collection<Displayable> setAllVisible(final boolean repaint) {
 		final Collection<Displayable> col = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (!d.isVisible()) {
 				d.setVisible(true, repaint);
 				col.add(d);
@@ -863,7 +999,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Hide all except those whose type is in 'type' list, whose visibility flag is left unchanged. Returns the list of displayables made hidden. */
 	public HashSet<Displayable> hideExcept(final ArrayList<Class<?>> type, final boolean repaint) {
 		final HashSet<Displayable> hs = new HashSet<Displayable>();
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (!type.contains(d.getClass()) && d.isVisible()) {
 				d.setVisible(false, repaint);
 				hs.add(d);
@@ -890,7 +1026,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		sb_body.append(indent).append(">\n");
 		// 2 - export children
 		if (null != al_displayables) {
-			for (final Displayable d : al_displayables) {
+			for (final Displayable d : snapshot()) {
 				d.exportXML(sb_body, in, options);
 			}
 		}
@@ -924,7 +1060,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	public void destroy() {
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			d.destroy();
 		}
 	}
@@ -963,7 +1099,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Preconcatenate the given AffineTransform to all Displayable objects of class c, without respecting their links. */
 	public void apply(final Class<?> c, final AffineTransform at) {
 		final boolean all = Displayable.class == c;
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (all || d.getClass() == c) {
 				d.at.preConcatenate(at);
 			}
@@ -1016,7 +1152,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	public DBObject findById(final long id) {
 		if (this.id == id) return this;
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (d.getId() == id) return d;
 		}
 		return null;
@@ -1024,7 +1160,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	// private to the package
 	void linkPatchesR() {
-		for (final Displayable d : al_displayables) {
+		for (final Displayable d : snapshot()) {
 			if (d.getClass() == LayerSet.class) ((LayerSet)d).linkPatchesR();
 			d.linkPatches(); // Patch.class does nothing
 		}
@@ -1048,28 +1184,48 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		return pa.getPixel(x, y, mag);
 	}
 
-	synchronized public void recreateBuckets() {
-		this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
-		this.db_map = new HashMap<Displayable,HashSet<Bucket>>();
-		this.root.populate(this, this, db_map);
-		//root.debug();
+	public void recreateBuckets() {
+		lock.writeLock().lock();
+		try {
+			this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
+			this.db_map = new HashMap<Displayable,HashSet<Bucket>>();
+			this.root.populate(this, this, db_map);
+			//root.debug();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	/** Update buckets of a position change for the given Displayable. */
 	@Override
 	public void updateBucket(final Displayable d, final Layer layer) { // ignore layer
-		if (null != root) root.updatePosition(d, this, db_map);
+		lock.writeLock().lock();
+		try {
+			if (null != root) root.updatePosition(d, this, db_map);
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	public void checkBuckets() {
-		if (use_buckets && (null == root || null == db_map)) recreateBuckets();
+		lock.writeLock().lock();
+		try {
+			if (use_buckets && (null == root || null == db_map)) recreateBuckets();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	private boolean use_buckets = true;
 
 	public void setBucketsEnabled(final boolean b) {
-		this.use_buckets = b;
-		if (!use_buckets) this.root = null;
+		lock.writeLock().lock();
+		try {
+			this.use_buckets = b;
+			if (!use_buckets) this.root = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	static class DoEditLayer implements DoStep {
@@ -1165,11 +1321,12 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		@Override
 		public boolean apply(final int action) {
 			// find the subset in la.al_displayables that is not in this.al
-			final HashSet<Displayable> sub1 = new HashSet<Displayable>(la.al_displayables);
+			final List<Displayable> current = Arrays.asList(la.snapshot());
+			final HashSet<Displayable> sub1 = new HashSet<Displayable>(current);
 			sub1.removeAll(this.al);
 			// find the subset in this.al that is not in la.al_displayables
 			final HashSet<Displayable> sub2 = new HashSet<Displayable>(this.al);
-			sub2.removeAll(la.al_displayables);
+			sub2.removeAll(current);
 
 			HashSet<Displayable> subA=null, subB=null;
 
@@ -1195,8 +1352,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 				}
 			}
 
-			la.al_displayables.clear();
-			la.al_displayables.addAll(this.al);
+			la.setDisplayables(this.al);
 			la.recreateBuckets();
 			Display.updateVisibleTabs();
 			Display.clearSelection();
@@ -1211,13 +1367,12 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		HashSet<DoStep> dependents = null;
 		DoMoveDisplayable(final Layer layer) {
 			this.layer = layer;
-			this.al_displayables = new ArrayList<Displayable>(layer.al_displayables);
+			this.al_displayables = layer.getDisplayables();
 		}
 		@Override
 		public boolean apply(final int action) {
 			// Replace all ZDisplayable
-			layer.al_displayables.clear();
-			layer.al_displayables.addAll(this.al_displayables);
+			layer.setDisplayables(this.al_displayables);
 			Display.update(layer);
 			return true;
 		}
@@ -64,6 +64,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -1718,9 +1719,13 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** For fast search. */
 	protected HashMap<Layer,LayerBucket> lbucks = new HashMap<Layer,LayerBucket>();
+	/** Guards {@link #lbucks} and the buckets in it: searches share the read lock and don't wait for each other,
+	 *  changes take the write lock. May be taken while holding the lock of a {@link Layer}, never the other way around. */
+	private final ReentrantReadWriteLock lbucks_lock = new ReentrantReadWriteLock();
 
 	final private void addToBuckets(final Displayable zd, final int i) {
-		synchronized (lbucks) {
+		lbucks_lock.writeLock().lock();
+		try {
 			if (lbucks.isEmpty()) return;
 			for (final Long lid : zd.getLayerIds()) {
 				final Layer la = getLayer(lid); // map lookup
@@ -1731,11 +1736,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				}
 				lb.root.put(i, zd, la, lb.db_map);
 			}
+		} finally {
+			lbucks_lock.writeLock().unlock();
 		}
 	}
 	/** Recreate the buckets of every layer in which the {@link Displayable} has data. */
 	final private void removeFromBuckets(final Displayable zd, final int old_stack_index) {
-		synchronized (lbucks) {
+		lbucks_lock.writeLock().lock();
+		try {
 			if (lbucks.isEmpty()) return;
 			for (final Long lid : zd.getLayerIds()) {
 				final Layer la = getLayer(lid);
@@ -1746,12 +1754,15 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				}
 				recreateBuckets(getLayer(lid), false);
 			}
+		} finally {
+			lbucks_lock.writeLock().unlock();
 		}
 	}
 
 	/** Recreate the buckets for all layers involved. */
 	final private void removeFromBuckets(final Collection<ZDisplayable> zds) {
-		synchronized (lbucks) {
+		lbucks_lock.writeLock().lock();
+		try {
 			if (lbucks.isEmpty()) return;
 			final Set<Layer> touched = new HashSet<Layer>();
 			for (final ZDisplayable zd : zds) {
@@ -1765,11 +1776,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				}
 				lbucks.put(la, new LayerBucket(la));
 			}
+		} finally {
+			lbucks_lock.writeLock().unlock();
 		}
 	}
 	/** Used ONLY by move up/down/top/bottom. */
 	final private void updateRangeInBuckets(final Displayable zd, final int i, final int j) {
-		synchronized (lbucks) {
+		lbucks_lock.writeLock().lock();
+		try {
 			if (lbucks.isEmpty()) return;
 			for (final Long lid : zd.getLayerIds()) {
 				final Layer la = getLayer(lid);
@@ -1782,6 +1796,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 					bu.updateRange(this, zd, i, j);
 				}
 			}
+		} finally {
+			lbucks_lock.writeLock().unlock();
 		}
 	}
 
@@ -1794,7 +1810,8 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 
 	public HashMap<Displayable, HashSet<Bucket>> getBucketMap(final Layer la) {
-		synchronized (lbucks) {
+		lbucks_lock.readLock().lock();
+		try {
 			if (lbucks.isEmpty()) return null;
 			final LayerBucket lb = lbucks.get(la);
 			if (null == lb) {
@@ -1802,13 +1819,18 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				return null;
 			}
 			return lb.db_map;
+		} finally {
+			lbucks_lock.readLock().unlock();
 		}
 	}
 
 	public void updateBucket(final Displayable d, final Layer layer) {
-		synchronized (lbucks) {
+		lbucks_lock.writeLock().lock();
+		try {
 			final LayerBucket lb = lbucks.get(layer);
 			if (null != lb) lb.root.updatePosition(d, layer, lb.db_map);
+		} finally {
+			lbucks_lock.writeLock().unlock();
 		}
 	}
 
@@ -1823,8 +1845,11 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	 */
 	public void recreateBuckets(final Layer layer, final boolean layer_buckets) {
 		LayerBucket lb = new LayerBucket(layer);
-		synchronized (lbucks) {
+		lbucks_lock.writeLock().lock();
+		try {
 			lbucks.put(layer, lb);
+		} finally {
+			lbucks_lock.writeLock().unlock();
 		}
 		if (layer_buckets && null != layer.root) layer.recreateBuckets();
 	}
@@ -1848,20 +1873,30 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		} catch (Exception e) {
 			IJError.print(e);
 		}
-		synchronized (lbucks) {
+		lbucks_lock.writeLock().lock();
+		try {
 			lbucks.clear();
 			lbucks.putAll(m);
+		} finally {
+			lbucks_lock.writeLock().unlock();
 		}
 	}
 
 	/** Checks only buckets for ZDisplayable, not any related to any layer. */
 	public void checkBuckets() {
-		synchronized (lbucks) {
-			if (!lbucks.isEmpty()) return;
-		}
+		if (hasBuckets()) return;
 		recreateBuckets(false);
 	}
 
+	private final boolean hasBuckets() {
+		lbucks_lock.readLock().lock();
+		try {
+			return !lbucks.isEmpty();
+		} finally {
+			lbucks_lock.readLock().unlock();
+		}
+	}
+
 	/** Returns the minimal 2D bounding box for Displayables of class @param c in all layers. */
 	public Rectangle getMinimalBoundingBox(final Class<?> c) {
 		Rectangle r = null;
@@ -2225,11 +2260,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				e.getKey().getAffineTransform().setTransform(e.getValue());
 			}
 
-			final boolean dobuckets;
-			synchronized (ls.lbucks) {
-				dobuckets = ls.lbucks.isEmpty();
-			}
-			if (dobuckets) ls.recreateBuckets(true);
+			if (!ls.hasBuckets()) ls.recreateBuckets(true);
 
 			Display.updateSelection();
 			Display.update(ls); //so it's not left out painted beyond borders
@@ -2312,15 +2343,12 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 			// Replace all Displayable in each Layer
 			for (final Map.Entry<Layer,ArrayList<Displayable>> e : all_displ.entrySet()) {
-				// Acquire pointer to the actual instance list in each Layer
-				final ArrayList<Displayable> al = e.getKey().getDisplayableList(); // the real one!
 				// Create a list to contain those Displayable present in old list but not in list to use now
-				final HashSet<Displayable> diff = new HashSet<Displayable>(al); // create with all Displayable of old list
+				final HashSet<Displayable> diff = new HashSet<Displayable>(e.getKey().getDisplayables()); // create with all Displayable of old list
 				diff.removeAll(e.getValue()); // remove all Displayable present in list to use now, to leave the diff or remainder only
-				// Clear current list
-				al.clear();
-				// Insert all to the current list
-				al.addAll(e.getValue());
+				// Replace the current list
+				final ArrayList<Displayable> al = e.getValue();
+				e.getKey().setDisplayables(al);
 				// Add to remove-on-shutdown queue all those Patch no longer in the list to use now:
 				for (final Displayable d : diff) {
 					if (d.getClass() == Patch.class) {
@@ -2340,17 +2368,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			ls.al_zdispl.addAll(this.all_zdispl);
 
 			// Replace all links
-			for (final Map.Entry<Displayable,Set<Displayable>> e : this.links.entrySet()) {
-				final Set<Displayable> hs = e.getKey().hs_linked;
-				if (null != hs) {
-					final Set<Displayable> hs2 = e.getValue();
-					if (null == hs2) e.getKey().hs_linked = null;
-					else {
-						hs.clear();
-						hs.addAll(hs2);
-					}
-				}
-			}
+			Displayable.replaceLinks(this.links);
 
 			// Invoke dependents
 			if (null != dependents) for (DoStep step : dependents) step.apply(action);
@@ -2795,12 +2813,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** Find ZDisplayable objects that contain the point x,y in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Layer layer, final int x, final int y, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
+		lbucks_lock.readLock().lock();
+		try {
+			final LayerBucket lb = lbucks.get(layer);
+			if (null != lb) return lb.root.find(x, y, layer, visible_only);
+		} finally {
+			lbucks_lock.readLock().unlock();
 		}
-		if (null != lb) return lb.root.find(x, y, layer, visible_only);
-		else nbmsg(layer);
+		nbmsg(layer);
 
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		for (final ZDisplayable zd : al_zdispl) {
@@ -2815,12 +2835,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 	/** Find ZDisplayable objects of Class c that contain the point x,y in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final int x, final int y, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
+		lbucks_lock.readLock().lock();
+		try {
+			final LayerBucket lb = lbucks.get(layer);
+			if (null != lb) return lb.root.find(c, x, y, layer, visible_only, instance_of);
+		} finally {
+			lbucks_lock.readLock().unlock();
 		}
-		if (null != lb) return lb.root.find(c, x, y, layer, visible_only, instance_of);
-		else nbmsg(layer);
+		nbmsg(layer);
 
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		for (final ZDisplayable zd : al_zdispl) {
@@ -2835,12 +2857,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	
 	/** Find ZDisplayable objects of the given class that intersect the given rectangle in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final Rectangle r, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
+		lbucks_lock.readLock().lock();
+		try {
+			final LayerBucket lb = lbucks.get(layer);
+			if (null != lb) return lb.root.find(c, r, layer, visible_only, instance_of);
+		} finally {
+			lbucks_lock.readLock().unlock();
 		}
-		if (null != lb) return lb.root.find(c, r, layer, visible_only, instance_of);
-		else nbmsg(layer);
+		nbmsg(layer);
 
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		for (final ZDisplayable zd : al_zdispl) {
@@ -2853,12 +2877,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Find ZDisplayable objects of the given class that intersect the given area in the given layer.
 	 *  If @param instance_of is true, use c.isAssignableFrom instead of class equality. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final Area aroi, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
+		lbucks_lock.readLock().lock();
+		try {
+			final LayerBucket lb = lbucks.get(layer);
+			if (null != lb) return lb.root.find(c, aroi, layer, visible_only, instance_of);
+		} finally {
+			lbucks_lock.readLock().unlock();
 		}
-		if (null != lb) return lb.root.find(c, aroi, layer, visible_only, instance_of);
-		else nbmsg(layer);
+		nbmsg(layer);
 
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		for (final ZDisplayable zd : al_zdispl) {
@@ -2872,12 +2898,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 	/** Find ZDisplayable objects that intersect the given rectangle in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Layer layer, final Rectangle r, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
+		lbucks_lock.readLock().lock();
+		try {
+			final LayerBucket lb = lbucks.get(layer);
+			if (null != lb) return lb.root.find(r, layer, visible_only);
+		} finally {
+			lbucks_lock.readLock().unlock();
 		}
-		if (null != lb) return lb.root.find(r, layer, visible_only);
-		else nbmsg(layer);
+		nbmsg(layer);
 
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
 		for (final ZDisplayable zd : al_zdispl) {
@@ -2890,12 +2918,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Find ZDisplayable objects that intersect the given rectangle in the given layer.
 	 *  May return false positives but never false negatives. */
 	public Collection<Displayable> roughlyFindZDisplayables(final Layer layer, final Rectangle r, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
+		lbucks_lock.readLock().lock();
+		try {
+			final LayerBucket lb = lbucks.get(layer);
+			if (null != lb) return lb.root.roughlyFind(r, layer, visible_only);
+		} finally {
+			lbucks_lock.readLock().unlock();
 		}
-		if (null != lb) return lb.root.roughlyFind(r, layer, visible_only);
-		else nbmsg(layer);
+		nbmsg(layer);
 
 		// Else, linear:
 		final ArrayList<Displayable> al = new ArrayList<Displayable>();
@@ -494,6 +494,30 @@ public abstract class Node<T> implements Taggable {
 		return root;
 	}
 
+	/** Returns a copy of this Node alone, without parent or children, as copied by {@link #clone(Project)}. */
+	final Node<T> copyAlone() {
+		final Node<T> copy = newInstance(x, y, la);
+		copy.setData(this.getDataCopy());
+		copy.confidence = this.confidence;
+		copy.tags = getTagsCopy();
+		return copy;
+	}
+
+	/** Whether this Node has the same position, layer, edge confidence, data and tags as other,
+	 *  disregarding parent and children. */
+	final boolean isIdenticalTo(final Node<T> other) {
+		if (this.x != other.x || this.y != other.y || this.la != other.la || this.confidence != other.confidence) return false;
+		if (null == this.tags ? null != other.tags : !this.getTags().equals(other.getTags())) return false;
+		return isDataIdenticalTo(other);
+	}
+
+	/** Whether the data of this Node equals that of other; subclasses whose data does not define a cheap equals must override. */
+	protected boolean isDataIdenticalTo(final Node<T> other) {
+		final T d1 = this.getData(),
+		        d2 = other.getData();
+		return null == d1 ? null == d2 : d1.equals(d2);
+	}
+
 	/** Check if this point or the edges to its children are closer to xx,yy than radius, in the 2D plane only. */
 	final boolean isNear(final float xx, final float yy, final float sqradius) {
 		if (null == children) return sqradius > (Math.pow(xx - x, 2) + Math.pow(yy - y, 2));
@@ -32,7 +32,6 @@ import ij.io.FileOpener;
 import ij.io.TiffDecoder;
 import ij.io.TiffEncoder;
 import ij.plugin.WandToolOptions;
-import ij.plugin.filter.ThresholdToSelection;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
@@ -40,6 +39,8 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.Project;
 import ini.trakem2.imaging.PatchStack;
+import ini.trakem2.imaging.RoiImageSource;
+import ini.trakem2.imaging.SeamBlending;
 import ini.trakem2.imaging.filters.FilterEditor;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.CoordinateTransformXML;
@@ -47,6 +48,7 @@ import ini.trakem2.io.ImageSaver;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.persistence.XMLOptions;
+import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
@@ -86,6 +88,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -107,6 +110,7 @@ import mpicbg.trakem2.transform.AffineModel2D;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.CoordinateTransformList;
 import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshCache;
 import mpicbg.trakem2.transform.TransformMeshMapping;
 import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
 
@@ -140,6 +144,47 @@ public final class Patch extends Displayable implements ImageData {
 	 * The alpha mask determines transparencies inside the width,height domain of the image. */
 	private long alpha_mask_id = 0;
 	
+	/** Side, in pixels, of the squares of the simplified outline used for buckets. */
+	static private final int OUTLINE_CELL = 8;
+	
+	/** The outline of the inside of this Patch, as returned by {@link #getArea()},
+	 * and what it depends on other than the {@link AffineTransform}. */
+	static private final class Outline {
+		final long ct_id, alpha_mask_id;
+		final int mres, o_width, o_height;
+		/** In the coordinates of this Patch, and the same simplified with {@link #OUTLINE_CELL}. */
+		final Area local, local_simplified;
+		private final double[] matrix = new double[6];
+		private Area world = null, world_simplified = null;
+		Outline(final Patch p, final Area local, final Area local_simplified) {
+			this.ct_id = p.ct_id;
+			this.alpha_mask_id = p.alpha_mask_id;
+			this.mres = p.meshResolution;
+			this.o_width = p.o_width;
+			this.o_height = p.o_height;
+			this.local = local;
+			this.local_simplified = local_simplified;
+		}
+		final boolean isValid(final Patch p) {
+			return ct_id == p.ct_id && alpha_mask_id == p.alpha_mask_id && mres == p.meshResolution
+				&& o_width == p.o_width && o_height == p.o_height;
+		}
+		/** A new Area in world coordinates, transformed anew only when the AffineTransform changed. */
+		synchronized final Area getWorld(final AffineTransform at, final boolean simplified) {
+			final double[] m = new double[6];
+			at.getMatrix(m);
+			if (null == world || !Arrays.equals(m, matrix)) {
+				System.arraycopy(m, 0, matrix, 0, 6);
+				world = local.createTransformedArea(at);
+				world_simplified = local == local_simplified ? world : local_simplified.createTransformedArea(at);
+			}
+			return new Area(simplified ? world_simplified : world);
+		}
+	}
+	
+	/** Cached by {@link #getArea()}; dropped when the coordinate transform is rewritten. */
+	private transient volatile Outline outline = null;
+	
 	protected int meshResolution = project.getProperty("mesh_resolution", 32);
 	public int getMeshResolution(){ return meshResolution; }
 	
@@ -682,14 +727,16 @@ public final class Patch extends Displayable implements ImageData {
 			final AffineTransform atp, final Rectangle srcRect)
 	{	
 		final Composite original_composite = g.getComposite();
+		// Feather the seams with the images underneath, if requested
+		final Image image = SeamBlending.isEnabled(this) ? SeamBlending.blend(this, mipMap.image) : mipMap.image;
 		// Fail gracefully for graphics cards that don't support custom composites, like ATI cards:
 		try {
 			g.setComposite( getComposite(getCompositeMode()) );
-			g.drawImage( mipMap.image, atp, null );
+			g.drawImage( image, atp, null );
 		} catch (final Throwable t) {
 			g.setComposite(original_composite);
 			Utils.log(new StringBuilder("Cannot paint Patch with composite type ").append(compositeModes[getCompositeMode()]).append("\nReason:\n").append(t.toString()).toString());
-			g.drawImage( mipMap.image, atp, null );
+			g.drawImage( image, atp, null );
 		}
 		g.setComposite( original_composite );
 	}
@@ -1186,6 +1233,14 @@ public final class Patch extends Displayable implements ImageData {
 		} else super.setAlpha(alpha, update);
 	}
 
+	/** Also drops the flat tiles that include this Patch where it is now, which was moved or transformed;
+	 *  those where it was before no longer match the images found there, and are rendered anew. */
+	@Override
+	public void updateBucket() {
+		super.updateBucket();
+		RoiImageSource.invalidate(this);
+	}
+
 	public void debug() {
 		Utils.log2("Patch id=" + id + "\n\toriginal_path=" + original_path + "\n\tcurrent_path=" + current_path);
 	}
@@ -1253,10 +1308,11 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (null != this_ct) {
 			// restore image without the transform
-			final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = TransformMeshCache.get(this_ct, meshResolution, o_width, o_height);
 			final Rectangle box = mesh.getBoundingBox();
 			this.at.translate(-box.x, -box.y);
 			updateInDatabase("transform+dimensions");
+			// The mesh is left in the cache: other patches may share the transform, and it is evicted when least recently used
 		}
 
 		try {
@@ -1277,7 +1333,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		// Adjust the AffineTransform to correct for bounding box displacement
 
-		final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
+		final TransformMesh mesh = TransformMeshCache.get(this_ct, meshResolution, o_width, o_height);
 		final Rectangle box = mesh.getBoundingBox();
 		this.at.translate(box.x, box.y);
 		width = box.width;
@@ -1365,8 +1421,8 @@ public final class Patch extends Displayable implements ImageData {
 	protected static final Rectangle getCoordinateTransformBoundingBox(final Patch p, final CoordinateTransform ct) {
 		if (!p.hasCoordinateTransform())
 			return new Rectangle(0,0,p.o_width,p.o_height);
-		final TransformMesh mesh = new TransformMesh(ct, p.meshResolution, p.o_width, p.o_height);
-		return mesh.getBoundingBox();
+		final TransformMesh mesh = TransformMeshCache.get(ct, p.meshResolution, p.o_width, p.o_height);
+		return new Rectangle(mesh.getBoundingBox());
 	}
 
 	/** Obtain a copy of the {@link CoordinateTransform} that transfers image data to mipmap image data.
@@ -1423,8 +1479,8 @@ public final class Patch extends Displayable implements ImageData {
 
 		//Utils.log2("source image dimensions: " + source.getWidth() + ", " + source.getHeight());
 
-		final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
-		final Rectangle box = mesh.getBoundingBox();
+		final TransformMesh mesh = TransformMeshCache.get(ct, meshResolution, o_width, o_height);
+		final Rectangle box = new Rectangle(mesh.getBoundingBox());
 
 		/* We can calculate the exact size of the image to be rendered, so let's do it */
 //		project.getLoader().releaseToFit(o_width, o_height, type, 5);
@@ -1897,7 +1953,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (hasCoordinateTransform()) {
 			// inverse the coordinate transform
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = TransformMeshCache.get(ct, meshResolution, o_width, o_height);
 			final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 			rmask = (ByteProcessor) mapping.createInverseMappedImageInterpolated(rmask);
 		}
@@ -1925,12 +1981,23 @@ public final class Patch extends Displayable implements ImageData {
 		return null != getPreprocessorScriptPath() || null != filters;
 	}
 
-	/** Returns an Area in world coords representing the inside of this Patch. The fully alpha pixels are considered outside. */
+	/** Returns an Area in world coords representing the inside of this Patch. The fully alpha pixels are considered outside.
+	 *  The outline is cached until the coordinate transform, alpha mask, mesh resolution or image dimensions change. */
 	@Override
 	public Area getArea() {
+		Outline o = this.outline;
+		if (null == o || !o.isValid(this)) {
+			o = createOutline();
+			this.outline = o;
+		}
+		return o.getWorld(this.at, false);
+	}
+
+	/** The outline of the inside of this Patch, in the coordinates of this Patch. */
+	private Outline createOutline() {
 		CoordinateTransform ct = null;
 		if (hasAlphaMask()) {
-			// Read the mask as a ROI for the 0 pixels only and apply the AffineTransform to it:
+			// Read the mask as an Area for the non-zero pixels only:
 			ImageProcessor alpha_mask = getAlphaMask();
 			if (null == alpha_mask) {
 				Utils.log2("Could not retrieve alpha mask for " + this);
@@ -1938,23 +2005,13 @@ public final class Patch extends Displayable implements ImageData {
 				if (hasCoordinateTransform()) {
 					// must transform it
 					ct = getCoordinateTransform();
-					final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+					final TransformMesh mesh = TransformMeshCache.get(ct, meshResolution, o_width, o_height);
 					final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 					alpha_mask = mapping.createMappedImage( alpha_mask ); // Without interpolation
 					// Keep in mind the affine of the Patch already contains the translation specified by the mesh bounds.
 				}
-				// Threshold all non-zero areas of the mask:
-				alpha_mask.setThreshold(1, 255, ImageProcessor.NO_LUT_UPDATE);
-				final ImagePlus imp = new ImagePlus("", alpha_mask);
-				final ThresholdToSelection tts = new ThresholdToSelection(); // TODO replace by our much faster method that scans by line, in AmiraImporter
-				tts.setup("", imp);
-				tts.run(alpha_mask);
-				final Roi roi = imp.getRoi();
-				if (null == roi) {
-					// All pixels in the alpha mask have a value of zero
-					return new Area();
-				}
-				return M.getArea(roi).createTransformedArea(this.at);
+				// All non-zero areas of the mask, scanning by line:
+				return new Outline(this, AreaUtils.maskToArea(alpha_mask, 1, 1), AreaUtils.maskToArea(alpha_mask, 1, OUTLINE_CELL));
 			}
 		}
 		// No alpha mask, or error in retrieving it:
@@ -1986,13 +2043,11 @@ public final class Patch extends Displayable implements ImageData {
 		if (null != ct) {
 			final CoordinateTransformList<CoordinateTransform> t = new CoordinateTransformList<CoordinateTransform>();
 			t.add(ct);
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = TransformMeshCache.get(ct, meshResolution, o_width, o_height);
 			final Rectangle box = mesh.getBoundingBox();
-			final AffineTransform aff = new AffineTransform(this.at);
-			// Must correct for the inverse of the mesh translation, because the affine also includes the translation.
-			aff.translate(-box.x, -box.y);
+			// Must correct for the inverse of the mesh translation, because the affine of the Patch includes the translation.
 			final AffineModel2D affm = new AffineModel2D();
-			affm.set(aff);
+			affm.set(AffineTransform.getTranslateInstance(-box.x, -box.y));
 			t.add(affm);
 
 
@@ -2021,9 +2076,11 @@ public final class Patch extends Displayable implements ImageData {
 			}
 			path.closePath(); // line to last call to moveTo
 
-			return new Area(path);
+			final Area area = new Area(path);
+			return new Outline(this, area, area);
 		} else {
-			return new Area(new Polygon(x, y, x.length)).createTransformedArea(this.at);
+			final Area area = new Area(new Polygon(x, y, x.length));
+			return new Outline(this, area, area);
 		}
 	}
 
@@ -2185,9 +2242,13 @@ public final class Patch extends Displayable implements ImageData {
 		return true;
 	}
 
-	/** Use this instead of getAreaAt which calls getArea which is ... dog slow for something like buckets. */
+	/** Use this instead of getAreaAt which calls getArea which is ... dog slow for something like buckets.
+	 *  Returns the simplified outline if {@link #getArea()} has cached it, or else the perimeter,
+	 *  so that rebuilding buckets never reads alpha masks. */
 	@Override
 	protected Area getAreaForBucket(final Layer l) {
+		final Outline o = this.outline;
+		if (null != o && o.isValid(this)) return o.getWorld(this.at, true);
 		return new Area(getPerimeter());
 	}
 
@@ -2352,6 +2413,8 @@ public final class Patch extends Displayable implements ImageData {
 			pw = new PrintWriter(new BufferedOutputStream(new FileOutputStream(f)));
 			pw.write(ct.toXML("\t\t\t\t")); // so that "Save" will generate a pretty, formatted XML.
 			pw.flush();
+			// The ct_id may be the same as before
+			outline = null;
 			return true;
 		} finally {
 			if (null != pw) try { pw.close(); } catch (final Exception e) { IJError.print(e); }
@@ -2438,7 +2501,7 @@ public final class Patch extends Displayable implements ImageData {
 				at.inverseTransform( w, 0, w, 0, 1 );
 			}
 			catch ( final NoninvertibleTransformException e ) {}
-			final TransformMesh mesh = new TransformMesh( ct, meshResolution, o_width, o_height );
+			final TransformMesh mesh = TransformMeshCache.get( ct, meshResolution, o_width, o_height );
 			final mpicbg.models.AffineModel2D triangle = mesh.closestTargetAffine( new float[]{ ( float )w[ 0 ], ( float )w[ 1 ] } );
 			affine.concatenate( triangle.createAffine() );
 		}
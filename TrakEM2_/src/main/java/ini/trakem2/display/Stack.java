@@ -21,6 +21,7 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 import ini.trakem2.Project;
+import ini.trakem2.imaging.StackBlocks;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.IJError;
@@ -73,6 +74,12 @@ public class Stack extends ZDisplayable implements ImageData
 	
 	final private HashMap< Long, Future< Image > > futureImages = new HashMap< Long, Future<Image> >();
 	
+	/*
+	 * The level of the {@link StackBlocks} each cached image was resliced from,
+	 * by image id. Images of level n have 2^n times fewer pixels in x and y.
+	 */
+	final private HashMap< Long, Integer > imageLevels = new HashMap< Long, Integer >();
+	
 	private static class SliceViewKey
 	{
 		final double magnification;
@@ -103,14 +110,27 @@ public class Stack extends ZDisplayable implements ImageData
 		super( project, title, x, y );
 		this.file_path = file_path;
 		// ct ==> initial_layer;
-		final ImagePlus imp = project.getLoader().fetchImagePlus( this );
+		/* Generate the blocks once, on import, instead of opening the whole volume */
+		final StackBlocks blocks = StackBlocks.get( this );
 		
 		/* TODO scale regarding the Calibration and shift regarding x, y and the initial_layer */
-		depth = imp.getNSlices();
-		width = imp.getWidth();
-		height = imp.getHeight();		
-		min = imp.getDisplayRangeMin();
-		max = imp.getDisplayRangeMax();
+		if ( null != blocks )
+		{
+			depth = blocks.getDepth();
+			width = blocks.getWidth( 0 );
+			height = blocks.getHeight( 0 );
+			min = blocks.getMin();
+			max = blocks.getMax();
+		}
+		else
+		{
+			final ImagePlus imp = project.getLoader().fetchImagePlus( this );
+			depth = imp.getNSlices();
+			width = imp.getWidth();
+			height = imp.getHeight();
+			min = imp.getDisplayRangeMin();
+			max = imp.getDisplayRangeMax();
+		}
 		//at.translate( x, y ); // No need: the call to the super constructor already translated the affine transform.
 		
 		boundsMin[ 0 ] = 0;
@@ -228,6 +248,7 @@ public class Stack extends ZDisplayable implements ImageData
 		// Copy references to cached images
 		copy.cachedImages.putAll(cachedImages);
 		copy.futureImages.putAll(futureImages);
+		copy.imageLevels.putAll(imageLevels);
 		copy.addToDatabase();
 		return copy;
 	}
@@ -247,6 +268,8 @@ public class Stack extends ZDisplayable implements ImageData
 
 	/** Will decache the ImagePlus if loaded. */
 	public void setFilePath(final String path) {
+		// The blocks of the previous file, unless other stacks use it
+		StackBlocks.remove(this);
 		this.file_path = path;
 		// The source ImagePlus
 		project.getLoader().decacheImagePlus(this.id);
@@ -284,9 +307,9 @@ public class Stack extends ZDisplayable implements ImageData
 		MipMapImage mipMap = null;
 		Future< Image > fu = null;
 		final SliceViewKey sliceViewKey = new SliceViewKey( magnification, active_layer.getZ() );
+		final long imageId;
 		synchronized ( cachedImages )
 		{
-			final long imageId;
 			Long imageIdL = cachedImages.get( sliceViewKey );
 			if ( imageIdL == null )
 			{
@@ -308,7 +331,7 @@ public class Stack extends ZDisplayable implements ImageData
 
 		// Paint outside the synchronization block:
 		if (null != mipMap) {
-			paint(g, mipMap.image);
+			paint(g, mipMap.image, getImageLevel(imageId));
 		} else if (null != fu) {
 			final Image image;
 			try {
@@ -319,7 +342,7 @@ public class Stack extends ZDisplayable implements ImageData
 				return;
 			}
 			// If I put the fu.get() where image is, it fails to compile. I had to separate it!
-			paint(g, image); // will wait until present
+			paint(g, image, getImageLevel(imageId)); // will wait until present
 		} else {
 			Utils.log2("Stack.paint ERROR: no image to paint!");
 		}
@@ -333,7 +356,7 @@ public class Stack extends ZDisplayable implements ImageData
 			{
 				fu = project.getLoader().doLater( new Callable< Image >()
 				{
-					public Image call()
+					public Image call() throws Exception
 					{
 						final InvertibleCoordinateTransformList< mpicbg.models.InvertibleCoordinateTransform > ictl = new InvertibleCoordinateTransformList< mpicbg.models.InvertibleCoordinateTransform >();
 						if ( ict != null )
@@ -359,12 +382,6 @@ public class Stack extends ZDisplayable implements ImageData
 						
 						/* TODO remove that scale from ict and put it into atp */
 						
-						final ImagePlus imp = project.getLoader().fetchImagePlus( Stack.this );
-						final ImageProcessor ip = imp.getStack().getProcessor( 1 ).createProcessor( ( int )Math.ceil( ( boundsMax[ 0 ] - boundsMin[ 0 ] ) / ictScale ), ( int )Math.ceil( ( boundsMax[ 1 ] - boundsMin[ 1 ] ) / ictScale ) );
-						
-						//Utils.log2( "ictScale is " + ictScale );
-						//Utils.log2( "rendering an image of " + ip.getWidth() + " x " + ip.getHeight() + " px" );
-						
 						final double currentZ = active_layer.getZ();
 
 						final TranslationModel3D sliceShift = new TranslationModel3D();
@@ -372,7 +389,7 @@ public class Stack extends ZDisplayable implements ImageData
 						ictl.add( sliceShift );
 						
 						/* optimization: if ict is affine, reduce ictl into a single affine */
-						final InverseTransformMapping< mpicbg.models.InvertibleCoordinateTransform > mapping; 
+						mpicbg.models.InvertibleCoordinateTransform transform = ictl;
 						if ( AffineModel3D.class.isInstance( ict ) )
 						{
 							final AffineModel3D ictAffine = new AffineModel3D();
@@ -390,20 +407,41 @@ public class Stack extends ZDisplayable implements ImageData
 								}
 							}
 							if ( isAffine )
-								mapping = new InverseTransformMapping< mpicbg.models.InvertibleCoordinateTransform >( ictAffine );
-							else
-								mapping = new InverseTransformMapping< mpicbg.models.InvertibleCoordinateTransform >( ictl );
+								transform = ictAffine;
 						}
-						else
-							mapping = new InverseTransformMapping< mpicbg.models.InvertibleCoordinateTransform >( ictl );
-						mapping.mapInterpolated( imp.getStack(), ip );
 						
 						final float s = estimateAffineScale( new AffineTransform( at ) ); // wast: atp
 
 						final float smoothMag = ( float )magnification * s * ( float )ictScale;
-						if ( smoothMag < 1.0f )
+						final int fullWidth = ( int )Math.ceil( ( boundsMax[ 0 ] - boundsMin[ 0 ] ) / ictScale );
+						final int fullHeight = ( int )Math.ceil( ( boundsMax[ 1 ] - boundsMin[ 1 ] ) / ictScale );
+						
+						/* Reslice from the blocks of the coarsest level that is fine enough, reading only those intersecting the slice */
+						final StackBlocks blocks = StackBlocks.get( Stack.this );
+						final ImageProcessor ip;
+						final int level;
+						if ( null != blocks )
+						{
+							level = blocks.getLevel( smoothMag );
+							final int f = 1 << level;
+							ip = blocks.reslice( transform, level, Math.max( 1, ( fullWidth + f - 1 ) / f ), Math.max( 1, ( fullHeight + f - 1 ) / f ) );
+						}
+						else
+						{
+							level = 0;
+							final ImagePlus imp = project.getLoader().fetchImagePlus( Stack.this );
+							ip = imp.getStack().getProcessor( 1 ).createProcessor( fullWidth, fullHeight );
+							
+							//Utils.log2( "ictScale is " + ictScale );
+							//Utils.log2( "rendering an image of " + ip.getWidth() + " x " + ip.getHeight() + " px" );
+							
+							new InverseTransformMapping< mpicbg.models.InvertibleCoordinateTransform >( transform ).mapInterpolated( imp.getStack(), ip );
+						}
+						
+						final float levelMag = smoothMag * ( 1 << level );
+						if ( levelMag < 1.0f )
 						{
-							Filter.smoothForScale( ip, smoothMag, 0.5f, 0.5f );
+							Filter.smoothForScale( ip, levelMag, 0.5f, 0.5f );
 						}
 							
 						final Image image = ip.createImage();
@@ -416,6 +454,10 @@ public class Stack extends ZDisplayable implements ImageData
 											// Project
 						}
 
+						synchronized ( imageLevels )
+						{
+							imageLevels.put( imageId, level );
+						}
 						project.getLoader().cacheAWT( imageId, image );
 
 						synchronized ( futureImages )
@@ -460,10 +502,10 @@ public class Stack extends ZDisplayable implements ImageData
 		
 		final double currentZ = active_layer.getZ();
 		MipMapImage mipMap = null;
+		final long imageId;
 		synchronized ( cachedImages )
 		{
 			final SliceViewKey sliceViewKey = new SliceViewKey( magnification, currentZ );
-			final long imageId;
 			Long imageIdL = cachedImages.get( sliceViewKey );
 			if ( imageIdL == null )
 			{
@@ -485,11 +527,20 @@ public class Stack extends ZDisplayable implements ImageData
 		}
 
 		if ( mipMap != null) {
-			paint( g, mipMap.image );
+			paint( g, mipMap.image, getImageLevel( imageId ) );
 		}
 	}
 
-	final private void paint( final Graphics2D g, final Image image )
+	final private int getImageLevel( final long imageId )
+	{
+		synchronized ( imageLevels )
+		{
+			final Integer level = imageLevels.get( imageId );
+			return null == level ? 0 : level;
+		}
+	}
+
+	final private void paint( final Graphics2D g, final Image image, final int level )
 	{
 		final AffineTransform atp = new AffineTransform( this.at );
 		
@@ -497,8 +548,10 @@ public class Stack extends ZDisplayable implements ImageData
 		final AffineTransform shiftBounds = new AffineTransform( 1, 0, 0, 1, boundsMin[ 0 ], boundsMin[ 1 ] );
 		atp.concatenate( shiftBounds );
 			
-		/* If available, incorporate the involved x,y-scale of ict in the AffineTransform */
-		final AffineTransform asict = new AffineTransform( ictScale, 0, 0, ictScale, 0, 0 );
+		/* If available, incorporate the involved x,y-scale of ict in the AffineTransform,
+		 * and the pixel size of the level the image was resliced from */
+		final double levelScale = ictScale * ( 1 << level );
+		final AffineTransform asict = new AffineTransform( levelScale, 0, 0, levelScale, 0, 0 );
 		atp.concatenate( asict );
 		
 		final Composite original_composite = g.getComposite();
@@ -660,6 +713,10 @@ public class Stack extends ZDisplayable implements ImageData
 	private void invalidateCache()
 	{
 		cachedImages.clear();
+		synchronized ( imageLevels )
+		{
+			imageLevels.clear();
+		}
 	}
 	
 	public void setInvertibleCoordinateTransform( final InvertibleCoordinateTransform ict )
@@ -678,6 +735,15 @@ public class Stack extends ZDisplayable implements ImageData
 	public boolean remove2(boolean check) {
 		return remove(check);
 	}
+
+	@Override
+	public boolean remove(final boolean check) {
+		if (super.remove(check)) {
+			StackBlocks.remove(this);
+			return true;
+		}
+		return false;
+	}
 	
 	@Override
 	protected boolean calculateBoundingBox(final Layer la) { return true; }
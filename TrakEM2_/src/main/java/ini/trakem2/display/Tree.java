@@ -33,6 +33,9 @@ import ij.io.Opener;
 import ini.trakem2.Project;
 import ini.trakem2.analysis.Centrality;
 import ini.trakem2.analysis.Vertex;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.persistence.XMLOptions;
@@ -69,6 +72,10 @@ import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.Stroke;
 import java.awt.Dimension;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Collection;
@@ -76,6 +83,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.TreeSet;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Comparator;
@@ -85,7 +93,6 @@ import java.util.regex.Pattern;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
@@ -118,12 +125,20 @@ import java.io.File;
 /** A sequence of points ordered in a set of connected branches. */
 public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
+	/** Also the lock that guards the nodes. The buckets of the {@link LayerSet} call {@link #contains(Layer, double, double)}
+	 *  and others while holding their lock: never update the bucket, such as by {@link #calculateBoundingBox(Layer)}, while holding this one. */
 	protected final Map<Layer,Set<Node<T>>> node_layer_map = new HashMap<Layer,Set<Node<T>>>();
 
 	protected final Set<Node<T>> end_nodes = new HashSet<Node<T>>();
 
 	protected Node<T> root = null;
 
+	/** The bounds of the nodes in each Layer, in local coordinates, as last computed. Within synchronized (node_layer_map). */
+	private final HashMap<Layer,Rectangle> layer_bounds = new HashMap<Layer,Rectangle>();
+	/** The layers whose nodes changed since their bounds were computed. */
+	private final HashSet<Layer> dirty_bounds = new HashSet<Layer>();
+	private boolean all_bounds_dirty = true;
+
 	protected Tree(Project project, String title) {
 		super(project, title, 0, 0);
 	}
@@ -282,17 +297,47 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	}
 
 	protected Rectangle getPaintingBounds() {
+		return getPaintingBounds(null);
+	}
+
+	/** Like {@link #getPaintingBounds()}, but recomputing only the bounds of the nodes in @param la
+	 *  and in the layers whose nodes were added or removed since; those of all layers when @param la is null. */
+	protected Rectangle getPaintingBounds(final Layer la) {
 		Rectangle box = null;
 		synchronized (node_layer_map) {
-			for (final Collection<Node<T>> nodes : node_layer_map.values()) {
-				final Rectangle b = getBounds(nodes);
-				if (null == box) box = b;
-				else if (null != b) box.add(b);
+			if (null == la || all_bounds_dirty) {
+				layer_bounds.clear();
+				for (final Map.Entry<Layer,Set<Node<T>>> e : node_layer_map.entrySet()) {
+					final Rectangle b = getBounds(e.getValue());
+					if (null != b) layer_bounds.put(e.getKey(), b);
+				}
+			} else {
+				dirty_bounds.add(la);
+				for (final Layer l : dirty_bounds) {
+					final Set<Node<T>> nodes = node_layer_map.get(l);
+					final Rectangle b = null == nodes ? null : getBounds(nodes);
+					if (null == b) layer_bounds.remove(l);
+					else layer_bounds.put(l, b);
+				}
+			}
+			all_bounds_dirty = false;
+			dirty_bounds.clear();
+			for (final Rectangle b : layer_bounds.values()) {
+				if (null == box) box = new Rectangle(b);
+				else box.add(b);
 			}
 		}
 		return box;
 	}
 
+	/** Mark the bounds of the nodes in @param la, or in all layers when null, to be recomputed.
+	 *  Call within synchronized (node_layer_map) after adding or removing nodes, or editing nodes
+	 *  in a layer other than the one given to {@link #calculateBoundingBox(Layer)}. */
+	protected final void invalidateBounds(final Layer la) {
+		if (null == la) all_bounds_dirty = true;
+		else dirty_bounds.add(la);
+	}
+
 	@Override
 	public Rectangle getBounds(final Rectangle tmp, final Layer layer) {
 		synchronized (node_layer_map) {
@@ -324,6 +369,13 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return b;
 	}
 
+	/** Update the width and height to enclose all nodes, recomputing only the bounds of the nodes in @param la
+	 *  (see {@link #getPaintingBounds(Layer)}). The local coordinates of the nodes are left as they are unless
+	 *  some lie beyond the origin, and then the origin is moved past them by an additional margin, so that
+	 *  growing further that way doesn't translate all nodes again.
+	 *  When @param la is null, the bounds of all nodes are recomputed and the origin is moved to the top-left
+	 *  of the nodes, compacting the bounding box.
+	 *  @return whether the nodes were translated. */
 	public boolean calculateBoundingBox(final Layer la) {
 		try {
 			if (null == root) {
@@ -333,23 +385,33 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				return false;
 			}
 
-			final Rectangle box = getPaintingBounds();
+			final Rectangle box = getPaintingBounds(la);
+			if (null == box) return false; // empty
 
-			this.width = box.width;
-			this.height = box.height;
+			int dx = 0,
+			    dy = 0;
+			if (null == la) {
+				// make min_x,min_y be the x,y
+				dx = box.x;
+				dy = box.y;
+			} else {
+				if (box.x < 0) dx = box.x - box.width / 8;
+				if (box.y < 0) dy = box.y - box.height / 8;
+			}
+
+			this.width = box.x + box.width - dx;
+			this.height = box.y + box.height - dy;
 
-			if (0 == box.x && 0 == box.y) {
+			if (0 == dx && 0 == dy) {
 				// No need to translate
 				return false;
 			}
 
 			synchronized (node_layer_map) {
-				// now adjust points to make min_x,min_y be the x,y
-				for (final Collection<Node<T>> nodes : node_layer_map.values()) {
-					for (final Node<T> nd : nodes) {
-						nd.translate(-box.x, -box.y); }}
+				translateNodes(-dx, -dy);
+				invalidateBounds(null);
 			}
-			this.at.translate(box.x, box.y); // not using super.translate(...) because a preConcatenation is not needed; here we deal with the data.
+			this.at.translate(dx, dy); // not using super.translate(...) because a preConcatenation is not needed; here we deal with the data.
 
 			return true;
 		} finally {
@@ -357,6 +419,15 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}
 	}
 
+	/** Translate the local coordinates of all nodes. Call within synchronized (node_layer_map). */
+	protected void translateNodes(final float dx, final float dy) {
+		for (final Collection<Node<T>> nodes : node_layer_map.values()) {
+			for (final Node<T> nd : nodes) {
+				nd.translate(dx, dy);
+			}
+		}
+	}
+
 	/**Repaints in the given ImageCanvas only the area corresponding to the bounding box of this Pipe. */
 	public void repaint(boolean repaint_navigator, Layer la) {
 		//TODO: this could be further optimized to repaint the bounding box of the last modified segments, i.e. the previous and next set of interpolated points of any given backbone point. This would be trivial if each segment of the Bezier curve was an object.
@@ -680,29 +751,187 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return DPTree.class;
 	}
 
+	/** The most recent undo data package, to share the copies of unchanged subtrees with the next one. */
+	private WeakReference<DPTree> last_package = null;
+
 	@Override
 	synchronized Object getDataPackage() {
-		return new DPTree(this);
+		final DPTree pkg = new DPTree(this, null == last_package ? null : last_package.get());
+		last_package = new WeakReference<DPTree>(pkg);
+		return pkg;
 	}
 
+	/** Stores a copy of the nodes, sharing the copies of the previous package for all subtrees
+	 *  that are unchanged since, so that each undo step costs as much as the nodes that were
+	 *  added or edited rather than the whole Tree. The stored nodes have no parent: a parent
+	 *  pointer from a shared subtree would keep alive the package that copied it, and
+	 *  {@link Node#clone(Project)}, which restores the parents, follows children only. */
 	private final class DPTree extends Displayable.DataPackage {
-		final Node<T> root;
-		DPTree(final Tree<T> t) {
+		private Node<T> root;
+		/** Approximate size of the nodes not shared with the previous package. */
+		private long bytes = 0;
+		/** The tags of the nodes while spilled to disk, by preorder index. */
+		private HashMap<Integer,Object> spilled_tags = null;
+		DPTree(final Tree<T> t, final DPTree previous) {
 			super(t);
-			this.root = null == t.root ? null : t.root.clone(t.project);
+			this.root = null == t.root ? null : copy(t.root, null == previous ? null : previous.getRoot());
+		}
+		/** May return null when spilled to disk. */
+		synchronized private Node<T> getRoot() {
+			return root;
+		}
+		@SuppressWarnings("unchecked")
+		private final Node<T> copy(final Node<T> live, final Node<T> previous) {
+			// Pair each node with the copy at the same position in the previous package, parents before children
+			final ArrayList<Node<T>> nodes = new ArrayList<Node<T>>();
+			final ArrayList<Node<T>> copies = new ArrayList<Node<T>>();
+			nodes.add(live);
+			copies.add(previous);
+			for (int i=0; i<nodes.size(); i++) {
+				final Node<T> nd = nodes.get(i),
+				              pc = copies.get(i);
+				if (null == nd.children) continue;
+				for (int k=0; k<nd.children.length; k++) {
+					nodes.add(nd.children[k]);
+					copies.add(null != pc && null != pc.children && k < pc.children.length ? pc.children[k] : null);
+				}
+			}
+			// Find the unchanged subtrees, children before parents
+			final IdentityHashMap<Node<T>,Node<T>> unchanged = new IdentityHashMap<Node<T>,Node<T>>();
+			for (int i=nodes.size()-1; i>-1; i--) {
+				final Node<T> nd = nodes.get(i),
+				              pc = copies.get(i);
+				if (null == pc || nd.getChildrenCount() != pc.getChildrenCount() || !nd.isIdenticalTo(pc)) continue;
+				boolean same = true;
+				for (int k=nd.getChildrenCount()-1; k>-1; k--) {
+					if (unchanged.get(nd.children[k]) != pc.children[k]) {
+						same = false;
+						break;
+					}
+				}
+				if (same) unchanged.put(nd, pc);
+			}
+			nodes.clear();
+			copies.clear();
+			if (unchanged.containsKey(live)) return unchanged.get(live);
+			// Copy only the nodes in changed subtrees
+			final Node<T> first = live.copyAlone();
+			this.bytes += estimateBytes(live);
+			final LinkedList<Node<T>[]> todo = new LinkedList<Node<T>[]>();
+			todo.add((Node<T>[])new Node[]{first, live});
+			while (!todo.isEmpty()) {
+				final Node<T>[] o = todo.removeFirst();
+				final Node<T> cp = o[0],
+				              nd = o[1];
+				if (null == nd.children) continue;
+				cp.children = (Node<T>[])new Node[nd.children.length];
+				for (int k=0; k<nd.children.length; k++) {
+					final Node<T> shared = unchanged.get(nd.children[k]);
+					if (null != shared) {
+						cp.children[k] = shared;
+						continue;
+					}
+					cp.children[k] = nd.children[k].copyAlone();
+					this.bytes += estimateBytes(nd.children[k]);
+					todo.add((Node<T>[])new Node[]{cp.children[k], nd.children[k]});
+				}
+			}
+			return first;
+		}
+		private final long estimateBytes(final Node<T> nd) {
+			final T data = nd.getData();
+			return 64 + (data instanceof Area ? UndoStore.estimateBytes((Area)data) : 0);
 		}
 		@Override
 		final boolean to2(final Displayable d) {
 			super.to1(d);
 			final Tree<T> t = (Tree<T>)d;
-			if (null != this.root) {
-				t.root = this.root.clone(t.project);
+			final Node<T> root = getRoot();
+			if (null != root) {
+				t.root = root.clone(t.project);
 				t.clearCache();
 				t.cacheSubtree(t.root.getSubtreeNodes());
 				t.updateView();
 			}
+			t.last_package = new WeakReference<DPTree>(this);
 			return true;
 		}
+		@Override
+		long estimateBytes() {
+			return 256 + bytes;
+		}
+		@Override
+		synchronized boolean spill(final DataOutputStream out) throws IOException {
+			if (null == root) return false;
+			final HashMap<Integer,Object> tags = new HashMap<Integer,Object>();
+			final LinkedList<Node<T>> todo = new LinkedList<Node<T>>();
+			todo.add(root);
+			for (int i=0; !todo.isEmpty(); i++) {
+				final Node<T> nd = todo.removeFirst();
+				out.writeFloat(nd.x);
+				out.writeFloat(nd.y);
+				out.writeLong(nd.la.getId());
+				out.writeByte(nd.confidence);
+				final Object data = nd.getData();
+				if (null == data) {
+					out.writeByte(0);
+				} else if (data instanceof Float) {
+					out.writeByte(1);
+					out.writeFloat((Float)data);
+				} else if (data instanceof Area) {
+					out.writeByte(2);
+					UndoStore.writeArea(out, (Area)data);
+				} else {
+					throw new IOException("Cannot write node data of " + data.getClass());
+				}
+				if (null != nd.tags) tags.put(i, nd.tags);
+				final int n = nd.getChildrenCount();
+				out.writeInt(n);
+				for (int k=n-1; k>-1; k--) todo.addFirst(nd.children[k]);
+			}
+			spilled_tags = tags;
+			root = null;
+			return true;
+		}
+		@Override
+		@SuppressWarnings("unchecked")
+		synchronized void unspill(final DataInputStream in) throws IOException {
+			// Nodes were written in preorder, each followed by its number of children
+			final LinkedList<Object[]> parents = new LinkedList<Object[]>(); // {node, int[]{children left}}
+			Node<T> first = null;
+			for (int i=0; null == first || !parents.isEmpty(); i++) {
+				final float x = in.readFloat(),
+				            y = in.readFloat();
+				final Layer la = layer_set.getLayer(in.readLong());
+				final byte confidence = in.readByte();
+				final Object data;
+				switch (in.readByte()) {
+					case 1: data = in.readFloat(); break;
+					case 2: data = UndoStore.readArea(in); break;
+					default: data = null; break;
+				}
+				final Node<T> nd = newNode(x, y, la, null);
+				if (null != data) nd.setData((T)data);
+				nd.confidence = confidence;
+				nd.tags = spilled_tags.get(i);
+				final int n = in.readInt();
+				if (null == first) {
+					first = nd;
+				} else {
+					final Object[] p = parents.getFirst();
+					final Node<T> parent = (Node<T>)p[0];
+					final int[] left = (int[])p[1];
+					parent.children[parent.children.length - left[0]] = nd;
+					if (0 == --left[0]) parents.removeFirst();
+				}
+				if (n > 0) {
+					nd.children = (Node<T>[])new Node[n];
+					parents.addFirst(new Object[]{nd, new int[]{n}});
+				}
+			}
+			spilled_tags = null;
+			root = first;
+		}
 	}
 
 	/** Reroots at the point closest to the x,y,layer_id world coordinate.
@@ -807,14 +1036,15 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				t.root = nd;
 				// ... and fill its cache arrays
 				t.cacheSubtree(subtree_nodes); // includes nd itself
-				// Recompute bounds -- TODO: must translate the second properly, or apply the transforms and then recalculate bounding boxes and transforms.
-				t.calculateBoundingBox(null);
 				// Done!
 				a = new ArrayList<Tree<T>>();
 				a.add(this);
 				a.add(t);
 			}
-			this.calculateBoundingBox(null); // outside synch
+			// Recompute bounds -- TODO: must translate the second properly, or apply the transforms and then recalculate bounding boxes and transforms.
+			// Outside synch: updates the buckets, whose lock is taken before that of node_layer_map
+			a.get(1).calculateBoundingBox(null);
+			this.calculateBoundingBox(null);
 			return a;
 		} catch (Exception e) {
 			IJError.print(e);
@@ -824,10 +1054,12 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	protected void cacheSubtree(final Iterable<Node<T>> nodes) {
 		cache(nodes, end_nodes, node_layer_map);
+		for (final Node<T> nd : nodes) invalidateBounds(nd.la);
 	}
 	protected void clearCache() {
 		end_nodes.clear();
 		node_layer_map.clear();
+		invalidateBounds(null);
 		setLastAdded(null);
 		setLastEdited(null);
 		setLastMarked(null);
@@ -1233,6 +1465,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				}
 				synchronized (node_layer_map) {
 					node_layer_map.get(node.la).remove(node);
+					invalidateBounds(node.la);
 				}
 				fireNodeRemoved(node);
 				updateView();
@@ -1258,6 +1491,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 					Utils.log2("Removing children of node " + node);
 					for (final Node<T> nd : subtree_nodes) { // includes the node itself
 						node_layer_map.get(nd.la).remove(nd);
+						invalidateBounds(nd.la);
 						if (null == nd.children && !end_nodes.remove(nd)) {
 							Utils.log2("WARNING: node to remove doesn't have any children but wasn't in end_nodes list!");
 						}
@@ -1266,6 +1500,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 					Utils.log2("Just removing node " + node);
 					end_nodes.remove(node);
 					node_layer_map.get(node.la).remove(node);
+					invalidateBounds(node.la);
 				}
 				if (1 == node.parent.getChildrenCount()) {
 					end_nodes.add(node.parent);
@@ -1355,6 +1590,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			// Remove from tl cache
 			synchronized (tl.node_layer_map) {
 				tl.node_layer_map.clear();
+				tl.invalidateBounds(null);
 			}
 			tl.end_nodes.clear();
 		}
@@ -1637,6 +1873,9 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 		updateViewData(active);
 
+		// Regenerate the skeleton, if shown in 3D
+		if (null != active) Display3D.updateMesh(this);
+
 		setLastVisited(active);
 		setActive(null);
 	}
@@ -2760,6 +2999,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		final Set<Node<T>> nodes;
 		synchronized (node_layer_map) {
 			nodes = node_layer_map.remove(la);
+			invalidateBounds(la);
 		}
 		if (null == nodes) return true;
 		for (final Iterator<Node<T>> it = nodes.iterator(); it.hasNext(); ) {
@@ -3032,7 +3272,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		// Add review tags to end nodes and branch nodes, named: "#R-<x>", where <x> is a number.
 		// Generate a fly-through stack from each found node to its previous branch point or root
 		final int nproc = Runtime.getRuntime().availableProcessors();
-		final ExecutorService exe = Executors.newFixedThreadPool(Math.max(1, Math.min(4, nproc)));
+		final ExecutorService exe = ExecutorProvider.newExecutorService("Tree-review-stacks", Math.max(1, Math.min(4, nproc)), Priority.BATCH, Resource.IO);
 		// Above, use maximum 4 threads. I/O bound operations don't deal well with more.
 		
 		// Disable window
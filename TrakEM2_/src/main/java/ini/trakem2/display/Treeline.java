@@ -833,10 +833,14 @@ public class Treeline extends Tree<Float> {
 			radius = radius / cal.pixelWidth;
 		}
 		final float r = (float)radius;
+		// The layers of the edited nodes, whose bounds grow or shrink with the radii
+		final HashSet<Layer> edited = new HashSet<Layer>();
+		edited.add(nd.la);
 		final Node.Operation<Float> op = new Node.Operation<Float>() {
 			@Override
 			public void apply(Node<Float> node) throws Exception {
 				node.setData(r);
+				edited.add(node.la);
 			}
 		};
 		// Apply to:
@@ -864,6 +868,9 @@ public class Treeline extends Tree<Float> {
 			layer_set.undoOneStep();
 		}
 
+		synchronized (node_layer_map) {
+			for (final Layer la : edited) invalidateBounds(la);
+		}
 		calculateBoundingBox(layer);
 		Display.repaint(layer_set);
 
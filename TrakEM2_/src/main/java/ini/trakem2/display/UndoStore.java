@@ -0,0 +1,363 @@
+package ini.trakem2.display;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/** A memory budget shared by the undo data of all open projects.
+ *  The data packages of undo steps (see {@link Displayable.DataPackage}) that report
+ *  a size are accounted for; when their sum exceeds the budget, the oldest ones
+ *  are written to temporary files and dropped from memory, to be read back
+ *  when their undo step is applied. Packages that are no longer referenced
+ *  by any undo history are forgotten and their files deleted.
+ *
+ *  The files are written to a folder of this session under "trakem2-undo" in the
+ *  temporary folder. Folders of earlier sessions that are not in use are deleted
+ *  when the first package is spilled.
+ *
+ *  The bookkeeping is done under the lock of this class, and the files are written
+ *  and read outside of it, under the lock of the entry of each package. */
+public final class UndoStore {
+
+	private UndoStore() {}
+
+	/** Maximum number of bytes of undo data to keep in memory. */
+	static private long budget = Runtime.getRuntime().maxMemory() / 8;
+
+	/** Bytes of undo data currently in memory. */
+	static private long resident_bytes = 0;
+
+	static private final class Entry extends WeakReference<Displayable.DataPackage> {
+		final long bytes;
+		File file = null;
+		/** While above zero, the package is being restored and must not be spilled. */
+		int pins = 0;
+		Entry(final Displayable.DataPackage pkg, final long bytes) {
+			super(pkg, queue);
+			this.bytes = bytes;
+		}
+	}
+
+	static private final ReferenceQueue<Displayable.DataPackage> queue = new ReferenceQueue<Displayable.DataPackage>();
+
+	/** In-memory entries, oldest first. */
+	static private final LinkedList<Entry> resident = new LinkedList<Entry>();
+
+	static private final WeakHashMap<Displayable.DataPackage,Entry> entries = new WeakHashMap<Displayable.DataPackage,Entry>();
+
+	/** Files of forgotten packages, to be deleted outside of the lock. */
+	static private final ArrayList<File> forgotten = new ArrayList<File>();
+
+	/** The folder of the spill files of this session, and the lock that marks it in use. */
+	static private File folder = null;
+	static private FileLock folder_lock = null;
+	static private final Object folder_sync = new Object();
+
+	static public final void setBudget(final long bytes) {
+		final List<Entry> victims;
+		synchronized (UndoStore.class) {
+			budget = Math.max(0, bytes);
+			victims = enforce();
+		}
+		spill(victims);
+	}
+
+	static public final synchronized long getBudget() {
+		return budget;
+	}
+
+	/** Bytes of undo data currently held in memory. */
+	static public final synchronized long getResidentBytes() {
+		return resident_bytes;
+	}
+
+	/** Account for a new undo data package, spilling older ones to disk if over budget. */
+	static final void register(final Displayable.DataPackage pkg) {
+		if (null == pkg) return;
+		final long bytes = pkg.estimateBytes();
+		if (bytes <= 0) return;
+		final List<Entry> victims;
+		synchronized (UndoStore.class) {
+			final Entry entry = new Entry(pkg, bytes);
+			entries.put(pkg, entry);
+			resident.add(entry);
+			resident_bytes += bytes;
+			victims = enforce();
+		}
+		spill(victims);
+	}
+
+	/** Ensure the data of pkg is in memory, reading it back from disk if it was spilled,
+	 *  and keep it in memory until {@link #unpin(Displayable.DataPackage)}.
+	 *  Returns false, and leaves pkg unpinned, if it could not be read back. */
+	static final boolean load(final Displayable.DataPackage pkg) {
+		final Entry entry;
+		synchronized (UndoStore.class) {
+			entry = entries.get(pkg);
+			if (null == entry) return true;
+			entry.pins++;
+		}
+		// Waits for the package to be written, if being spilled
+		synchronized (entry) {
+			final File file;
+			synchronized (UndoStore.class) {
+				file = entry.file;
+			}
+			if (null != file) {
+				DataInputStream in = null;
+				try {
+					in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+					pkg.unspill(in);
+				} catch (final IOException ioe) {
+					IJError.print(ioe);
+					unpin(pkg);
+					return false;
+				} finally {
+					if (null != in) try { in.close(); } catch (final IOException e) {}
+				}
+				file.delete();
+				synchronized (UndoStore.class) {
+					entry.file = null;
+					resident.add(entry);
+					resident_bytes += entry.bytes;
+				}
+			}
+		}
+		final List<Entry> victims;
+		synchronized (UndoStore.class) {
+			victims = enforce();
+		}
+		spill(victims);
+		return true;
+	}
+
+	/** Allow pkg to be spilled again, after a successful {@link #load(Displayable.DataPackage)}. */
+	static final void unpin(final Displayable.DataPackage pkg) {
+		final List<Entry> victims;
+		synchronized (UndoStore.class) {
+			final Entry entry = entries.get(pkg);
+			if (null == entry || 0 == entry.pins) return;
+			entry.pins--;
+			victims = enforce();
+		}
+		spill(victims);
+	}
+
+	/** Take the oldest packages out of memory accounting until within budget, always keeping
+	 *  the newest one in memory, and return them to be {@link #spill(List) spilled}.
+	 *  Must be called under the lock of this class. */
+	static private final List<Entry> enforce() {
+		purge();
+		final ArrayList<Entry> victims = new ArrayList<Entry>();
+		for (final Iterator<Entry> it = resident.iterator(); resident_bytes > budget && resident.size() > 1 && it.hasNext(); ) {
+			final Entry entry = it.next();
+			if (entry == resident.getLast()) break;
+			if (entry.pins > 0) continue;
+			it.remove();
+			resident_bytes -= entry.bytes;
+			if (null != entry.get()) victims.add(entry);
+		}
+		return victims;
+	}
+
+	/** Delete the files of forgotten packages, and write the packages of the given entries
+	 *  to disk and release them from memory. Must be called without holding the lock of this class. */
+	static private final void spill(final List<Entry> victims) {
+		final File[] files;
+		synchronized (UndoStore.class) {
+			files = forgotten.toArray(new File[forgotten.size()]);
+			forgotten.clear();
+		}
+		for (final File file : files) file.delete();
+		for (final Entry entry : victims) {
+			final Displayable.DataPackage pkg = entry.get();
+			if (null == pkg) continue;
+			synchronized (entry) {
+				synchronized (UndoStore.class) {
+					if (entry.pins > 0) {
+						// Pinned for restoring since taken out: keep it in memory
+						resident.add(entry);
+						resident_bytes += entry.bytes;
+						continue;
+					}
+				}
+				File file = null;
+				DataOutputStream out = null;
+				boolean spilled = false;
+				try {
+					file = File.createTempFile("undo-", ".bin", getFolder());
+					out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+					spilled = pkg.spill(out);
+				} catch (final IOException ioe) {
+					Utils.log2("Could not spill undo data to disk: " + ioe);
+				} finally {
+					if (null != out) try { out.close(); } catch (final IOException e) {}
+				}
+				synchronized (UndoStore.class) {
+					if (spilled) {
+						// Unless forgotten meanwhile, in which case purge() won't see the file
+						if (null != entry.get()) {
+							entry.file = file;
+							file = null;
+						}
+					} else {
+						// Stays in memory, but no longer accounted for
+						entries.remove(pkg);
+					}
+				}
+				if (null != file) file.delete();
+			}
+		}
+	}
+
+	/** Forget packages no longer referenced by any undo history. Must be called under the lock of this class. */
+	static private final void purge() {
+		for (Reference<? extends Displayable.DataPackage> ref = queue.poll(); null != ref; ref = queue.poll()) {
+			final Entry entry = (Entry)ref;
+			if (null != entry.file) {
+				forgotten.add(entry.file);
+				entry.file = null;
+			} else if (resident.remove(entry)) {
+				resident_bytes -= entry.bytes;
+			}
+		}
+	}
+
+	/** The folder of the spill files of this session, created on first use after deleting
+	 *  those of earlier sessions that are no longer in use. */
+	static private final File getFolder() throws IOException {
+		synchronized (folder_sync) {
+			if (null == folder) folder = createFolder();
+			return folder;
+		}
+	}
+
+	static private final File createFolder() throws IOException {
+		final File root = new File(System.getProperty("java.io.tmpdir"), "trakem2-undo");
+		final File[] old = root.listFiles();
+		if (null != old) {
+			for (final File f : old) {
+				if (!f.isDirectory()) continue;
+				// In use by another session if its lock is held
+				RandomAccessFile raf = null;
+				try {
+					raf = new RandomAccessFile(new File(f, "lock"), "rw");
+					final FileLock lock = raf.getChannel().tryLock();
+					if (null == lock) continue;
+					final File[] files = f.listFiles();
+					if (null != files) {
+						for (final File file : files) {
+							if (!file.getName().equals("lock")) file.delete();
+						}
+					}
+					lock.release();
+				} catch (final Exception e) {
+					continue;
+				} finally {
+					if (null != raf) try { raf.close(); } catch (final IOException e) {}
+				}
+				new File(f, "lock").delete();
+				f.delete();
+			}
+		}
+		if (!root.isDirectory() && !root.mkdirs()) throw new IOException("Could not create the folder " + root);
+		final File f = File.createTempFile("session-", "", root);
+		if (!f.delete() || !f.mkdir()) throw new IOException("Could not create the folder " + f);
+		folder_lock = new RandomAccessFile(new File(f, "lock"), "rw").getChannel().lock();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				final File[] files = f.listFiles();
+				if (null != files) {
+					for (final File file : files) {
+						if (!file.getName().equals("lock")) file.delete();
+					}
+				}
+				try { folder_lock.release(); } catch (final IOException e) {}
+				new File(f, "lock").delete();
+				f.delete();
+			}
+		});
+		return f;
+	}
+
+	/** Approximate heap size of an Area, from its number of path segments. */
+	static final long estimateBytes(final Area area) {
+		if (null == area) return 0;
+		long n = 0;
+		for (final PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) n++;
+		return 64 + 48 * n;
+	}
+
+	static final void writeArea(final DataOutputStream out, final Area area) throws IOException {
+		if (null == area) {
+			out.writeInt(-1);
+			return;
+		}
+		final PathIterator pit = area.getPathIterator(null);
+		out.writeInt(pit.getWindingRule());
+		final double[] coords = new double[6];
+		for (; !pit.isDone(); pit.next()) {
+			final int type = pit.currentSegment(coords);
+			out.writeByte(type);
+			final int n;
+			switch (type) {
+				case PathIterator.SEG_MOVETO:
+				case PathIterator.SEG_LINETO: n = 2; break;
+				case PathIterator.SEG_QUADTO: n = 4; break;
+				case PathIterator.SEG_CUBICTO: n = 6; break;
+				default: n = 0; break;
+			}
+			for (int i=0; i<n; i++) out.writeDouble(coords[i]);
+		}
+		out.writeByte(-1);
+	}
+
+	static final Area readArea(final DataInputStream in) throws IOException {
+		final int rule = in.readInt();
+		if (-1 == rule) return null;
+		final Path2D.Double path = new Path2D.Double(rule);
+		for (int type = in.readByte(); -1 != type; type = in.readByte()) {
+			switch (type) {
+				case PathIterator.SEG_MOVETO:
+					path.moveTo(in.readDouble(), in.readDouble());
+					break;
+				case PathIterator.SEG_LINETO:
+					path.lineTo(in.readDouble(), in.readDouble());
+					break;
+				case PathIterator.SEG_QUADTO:
+					path.quadTo(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+					break;
+				case PathIterator.SEG_CUBICTO:
+					path.curveTo(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+					break;
+				case PathIterator.SEG_CLOSE:
+					path.closePath();
+					break;
+				default:
+					throw new IOException("Unknown path segment type " + type);
+			}
+		}
+		return new Area(path);
+	}
+}
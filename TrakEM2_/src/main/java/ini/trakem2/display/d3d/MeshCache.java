@@ -0,0 +1,152 @@
+package ini.trakem2.display.d3d;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/** Stores the triangles of the mesh of a {@link Displayable} in the project's folder,
+ *  keyed by the id of the Displayable and a version number that changes whenever
+ *  anything the mesh depends on changes. Unchanged objects then load their mesh
+ *  from disk instead of regenerating it.
+ *
+ *  The cache is on unless the project property "no_mesh_cache" is true, and only for
+ *  projects with a storage folder, that is, those of an {@link FSLoader}. */
+public final class MeshCache {
+
+	static private final int MAGIC = 0x54324d53; // "T2MS"
+	static private final int VERSION = 1;
+
+	private MeshCache() {}
+
+	static public final boolean isEnabled(final Project project) {
+		return project.getLoader() instanceof FSLoader && !project.getBooleanProperty("no_mesh_cache");
+	}
+
+	/** Returns null when the project has no storage folder to cache meshes into. */
+	static private final String path(final Displayable d) {
+		final Loader loader = d.getProject().getLoader();
+		if (!(loader instanceof FSLoader)) return null;
+		return new StringBuilder(loader.getUNUIdFolder())
+			.append("meshes/")
+			.append(FSLoader.createIdPath(Long.toString(d.getId()), "mesh", ".bin")).toString();
+	}
+
+	/** Returns the triangles stored for d with the given version, or null if there are none. */
+	static public final List<Point3f> load(final Displayable d, final long version) {
+		final String path = path(d);
+		if (null == path) return null;
+		final File file = new File(path);
+		if (!file.exists()) return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			if (MAGIC != in.readInt() || VERSION != in.readInt() || version != in.readLong()) return null;
+			// Vertices are stored once each, followed by the indices of the triangles
+			final int n_verts = in.readInt();
+			final float[] v = new float[n_verts * 3];
+			for (int i=0; i<v.length; i++) v[i] = in.readFloat();
+			final int n = in.readInt();
+			final ArrayList<Point3f> triangles = new ArrayList<Point3f>(n);
+			for (int i=0; i<n; i++) {
+				final int k = in.readInt() * 3;
+				triangles.add(new Point3f(v[k], v[k+1], v[k+2]));
+			}
+			return triangles;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return null;
+		} finally {
+			if (null != in) try { in.close(); } catch (final IOException e) {}
+		}
+	}
+
+	/** Store the triangles of d with the given version, replacing any stored before. */
+	static public final boolean store(final Displayable d, final long version, final List<Point3f> triangles) {
+		final String path = path(d);
+		if (null == path) return false;
+		final File file = new File(path);
+		file.getParentFile().mkdirs();
+		final File tmp = new File(file.getAbsolutePath() + ".tmp" + Thread.currentThread().getId());
+		DataOutputStream out = null;
+		try {
+			final HashMap<Point3f,Integer> indices = new HashMap<Point3f,Integer>();
+			final int[] t = new int[triangles.size()];
+			final ArrayList<Point3f> verts = new ArrayList<Point3f>();
+			for (int i=0; i<t.length; i++) {
+				final Point3f p = triangles.get(i);
+				Integer k = indices.get(p);
+				if (null == k) {
+					k = verts.size();
+					indices.put(p, k);
+					verts.add(p);
+				}
+				t[i] = k;
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(version);
+			out.writeInt(verts.size());
+			for (final Point3f p : verts) {
+				out.writeFloat(p.x);
+				out.writeFloat(p.y);
+				out.writeFloat(p.z);
+			}
+			out.writeInt(t.length);
+			for (int i=0; i<t.length; i++) out.writeInt(t[i]);
+			out.close();
+			out = null;
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				return false;
+			}
+			return true;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			tmp.delete();
+			return false;
+		} finally {
+			if (null != out) try { out.close(); } catch (final IOException e) {}
+		}
+	}
+
+	/** Remove the stored triangles of d, if any. */
+	static public final void remove(final Displayable d) {
+		final String path = path(d);
+		if (null != path) new File(path).delete();
+	}
+
+	/** Incremental 64-bit hash of the data a mesh depends on, to use as the version of a mesh. */
+	static public final class Version {
+		private long h = 0xcbf29ce484222325L;
+		public Version add(final long v) {
+			h ^= v;
+			h *= 0x100000001b3L;
+			h ^= (h >>> 29);
+			return this;
+		}
+		public Version add(final double v) {
+			return add(Double.doubleToLongBits(v));
+		}
+		public long get() {
+			return h;
+		}
+	}
+}
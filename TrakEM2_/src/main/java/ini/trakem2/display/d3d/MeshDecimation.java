@@ -0,0 +1,70 @@
+package ini.trakem2.display.d3d;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/** Reduce the number of triangles of a mesh by vertex clustering: all vertices within
+ *  a cell of a regular grid are merged into their average, and triangles that collapse
+ *  are removed. The cell size is doubled until the mesh fits the triangle budget. */
+public final class MeshDecimation {
+
+	private MeshDecimation() {}
+
+	/** @param triangles Three consecutive vertices per triangle.
+	 *  @param max_triangles The triangle budget.
+	 *  @return the triangles themselves if within budget, otherwise a new list of triangles. */
+	static public final List<Point3f> decimate(final List<Point3f> triangles, final int max_triangles) {
+		if (null == triangles || max_triangles <= 0 || triangles.size() / 3 <= max_triangles) return triangles;
+
+		float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, minz = Float.MAX_VALUE,
+		      maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+		for (final Point3f p : triangles) {
+			if (p.x < minx) minx = p.x; if (p.x > maxx) maxx = p.x;
+			if (p.y < miny) miny = p.y; if (p.y > maxy) maxy = p.y;
+			if (p.z < minz) minz = p.z; if (p.z > maxz) maxz = p.z;
+		}
+		final float extent = Math.max(maxx - minx, Math.max(maxy - miny, maxz - minz));
+		if (0 == extent) return triangles;
+
+		List<Point3f> result = triangles;
+		// A surface of n triangles has about as many vertices, spread over about sqrt(n) cells per dimension.
+		// At most 2^20 cells per dimension, so that cell coordinates pack into a long
+		final int n_cells = Math.min(1 << 20, 2 * (int)Math.ceil(Math.sqrt(max_triangles)));
+		for (float cell = extent / n_cells; result.size() / 3 > max_triangles && cell <= extent; cell *= 2) {
+			result = cluster(triangles, minx, miny, minz, cell);
+		}
+		return result;
+	}
+
+	static private final List<Point3f> cluster(final List<Point3f> triangles, final float minx, final float miny, final float minz, final float cell) {
+		// Average vertex of each occupied cell
+		final HashMap<Long,float[]> cells = new HashMap<Long,float[]>();
+		final long[] keys = new long[triangles.size()];
+		for (int i=0; i<keys.length; i++) {
+			final Point3f p = triangles.get(i);
+			final long key = ((long)((p.x - minx) / cell) << 42) | ((long)((p.y - miny) / cell) << 21) | (long)((p.z - minz) / cell);
+			keys[i] = key;
+			float[] a = cells.get(key);
+			if (null == a) {
+				a = new float[4];
+				cells.put(key, a);
+			}
+			a[0] += p.x;
+			a[1] += p.y;
+			a[2] += p.z;
+			a[3] += 1;
+		}
+		final ArrayList<Point3f> result = new ArrayList<Point3f>();
+		for (int i=0; i<keys.length; i+=3) {
+			if (keys[i] == keys[i+1] || keys[i+1] == keys[i+2] || keys[i] == keys[i+2]) continue; // collapsed
+			for (int k=0; k<3; k++) {
+				final float[] a = cells.get(keys[i+k]);
+				result.add(new Point3f(a[0] / a[3], a[1] / a[3], a[2] / a[3]));
+			}
+		}
+		return result;
+	}
+}
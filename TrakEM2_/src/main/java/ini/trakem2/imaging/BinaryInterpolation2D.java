@@ -4,11 +4,12 @@
  */
 package ini.trakem2.imaging;
 
+import ini.trakem2.parallel.ExecutorProvider;
+
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import mpicbg.imglib.algorithm.OutputAlgorithm;
 import mpicbg.imglib.container.array.ArrayContainerFactory;
@@ -266,14 +267,10 @@ public class BinaryInterpolation2D implements OutputAlgorithm<BitType>
 	{
 		synchronized (this) {
 			if (null == idt1 || null == idt2) {
-				ExecutorService exec = Executors.newFixedThreadPool(Math.min(2, Runtime.getRuntime().availableProcessors()));
-				Future<IDT2D> fu1 = exec.submit(new NewITD2D(img1));
-				Future<IDT2D> fu2 = exec.submit(new NewITD2D(img2));
-				exec.shutdown();
-
 				try {
-					this.idt1 = fu1.get();
-					this.idt2 = fu2.get();
+					final List<IDT2D> idts = ExecutorProvider.invokeAll(ExecutorProvider.getPriority(), Arrays.asList(new NewITD2D(img1), new NewITD2D(img2)));
+					this.idt1 = idts.get(0);
+					this.idt2 = idts.get(1);
 				} catch (InterruptedException ie) {
 					throw new RuntimeException(ie);
 				} catch (ExecutionException e) {
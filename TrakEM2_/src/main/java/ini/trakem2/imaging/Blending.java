@@ -7,15 +7,19 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Display;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.Worker;
 import ini.trakem2.utils.IJError;
 import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshCache;
 import mpicbg.models.NoninvertibleModelException;
 
 import java.awt.geom.NoninvertibleTransformException;
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.util.Collections;
@@ -30,7 +34,6 @@ import java.util.ArrayList;
 import ij.process.ByteProcessor;
 
 import java.util.concurrent.Future;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 
 /** Utility functions for blending images together, to remove contrast seams.
@@ -80,7 +83,6 @@ public final class Blending {
 	}
 	
 	static public final void blendPatches(final Set<Patch> patches, final boolean respect_current_mask) {
-		ExecutorService exe = null;
 		try {
 			if (null == patches || patches.size() < 2) return;
 
@@ -100,10 +102,10 @@ public final class Blending {
 			final HashMap<Patch,TransformMesh> meshes = new HashMap<Patch,TransformMesh>();
 			for (final Patch p : patches) {
 				meshes.put(p, null == p.getCoordinateTransform() ? null
-						: new TransformMesh(p.getCoordinateTransform(), p.getMeshResolution(), p.getOWidth(), p.getOHeight()));
+						: TransformMeshCache.get(p.getCoordinateTransform(), p.getMeshResolution(), p.getOWidth(), p.getOHeight()));
 			}
 
-			exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			final ExecutorService exe = ExecutorProvider.getSharedExecutorService(Priority.BATCH);
 			final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
 			final List<Future<?>> futures2 = Collections.synchronizedList(new ArrayList<Future<?>>());
 
@@ -139,7 +141,6 @@ public final class Blending {
 		} catch (Exception e) {
 			IJError.print(e);
 		} finally {
-			if (null != exe) exe.shutdown();
 			Display.repaint();
 		}
 	}
@@ -156,6 +157,7 @@ public final class Blending {
 
 		final AffineTransform at = p.getAffineTransform();
 		final TransformMesh mesh = meshes.get(p);
+		final Rectangle box = null == mesh ? null : mesh.getBoundingBox();
 
 		ByteProcessor mask = null;
 		if (respect_current_mask) {
@@ -190,8 +192,8 @@ public final class Blending {
 					fo[0] = x;
 					fo[1] = y;
 					mesh.applyInPlace(fo);
-					po.x = fo[0];
-					po.y = fo[1];
+					po.x = fo[0] - box.x;
+					po.y = fo[1] - box.y;
 				} else {
 					po.x = x;
 					po.y = y;
@@ -253,7 +255,7 @@ public final class Blending {
 		return false;
 	}
 
-	static private final float computeWeight(final float x, final float y, final int width, final int height) {
+	static final float computeWeight(final float x, final float y, final int width, final int height) {
 		//return Math.min(Math.min(x, width - x),
 		//		Math.min(y, height - y));
 		// Normalized, as suggested by Stephan Preibisch:
@@ -261,7 +263,7 @@ public final class Blending {
 	}
 
 	/** Returns true if fo[0,1] x,y world coords intersect the affine and potentially coordinate transformed pixels of the other Patch. */
-	static private float intersects(final float[] fo, final Patch other, final TransformMesh mesh) {
+	static float intersects(final float[] fo, final Patch other, final TransformMesh mesh) {
 		// First inverse affine transform
 		final AffineTransform at = other.getAffineTransform();
 		final Point2D.Double po = new Point2D.Double(fo[0], fo[1]);
@@ -280,10 +282,11 @@ public final class Blending {
 				 return -1;
 			 }
 		}
-		// Then inverse the coordinate transform
+		// Then inverse the coordinate transform, whose bounding box origin is part of the affine
 		try {
-			fo[0] = (float) po.x;
-			fo[1] = (float) po.y;
+			final Rectangle box = mesh.getBoundingBox();
+			fo[0] = (float) (po.x + box.x);
+			fo[1] = (float) (po.y + box.y);
 			mesh.applyInverseInPlace(fo);
 			return computeWeight(fo[0], fo[1], o_width, o_height);
 		} catch (NoninvertibleModelException nime) {
@@ -1,20 +1,26 @@
 package ini.trakem2.imaging;
 
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.GenericDialog;
 import ij.measure.Calibration;
 import ij.measure.Measurements;
 import ij.plugin.ContrastEnhancer;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
 import ij.process.StackStatistics;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.MipMapImage;
 import ini.trakem2.display.Patch;
 import ini.trakem2.imaging.filters.EqualizeHistogram;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
+import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
@@ -22,12 +28,16 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ContrastEnhancerWrapper {
 
@@ -123,49 +133,71 @@ public class ContrastEnhancerWrapper {
 		f.set(ce, value);
 	}
 
+	/** Homogenize the contrast of each layer independently. The statistics of all layers are computed
+	 *  in parallel, then all min and max are set at once and the mipmaps of all images are regenerated
+	 *  in one batch; call {@link #shutdown()} to wait for the regeneration to complete.
+	 *  @return false if interrupted or if the images of any layer could not be homogenized. */
 	public boolean applyLayerWise(final Collection<Layer> layers) {
-		boolean b = true;
-		for (final Layer layer : layers) {
-			if (Thread.currentThread().isInterrupted()) return false;
-			b = b && apply(layer.getDisplayables(Patch.class, visible_only));
-			// Wait until all mipmaps have regenerated:
-			try {
-				waiter.submit(new Runnable() { public void run() { /*buh!*/ } }).get();
-			} catch (Exception e) {
-				IJError.print(e);
-				return false;
-			}
+		// With enough layers to keep all cores busy, process the images of each layer in a single thread
+		final int n_proc = layers.size() >= Process.NUM_PROCESSORS ? 1 : Process.NUM_PROCESSORS;
+		final Map<Patch,double[]> minmax = Collections.synchronizedMap(new HashMap<Patch,double[]>());
+		final List<Patch> equalized = Collections.synchronizedList(new ArrayList<Patch>());
+		final AtomicBoolean ok = new AtomicBoolean(true);
+		try {
+			Process.progressive(
+					layers,
+					new TaskFactory<Layer, Object>() {
+						public Object process(final Layer layer) {
+							if (Thread.currentThread().isInterrupted()) return null;
+							final ArrayList<Patch> patches = getPatches(layer.getDisplayables(Patch.class, visible_only));
+							if (0 == patches.size()) return null;
+							if (!check(patches)) {
+								ok.set(false);
+								return null;
+							}
+							if (equalize) {
+								for (final Patch p : patches) p.appendFilters(new IFilter[]{new EqualizeHistogram()});
+								equalized.addAll(patches);
+								return null;
+							}
+							try {
+								final Map<Patch,double[]> m = computeMinAndMax(patches, n_proc);
+								if (null == m) ok.set(false);
+								else minmax.putAll(m);
+							} catch (Exception e) {
+								IJError.print(e);
+								ok.set(false);
+							}
+							return null;
+						}
+					});
+		} catch (Exception e) {
+			IJError.print(e);
+			return false;
+		}
+		if (Thread.currentThread().isInterrupted()) return false;
+
+		// Apply all at once, and regenerate all mipmaps in one batch
+		for (final Patch p : equalized) {
+			p.getProject().getLoader().decacheImagePlus(p.getId());
+		}
+		for (final Map.Entry<Patch,double[]> e : minmax.entrySet()) {
+			e.getKey().setMinAndMax(e.getValue()[0], e.getValue()[1]);
 		}
-		return b;
+		for (final Patch p : equalized) regenerateMipMaps(p);
+		for (final Patch p : minmax.keySet()) regenerateMipMaps(p);
+
+		return ok.get();
 	}
 
 	public boolean apply(final Collection<Displayable> patches_) {
 		if (null == patches_) return false;
 
 		// Create appropriate patch list
-		ArrayList<Patch> patches = new ArrayList<Patch>();
-		for (final Displayable d : patches_) {
-			if (d.getClass() == Patch.class) patches.add((Patch)d);
-		}
+		final ArrayList<Patch> patches = getPatches(patches_);
 		if (0 == patches.size()) return false;
 
-		// Check that all images are of the same size and type
-		Patch firstp = (Patch) patches.get(0);
-		final int ptype = firstp.getType();
-		final double pw = firstp.getOWidth();
-		final double ph = firstp.getOHeight();
-
-		for (final Patch p : patches) {
-			if (p.getType() != ptype) {
-				// can't continue
-				Utils.log("Can't homogenize histograms: images are not all of the same type.\nFirst offending image is: " + p);
-				return false;
-			}
-			if (!equalize && 0 == stats_mode && p.getOWidth() != pw || p.getOHeight() != ph) {
-				Utils.log("Can't homogenize histograms: images are not all of the same size.\nFirst offending image is: " + p);
-				return false;
-			}
-		}
+		if (!check(patches)) return false;
 
 		try {
 			if (equalize) {
@@ -189,82 +221,197 @@ public class ContrastEnhancerWrapper {
 				return true;
 			}
 
-			// Else, call stretchHistogram with an appropriate stats object
-
-			final ImageStatistics stats;
-
-			if (1 == stats_mode) { // use each image independent stats
-				stats = null;
-			} else if (0 == stats_mode) { // use stack statistics
-				final ArrayList<Patch> sub = new ArrayList<Patch>();
-				if (use_full_stack) {
-					sub.addAll(patches);
-				} else {
-					// build stack statistics, ordered by stdDev
-					final SortedMap<Stats,Patch> sp = Collections.synchronizedSortedMap(new TreeMap<Stats,Patch>());
-					Process.progressive(
-							patches,
-							new TaskFactory<Patch, Stats>() {
-								public Stats process(final Patch p) {
-									if (Thread.currentThread().isInterrupted()) return null;
-									ImagePlus imp = p.getImagePlus();
-									p.getProject().getLoader().releaseToFit(p.getOWidth(), p.getOHeight(), p.getType(), 2);
-									Stats s = new Stats(imp.getStatistics());
-									sp.put(s, p);
-									return s;
-								}
-							});
-					if (Thread.currentThread().isInterrupted()) return false;
-					final ArrayList<Patch> a = new ArrayList<Patch>(sp.values());
-					final int count = a.size();
-					if (count < 3) {
-						sub.addAll(a);
-					} else if (3 == count) {
-						sub.add(a.get(1)); // the middle one
-					} else if (4 == count ) {
-						sub.addAll(a.subList(1, 3));
-					} else if (count > 4) {
-						int first = (int)(count / 4.0 + 0.5);
-						int last = (int)(count / 4.0 * 3 + 0.5);
-						sub.addAll(a.subList(first, last));
-					}
-				}
-				stats = new StackStatistics(new PatchStack(sub.toArray(new Patch[sub.size()]), 1));
-			} else {
-				stats = reference_stats;
+			final Map<Patch,double[]> minmax = computeMinAndMax(patches, Process.NUM_PROCESSORS);
+			if (null == minmax) return false;
+			for (final Patch p : patches) {
+				final double[] m = minmax.get(p);
+				if (null == m) continue;
+				p.setMinAndMax(m[0], m[1]);
+				regenerateMipMaps(p);
 			}
+		} catch (Exception e) {
+			IJError.print(e);
+			return false;
+		}
 
-			final Calibration cal = patches.get(0).getLayer().getParent().getCalibrationCopy();
+		return true;
+	}
 
-			Process.progressive(
-					patches,
-					new TaskFactory<Patch, Object>() {
-						public Object process(final Patch p) {
-							if (Thread.currentThread().isInterrupted()) return null;
-							p.getProject().getLoader().releaseToFit(p.getOWidth(), p.getOHeight(), p.getType(), 3);
-							ImageProcessor ip = p.getImageProcessor().duplicate(); // a throw-away copy
-							if (ContrastEnhancerWrapper.this.from_existing_min_and_max) {
-								ip.setMinAndMax(p.getMin(), p.getMax());
-							}
-							ImageStatistics st = stats;
-							if (null == stats) {
-								Utils.log2("Null stats, using image's self");
-								st = ImageStatistics.getStatistics(ip, Measurements.MIN_MAX, cal);
+	static private ArrayList<Patch> getPatches(final Collection<Displayable> ds) {
+		final ArrayList<Patch> patches = new ArrayList<Patch>();
+		for (final Displayable d : ds) {
+			if (d.getClass() == Patch.class) patches.add((Patch)d);
+		}
+		return patches;
+	}
+
+	/** Check that all images are of the same size and type. */
+	private boolean check(final List<Patch> patches) {
+		Patch firstp = (Patch) patches.get(0);
+		final int ptype = firstp.getType();
+		final double pw = firstp.getOWidth();
+		final double ph = firstp.getOHeight();
+
+		for (final Patch p : patches) {
+			if (p.getType() != ptype) {
+				// can't continue
+				Utils.log("Can't homogenize histograms: images are not all of the same type.\nFirst offending image is: " + p);
+				return false;
+			}
+			if (!equalize && 0 == stats_mode && p.getOWidth() != pw || p.getOHeight() != ph) {
+				Utils.log("Can't homogenize histograms: images are not all of the same size.\nFirst offending image is: " + p);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Compute, without setting them, the min and max that stretching the histogram gives to each image.
+	 *  @return null when interrupted. */
+	private Map<Patch,double[]> computeMinAndMax(final List<Patch> patches, final int n_proc) throws Exception {
+
+		// Call stretchHistogram with an appropriate stats object
+
+		final int level = getStatsLevel(patches);
+		final ImageStatistics stats;
+
+		if (1 == stats_mode) { // use each image independent stats
+			stats = null;
+		} else if (0 == stats_mode) { // use stack statistics
+			final ArrayList<Patch> sub = new ArrayList<Patch>();
+			if (use_full_stack) {
+				sub.addAll(patches);
+			} else {
+				// build stack statistics, ordered by stdDev
+				final SortedMap<Stats,Patch> sp = Collections.synchronizedSortedMap(new TreeMap<Stats,Patch>());
+				Process.progressive(
+						patches,
+						new TaskFactory<Patch, Stats>() {
+							public Stats process(final Patch p) {
+								if (Thread.currentThread().isInterrupted()) return null;
+								final ImageProcessor ip = getStatsImage(p, level);
+								Stats s = new Stats(new ImagePlus("", ip).getStatistics());
+								sp.put(s, p);
+								return s;
 							}
-							ce.stretchHistogram(ip, saturated, st);
-							// This is all we care about from stretching the histogram:
-							p.setMinAndMax(ip.getMin(), ip.getMax());
+						}, n_proc);
+				if (Thread.currentThread().isInterrupted()) return null;
+				final ArrayList<Patch> a = new ArrayList<Patch>(sp.values());
+				final int count = a.size();
+				if (count < 3) {
+					sub.addAll(a);
+				} else if (3 == count) {
+					sub.add(a.get(1)); // the middle one
+				} else if (4 == count ) {
+					sub.addAll(a.subList(1, 3));
+				} else if (count > 4) {
+					int first = (int)(count / 4.0 + 0.5);
+					int last = (int)(count / 4.0 * 3 + 0.5);
+					sub.addAll(a.subList(first, last));
+				}
+			}
+			stats = getStackStatistics(sub, level);
+		} else {
+			stats = reference_stats;
+		}
 
-							regenerateMipMaps(p);
-							return null;
+		final Calibration cal = patches.get(0).getLayer().getParent().getCalibrationCopy();
+		final Map<Patch,double[]> minmax = Collections.synchronizedMap(new HashMap<Patch,double[]>());
+
+		Process.progressive(
+				patches,
+				new TaskFactory<Patch, Object>() {
+					public Object process(final Patch p) {
+						if (Thread.currentThread().isInterrupted()) return null;
+						final ImageProcessor ip = getStatsImage(p, level);
+						ImageStatistics st = stats;
+						if (null == stats) {
+							Utils.log2("Null stats, using image's self");
+							st = ImageStatistics.getStatistics(ip, Measurements.MIN_MAX, cal);
 						}
-					});
-		} catch (Exception e) {
-			IJError.print(e);
-			return false;
+						ce.stretchHistogram(ip, saturated, st);
+						// This is all we care about from stretching the histogram:
+						minmax.put(p, new double[]{ip.getMin(), ip.getMax()});
+						return null;
+					}
+				}, n_proc);
+
+		if (Thread.currentThread().isInterrupted()) return null;
+		return minmax;
+	}
+
+	/** Mipmaps at least this large on their longest side have histograms representative of the whole image. */
+	static private final int STATS_SIZE = 512;
+
+	/** The mipmap level whose pixels stand for each image of the list in computing the statistics,
+	 *  or 0 to use the images themselves.
+	 *  Mipmaps are 8-bit images of the pixels clipped to the current min and max, and are used only
+	 *  when that loses nothing of the histogram: for 8-bit images displayed with their full range.
+	 *  Otherwise the values beyond min and max would pile up at both ends of the histogram, and
+	 *  the saturated percentiles would differ from those of the images. */
+	private int getStatsLevel(final List<Patch> patches) {
+		int level = Integer.MAX_VALUE;
+		for (final Patch p : patches) {
+			if (ImagePlus.GRAY8 != p.getType() || p.getMin() > 0 || p.getMax() < 255) return 0;
+			if (p.hasAlphaChannel() || p.paintsWithFalseColor()) return 0;
+			int lp = 0;
+			for (int size = Math.max(p.getOWidth(), p.getOHeight()); size / 2 >= STATS_SIZE; size /= 2) lp++;
+			level = Math.min(level, Math.min(lp, Loader.getHighestMipMapLevel(p)));
 		}
+		return Integer.MAX_VALUE == level ? 0 : level;
+	}
 
-		return true;
+	/** A throw-away image of the same type as @param p for computing its statistics: its mipmap at @param level
+	 *  with the pixel values mapped back to the range of p, or a copy of the image itself if @param level is 0
+	 *  or the mipmap can't be loaded. */
+	private ImageProcessor getStatsImage(final Patch p, final int level) {
+		if (level > 0) {
+			final MipMapImage mipmap = p.getProject().getLoader().fetchImage(p, 1.0 / (1 << level));
+			if (null != mipmap && null != mipmap.image && !Loader.isSignalImage(mipmap.image)) {
+				final ImageProcessor bp = new ImagePlus("", mipmap.image).getProcessor().convertToByte(false);
+				final double min = p.getMin(),
+				             max = p.getMax(),
+				             k = (max - min) / 255;
+				final ImageProcessor ip = newProcessor(p.getType(), bp.getWidth(), bp.getHeight());
+				final float round = ImagePlus.GRAY32 == p.getType() ? 0 : 0.5f;
+				for (int i=bp.getWidth() * bp.getHeight() -1; i>-1; i--) {
+					ip.setf(i, (float)(min + bp.get(i) * k) + round);
+				}
+				ip.setMinAndMax(min, max);
+				return ip;
+			}
+		}
+		p.getProject().getLoader().releaseToFit(p.getOWidth(), p.getOHeight(), p.getType(), 3);
+		ImageProcessor ip = p.getImageProcessor().duplicate(); // a throw-away copy
+		if (this.from_existing_min_and_max) {
+			ip.setMinAndMax(p.getMin(), p.getMax());
+		}
+		return ip;
+	}
+
+	static private ImageProcessor newProcessor(final int type, final int width, final int height) {
+		switch (type) {
+			case ImagePlus.GRAY16: return new ShortProcessor(width, height);
+			case ImagePlus.GRAY32: return new FloatProcessor(width, height);
+			default: return new ByteProcessor(width, height);
+		}
+	}
+
+	private ImageStatistics getStackStatistics(final List<Patch> sub, final int level) {
+		if (level > 0) {
+			try {
+				ImageStack stack = null;
+				for (final Patch p : sub) {
+					final ImageProcessor ip = getStatsImage(p, level);
+					if (null == stack) stack = new ImageStack(ip.getWidth(), ip.getHeight());
+					stack.addSlice(null, ip);
+				}
+				if (null != stack) return new StackStatistics(new ImagePlus("", stack));
+			} catch (IllegalArgumentException iae) {
+				// mipmaps of different dimensions: use the images themselves
+			}
+		}
+		return new StackStatistics(new PatchStack(sub.toArray(new Patch[sub.size()]), 1));
 	}
 
 	private void regenerateMipMaps(final Patch p) {
@@ -0,0 +1,276 @@
+package ini.trakem2.imaging;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.Project;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
+import ini.trakem2.utils.IJError;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/** Flat 8-bit images of regions of a Layer, for interactive segmentation tools,
+ *  assembled from a cache of flat tiles instead of rendering all images anew on
+ *  every click. After serving a region, the tiles around it are rendered in the
+ *  background, anticipating the next click nearby.
+ *
+ *  A tile is rendered again when the images that intersect it, their transforms,
+ *  display ranges or alpha masks change, and is dropped when one of its images
+ *  is moved or its mipmaps are regenerated (see {@link #invalidate(Patch)}). */
+public final class RoiImageSource {
+
+	/** Side of a tile, in pixels of the returned images. */
+	static private final int TILE = 256;
+	/** At most this many tiles are kept, 16 MB at scale 1. */
+	static private final int MAX_TILES = 256;
+
+	private RoiImageSource() {}
+
+	/** Keyed by Layer rather than by id, which may be the same in two open projects. */
+	static private final class Key {
+		final Layer layer;
+		final double scale;
+		final int tx, ty;
+		Key(final Layer layer, final double scale, final int tx, final int ty) {
+			this.layer = layer;
+			this.scale = scale;
+			this.tx = tx;
+			this.ty = ty;
+		}
+		/** The tile in world coordinates. */
+		Rectangle getBounds() {
+			final int side = (int)(TILE / scale);
+			return new Rectangle(tx * side, ty * side, side, side);
+		}
+		@Override
+		public int hashCode() {
+			return layer.hashCode() * 31 * 31 + tx * 31 + ty;
+		}
+		@Override
+		public boolean equals(final Object ob) {
+			if (!(ob instanceof Key)) return false;
+			final Key k = (Key)ob;
+			return layer == k.layer && scale == k.scale && tx == k.tx && ty == k.ty;
+		}
+	}
+
+	static private final class Tile {
+		final double[] signature;
+		final byte[] pixels;
+		Tile(final double[] signature, final byte[] pixels) {
+			this.signature = signature;
+			this.pixels = pixels;
+		}
+	}
+
+	/** In access order, least recently used first. */
+	static private final LinkedHashMap<Key,FutureTask<Tile>> tiles = new LinkedHashMap<Key,FutureTask<Tile>>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Key,FutureTask<Tile>> eldest) {
+			return size() > MAX_TILES;
+		}
+	};
+
+	static private final ExecutorService prefetcher = ExecutorProvider.newExecutorService("RoiImageSource-prefetcher", 1, Priority.PREFETCH, Resource.CPU);
+
+	/** Same as {@link #getFlatImage(Layer, Rectangle, double)} at scale 1. */
+	static public ImageProcessor getFlatImage(final Layer layer, final Rectangle box) {
+		return getFlatImage(layer, box, 1.0);
+	}
+
+	/** Equivalent to {@link Patch#makeFlatImage(int, Layer, Rectangle, double, Collection, Color)}
+	 *  for type GRAY8, the visible images in the box and a black background.
+	 *  @param box The region, in world coordinates.
+	 *  @param scale Rounded down to a power of 2, and at most 1.
+	 *  @return A new image, which may be modified. */
+	static public ImageProcessor getFlatImage(final Layer layer, final Rectangle box, double scale) {
+		scale = scale >= 1 ? 1 : Math.pow(2, Math.floor(Math.log(scale) / Math.log(2)));
+		final int x0 = (int)Math.floor(box.x * scale),
+		          y0 = (int)Math.floor(box.y * scale),
+		          w = Math.max(1, (int)(box.width * scale)),
+		          h = Math.max(1, (int)(box.height * scale));
+		final ByteProcessor bp = new ByteProcessor(w, h);
+		final byte[] pix = (byte[])bp.getPixels();
+		final int tx0 = floorDiv(x0, TILE),
+		          ty0 = floorDiv(y0, TILE),
+		          tx1 = floorDiv(x0 + w - 1, TILE),
+		          ty1 = floorDiv(y0 + h - 1, TILE);
+		try {
+			for (int ty=ty0; ty<=ty1; ty++) {
+				for (int tx=tx0; tx<=tx1; tx++) {
+					final Tile tile = getTile(layer, new Key(layer, scale, tx, ty));
+					// Copy the part of the tile within the box
+					final int sx = Math.max(x0, tx * TILE),
+					          ex = Math.min(x0 + w, (tx + 1) * TILE),
+					          sy = Math.max(y0, ty * TILE),
+					          ey = Math.min(y0 + h, (ty + 1) * TILE);
+					for (int y=sy; y<ey; y++) {
+						System.arraycopy(tile.pixels, (y - ty * TILE) * TILE + sx - tx * TILE, pix, (y - y0) * w + sx - x0, ex - sx);
+					}
+				}
+			}
+		} catch (final Exception e) {
+			IJError.print(e);
+			return Patch.makeFlatImage(ImagePlus.GRAY8, layer, box, scale, getPatches(layer, box), Color.black);
+		}
+		prefetch(layer, scale, tx0 - 1, ty0 - 1, tx1 + 1, ty1 + 1);
+		return bp;
+	}
+
+	/** Drop all tiles that include the Patch, whose pixels may have changed. */
+	static public void invalidate(final Patch patch) {
+		final Layer layer = patch.getLayer();
+		if (null == layer) return;
+		final Rectangle b = patch.getBoundingBox();
+		synchronized (tiles) {
+			for (final Iterator<Key> it = tiles.keySet().iterator(); it.hasNext(); ) {
+				final Key key = it.next();
+				if (key.layer == layer && key.getBounds().intersects(b)) it.remove();
+			}
+		}
+	}
+
+	/** Drop all tiles. */
+	static public void clear() {
+		synchronized (tiles) {
+			tiles.clear();
+		}
+	}
+
+	/** Drop all tiles of the layers of the project, such as when closing it. */
+	static public void clear(final Project project) {
+		synchronized (tiles) {
+			for (final Iterator<Key> it = tiles.keySet().iterator(); it.hasNext(); ) {
+				if (it.next().layer.getProject() == project) it.remove();
+			}
+		}
+	}
+
+	static private final int floorDiv(final int a, final int b) {
+		return (int)Math.floor(a / (double)b);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static private final Collection<Patch> getPatches(final Layer layer, final Rectangle r) {
+		return (Collection)layer.getDisplayables(Patch.class, new Area(r), true);
+	}
+
+	/** Everything the pixels of a tile depend on, other than the pixels of the images themselves. */
+	static private final double[] signature(final Collection<Patch> patches) {
+		final double[] s = new double[12 * patches.size()];
+		final double[] m = new double[6];
+		int k = 0;
+		for (final Patch p : patches) {
+			p.getAffineTransform().getMatrix(m);
+			System.arraycopy(m, 0, s, k, 6);
+			s[k+6] = p.getId();
+			s[k+7] = p.getCoordinateTransformId();
+			s[k+8] = p.getAlphaMaskId();
+			s[k+9] = p.getMin();
+			s[k+10] = p.getMax();
+			s[k+11] = p.getMeshResolution();
+			k += 12;
+		}
+		return s;
+	}
+
+	/** Return the tile, rendering it if not cached or no longer valid. */
+	static private final Tile getTile(final Layer layer, final Key key) throws Exception {
+		final Collection<Patch> patches = getPatches(layer, key.getBounds());
+		final double[] signature = signature(patches);
+		FutureTask<Tile> ft;
+		synchronized (tiles) {
+			ft = tiles.get(key);
+			if (null != ft && ft.isDone()) {
+				final Tile tile = getDone(ft);
+				if (null == tile || !Arrays.equals(signature, tile.signature)) ft = null;
+			}
+			if (null == ft) {
+				ft = newTask(layer, key, patches, signature);
+				tiles.put(key, ft);
+			}
+		}
+		// Render it here if not started yet, even if queued for prefetching
+		ft.run();
+		final Tile tile = getDone(ft);
+		if (null != tile && Arrays.equals(signature, tile.signature)) return tile;
+		// Failed, or rendered by a prefetch before the latest changes
+		final FutureTask<Tile> ft2 = newTask(layer, key, patches, signature);
+		synchronized (tiles) {
+			tiles.put(key, ft2);
+		}
+		ft2.run();
+		return ft2.get();
+	}
+
+	/** The tile of a task that has run, or null if it failed. */
+	static private final Tile getDone(final FutureTask<Tile> ft) {
+		try {
+			return ft.get();
+		} catch (final Exception e) {
+			return null;
+		}
+	}
+
+	static private final FutureTask<Tile> newTask(final Layer layer, final Key key, final Collection<Patch> patches, final double[] signature) {
+		return new FutureTask<Tile>(new Callable<Tile>() {
+			@Override
+			public Tile call() {
+				final byte[] pixels;
+				if (patches.isEmpty()) {
+					pixels = new byte[TILE * TILE];
+				} else {
+					final ImageProcessor ip = Patch.makeFlatImage(ImagePlus.GRAY8, layer, key.getBounds(), key.scale, patches, Color.black);
+					if (TILE == ip.getWidth() && TILE == ip.getHeight()) {
+						pixels = (byte[])ip.getPixels();
+					} else {
+						pixels = new byte[TILE * TILE];
+						final byte[] p = (byte[])ip.getPixels();
+						final int w = Math.min(TILE, ip.getWidth());
+						for (int y=Math.min(TILE, ip.getHeight()) -1; y>-1; y--) {
+							System.arraycopy(p, y * ip.getWidth(), pixels, y * TILE, w);
+						}
+					}
+				}
+				return new Tile(signature, pixels);
+			}
+		});
+	}
+
+	/** Render in the background the tiles in the given range that aren't cached yet. */
+	static private final void prefetch(final Layer layer, final double scale, final int tx0, final int ty0, final int tx1, final int ty1) {
+		final ArrayList<FutureTask<Tile>> tasks = new ArrayList<FutureTask<Tile>>();
+		synchronized (tiles) {
+			for (int ty=ty0; ty<=ty1; ty++) {
+				for (int tx=tx0; tx<=tx1; tx++) {
+					final Key key = new Key(layer, scale, tx, ty);
+					if (tiles.containsKey(key)) continue;
+					final Collection<Patch> patches = getPatches(layer, key.getBounds());
+					if (patches.isEmpty()) continue;
+					final FutureTask<Tile> ft = newTask(layer, key, patches, signature(patches));
+					tiles.put(key, ft);
+					tasks.add(ft);
+				}
+			}
+		}
+		for (final FutureTask<Tile> ft : tasks) {
+			prefetcher.submit(ft);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/**
+ *
+ */
+package ini.trakem2.imaging;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshCache;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/** Blending of the seams between overlapping images at render time, as an alternative
+ *  to baking the blending weights into the alpha masks with {@link Blending}.
+ *  Each mipmap of a Patch is painted with its alpha multiplied by the same weights
+ *  {@link Blending} would compute: the distance-to-border weight of the Patch relative
+ *  to the sum of the weights of itself and all Patches under it at that pixel.
+ *  Coordinate-transformed images are supported.
+ *
+ *  Weights are sampled on a coarse grid and interpolated, and cached per Patch and
+ *  mipmap level for as long as the transforms and dimensions of the Patch and of the
+ *  Patches under it remain the same.
+ *
+ *  Enabled with the project property "blend_seams". */
+public final class SeamBlending {
+
+	/** Mipmap pixels between weight samples. The weights are continuous, so this is enough. */
+	static private final int STEP = 16;
+
+	private SeamBlending() {}
+
+	static private final class Weights {
+		final int nx, ny;
+		final float[] grid;
+		boolean overlap = false;
+		Weights(final int nx, final int ny) {
+			this.nx = nx;
+			this.ny = ny;
+			this.grid = new float[nx * ny];
+		}
+	}
+
+	static private final class Entry {
+		final double[] signature;
+		/** Per mipmap level, keyed by the width of the mipmap image. */
+		final HashMap<Integer,Weights> levels = new HashMap<Integer,Weights>();
+		/** The last blended mipmap, and the image it was made from. */
+		Image source = null;
+		BufferedImage blended = null;
+		Entry(final double[] signature) {
+			this.signature = signature;
+		}
+	}
+
+	/** Knows its Patch, to be removed from the cache once cleared. */
+	static private final class Ref extends SoftReference<Entry> {
+		final Patch patch;
+		Ref(final Patch patch, final Entry entry) {
+			super(entry, queue);
+			this.patch = patch;
+		}
+	}
+
+	/** Keyed by Patch rather than by id, which may be the same in two open projects. */
+	static private final HashMap<Patch,Ref> cache = new HashMap<Patch,Ref>();
+	static private final ReferenceQueue<Entry> queue = new ReferenceQueue<Entry>();
+
+	static public final boolean isEnabled(final Patch p) {
+		return p.getProject().getBooleanProperty("blend_seams");
+	}
+
+	/** Return the mipmap image of Patch p with its alpha multiplied by the blending weights,
+	 *  or the image itself if it doesn't overlap any Patch under it. */
+	static public final Image blend(final Patch p, final Image image) {
+		if (null == image || Loader.isSignalImage(image)) return image;
+		final List<Patch> under = findUnder(p);
+		if (under.isEmpty()) return image;
+		final double[] signature = signature(p, under);
+		Entry entry;
+		synchronized (cache) {
+			prune();
+			final Ref ref = cache.get(p);
+			entry = null == ref ? null : ref.get();
+			if (null == entry || !Arrays.equals(signature, entry.signature)) {
+				entry = new Entry(signature);
+				cache.put(p, new Ref(p, entry));
+			}
+		}
+		try {
+			synchronized (entry) {
+				if (image == entry.source) return null == entry.blended ? image : entry.blended;
+				final int iw = image.getWidth(null),
+				          ih = image.getHeight(null);
+				if (iw <= 0 || ih <= 0) return image;
+				Weights w = entry.levels.get(iw);
+				if (null == w) {
+					w = computeWeights(p, under, iw, ih);
+					entry.levels.put(iw, w);
+				}
+				entry.source = image;
+				entry.blended = w.overlap ? apply(image, iw, ih, w) : null;
+				return null == entry.blended ? image : entry.blended;
+			}
+		} catch (final Exception e) {
+			IJError.print(e);
+			return image;
+		}
+	}
+
+	/** Forget all cached weights. */
+	static public final void clear() {
+		synchronized (cache) {
+			cache.clear();
+			while (null != queue.poll());
+		}
+	}
+
+	/** Forget the cached weights of all Patches of the project, such as when closing it. */
+	static public final void clear(final Project project) {
+		synchronized (cache) {
+			for (final Iterator<Patch> it = cache.keySet().iterator(); it.hasNext(); ) {
+				if (it.next().getProject() == project) it.remove();
+			}
+			prune();
+		}
+	}
+
+	/** Remove the entries whose weights were garbage collected. Call while synchronized on the cache. */
+	static private final void prune() {
+		for (Ref ref = (Ref)queue.poll(); null != ref; ref = (Ref)queue.poll()) {
+			// Unless replaced already by a new entry for the same Patch
+			if (cache.get(ref.patch) == ref) cache.remove(ref.patch);
+		}
+	}
+
+	/** The visible Patches that intersect p and are painted before it, in the same order as {@link Blending}.
+	 *  Relies on {@link Layer#find(Class, Rectangle, boolean)} returning them in stack order, so that
+	 *  the cost doesn't grow with the number of Patches in the layer. */
+	static private final List<Patch> findUnder(final Patch p) {
+		final ArrayList<Patch> under = new ArrayList<Patch>();
+		final Layer layer = p.getLayer();
+		if (null == layer) return under;
+		for (final Displayable d : layer.find(Patch.class, p.getBoundingBox(), true)) {
+			if (d == p) return under;
+			under.add((Patch)d);
+		}
+		// p itself was not found, such as when hidden: fall back to comparing stack indices
+		under.clear();
+		final int index = layer.indexOf(p);
+		for (final Displayable d : layer.find(Patch.class, p.getBoundingBox(), true)) {
+			if (layer.indexOf(d) < index) under.add((Patch)d);
+		}
+		return under;
+	}
+
+	/** Everything the weights depend on. */
+	static private final double[] signature(final Patch p, final List<Patch> under) {
+		final double[] s = new double[13 * (under.size() + 1)];
+		final double[] m = new double[6];
+		for (int i=-1, k=0; i<under.size(); i++) {
+			final Patch q = -1 == i ? p : under.get(i);
+			q.getAffineTransform().getMatrix(m);
+			System.arraycopy(m, 0, s, k, 6);
+			s[k+6] = q.getId();
+			s[k+7] = q.getWidth();
+			s[k+8] = q.getHeight();
+			s[k+9] = q.getOWidth();
+			s[k+10] = q.getOHeight();
+			s[k+11] = q.getCoordinateTransformId();
+			s[k+12] = q.getMeshResolution();
+			k += 13;
+		}
+		return s;
+	}
+
+	static private final TransformMesh getMesh(final Patch p) {
+		if (!p.hasCoordinateTransform()) return null;
+		final CoordinateTransform ct = p.getCoordinateTransform();
+		return null == ct ? null : TransformMeshCache.get(ct, p.getMeshResolution(), p.getOWidth(), p.getOHeight());
+	}
+
+	static private final Weights computeWeights(final Patch p, final List<Patch> under, final int iw, final int ih) {
+		final int nx = Math.max(2, (iw + STEP - 1) / STEP + 1),
+		          ny = Math.max(2, (ih + STEP - 1) / STEP + 1);
+		final Weights w = new Weights(nx, ny);
+
+		final TransformMesh mesh = getMesh(p);
+		final TransformMesh[] meshes = new TransformMesh[under.size()];
+		for (int i=0; i<meshes.length; i++) meshes[i] = getMesh(under.get(i));
+
+		final AffineTransform at = p.getAffineTransform();
+		// The affine includes the translation to the origin of the bounding box of the mesh
+		final Rectangle box = null == mesh ? null : mesh.getBoundingBox();
+		final double sx = p.getWidth() / (double)iw,
+		             sy = p.getHeight() / (double)ih;
+		final int o_width = p.getOWidth(),
+		          o_height = p.getOHeight();
+		final double[] po = new double[2];
+		final float[] fo = new float[2];
+
+		for (int gy=0; gy<ny; gy++) {
+			for (int gx=0; gx<nx; gx++) {
+				// Local coordinates of the sample, in the transformed image
+				final double lx = gx * (iw - 1) / (double)(nx - 1) * sx,
+				             ly = gy * (ih - 1) / (double)(ny - 1) * sy;
+				// Weight of p itself, from the original image coordinates
+				float self = 0;
+				try {
+					if (null != mesh) {
+						fo[0] = (float)(lx + box.x);
+						fo[1] = (float)(ly + box.y);
+						mesh.applyInverseInPlace(fo);
+					} else {
+						fo[0] = (float)lx;
+						fo[1] = (float)ly;
+					}
+					self = Math.max(0, Blending.computeWeight(fo[0], fo[1], o_width, o_height));
+				} catch (final NoninvertibleModelException nime) {
+					// outside the image: transparent anyway
+				}
+				// Weights of the Patches under it, at the same world coordinates
+				po[0] = lx;
+				po[1] = ly;
+				at.transform(po, 0, po, 0, 1);
+				float sum = 0;
+				for (int i=0; i<meshes.length; i++) {
+					fo[0] = (float)po[0];
+					fo[1] = (float)po[1];
+					final float weight = Blending.intersects(fo, under.get(i), meshes[i]);
+					if (weight > 0) sum += weight;
+				}
+				if (sum > 0) {
+					w.overlap = true;
+					w.grid[gy * nx + gx] = self / (self + sum);
+				} else {
+					w.grid[gy * nx + gx] = 1;
+				}
+			}
+		}
+		return w;
+	}
+
+	/** Copy the image into an ARGB image and multiply its alpha by the bilinearly interpolated weights. */
+	static private final BufferedImage apply(final Image image, final int iw, final int ih, final Weights w) {
+		final BufferedImage bi = new BufferedImage(iw, ih, BufferedImage.TYPE_INT_ARGB);
+		final Graphics2D g = bi.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		final int[] pix = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
+		final double fx = (w.nx - 1) / (double)Math.max(1, iw - 1),
+		             fy = (w.ny - 1) / (double)Math.max(1, ih - 1);
+		for (int y=0, i=0; y<ih; y++) {
+			final double gy = y * fy;
+			final int y0 = Math.min(w.ny - 2, (int)gy);
+			final float ty = (float)(gy - y0);
+			for (int x=0; x<iw; x++, i++) {
+				final double gx = x * fx;
+				final int x0 = Math.min(w.nx - 2, (int)gx);
+				final float tx = (float)(gx - x0);
+				final int k = y0 * w.nx + x0;
+				final float a = (1 - ty) * ((1 - tx) * w.grid[k] + tx * w.grid[k + 1])
+				              + ty * ((1 - tx) * w.grid[k + w.nx] + tx * w.grid[k + w.nx + 1]);
+				final int alpha = (int)((pix[i] >>> 24) * a + 0.5f);
+				pix[i] = (alpha << 24) | (pix[i] & 0x00ffffff);
+			}
+		}
+		return bi;
+	}
+}
@@ -14,7 +14,6 @@ import ini.trakem2.display.AreaContainer;
 import ini.trakem2.display.AreaWrapper;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Layer;
-import ini.trakem2.display.Patch;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
@@ -23,7 +22,6 @@ import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
 import java.awt.Checkbox;
-import java.awt.Color;
 import java.awt.Component;
 import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
@@ -32,7 +30,6 @@ import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -182,7 +179,7 @@ public class Segmentation {
 		Bureaucrat burro = Bureaucrat.create(new Worker.Task("Fast marching") { public void exec() {
 			// Capture image as large as the fmp width,height centered on x_p_w,y_p_w
 			Utils.log2("fmp box is " + box);
-			ImagePlus imp = new ImagePlus("", Patch.makeFlatImage(ImagePlus.GRAY8, layer, box, 1.0, (Collection)layer.getDisplayables(Patch.class, new Area(box), true), Color.black));
+			ImagePlus imp = new ImagePlus("", RoiImageSource.getFlatImage(layer, box));
 			// Bandpass filter
 			if (fmp.apply_bandpass_filter) {
 				IJ.run(imp, "Bandpass Filter...", "filter_large=" + fmp.low_frequency_threshold  + " filter_small=" + fmp.high_frequency_threshold + " suppress=None tolerance=5" + (fmp.autoscale_after_filtering ? " autoscale" : "") + (fmp.saturate_when_autoscaling ? " saturate" : ""));
@@ -381,7 +378,7 @@ public class Segmentation {
 			// Capture image as large as the fmp width,height centered on x_p_w,y_p_w
 			this.box = new Rectangle(x_p_w - Segmentation.fmp.width/2, y_p_w - Segmentation.fmp.height/2, Segmentation.fmp.width, Segmentation.fmp.height);
 			Utils.log2("fmp box is " + box);
-			this.imp = new ImagePlus("", Patch.makeFlatImage(ImagePlus.GRAY8, layer, box, 1.0, (Collection)layer.getDisplayables(Patch.class, new Area(box), true), Color.black));
+			this.imp = new ImagePlus("", RoiImageSource.getFlatImage(layer, box));
 			// Bandpass filter
 			if (fmp.apply_bandpass_filter) {
 				IJ.run(imp, "Bandpass Filter...", "filter_large=" + fmp.low_frequency_threshold  + " filter_small=" + fmp.high_frequency_threshold + " suppress=None tolerance=5" + (fmp.autoscale_after_filtering ? " autoscale" : "") + (fmp.saturate_when_autoscaling ? " saturate" : ""));
@@ -446,7 +443,7 @@ public class Segmentation {
 		Bureaucrat burro = Bureaucrat.create(new Worker.Task("Magic Wand") { public void exec() {
 			// Capture image as large as the fmp width,height centered on x_p_w,y_p_w
 			Utils.log2("fmp box is " + box);
-			ImageProcessor ip = Patch.makeFlatImage(ImagePlus.GRAY8, layer, box, 1.0, (Collection)layer.getDisplayables(Patch.class, new Area(box), true), Color.black);
+			ImageProcessor ip = RoiImageSource.getFlatImage(layer, box);
 			// Apply wand
 			Wand wand = new Wand(ip);
 			String smode = WandToolOptions.getMode();
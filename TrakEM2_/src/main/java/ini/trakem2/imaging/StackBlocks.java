@@ -0,0 +1,611 @@
+package ini.trakem2.imaging;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.Project;
+import ini.trakem2.display.Stack;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.trakem2.util.Downsampler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/** A chunked, multi-resolution copy of the 3D image of a {@link Stack}, so that reslicing
+ *  reads only the blocks that intersect the slice plane, at the resolution it is painted at,
+ *  instead of the whole volume.
+ *
+ *  Level 0 has the dimensions of the original image, and each further level half its width
+ *  and height, until it fits in one block. The depth is never reduced: sections are usually
+ *  far thicker than pixels are wide. Each block is one file under the project's storage folder,
+ *  at trakem2.&lt;unuid&gt;/stacks/&lt;file&gt;/&lt;level&gt;/&lt;bx&gt;_&lt;by&gt;_&lt;bz&gt;.raw,
+ *  made of its width, height and depth as ints and then its pixels, section by section.
+ *  The folder of the file is named after a hash of its path, length and modification time,
+ *  so that all stacks of the same file, such as copies of a stack, share the same blocks.
+ *
+ *  The blocks are generated once, reading the original file one section at a time, and again
+ *  only if the file changes, when those of the previous version are deleted. They are also
+ *  deleted when no stack of the project uses the file any longer, and those of any such file
+ *  left by earlier sessions when the project is opened (see {@link #removeUnused(Project)}).
+ *  Recently used blocks are cached, for all stacks. */
+public final class StackBlocks {
+
+	/** Width and height of a block, in pixels. */
+	static private final int BLOCK = 256;
+	/** Depth of a block, in sections. */
+	static private final int BLOCK_DEPTH = 16;
+	static private final String INDEX = "blocks.txt";
+
+	/** The folder of the blocks, ending with a slash. */
+	private final String dir;
+	/** ImagePlus.GRAY8, GRAY16, GRAY32 or COLOR_RGB. */
+	private final int type;
+	private final int[] widths, heights;
+	private final int depth;
+	/** The display range of the original image. */
+	private final double min, max;
+
+	private StackBlocks(final String dir, final int type, final int[] widths, final int[] heights, final int depth, final double min, final double max) {
+		this.dir = dir;
+		this.type = type;
+		this.widths = widths;
+		this.heights = heights;
+		this.depth = depth;
+		this.min = min;
+		this.max = max;
+	}
+
+	public int getType() { return type; }
+	public int getNLevels() { return widths.length; }
+	public int getWidth(final int level) { return widths[level]; }
+	public int getHeight(final int level) { return heights[level]; }
+	public int getDepth() { return depth; }
+	public double getMin() { return min; }
+	public double getMax() { return max; }
+
+	static private final class Block {
+		final int w, h, d;
+		/** byte[], short[], float[] or int[], of w * h * d pixels. */
+		final Object pixels;
+		final long bytes;
+		Block(final int w, final int h, final int d, final Object pixels, final int bytes_per_pixel) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.pixels = pixels;
+			this.bytes = 64 + (long)w * h * d * bytes_per_pixel;
+		}
+	}
+
+	/** Blocks of all stacks, keyed by file path. In access order, least recently used first. */
+	static private final LinkedHashMap<String,Block> cache = new LinkedHashMap<String,Block>(64, 0.75f, true);
+	static private long budget = Runtime.getRuntime().maxMemory() / 16;
+	static private long bytes = 0;
+
+	/** The blocks of each file, by folder, or their generation if still in progress. */
+	static private final HashMap<String,FutureTask<StackBlocks>> stores = new HashMap<String,FutureTask<StackBlocks>>();
+	/** The folder of the blocks last used for each file, by storage folder and path of the file,
+	 *  to delete them when the file changes. */
+	static private final HashMap<String,String> folders = new HashMap<String,String>();
+
+	static private final ExecutorService reslicer = ExecutorProvider.newExecutorService("StackBlocks-reslice", Runtime.getRuntime().availableProcessors(), Priority.INTERACTIVE, Resource.CPU);
+
+	/** Return the blocks of the stack, generating them first if they don't exist yet or if
+	 *  the file of the stack changed since. Concurrent calls for the same stack wait for
+	 *  the same generation.
+	 *  @return null if the project has no storage folder, or the file can't be read. */
+	static public final StackBlocks get(final Stack stack) {
+		final String signature = getSignature(stack);
+		if (null == signature) return null;
+		final String source = signature.substring(0, signature.indexOf('\t'));
+		final String dir = getFolder(stack.getProject().getLoader(), signature);
+		final String file = stack.getProject().getLoader().getUNUIdFolder() + source;
+		FutureTask<StackBlocks> ft;
+		final String previous;
+		synchronized (stores) {
+			previous = folders.put(file, dir);
+			ft = stores.get(dir);
+			if (null != ft && ft.isDone() && null == getDone(ft)) ft = null; // try again
+			if (null == ft) {
+				ft = new FutureTask<StackBlocks>(new Callable<StackBlocks>() {
+					@Override
+					public StackBlocks call() throws Exception {
+						return open(stack, source, signature, dir);
+					}
+				});
+				stores.put(dir, ft);
+			}
+		}
+		// The file changed since: its previous blocks are of no use
+		if (null != previous && !previous.equals(dir)) delete(previous);
+		ft.run(); // does nothing if already run or running
+		return getDone(ft);
+	}
+
+	/** Delete the blocks of the file of the stack, unless another stack of the project uses the same file.
+	 *  Call when removing the stack, or before changing its file. */
+	static public final void remove(final Stack stack) {
+		final String signature = getSignature(stack);
+		if (null == signature) return;
+		for (final ZDisplayable zd : stack.getProject().getRootLayerSet().getZDisplayables(Stack.class)) {
+			if (zd != stack && signature.equals(getSignature((Stack)zd))) return;
+		}
+		synchronized (stores) {
+			folders.remove(stack.getProject().getLoader().getUNUIdFolder() + signature.substring(0, signature.indexOf('\t')));
+		}
+		delete(getFolder(stack.getProject().getLoader(), signature));
+	}
+
+	/** In the background, delete the blocks of files that no stack of the project uses, such as those of
+	 *  stacks removed or files changed while the project was not open. Call when opening the project. */
+	static public final void removeUnused(final Project project) {
+		final Loader loader = project.getLoader();
+		if (!(loader instanceof FSLoader)) return;
+		final File parent = new File(loader.getUNUIdFolder() + "stacks");
+		if (!parent.isDirectory()) return;
+		ExecutorProvider.getSharedExecutorService(Priority.BATCH).submit(new Runnable() {
+			@Override
+			public void run() {
+				final HashSet<String> used = new HashSet<String>();
+				for (final ZDisplayable zd : project.getRootLayerSet().getZDisplayables(Stack.class)) {
+					final String signature = getSignature((Stack)zd);
+					if (null != signature) used.add(getName(signature));
+				}
+				final File[] fs = parent.listFiles();
+				if (null == fs) return;
+				for (final File f : fs) {
+					if (f.isDirectory() && !used.contains(f.getName())) {
+						Utils.log2("StackBlocks: removing the blocks of an unused file at " + f);
+						delete(f.getAbsolutePath() + '/');
+					}
+				}
+			}
+		});
+	}
+
+	/** Forget and delete the blocks in the folder. */
+	static private final void delete(final String dir) {
+		synchronized (stores) {
+			stores.remove(dir);
+		}
+		synchronized (cache) {
+			for (final Iterator<Map.Entry<String,Block>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+				final Map.Entry<String,Block> e = it.next();
+				if (e.getKey().startsWith(dir)) {
+					bytes -= e.getValue().bytes;
+					it.remove();
+				}
+			}
+		}
+		final File f = new File(dir);
+		if (f.exists()) Utils.removePrefixedFiles(f.getParentFile(), f.getName(), null);
+	}
+
+	/** Drop all cached blocks. */
+	static public final void clear() {
+		synchronized (cache) {
+			cache.clear();
+			bytes = 0;
+		}
+	}
+
+	static public final void setBudget(final long budget) {
+		synchronized (cache) {
+			StackBlocks.budget = Math.max(0, budget);
+			enforce();
+		}
+	}
+
+	static private final StackBlocks getDone(final FutureTask<StackBlocks> ft) {
+		try {
+			return ft.get();
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
+	}
+
+	/** The absolute path, length and modification time of the file of the stack, separated by tabs,
+	 *  or null if the project has no storage folder or the stack no file. */
+	static private final String getSignature(final Stack stack) {
+		final Loader loader = stack.getProject().getLoader();
+		if (!(loader instanceof FSLoader) || null == stack.getFilePath()) return null;
+		final String source = ((FSLoader)loader).getAbsolutePath(stack.getFilePath());
+		final File fsource = new File(source);
+		return new StringBuilder(source).append('\t').append(fsource.length()).append('\t').append(fsource.lastModified()).toString();
+	}
+
+	/** The name of the folder of the blocks of a file: a 64-bit hash of its signature, in hexadecimal.
+	 *  The index in the folder has the full signature, in case of collisions. */
+	static private final String getName(final String signature) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i<signature.length(); i++) {
+			h ^= signature.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return String.format("%016x", h);
+	}
+
+	/** The folder of the blocks of a file, ending with a slash. */
+	static private final String getFolder(final Loader loader, final String signature) {
+		return new StringBuilder(loader.getUNUIdFolder()).append("stacks/").append(getName(signature)).append('/').toString();
+	}
+
+	/** Read the index of the blocks if it matches the signature, otherwise generate them anew. */
+	static private final StackBlocks open(final Stack stack, final String source, final String signature, final String dir) throws Exception {
+		final File index = new File(dir + INDEX);
+		if (index.exists()) {
+			BufferedReader r = null;
+			try {
+				r = new BufferedReader(new FileReader(index));
+				if (signature.equals(r.readLine())) {
+					final String[] s = r.readLine().split(" ");
+					final int type = Integer.parseInt(s[0]),
+					          depth = Integer.parseInt(s[1]),
+					          n_levels = (s.length - 4) / 2;
+					final int[] widths = new int[n_levels],
+					            heights = new int[n_levels];
+					for (int i=0; i<n_levels; i++) {
+						widths[i] = Integer.parseInt(s[4 + 2*i]);
+						heights[i] = Integer.parseInt(s[5 + 2*i]);
+					}
+					return new StackBlocks(dir, type, widths, heights, depth, Double.parseDouble(s[2]), Double.parseDouble(s[3]));
+				}
+			} catch (final Exception e) {
+				Utils.log2("StackBlocks: could not read " + index + ", generating the blocks anew.");
+			} finally {
+				if (null != r) r.close();
+			}
+		}
+		return generate(stack, source, signature, dir);
+	}
+
+	static private final StackBlocks generate(final Stack stack, final String source, final String signature, final String dir) throws Exception {
+		final File index = new File(dir + INDEX);
+		if (index.exists() && !index.delete()) throw new IOException("Could not delete " + index);
+		// Read one section at a time if the format allows it
+		ImagePlus imp = null;
+		boolean decache = false;
+		try {
+			imp = IJ.openVirtual(source);
+		} catch (final Throwable t) {
+			Utils.log2("StackBlocks: cannot open " + source + " as a virtual stack.");
+		}
+		if (null == imp) {
+			imp = stack.getProject().getLoader().fetchImagePlus(stack);
+			decache = true;
+		}
+		if (null == imp) return null;
+		try {
+			final ImageStack is = imp.getStack();
+			final int depth = is.getSize();
+			final int type;
+			switch (imp.getType()) {
+				case ImagePlus.GRAY8:
+				case ImagePlus.GRAY16:
+				case ImagePlus.GRAY32:
+					type = imp.getType();
+					break;
+				default:
+					type = ImagePlus.COLOR_RGB;
+			}
+			final ArrayList<int[]> dims = new ArrayList<int[]>();
+			for (int w = imp.getWidth(), h = imp.getHeight(); ; w /= 2, h /= 2) {
+				dims.add(new int[]{w, h});
+				if ((w <= BLOCK && h <= BLOCK) || w < 2 || h < 2) break;
+			}
+			final int[] widths = new int[dims.size()],
+			            heights = new int[dims.size()];
+			for (int i=0; i<widths.length; i++) {
+				widths[i] = dims.get(i)[0];
+				heights[i] = dims.get(i)[1];
+				final File f = new File(dir + i);
+				if (!f.exists() && !f.mkdirs()) throw new IOException("Could not create folder " + f);
+			}
+			Utils.log2("StackBlocks: generating " + widths.length + " levels of blocks for " + stack);
+			for (int z=0; z<depth; z++) {
+				Utils.showProgress(z / (double)depth);
+				ImageProcessor ip = is.getProcessor(z + 1);
+				if (ImagePlus.COLOR_RGB == type && !(ip instanceof ColorProcessor)) ip = ip.convertToRGB();
+				for (int level=0; level<widths.length; level++) {
+					if (level > 0) ip = Downsampler.downsampleImageProcessor(ip);
+					writeSection(dir + level + '/', ip, z, depth);
+				}
+			}
+			final StringBuilder sb = new StringBuilder(signature).append('\n').append(type).append(' ').append(depth)
+				.append(' ').append(imp.getDisplayRangeMin()).append(' ').append(imp.getDisplayRangeMax());
+			for (int i=0; i<widths.length; i++) sb.append(' ').append(widths[i]).append(' ').append(heights[i]);
+			final FileWriter w = new FileWriter(index);
+			try {
+				w.write(sb.append('\n').toString());
+			} finally {
+				w.close();
+			}
+			return new StackBlocks(dir, type, widths, heights, depth, imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+		} finally {
+			Utils.showProgress(1);
+			if (decache) stack.getProject().getLoader().decacheImagePlus(stack.getId());
+			else imp.flush();
+		}
+	}
+
+	/** Append the section to the files of the blocks it belongs to, creating them for the first section of a block. */
+	static private final void writeSection(final String dir, final ImageProcessor ip, final int z, final int depth) throws IOException {
+		final int w = ip.getWidth(),
+		          h = ip.getHeight(),
+		          bz = z / BLOCK_DEPTH,
+		          bd = Math.min(BLOCK_DEPTH, depth - bz * BLOCK_DEPTH);
+		final boolean first = 0 == z % BLOCK_DEPTH;
+		final Object pixels = ip.getPixels();
+		for (int by=0; by * BLOCK < h; by++) {
+			for (int bx=0; bx * BLOCK < w; bx++) {
+				final int x0 = bx * BLOCK,
+				          y0 = by * BLOCK,
+				          bw = Math.min(BLOCK, w - x0),
+				          bh = Math.min(BLOCK, h - y0);
+				final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(new StringBuilder(dir).append(bx).append('_').append(by).append('_').append(bz).append(".raw").toString(), !first)));
+				try {
+					if (first) {
+						dos.writeInt(bw);
+						dos.writeInt(bh);
+						dos.writeInt(bd);
+					}
+					for (int y=y0; y<y0+bh; y++) {
+						final int offset = y * w;
+						if (pixels instanceof byte[]) {
+							dos.write((byte[])pixels, offset + x0, bw);
+						} else if (pixels instanceof short[]) {
+							final short[] p = (short[])pixels;
+							for (int x=x0; x<x0+bw; x++) dos.writeShort(p[offset + x]);
+						} else if (pixels instanceof float[]) {
+							final float[] p = (float[])pixels;
+							for (int x=x0; x<x0+bw; x++) dos.writeFloat(p[offset + x]);
+						} else {
+							final int[] p = (int[])pixels;
+							for (int x=x0; x<x0+bw; x++) dos.writeInt(p[offset + x]);
+						}
+					}
+				} finally {
+					dos.close();
+				}
+			}
+		}
+	}
+
+	/** Return the block, reading it if not cached. Concurrent misses for the same block read it once each. */
+	private final Block getBlock(final int level, final int bx, final int by, final int bz) throws IOException {
+		final String path = new StringBuilder(dir).append(level).append('/').append(bx).append('_').append(by).append('_').append(bz).append(".raw").toString();
+		synchronized (cache) {
+			final Block b = cache.get(path);
+			if (null != b) return b;
+		}
+		final Block b = readBlock(path);
+		synchronized (cache) {
+			final Block previous = cache.put(path, b);
+			if (null != previous) bytes -= previous.bytes;
+			bytes += b.bytes;
+			enforce();
+		}
+		return b;
+	}
+
+	private final Block readBlock(final String path) throws IOException {
+		final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 65536));
+		try {
+			final int w = dis.readInt(),
+			          h = dis.readInt(),
+			          d = dis.readInt(),
+			          n = w * h * d;
+			switch (type) {
+				case ImagePlus.GRAY8: {
+					final byte[] p = new byte[n];
+					dis.readFully(p);
+					return new Block(w, h, d, p, 1);
+				}
+				case ImagePlus.GRAY16: {
+					final short[] p = new short[n];
+					for (int i=0; i<n; i++) p[i] = dis.readShort();
+					return new Block(w, h, d, p, 2);
+				}
+				case ImagePlus.GRAY32: {
+					final float[] p = new float[n];
+					for (int i=0; i<n; i++) p[i] = dis.readFloat();
+					return new Block(w, h, d, p, 4);
+				}
+				default: {
+					final int[] p = new int[n];
+					for (int i=0; i<n; i++) p[i] = dis.readInt();
+					return new Block(w, h, d, p, 4);
+				}
+			}
+		} finally {
+			dis.close();
+		}
+	}
+
+	/** Drop least recently used blocks until within budget. Call while synchronized on the cache. */
+	static private final void enforce() {
+		for (final Iterator<Block> it = cache.values().iterator(); bytes > budget && it.hasNext(); ) {
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	/** Reads pixels of one level, remembering the last block it read from. Not thread-safe. */
+	private final class Sampler {
+		final int level, w, h;
+		Block block = null;
+		int bx = -1, by = -1, bz = -1;
+		Sampler(final int level) {
+			this.level = level;
+			this.w = widths[level];
+			this.h = heights[level];
+		}
+		/** The pixel at x, y, z, which must be within the level, as an int for COLOR_RGB and otherwise as float bits. */
+		final int get(final int x, final int y, final int z) throws IOException {
+			final int cx = x / BLOCK,
+			          cy = y / BLOCK,
+			          cz = z / BLOCK_DEPTH;
+			if (cx != bx || cy != by || cz != bz) {
+				block = getBlock(level, cx, cy, cz);
+				bx = cx;
+				by = cy;
+				bz = cz;
+			}
+			final int i = ((z - cz * BLOCK_DEPTH) * block.h + y - cy * BLOCK) * block.w + x - cx * BLOCK;
+			switch (type) {
+				case ImagePlus.GRAY8: return Float.floatToRawIntBits(((byte[])block.pixels)[i] & 0xff);
+				case ImagePlus.GRAY16: return Float.floatToRawIntBits(((short[])block.pixels)[i] & 0xffff);
+				case ImagePlus.GRAY32: return Float.floatToRawIntBits(((float[])block.pixels)[i]);
+				default: return ((int[])block.pixels)[i];
+			}
+		}
+	}
+
+	/** Choose the level for painting at the given scale: the coarsest whose pixels are not larger than the painted ones. */
+	public int getLevel(final double scale) {
+		if (scale >= 1) return 0;
+		return Math.max(0, Math.min(widths.length - 1, (int)Math.floor(-Math.log(scale) / Math.log(2))));
+	}
+
+	/** Make an image of width x height pixels of the given level, trilinearly interpolated
+	 *  from the pixel at position t, mapped by the inverse of the transform, for each pixel
+	 *  of the image at position (x, y, 0) scaled by the size of the pixels of the level.
+	 *  Only the blocks the mapped image intersects are read. Rows are computed in parallel.
+	 *  Pixels that map outside the volume are zero. */
+	public ImageProcessor reslice(final InvertibleCoordinateTransform transform, final int level, final int width, final int height) throws Exception {
+		final ImageProcessor ip;
+		switch (type) {
+			case ImagePlus.GRAY8: ip = new ByteProcessor(width, height); break;
+			case ImagePlus.GRAY16: ip = new ShortProcessor(width, height); break;
+			case ImagePlus.GRAY32: ip = new FloatProcessor(width, height); break;
+			default: ip = new ColorProcessor(width, height);
+		}
+		final int n_threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), height / 16));
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		final int rows = (height + n_threads - 1) / n_threads;
+		for (int i=0; i<n_threads; i++) {
+			final int y0 = i * rows,
+			          y1 = Math.min(height, y0 + rows);
+			if (y0 >= y1) break;
+			fus.add(reslicer.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					resliceRows(transform, level, ip, y0, y1);
+					return null;
+				}
+			}));
+		}
+		Utils.wait(fus);
+		for (final Future<?> fu : fus) fu.get(); // rethrow any error
+		return ip;
+	}
+
+	private final void resliceRows(final InvertibleCoordinateTransform transform, final int level, final ImageProcessor ip, final int y0, final int y1) throws IOException {
+		final Sampler s = new Sampler(level);
+		final float f = 1 << level;
+		final int width = ip.getWidth();
+		final float[] t = new float[3];
+		final int[] v = new int[8];
+		for (int y=y0; y<y1; y++) {
+			for (int x=0; x<width; x++) {
+				// The center of the pixel, in pixels of level 0
+				t[0] = (x + 0.5f) * f - 0.5f;
+				t[1] = (y + 0.5f) * f - 0.5f;
+				t[2] = 0;
+				try {
+					transform.applyInverseInPlace(t);
+				} catch (final NoninvertibleModelException nime) {
+					continue;
+				}
+				// Back into pixels of the level
+				final float sx = (t[0] + 0.5f) / f - 0.5f,
+				            sy = (t[1] + 0.5f) / f - 0.5f,
+				            sz = t[2];
+				if (sx < -0.5f || sy < -0.5f || sz < -0.5f || sx > s.w - 0.5f || sy > s.h - 0.5f || sz > depth - 0.5f) continue;
+				final int ix = (int)Math.floor(sx),
+				          iy = (int)Math.floor(sy),
+				          iz = (int)Math.floor(sz);
+				final float dx = sx - ix,
+				            dy = sy - iy,
+				            dz = sz - iz;
+				// Neighbours, clamped to the volume
+				final int xa = Math.max(0, ix), xb = Math.min(s.w - 1, ix + 1),
+				          ya = Math.max(0, iy), yb = Math.min(s.h - 1, iy + 1),
+				          za = Math.max(0, iz), zb = Math.min(depth - 1, iz + 1);
+				v[0] = s.get(xa, ya, za);
+				v[1] = s.get(xb, ya, za);
+				v[2] = s.get(xa, yb, za);
+				v[3] = s.get(xb, yb, za);
+				v[4] = s.get(xa, ya, zb);
+				v[5] = s.get(xb, ya, zb);
+				v[6] = s.get(xa, yb, zb);
+				v[7] = s.get(xb, yb, zb);
+				final int i = y * width + x;
+				if (ImagePlus.COLOR_RGB == type) {
+					int rgb = 0;
+					for (int shift=16; shift>-1; shift-=8) {
+						final float c = interpolate(
+								(v[0] >> shift) & 0xff, (v[1] >> shift) & 0xff, (v[2] >> shift) & 0xff, (v[3] >> shift) & 0xff,
+								(v[4] >> shift) & 0xff, (v[5] >> shift) & 0xff, (v[6] >> shift) & 0xff, (v[7] >> shift) & 0xff,
+								dx, dy, dz);
+						rgb |= Math.min(255, (int)(c + 0.5f)) << shift;
+					}
+					ip.set(i, rgb);
+				} else {
+					final float c = interpolate(
+							Float.intBitsToFloat(v[0]), Float.intBitsToFloat(v[1]), Float.intBitsToFloat(v[2]), Float.intBitsToFloat(v[3]),
+							Float.intBitsToFloat(v[4]), Float.intBitsToFloat(v[5]), Float.intBitsToFloat(v[6]), Float.intBitsToFloat(v[7]),
+							dx, dy, dz);
+					ip.setf(i, ImagePlus.GRAY32 == type ? c : c + 0.5f);
+				}
+			}
+		}
+	}
+
+	static private final float interpolate(final float v000, final float v100, final float v010, final float v110,
+	                                       final float v001, final float v101, final float v011, final float v111,
+	                                       final float dx, final float dy, final float dz) {
+		final float a = v000 + dx * (v100 - v000),
+		            b = v010 + dx * (v110 - v010),
+		            c = v001 + dx * (v101 - v001),
+		            d = v011 + dx * (v111 - v011),
+		            ab = a + dy * (b - a),
+		            cd = c + dy * (d - c);
+		return ab + dz * (cd - ab);
+	}
+}
@@ -730,6 +730,8 @@ public class StitchingTEM {
 		public boolean remove_disconnected = false;
 		public float mean_factor = 2.5f;
 		public float min_R = 0.3f;
+		/** Solve the configuration with the {@link mpicbg.trakem2.align.SparseAffineSolver} before iterating. */
+		public boolean sparse_solver = false;
 
 		public PhaseCorrelationParam(
 				float cc_scale,
@@ -785,6 +787,7 @@ public class StitchingTEM {
 			gd.addNumericField("regression threshold (R):", min_R, 2);
 			gd.addCheckbox("hide disconnected", false);
 			gd.addCheckbox("remove disconnected", false);
+			gd.addCheckbox("use sparse solver", sparse_solver);
 			gd.showDialog();
 			if (gd.wasCanceled()) return false;
 			
@@ -794,6 +797,7 @@ public class StitchingTEM {
 			min_R = (float) gd.getNextNumber();
 			hide_disconnected = gd.getNextBoolean();
 			remove_disconnected = gd.getNextBoolean();
+			sparse_solver = gd.getNextBoolean();
 
 			return true;
 		}
@@ -941,10 +945,12 @@ public class StitchingTEM {
 		// Run optimization
 		if (fixed_tiles.isEmpty()) fixed_tiles.add(tiles.get(0));
 		// with default parameters
+		final Align.ParamOptimize po = new Align.ParamOptimize();
+		po.sparseSolver = param.sparse_solver;
 		boolean proceed = true;
 		while ( proceed )
 		{
-			Align.optimizeTileConfiguration( new Align.ParamOptimize(), tiles, fixed_tiles );
+			Align.optimizeTileConfiguration( po, tiles, fixed_tiles );
 			
 			/* get all transfer errors */
 			final ErrorStatistic e = new ErrorStatistic( tiles.size() + 1 );
@@ -0,0 +1,137 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.utils.Metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The permits to run tasks on one kind of resource, CPU or I/O, shared by all pools
+ * of the {@link ExecutorProvider}. A task takes permits before it runs and returns
+ * them when done. Waiting tasks are served by priority, and in order of arrival
+ * within a priority. Tasks of priority {@link Priority#INTERACTIVE} never wait,
+ * but their permits count, so that work of lower priority backs off while they run.
+ *
+ * Only the permits of threads that are runnable count as in use: a task that waits
+ * for another one to finish, or for a lock, is not using its share of the resource.
+ * This is what prevents a task that holds permits and waits on tasks that need
+ * permits from starving them.
+ */
+final class Budget
+{
+    /** How often waiting threads check whether any permit holder has blocked. */
+    static private final long CHECK_MS = 50;
+
+    static private final class Ticket implements Comparable< Ticket >
+    {
+        final Priority priority;
+        final long n;
+
+        Ticket( final Priority priority, final long n )
+        {
+            this.priority = priority;
+            this.n = n;
+        }
+
+        @Override
+        public int compareTo( final Ticket t )
+        {
+            final int c = priority.compareTo( t.priority );
+            return 0 != c ? c : ( n < t.n ? -1 : ( n > t.n ? 1 : 0 ) );
+        }
+    }
+
+    final String name;
+    private int permits;
+    /** The number of permits taken by each thread. */
+    private final HashMap< Thread, Integer > holders = new HashMap< Thread, Integer >();
+    private final PriorityQueue< Ticket > waiting = new PriorityQueue< Ticket >();
+    private final int[] n_waiting = new int[ Priority.values().length ];
+    private long next_ticket = 0;
+
+    private final Metrics.Histogram[] wait_ns = new Metrics.Histogram[ Priority.values().length ];
+
+    Budget( final String name, final int permits )
+    {
+        this.name = name;
+        this.permits = Math.max( 1, permits );
+        for ( final Priority p : Priority.values() )
+        {
+            wait_ns[ p.ordinal() ] = Metrics.histogram( "scheduler." + name + "." + p.key + ".wait.ns" );
+        }
+    }
+
+    synchronized void setPermits( final int permits )
+    {
+        this.permits = Math.max( 1, permits );
+        notifyAll();
+    }
+
+    synchronized int getPermits()
+    {
+        return permits;
+    }
+
+    /** The number of permits held by threads that are runnable. */
+    synchronized int getRunning()
+    {
+        int n = 0;
+        for ( final Map.Entry< Thread, Integer > e : holders.entrySet() )
+        {
+            if ( Thread.State.RUNNABLE == e.getKey().getState() ) n += e.getValue();
+        }
+        return n;
+    }
+
+    synchronized int getWaiting( final Priority priority )
+    {
+        return n_waiting[ priority.ordinal() ];
+    }
+
+    /**
+     * Take {@param weight} permits for the current thread, waiting if necessary.
+     * If interrupted while waiting, returns without permits and with the interrupted
+     * status set, so that the task runs and sees the interruption.
+     */
+    synchronized void enter( final Priority priority, final int weight )
+    {
+        final int w = Math.max( 1, Math.min( weight, permits ) );
+        if ( Priority.INTERACTIVE == priority || ( waiting.isEmpty() && getRunning() + w <= permits ) )
+        {
+            holders.put( Thread.currentThread(), w );
+            return;
+        }
+        final long t0 = System.nanoTime();
+        final Ticket ticket = new Ticket( priority, next_ticket++ );
+        waiting.add( ticket );
+        ++n_waiting[ priority.ordinal() ];
+        try
+        {
+            while ( waiting.peek() != ticket || getRunning() + Math.min( w, permits ) > permits )
+            {
+                wait( CHECK_MS );
+            }
+            holders.put( Thread.currentThread(), w );
+        }
+        catch ( final InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            waiting.remove( ticket );
+            --n_waiting[ priority.ordinal() ];
+            wait_ns[ priority.ordinal() ].recordSince( t0 );
+            // The next in line may be able to run as well
+            notifyAll();
+        }
+    }
+
+    /** Return the permits of the current thread, if any. */
+    synchronized void exit()
+    {
+        if ( null != holders.remove( Thread.currentThread() ) ) notifyAll();
+    }
+}
@@ -0,0 +1,39 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A scheduled thread pool whose tasks take one permit from a {@link Budget} before running.
+ * See {@link ExecutorProvider#newScheduledExecutorService(String, Priority, ExecutorProvider.Resource)}.
+ */
+final class BudgetedScheduledThreadPoolExecutor extends ScheduledThreadPoolExecutor
+{
+    private final Budget budget;
+    private final Priority priority;
+
+    BudgetedScheduledThreadPoolExecutor( final String name, final int nThreads, final Priority priority, final Budget budget )
+    {
+        super( nThreads, ExecutorProvider.newThreadFactory( name, priority ) );
+        this.budget = budget;
+        this.priority = priority;
+    }
+
+    @Override
+    protected void beforeExecute( final Thread t, final Runnable r )
+    {
+        super.beforeExecute( t, r );
+        // Cancelled tasks won't run: don't wait for permits
+        if ( r instanceof Future && ( ( Future< ? > )r ).isCancelled() ) return;
+        budget.enter( priority, 1 );
+    }
+
+    @Override
+    protected void afterExecute( final Runnable r, final Throwable t )
+    {
+        budget.exit();
+        super.afterExecute( r, t );
+    }
+}
@@ -0,0 +1,47 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed thread pool whose tasks take their permits from a {@link Budget} before running.
+ * See {@link ExecutorProvider#newExecutorService(String, int, Priority, ExecutorProvider.Resource)}.
+ */
+final class BudgetedThreadPoolExecutor extends ThreadPoolExecutor
+{
+    private final Budget budget;
+    private final Priority priority;
+    /** Permits taken by each task. */
+    private final int weight;
+
+    BudgetedThreadPoolExecutor( final String name, final int nThreads, final Priority priority, final Budget budget, final int weight )
+    {
+        super( nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue< Runnable >(),
+                ExecutorProvider.newThreadFactory( name, priority ) );
+        this.budget = budget;
+        this.priority = priority;
+        this.weight = weight;
+    }
+
+    @Override
+    protected void beforeExecute( final Thread t, final Runnable r )
+    {
+        super.beforeExecute( t, r );
+        // Cancelled tasks won't run, nor will those already run by whoever waits for them:
+        // don't wait for permits
+        if ( r instanceof ExecutorProvider.Claimable && !( ( ExecutorProvider.Claimable< ? > )r ).claimForPool() ) return;
+        if ( r instanceof Future && ( ( Future< ? > )r ).isCancelled() ) return;
+        budget.enter( priority, weight );
+    }
+
+    @Override
+    protected void afterExecute( final Runnable r, final Throwable t )
+    {
+        budget.exit();
+        super.afterExecute( r, t );
+    }
+}
@@ -4,10 +4,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
- * Default Executor Provider, which creates ExecutorServices from java.util.concurrent.Executors
+ * Default Executor Provider, which creates ExecutorServices of priority {@link ExecutorProvider.Priority#BATCH}
+ * whose tasks take as many CPU permits as threads they use.
  *
  * @author Larry Lindsey
  */
@@ -44,7 +44,8 @@ public class DefaultExecutorProvider extends ExecutorProvider
                     + nThreads + " threads");
             int nCpu = Runtime.getRuntime().availableProcessors();
             int poolSize = nCpu / nThreads;
-            es = Executors.newFixedThreadPool(poolSize < 1 ? 1 : poolSize);
+            es = newExecutorService(identifier, poolSize < 1 ? 1 : poolSize,
+                    Priority.BATCH, Resource.CPU, nThreads);
             serviceMap.get(identifier).put(nThreads, es);
         }
         else
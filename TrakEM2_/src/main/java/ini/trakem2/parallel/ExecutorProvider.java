@@ -1,12 +1,108 @@
 package ini.trakem2.parallel;
 
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Allow the source ExecutorServices in TrakEM2 to be configured.
+ *
+ * All thread pools of TrakEM2 are made here, and share two budgets of permits: one for the
+ * CPU, with as many permits as processors, and one for disk I/O. Each pool has a {@link Priority},
+ * and when a budget is exhausted its permits go to waiting tasks of higher priority first.
+ * See {@link Budget}. The budgets can be set with the system properties "trakem2.scheduler.cpu"
+ * and "trakem2.scheduler.io", or with {@link #setBudget(Resource, int)}.
+ *
+ * Besides the gauges of each named pool (see {@link Metrics#executor(String, ThreadPoolExecutor)}),
+ * there are gauges "scheduler.cpu.running" and "scheduler.io.running" for the permits in use,
+ * "scheduler.&lt;priority&gt;.waiting" for the tasks waiting for permits, and histograms
+ * "scheduler.&lt;budget&gt;.&lt;priority&gt;.wait.ns" of the time waited.
  */
 public abstract class ExecutorProvider
 {
+    /** From highest to lowest. */
+    public enum Priority
+    {
+        /** Painting and anything else the user is waiting for. Never waits for permits. */
+        INTERACTIVE( "interactive", Thread.NORM_PRIORITY ),
+        /** Loading images that will likely be painted soon. */
+        PREFETCH( "prefetch", Thread.NORM_PRIORITY - 1 ),
+        /** Regenerating mipmaps and other data derived from the images. */
+        REGENERATION( "regeneration", Thread.NORM_PRIORITY - 1 ),
+        /** Alignment, export, import, analysis and other long-running tasks. */
+        BATCH( "batch", Thread.MIN_PRIORITY + 1 );
+
+        final String key;
+        final int thread_priority;
+
+        Priority( final String key, final int thread_priority )
+        {
+            this.key = key;
+            this.thread_priority = thread_priority;
+        }
+    }
+
+    /** The resource that the tasks of a pool mostly wait on. */
+    public enum Resource
+    {
+        CPU, IO
+    }
+
+    static private final Budget cpu = new Budget( "cpu",
+            Integer.getInteger( "trakem2.scheduler.cpu", Runtime.getRuntime().availableProcessors() ) );
+    static private final Budget io = new Budget( "io",
+            Integer.getInteger( "trakem2.scheduler.io", Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) ) );
+
+    /** The Priority of the pool that runs the current thread, if any. */
+    static private final ThreadLocal< Priority > current = new ThreadLocal< Priority >();
+
+    /** Pools shared by all, one per Priority, created when first needed. */
+    static private final ThreadPoolExecutor[] shared = new ThreadPoolExecutor[ Priority.values().length ];
+
+    static
+    {
+        for ( final Budget b : new Budget[]{ cpu, io } )
+        {
+            Metrics.gauge( "scheduler." + b.name + ".permits", new Metrics.Gauge()
+            {
+                @Override
+                public long get()
+                {
+                    return b.getPermits();
+                }
+            } );
+            Metrics.gauge( "scheduler." + b.name + ".running", new Metrics.Gauge()
+            {
+                @Override
+                public long get()
+                {
+                    return b.getRunning();
+                }
+            } );
+        }
+        for ( final Priority p : Priority.values() )
+        {
+            Metrics.gauge( "scheduler." + p.key + ".waiting", new Metrics.Gauge()
+            {
+                @Override
+                public long get()
+                {
+                    return cpu.getWaiting( p ) + io.getWaiting( p );
+                }
+            } );
+        }
+    }
 
     private static ExecutorProvider localProvider = new DefaultExecutorProvider();
     private static ExecutorProvider provider = localProvider;
@@ -72,4 +168,294 @@ public abstract class ExecutorProvider
                                                float fractionThreads);
 
     public abstract boolean isLocal();
+
+    static private Budget budget( final Resource resource )
+    {
+        return Resource.IO == resource ? io : cpu;
+    }
+
+    /** Set the number of permits of the CPU or the I/O budget; at least 1. */
+    public static void setBudget( final Resource resource, final int permits )
+    {
+        budget( resource ).setPermits( permits );
+    }
+
+    /**
+     * The Priority of the pool whose thread calls this method, or the one declared with
+     * {@link #setPriority(Priority)}, or else {@link Priority#BATCH}: threads not made here,
+     * such as the event dispatch thread and those of a {@link ini.trakem2.utils.Bureaucrat},
+     * mostly start long-running tasks.
+     */
+    public static Priority getPriority()
+    {
+        final Priority p = current.get();
+        return null == p ? Priority.BATCH : p;
+    }
+
+    /**
+     * Declare the Priority of the work of the calling thread, which was not made here,
+     * such as {@link Priority#INTERACTIVE} for the threads that paint.
+     */
+    public static void setPriority( final Priority priority )
+    {
+        current.set( priority );
+    }
+
+    /** Daemon threads in the ThreadGroup of the calling thread, named after the pool. */
+    static ThreadFactory newThreadFactory( final String name, final Priority priority )
+    {
+        final AtomicInteger ai = new AtomicInteger( 0 );
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( final Runnable r )
+            {
+                final ThreadGroup tg = Thread.currentThread().getThreadGroup();
+                final Thread t = new CachingThread( tg, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        current.set( priority );
+                        r.run();
+                    }
+                }, name + "-" + ai.incrementAndGet() );
+                t.setDaemon( true );
+                t.setPriority( priority.thread_priority );
+                return t;
+            }
+        };
+    }
+
+    /**
+     * A new fixed thread pool whose tasks take one permit of the {@param resource} budget
+     * before running. The caller owns the pool and must shut it down when no longer needed.
+     * @param name Prefix for the names of the threads and of the metrics of the pool.
+     */
+    public static ThreadPoolExecutor newExecutorService( final String name, final int nThreads,
+                                                         final Priority priority, final Resource resource )
+    {
+        return newExecutorService( name, nThreads, priority, resource, 1 );
+    }
+
+    /** @param weight The number of permits that each task takes, for tasks that use several threads. */
+    static ThreadPoolExecutor newExecutorService( final String name, final int nThreads,
+                                                  final Priority priority, final Resource resource, final int weight )
+    {
+        final ThreadPoolExecutor exec = new BudgetedThreadPoolExecutor( name, Math.max( 1, nThreads ), priority, budget( resource ), weight );
+        Metrics.executor( name, exec );
+        return exec;
+    }
+
+    /** A new single-threaded scheduled pool, like {@link #newExecutorService(String, int, Priority, Resource)}. */
+    public static ScheduledExecutorService newScheduledExecutorService( final String name,
+                                                                       final Priority priority, final Resource resource )
+    {
+        final BudgetedScheduledThreadPoolExecutor exec = new BudgetedScheduledThreadPoolExecutor( name, 1, priority, budget( resource ) );
+        Metrics.executor( name, exec );
+        return exec;
+    }
+
+    /**
+     * A pool with as many threads as processors, shared by all, for CPU-bound tasks that are
+     * parts of a larger one. Must not be shut down. Tasks in this pool should not wait for other
+     * tasks submitted to it, other than via {@link #invokeAll(Priority, List)} or {@link #runParallel(int, Runnable)}.
+     */
+    public static ExecutorService getSharedExecutorService( final Priority priority )
+    {
+        synchronized ( shared )
+        {
+            ThreadPoolExecutor exec = shared[ priority.ordinal() ];
+            if ( null == exec )
+            {
+                exec = newExecutorService( "shared-" + priority.key, Runtime.getRuntime().availableProcessors(), priority, Resource.CPU );
+                shared[ priority.ordinal() ] = exec;
+            }
+            return exec;
+        }
+    }
+
+    /**
+     * Run all tasks in the shared pool of the given priority and wait for them, returning their
+     * results in the same order. Tasks that haven't started by the time their result is needed
+     * are run in the calling thread, so this never waits for a busy pool and can be nested.
+     * If any task fails, the remaining ones are cancelled, and those already running are
+     * interrupted and waited for before the failure is rethrown.
+     */
+    public static < T > List< T > invokeAll( final Priority priority, final List< ? extends Callable< T > > tasks )
+            throws InterruptedException, ExecutionException
+    {
+        final ExecutorService exec = getSharedExecutorService( priority );
+        final ArrayList< Claimable< T > > claimables = new ArrayList< Claimable< T > >( tasks.size() );
+        try
+        {
+            for ( final Callable< T > task : tasks )
+            {
+                final Claimable< T > c = new Claimable< T >( task );
+                claimables.add( c );
+                exec.execute( c );
+            }
+            final ArrayList< T > results = new ArrayList< T >( tasks.size() );
+            for ( final Claimable< T > c : claimables )
+            {
+                results.add( getOrRun( c ) );
+            }
+            return results;
+        }
+        finally
+        {
+            cancelAndJoin( claimables );
+        }
+    }
+
+    /**
+     * Run {@param task} in {@param n} threads at once, one of them the calling thread and the others
+     * from the shared pool of the current {@link #getPriority()}, and wait until all copies finish.
+     * Meant for tasks that take their work items from a shared counter until there are none left.
+     * An exception thrown by any copy is rethrown here, once all other copies have finished.
+     */
+    public static void runParallel( final int n, final Runnable task ) throws InterruptedException
+    {
+        runParallel( getPriority(), n, task );
+    }
+
+    /** Like {@link #runParallel(int, Runnable)}, in the shared pool of the given priority. */
+    public static void runParallel( final Priority priority, final int n, final Runnable task ) throws InterruptedException
+    {
+        final ExecutorService exec = getSharedExecutorService( priority );
+        final Callable< Object > c = new Callable< Object >()
+        {
+            @Override
+            public Object call()
+            {
+                task.run();
+                return null;
+            }
+        };
+        final List< Claimable< Object > > claimables = new ArrayList< Claimable< Object > >( Math.max( 0, n - 1 ) );
+        try
+        {
+            for ( int i = 1; i < n; ++i )
+            {
+                final Claimable< Object > cl = new Claimable< Object >( c );
+                claimables.add( cl );
+                exec.execute( cl );
+            }
+            task.run();
+            for ( final Claimable< Object > cl : claimables )
+            {
+                // Copies that didn't start would find no work left: don't run them
+                if ( !cl.claim() ) cl.get();
+            }
+        }
+        catch ( final ExecutionException ee )
+        {
+            final Throwable t = ee.getCause();
+            if ( t instanceof RuntimeException ) throw ( RuntimeException )t;
+            if ( t instanceof Error ) throw ( Error )t;
+            throw new RuntimeException( t );
+        }
+        finally
+        {
+            cancelAndJoin( claimables );
+        }
+    }
+
+    /**
+     * A task that runs once at most, either in a pool thread or in the thread that waits for it,
+     * whichever claims it first. Pool threads claim it before taking permits from the budget
+     * (see {@link BudgetedThreadPoolExecutor}), so that a task already run elsewhere doesn't
+     * occupy a permit. Cancelling a Future doesn't tell whether its task already started,
+     * hence the claim, and doesn't wait for it to finish, hence {@link #join()}.
+     */
+    static final class Claimable< T > extends FutureTask< T >
+    {
+        static private final int FREE = 0, CALLER = 1, POOL = 2;
+
+        final Callable< T > task;
+        private final AtomicInteger owner = new AtomicInteger( FREE );
+        private final CountDownLatch done = new CountDownLatch( 1 );
+
+        Claimable( final Callable< T > task )
+        {
+            super( task );
+            this.task = task;
+        }
+
+        /** Claim the task for the calling thread, which is not a pool thread. */
+        boolean claim()
+        {
+            if ( !owner.compareAndSet( FREE, CALLER ) ) return false;
+            cancel( false );
+            return true;
+        }
+
+        /** Claim the task for the pool thread about to run it; returns false if it was run elsewhere. */
+        boolean claimForPool()
+        {
+            return owner.compareAndSet( FREE, POOL );
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                // Claimed already in BudgetedThreadPoolExecutor.beforeExecute, if run there
+                if ( claimForPool() || POOL == owner.get() ) super.run();
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+        /** Wait until a pool thread that claimed the task is done with it. Not interruptible. */
+        void join()
+        {
+            if ( POOL != owner.get() ) return;
+            boolean interrupted = false;
+            while ( true )
+            {
+                try
+                {
+                    done.await();
+                    break;
+                }
+                catch ( final InterruptedException ie )
+                {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Cancel the tasks that haven't started, and interrupt and wait for those that have. */
+    static private void cancelAndJoin( final List< ? extends Claimable< ? > > claimables )
+    {
+        for ( final Claimable< ? > c : claimables )
+        {
+            if ( !c.claim() ) c.cancel( true );
+        }
+        for ( final Claimable< ? > c : claimables )
+        {
+            c.join();
+        }
+    }
+
+    /** The result of the task, running it here instead if it hasn't started yet. */
+    static private < T > T getOrRun( final Claimable< T > c )
+            throws InterruptedException, ExecutionException
+    {
+        if ( !c.claim() ) return c.get();
+        try
+        {
+            return c.task.call();
+        }
+        catch ( final Exception e )
+        {
+            throw new ExecutionException( e );
+        }
+    }
 }
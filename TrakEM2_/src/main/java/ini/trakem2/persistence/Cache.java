@@ -4,6 +4,7 @@ import ij.ImagePlus;
 import ij.io.FileInfo;
 import ini.trakem2.display.MipMapImage;
 import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.TypedHashMap;
 import ini.trakem2.utils.Utils;
 
@@ -157,6 +158,13 @@ public class Cache {
 	/** Keep a table of loaded ImagePlus. */
 	private final TypedHashMap<String,ImagePlusUsers> imps = new TypedHashMap<String,ImagePlusUsers>();
 	
+	/** Hits, misses and evictions of images by level, for all caches; higher levels are counted in the last. */
+	static private final int METRIC_LEVELS = 16;
+	static private final Metrics.Counter[] hits = Metrics.counters("cache.hits.level", METRIC_LEVELS),
+	                                       misses = Metrics.counters("cache.misses.level", METRIC_LEVELS),
+	                                       evictions = Metrics.counters("cache.evictions.level", METRIC_LEVELS);
+	static private final Metrics.Counter imp_evictions = Metrics.counter("cache.evictions.imageplus");
+	
 	static private final int[] PIXEL_SIZE = new int[]{1, 2, 4, 1, 4}; // GRAY0, GRAY16, GRAY32, COLOR_256 and COLOR_RGB
 	static private final int OVERHEAD = 1024; // in bytes: what a LUT would take (256 * 3) plus some extra
 	
@@ -263,8 +271,11 @@ public class Cache {
 
 	public final Image get(final long id, final int level) {
 		final Pyramid p = pyramids.getValue(id);
-		if (null == p) return null;
-		if (null == p || null == p.images[level]) return null;
+		if (null == p || null == p.images[level]) {
+			misses[Math.min(level, METRIC_LEVELS -1)].inc();
+			return null;
+		}
+		hits[Math.min(level, METRIC_LEVELS -1)].inc();
 		
 		update(p);
 		
@@ -558,6 +569,7 @@ public class Cache {
 						imps.removeEntry(path);
 						//
 						final long s = p.replace(null); // the imp may need cleanup
+						imp_evictions.inc();
 						size -= s;
 						addBytes(s);
 						count--;
@@ -574,6 +586,7 @@ public class Cache {
 				for (int i=0; i<p.images.length && p.n_images > 0; i++) {
 					if (null == p.images[i]) continue;
 					final long s = p.replace(null, i);
+					evictions[Math.min(i, METRIC_LEVELS -1)].inc();
 					size -= s;
 					addBytes(s);
 					count--;
@@ -609,6 +622,7 @@ public class Cache {
 						imps.removeEntry(path);
 						//
 						final long s = p.replace(null);
+						imp_evictions.inc();
 						size -= s;
 						addBytes(s);
 						p.replace(null); // the imp may need cleanup
@@ -627,6 +641,7 @@ public class Cache {
 				for (int i=0; i<p.images.length; i++) {
 					if (null == p.images[i]) continue;
 					final long s = p.replace(null, i);
+					evictions[Math.min(i, METRIC_LEVELS -1)].inc();
 					size -= s;
 					addBytes(s);
 					n--;
@@ -47,12 +47,17 @@ import ini.trakem2.display.Patch;
 import ini.trakem2.display.Stack;
 import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.P;
+import ini.trakem2.imaging.RoiImageSource;
 import ini.trakem2.io.ImageSaver;
 import ini.trakem2.io.RagMipMaps;
 import ini.trakem2.io.RawMipMaps;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Metrics;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
@@ -80,7 +85,6 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -356,24 +360,24 @@ public final class FSLoader extends Loader {
 		if (null != regenerator && !regenerator.isShutdown()) {
 			regenerator.shutdown();
 		}
-		regenerator = Utils.newFixedThreadPool(Math.max(1, n_threads), "regenerator");
+		regenerator = ExecutorProvider.newExecutorService("regenerator", n_threads, Priority.REGENERATION, Resource.CPU);
 		Utils.logAll("Restarted mipmap Executor Service for all projects with " + n_threads + " threads.");
 	}
 
 	static private void startStaticServices() {
 		// Up to nStaticServiceThreads for regenerator and repainter
 		if (null == regenerator || regenerator.isShutdown()) {
-			regenerator = Utils.newFixedThreadPool(1, "regenerator");
+			regenerator = ExecutorProvider.newExecutorService("regenerator", 1, Priority.REGENERATION, Resource.CPU);
 		}
 		if (null == repainter || repainter.isShutdown()) {
-			repainter = Utils.newFixedThreadPool(nStaticServiceThreads, "repainter"); // for SnapshotPanel
+			repainter = ExecutorProvider.newExecutorService("repainter", nStaticServiceThreads, Priority.INTERACTIVE, Resource.CPU); // for SnapshotPanel
 		}
 		// Maximum 2 threads for removing files
 		if (null == remover || remover.isShutdown()) {
-			remover = Utils.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), "mipmap remover");
+			remover = ExecutorProvider.newExecutorService("mipmap remover", Math.max(2, Runtime.getRuntime().availableProcessors()), Priority.BATCH, Resource.IO);
 		}
 		// Just one thread for autosaver
-		if (null == autosaver || autosaver.isShutdown()) autosaver = Executors.newScheduledThreadPool(1);
+		if (null == autosaver || autosaver.isShutdown()) autosaver = ExecutorProvider.newScheduledExecutorService("autosaver", Priority.BATCH, Resource.IO);
 	}
 
 	/** Shutdown the various thread pools and disactivate services in general. */
@@ -436,6 +440,7 @@ public final class FSLoader extends Loader {
 			if (null != dir_masks) Utils.removePrefixedFiles(f, "trakem2.masks", null);
 			Utils.removePrefixedFiles(f, "features.ser", null);
 			Utils.removePrefixedFiles(f, "pointmatches.ser", null);
+			Utils.removePrefixedFiles(f, "stacks", null);
 			// Only if empty:
 			if (f.isDirectory()) {
 				try {
@@ -1650,14 +1655,14 @@ public final class FSLoader extends Loader {
 			}
 			
 			if (Loader.AREA_DOWNSAMPLING == resizing_mode) {
-				long t0 = System.currentTimeMillis();
+				final long t0 = System.nanoTime();
 				final ImageBytes[] b = DownsamplerMipMaps.create(patch, type, ip, alpha_mask, outside_mask);
-				long t1 = System.currentTimeMillis();
+				final long t1 = System.nanoTime();
 				for (int i=0; i<b.length; ++i) {
 					mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f);
 				}
-				long t2 = System.currentTimeMillis();
-				System.out.println("MipMaps with area downsampling: creation took " + (t1 - t0) + "ms, saving took " + (t2 - t1) + "ms, total: " + (t2 - t0) + "ms\n");
+				downsampling_time.record(t1 - t0);
+				saving_time.recordSince(t1);
 			} else if (Loader.GAUSSIAN == resizing_mode) {
 				if (ImagePlus.COLOR_RGB == type) {
 					// TODO releaseToFit proper
@@ -1855,15 +1860,20 @@ public final class FSLoader extends Loader {
 	/** Remove the file, if it exists, with serialized features for patch.
 	 * Returns true when no such file or on success; false otherwise. */
 	public boolean removeSerializedFeatures(final Patch patch) {
-		final File f = new File(new StringBuilder(getUNUIdFolder()).append("features.ser/").append(FSLoader.createIdPath(Long.toString(patch.getId()), "features", ".ser")).toString());
-		if (f.exists()) {
-			try {
-				return f.delete();
-			} catch (Exception e) {
-				IJError.print(e);
-				return false;
+		boolean success = true;
+		// Both binary files and serialized files of earlier versions
+		for (final String ext : new String[]{".bin", ".ser"}) {
+			final File f = new File(new StringBuilder(getUNUIdFolder()).append("features.ser/").append(FSLoader.createIdPath(Long.toString(patch.getId()), "features", ext)).toString());
+			if (f.exists()) {
+				try {
+					if (!f.delete()) success = false;
+				} catch (Exception e) {
+					IJError.print(e);
+					success = false;
+				}
 			}
-		} else return true;
+		}
+		return success;
 	}
 
 	/** Remove the file, if it exists, with serialized point matches for patch.
@@ -1906,11 +1916,13 @@ public final class FSLoader extends Loader {
 			if (IJ.isWindows()) path = path.replace('\\', '/');
 			File f = new File(path);
 			// Check that its a pointmatches file
-			int idot = path.lastIndexOf(".pointmatches.ser");
+			int idot = path.lastIndexOf(".pointmatches.");
 			if (idot < 0) {
-				Utils.log2("Not a pointmatches.ser file: can't process " + path);
+				Utils.log2("Not a pointmatches file: can't process " + path);
 				continue;
 			}
+			// Either ".bin" or, for files of earlier versions, ".ser"
+			final String ext = path.substring(idot + 13);
 
 			// Find the root
 			int ifolder = path.indexOf("pointmatches.ser/");
@@ -1931,7 +1943,7 @@ public final class FSLoader extends Loader {
 				Utils.log2("No underscore: can't process " + path);
 				continue;
 			}
-			name = FSLoader.createIdPath(new StringBuilder().append(name.substring(iunderscore+1)).append('_').append(name.substring(0, iunderscore)).toString(), "pointmatches", ".ser");
+			name = FSLoader.createIdPath(new StringBuilder().append(name.substring(iunderscore+1)).append('_').append(name.substring(0, iunderscore)).toString(), "pointmatches", ext);
 
 			f = new File(dir + name);
 			if (f.exists()) {
@@ -2303,29 +2315,33 @@ public final class FSLoader extends Loader {
 		//releaseToFit(n_bytes * 8); // eight times, for the jpeg decoder alloc/dealloc at least 2 copies, and with alpha even one more
 		// TODO the x8 is overly exaggerated
 		
+		final long t0 = System.nanoTime();
+		final Image img;
 		if ( patch.hasAlphaChannel() ) {
-			final Image img = mmio.open( path );
-			return img == null ? null : new MipMapImage( img, scale, scale );
+			img = mmio.open( path );
 		} else if ( patch.paintsWithFalseColor() ) {
 			// AKA Patch has a LUT or is LUT image like a GIF
-			final Image img = mmio.open( path );
-			return img == null ? null : new MipMapImage( img, scale, scale ); // considers c_alphas
+			img = mmio.open( path ); // considers c_alphas
 		} else {
-			final Image img;
 			switch (patch.getType()) {
 				case ImagePlus.GRAY16:
 				case ImagePlus.GRAY8:
 				case ImagePlus.GRAY32:
 					img = mmio.openGrey( path ); // ImageSaver.openGreyJpeg(path);
-					return img == null ? null : new MipMapImage( img, scale, scale );
+					break;
 				default:
 					// For color images: (considers URL as well)
-					img = mmio.open( path );
-					return img == null ? null : new MipMapImage( img, scale, scale ); // considers c_alphas
+					img = mmio.open( path ); // considers c_alphas
+					break;
 			}
 		}
+		fetch_times[Math.min(level, fetch_times.length -1)].recordSince(t0);
+		return img == null ? null : new MipMapImage( img, scale, scale );
 	}
 
+	/** Time to read a mipmap file, in nanoseconds, by level; higher levels are counted in the last. */
+	static private final Metrics.Histogram[] fetch_times = Metrics.histograms("mipmaps.fetch.ns.level", 16);
+
 	/** Will NOT free memory. */
 	private final MipMapImage fetchMipMapAWT(final Patch patch, final int level, final long n_bytes, final int retries) {
 		if (null == dir_mipmaps) {
@@ -2373,6 +2389,18 @@ public final class FSLoader extends Loader {
 	}
 
 	static private AtomicInteger n_regenerating = new AtomicInteger(0);
+	static private final Metrics.Counter n_regenerated = Metrics.counter("mipmaps.regenerated");
+	static private final Metrics.Histogram regeneration_time = Metrics.histogram("mipmaps.regeneration.ns");
+	static private final Metrics.Histogram downsampling_time = Metrics.histogram("mipmaps.downsampling.ns");
+	static private final Metrics.Histogram saving_time = Metrics.histogram("mipmaps.saving.ns");
+	static {
+		Metrics.gauge("mipmaps.regeneration.queue", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return n_regenerating.get();
+			}
+		});
+	}
 	static private ExecutorService regenerator = null;
 	static private ExecutorService remover = null;
 	static public ExecutorService repainter = null;
@@ -2410,6 +2438,9 @@ public final class FSLoader extends Loader {
 	@Override
 	public final Future<Boolean> regenerateMipMaps(final Patch patch) {
 
+		// Flat tiles rendered from the old pixels are no longer valid
+		RoiImageSource.invalidate(patch);
+
 		if (!isMipMapsRegenerationEnabled()) {
 			// If not enabled, the cache must be flushed
 			flushMipMaps(patch.getId());
@@ -2438,7 +2469,10 @@ public final class FSLoader extends Loader {
 							// synchronize with the removal:
 							if (null != removing) removing.get();
 							Utils.showStatus(new StringBuilder("Regenerating mipmaps (").append(n_regenerating.get()).append(" to go)").toString());
+							final long t0 = System.nanoTime();
 							b = generateMipMaps(patch); // will remove the Future from the regenerating_mipmaps table, under proper gm_lock synchronization
+							regeneration_time.recordSince(t0);
+							if (b) n_regenerated.inc();
 							Display.repaint(patch.getLayer());
 							Display.updatePanel(patch.getLayer(), patch);
 							Utils.showStatus("");
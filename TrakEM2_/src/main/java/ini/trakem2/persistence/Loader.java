@@ -22,6 +22,9 @@ Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
 
 package ini.trakem2.persistence;
 
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Worker;
@@ -120,8 +123,8 @@ import amira.AmiraMeshDecoder;
 
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.ImageFilter;
-import mpi.fruitfly.general.MultiThreading;
 import mpicbg.trakem2.transform.ExportUnsignedShort;
+import mpicbg.trakem2.transform.TransformMeshCache;
 import mpicbg.trakem2.util.Triple;
 
 import java.util.concurrent.Callable;
@@ -545,6 +548,35 @@ abstract public class Loader {
 		for (final Loader lo : new ArrayList<Loader>(v_loaders)) {
 			Utils.log2("Loader " + (i++) + " : mawts: " + lo.mawts.size());
 		}
+		Utils.log2(Metrics.report("cache."));
+		Utils.log2(TransformMeshCache.report());
+	}
+
+	static {
+		Metrics.gauge("cache.bytes", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				long b = 0;
+				for (final Loader lo : new ArrayList<Loader>(v_loaders)) b += lo.mawts.getBytes();
+				return b;
+			}
+		});
+		Metrics.gauge("cache.max_bytes", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				long b = 0;
+				for (final Loader lo : new ArrayList<Loader>(v_loaders)) b += lo.mawts.getMaxBytes();
+				return b;
+			}
+		});
+		Metrics.gauge("cache.images", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				long n = 0;
+				for (final Loader lo : new ArrayList<Loader>(v_loaders)) n += lo.mawts.size();
+				return n;
+			}
+		});
 	}
 
 	public void printCache() {
@@ -2126,7 +2158,7 @@ while (it.hasNext()) {
 							np = np / 2;
 							break;
 					}
-					final ExecutorService ex = Utils.newFixedThreadPool(np, "import-images");
+					final ExecutorService ex = ExecutorProvider.newExecutorService("import-images", np, Priority.BATCH, Resource.IO);
 					final List<Future<?>> imported = new ArrayList<Future<?>>();
 					final Worker wo = this;
 
@@ -2389,9 +2421,7 @@ while (it.hasNext()) {
 								if (!homogenize_contrast) {
 									fus.add(regenerateMipMaps(patch));
 								}
-								synchronized (layer) {
-									layer.add(patch, true);
-								}
+								layer.add(patch, true);
 								wo.setTaskName("Imported " + (n_imported.incrementAndGet() + 1) + "/" + lines.length);
 							}
 						}));
@@ -2510,22 +2540,20 @@ while (it.hasNext()) {
 		recreateBuckets(lall);
 	}
 
-	/** Recreate buckets for each Layer, one thread per layer, in as many threads as CPUs. */
+	/** Recreate buckets for each Layer, one task per layer, in as many threads as CPUs. */
 	public void recreateBuckets(final Layer[] la) {
 		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = MultiThreading.newThreads();
-
-		for (int ithread = 0; ithread < threads.length; ++ithread) {
-			threads[ithread] = new Thread() {
+		try {
+			ExecutorProvider.runParallel(Runtime.getRuntime().availableProcessors(), new Runnable() {
 				public void run() {
-					setPriority(Thread.NORM_PRIORITY);
 					for (int i = ai.getAndIncrement(); i < la.length; i = ai.getAndIncrement()) {
 						la[i].recreateBuckets();
 					}
 				}
-			};
+			});
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
-		MultiThreading.startAndJoin(threads);
 	}
 
 	private double getMeanOfRange(ImageStatistics st, double min, double max) {
@@ -3176,7 +3204,7 @@ while (it.hasNext()) {
 
 					int scale_pow = 0;
 					int n_et = n_edge_tiles;
-					ExecutorService exe = Utils.newFixedThreadPool("export-for-web");
+					ExecutorService exe = ExecutorProvider.newExecutorService("export-for-web", Runtime.getRuntime().availableProcessors(), Priority.BATCH, Resource.CPU);
 					ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
 					try {
 						while (n_et >= best[1]) {
@@ -3423,9 +3451,7 @@ while (it.hasNext()) {
 					}
 					Patch p = importImage(layer.getProject(), x, y, path, synch_mipmap_generation);
 					if (null != p) {
-						synchronized (layer) {
-							layer.add(p);
-						}
+						layer.add(p);
 						layer.getParent().enlargeToFit(p, LayerSet.NORTHWEST);
 					}
 					////
@@ -4661,14 +4687,14 @@ while (it.hasNext()) {
 		} else if (num_preloader_threads > 4) {
 			Utils.log("WARNING: setting preloader threads to more than the recommended maximum of " + Math.min(4, Runtime.getRuntime().availableProcessors() -1) + ": " + num_preloader_threads);
 		}
-		preloader = Utils.newFixedThreadPool(num_preloader_threads);
+		preloader = ExecutorProvider.newExecutorService("preloader", num_preloader_threads, Priority.PREFETCH, Resource.IO);
 	}
 	
 	/** Uses maximum 4 concurrent threads: higher thread number does not improve performance. */
 	static public final void setupPreloader(final ControlWindow master) {
 		if (num_preloader_threads < 1) return;
 		if (null == preloader) {
-			preloader = Utils.newFixedThreadPool(num_preloader_threads, "preloader");
+			preloader = ExecutorProvider.newExecutorService("preloader", num_preloader_threads, Priority.PREFETCH, Resource.IO);
 		}
 	}
  
@@ -4962,7 +4988,7 @@ while (it.hasNext()) {
 	public String getParentFolder() { return null; }
 	
 	// Will be shut down by Loader.destroy()
-	private final ExecutorService exec = Utils.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), "loader-do-later");
+	private final ExecutorService exec = ExecutorProvider.newExecutorService("loader-do-later", Runtime.getRuntime().availableProcessors(), Priority.INTERACTIVE, Resource.CPU);
 	
 	public < T > Future< T > doLater( final Callable< T > fn ) {
 		return exec.submit( fn );
@@ -5014,7 +5040,7 @@ while (it.hasNext()) {
 
 	/** Returns an ImageStack, one slice per region. */
 	public<I> ImagePlus createFlyThrough(final List<? extends Region<I>> regions, final double magnification, final int type, final String dir) {
-		final ExecutorService ex = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "fly-through");
+		final ExecutorService ex = ExecutorProvider.newExecutorService("fly-through", Runtime.getRuntime().availableProcessors(), Priority.BATCH, Resource.CPU);
 		List<Future<ImagePlus>> fus = new ArrayList<Future<ImagePlus>>();
 		for (final Region<I> r : regions) {
 			fus.add(ex.submit(new Callable<ImagePlus>() {
@@ -3,6 +3,9 @@ package ini.trakem2.persistence;
 import ini.trakem2.Project;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
@@ -81,7 +84,7 @@ public class StaleFiles {
 		final LinkedList<File> subdirs = new LinkedList<File>();
 		subdirs.add(new File(topDir));
 		final AtomicInteger counter = new AtomicInteger(0);
-		final ExecutorService exec = Utils.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), "Stale-file-remover");
+		final ExecutorService exec = ExecutorProvider.newExecutorService("Stale-file-remover", Math.max(2, Runtime.getRuntime().availableProcessors()), Priority.BATCH, Resource.IO);
 		while (!subdirs.isEmpty()) {
 			final File fdir = subdirs.removeFirst();
 			final String absPath = fdir.getAbsolutePath();
@@ -19,14 +19,14 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.Path2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import javax.vecmath.Point3f;
@@ -53,233 +53,264 @@ public final class AreaUtils {
 	 *  @param resample The optimization parameter for marching cubes (i.e. a value of 2 will scale down to half, then apply marching cubes, then scale up by 2 the vertices coordinates).
 	 *  @return The List of triangles involved, specified as three consecutive vertices. A list of Point3f vertices. */
 	static public List<Point3f> generateTriangles(final Displayable d, final double scale, final int resample_, final Map<Layer,Area> areas) {
-		// in the LayerSet, layers are ordered by Z already.
-		try {
-
-			int n = areas.size();
-			if (0 == n) return null;
+		return new ChunkedMesh(d, scale, resample_).update(areas, null);
+	}
 
-			final int resample;
-			if (resample_ <=0 ) {
-				resample = 1;
+	/** A mesh made by marching cubes over chunks of consecutive slices, in parallel,
+	 *  that keeps the triangles of each chunk so that, after editing the areas of
+	 *  a few layers, only the chunks that include those layers have to be meshed again.
+	 *  Consecutive chunks share one slice, so that each pair of consecutive slices is
+	 *  triangulated by exactly one chunk and vertices at the seams coincide exactly.
+	 *  The caps that marching cubes closes each chunk with, at the seams, are removed. */
+	static public final class ChunkedMesh {
+		/** Minimum number of slices per chunk. */
+		static private final int MIN_CHUNK_DEPTH = 16;
+
+		private final Displayable d;
+		private final double scale;
+		private final int resample;
+
+		/** Everything the chunks depend on, other than the areas themselves. */
+		private double[] signature = null;
+		/** Chunk k spans from slice starts[k] to slice starts[k+1], both inclusive. */
+		private int[] starts = null;
+		/** The triangles of each chunk, in calibrated world coordinates. */
+		private List<List<Point3f>> chunks = null;
+
+		public ChunkedMesh(final Displayable d, final double scale, final int resample) {
+			this.d = d;
+			this.scale = scale;
+			if (resample <= 0) {
+				this.resample = 1;
 				Utils.log2("Fixing zero or negative resampling value to 1.");
-			} else resample = resample_;
-
-			final LayerSet layer_set = d.getLayerSet();
-			final AffineTransform aff = d.getAffineTransformCopy();
-			final Rectangle r = d.getBoundingBox(null);
-
-			// remove translation from a copy of the Displayable's AffineTransform
-			final AffineTransform at_translate = new AffineTransform();
-			at_translate.translate(-r.x, -r.y);
-			aff.preConcatenate(at_translate);
-			// incorporate resampling scaling into the transform
-			final AffineTransform atK = new AffineTransform();
-			//Utils.log("resample: " + resample + "  scale: " + scale);
-			final double K = (1.0 / resample) * scale; // 'scale' is there to limit gigantic universes
-			atK.scale(K, K);
-			aff.preConcatenate(atK);
-
-			final Calibration cal = layer_set.getCalibrationCopy();
-
-			// Find first layer, compute depth, and fill in the depth vs area map
-			Layer first_layer = null,
-			      last_layer = null;
-			final int w = (int)Math.ceil(r.width * K);
-			final int h = (int)Math.ceil(r.height * K);
-			int depth = 0;
-
-			final Map<Integer,Area> ma = new HashMap<Integer,Area>();
-
-			for (final Layer la : layer_set.getLayers()) { // layers sorted by Z ASC
-				final Area area = areas.get(la);
-				if (null != area) {
-					ma.put(depth, area);
-					if (null == first_layer) {
-						first_layer = la;
-					}
-					//Utils.log("area at depth " + depth + " for layer " + la);
-					depth++;
-					n--;
-				} else if (0 != depth) {
-					//Utils.log("Empty area at depth " + depth);
-					depth++; // an empty layer
-				}
-				// else, continue iterating until finding the first layer
-
-				if (0 == n) {
-					last_layer = la;
-					break; // no more areas to paint
-				}
-			}
-
-			if (0 == depth) {
-				Utils.log("ERROR could not find any areas for " + d);
-				return null;
-			}
-			if (0 != n) {
-				Utils.log("WARNING could not find all areas for " + d);
-			}
+			} else this.resample = resample;
+		}
 
-			// No zero-padding: Marching Cubes now can handle edges
-			final ShapeList<ByteType> shapeList = new ShapeListCached<ByteType>(new int[]{w, h, depth}, new ByteType(), 32);
-			final Image<ByteType> shapeListImage = new Image<ByteType>(shapeList, shapeList.getBackground(), "ShapeListContainer");
-			final ByteType intensity = new ByteType((byte)127); // 255 or -1 don't work !? So, giving the highest value (127) that is both a byte and an int.
+		/** Whether this mesh was made with the given parameters. */
+		public boolean isFor(final double scale, final int resample) {
+			return this.scale == scale && this.resample == Math.max(1, resample);
+		}
 
-			for (final Map.Entry<Integer,Area> e : ma.entrySet()) {
-				Area a = e.getValue();
-				if (!aff.isIdentity()) {
-					a = M.areaInIntsByRounding(a.createTransformedArea(aff));
+		/** Mesh again the chunks that include any of the dirty layers, or all if dirty is null
+		 *  or the layers, transform, bounding box or calibration changed since the last update.
+		 *  @param areas The areas, in local coordinates of the Displayable, per layer.
+		 *  @param dirty The layers whose area changed since the last update, or null to mesh all.
+		 *  @return The triangles of all chunks, as three consecutive vertices each, or null on error. */
+		synchronized public List<Point3f> update(final Map<Layer,Area> areas, final Set<Layer> dirty) {
+			// in the LayerSet, layers are ordered by Z already.
+			try {
+				if (0 == areas.size()) return null;
+
+				final LayerSet layer_set = d.getLayerSet();
+				final AffineTransform aff = d.getAffineTransformCopy();
+				final Rectangle r = d.getBoundingBox(null);
+
+				// remove translation from a copy of the Displayable's AffineTransform
+				final AffineTransform at_translate = new AffineTransform();
+				at_translate.translate(-r.x, -r.y);
+				aff.preConcatenate(at_translate);
+				// incorporate resampling scaling into the transform
+				final AffineTransform atK = new AffineTransform();
+				final double K = (1.0 / resample) * scale; // 'scale' is there to limit gigantic universes
+				atK.scale(K, K);
+				aff.preConcatenate(atK);
+
+				final Calibration cal = layer_set.getCalibrationCopy();
+
+				final int w = (int)Math.ceil(r.width * K);
+				final int h = (int)Math.ceil(r.height * K);
+
+				// Find the range of layers from the first to the last with an area, and fill in the depth vs area map
+				final List<Layer> all = layer_set.getLayers(); // layers sorted by Z ASC
+				int i_first = -1, i_last = -1;
+				for (int i=0; i<all.size(); i++) {
+					if (null == areas.get(all.get(i))) continue;
+					if (-1 == i_first) i_first = i;
+					i_last = i;
+				}
+				if (-1 == i_first) {
+					Utils.log("ERROR could not find any areas for " + d);
+					return null;
+				}
+				final List<Layer> range = all.subList(i_first, i_last + 1);
+				final int depth = range.size();
+				final Map<Integer,Area> ma = new HashMap<Integer,Area>();
+				for (int i=0; i<depth; i++) {
+					final Area area = areas.get(range.get(i));
+					if (null != area) ma.put(i, area);
+				}
+				if (ma.size() != areas.size()) {
+					Utils.log("WARNING could not find all areas for " + d);
 				}
-				shapeList.addShape(a, intensity, new int[]{e.getKey()});
-			}
-
-			//debug:
-			//ImagePlus imp = ImageJFunctions.displayAsVirtualStack(shapeListImage);
-			//imp.getProcessor().setMinAndMax( 0, 255 );
-			//imp.show();
-
-			//Utils.log2("Using imglib Shape List Image Container");
-
-			// Now marching cubes
-			final List<Point3f> list = new MCTriangulator().getTriangles(shapeListImage, 1, new float[3]); // origins at 0,0,0: uncalibrated
-
-
-			// The list of triangles has coordinates:
-			// - in x,y: in pixels, scaled by K = (1 / resample) * scale, 
-			//			translated by r.x, r.y (the top-left coordinate of this AreaList bounding box)
-			// - in z: in stack slice indices
-
-			// So all x,y,z must be corrected in x,y and z of the proper layer
-
-
-			//final double offset = first_layer.getZ();
-			final int i_first_layer = layer_set.indexOf(first_layer);
-
-			// The x,y translation to correct each point by:
-			final float dx = (float)(r.x * scale * cal.pixelWidth);
-			final float dy = (float)(r.y * scale * cal.pixelHeight);
-
-			// Correct x,y by resampling and calibration, but not scale
-			final float rsw = (float)(resample * cal.pixelWidth);  // scale is already in the pixel coordinates
-			final float rsh = (float)(resample * cal.pixelHeight);
-			final double sz = scale * cal.pixelWidth; // no resampling in Z. and Uses pixelWidth, not pixelDepth.
-
-
-			// debug:
-			/*
-			// which p.z types exist?
-			final TreeSet<Float> ts = new TreeSet<Float>();
-			for (final Iterator it = list.iterator(); it.hasNext(); ) {
-				ts.add(((Point3f)it.next()).z);
-			}
-			for (final Float pz : ts) Utils.log2("A z: " + pz);
-			*/
-
-
-			// debug: How many different Z?
-			/*
-			HashSet<Float> zs = new HashSet<Float>();
-			for (Point3f p : list) {
-				zs.add(p.z);
-			}
-			ArrayList<Float> a = new ArrayList<Float>(zs);
-			java.util.Collections.sort(a);
-			for (Float f : a) {
-				Utils.log("f: " + f);
-			}
-			*/
-
-			//Utils.log2("Number of slices: " + imp.getNSlices());
-
-			// Fix all points:
-			// Read from list, modify and put into verts
-			// and don't modify it if the verts already has it (it's just coincident)
-
-			final Point3f[] verts = new Point3f[list.size()];
-
-			//Utils.log("number of verts: " + verts.length + " mod 3: " + (verts.length % 3));
-
-			final TreeMap<Integer,Point3f> output = new TreeMap<Integer,Point3f>();
-
-
-			// The first section generates vertices at -1 and 0
-			// The last section generates them at last_section_index and last_section_index +1
-
-			// Capture from -1 to 0
-			fix3DPoints(list, output, verts, first_layer.getZ(), 0, -1, dx, dy, rsw, rsh, sz, 1);
-
-			int slice_index = 0;
-
-			for (final Layer la : layer_set.getLayers().subList(i_first_layer, i_first_layer + depth)) {
 
-				// If layer is empty, continue
-				/* // YEAH don't! At least the immediate next layer would have points, like the extra Z level after last layer, to account for the thickness of the layer!
-				if (empty_layers.contains(la)) {
-					slice_index++;
-					continue;
+				// Whether the existing chunks can be reused
+				final double[] m = new double[6];
+				aff.getMatrix(m);
+				final double[] sig = new double[12 + 3 * depth];
+				System.arraycopy(m, 0, sig, 0, 6);
+				sig[6] = r.x; sig[7] = r.y; sig[8] = w; sig[9] = h;
+				sig[10] = cal.pixelWidth; sig[11] = cal.pixelHeight;
+				for (int i=0; i<depth; i++) {
+					final Layer la = range.get(i);
+					sig[12 + 3*i] = la.getId();
+					sig[13 + 3*i] = la.getZ();
+					sig[14 + 3*i] = la.getThickness();
+				}
+				final boolean reuse = null != dirty && null != chunks && Arrays.equals(sig, signature);
+				if (!reuse) {
+					final int n_cpus = Runtime.getRuntime().availableProcessors();
+					final int chunk_depth = Math.max(MIN_CHUNK_DEPTH, (depth + n_cpus - 1) / n_cpus);
+					final ArrayList<Integer> s = new ArrayList<Integer>();
+					for (int z=0; z < depth - 1 || 0 == z; z += chunk_depth) s.add(z);
+					s.add(depth - 1);
+					this.starts = new int[s.size()];
+					for (int i=0; i<starts.length; i++) starts[i] = s.get(i);
+					this.chunks = new ArrayList<List<Point3f>>();
+					for (int k=1; k<starts.length; k++) chunks.add(null);
+					this.signature = sig;
+				} else {
+					// Invalidate the chunks that include the slices of the dirty layers
+					for (final Layer la : dirty) {
+						final int z = range.indexOf(la);
+						if (-1 == z) continue;
+						for (int k=0; k<chunks.size(); k++) {
+							if (z >= starts[k] && z <= starts[k+1]) chunks.set(k, null);
+						}
+					}
 				}
-				*/
 
-				fix3DPoints(list, output, verts, la.getZ(), la.getThickness(), slice_index, dx, dy, rsw, rsh, sz, 1);
+				// The x,y translation to correct each point by:
+				final float dx = (float)(r.x * scale * cal.pixelWidth);
+				final float dy = (float)(r.y * scale * cal.pixelHeight);
+				// Correct x,y by resampling and calibration, but not scale
+				final float rsw = (float)(resample * cal.pixelWidth);  // scale is already in the pixel coordinates
+				final float rsh = (float)(resample * cal.pixelHeight);
+				final double sz = scale * cal.pixelWidth; // no resampling in Z. and Uses pixelWidth, not pixelDepth.
+
+				final int n_chunks = chunks.size();
+				final ExecutorService exec = Utils.newFixedThreadPool(Math.min(n_chunks, Runtime.getRuntime().availableProcessors()), "AreaUtils-MC");
+				final HashMap<Integer,Future<List<Point3f>>> fus = new HashMap<Integer,Future<List<Point3f>>>();
+				try {
+					for (int k=0; k<n_chunks; k++) {
+						if (null != chunks.get(k)) continue;
+						final int first = starts[k],
+						          last = Math.max(first, starts[k+1]),
+						          chunk = k;
+						fus.put(k, exec.submit(new Callable<List<Point3f>>() {
+							public List<Point3f> call() {
+								final List<Point3f> tri = triangulate(ma, aff, w, h, first, last, 0 == chunk, n_chunks - 1 == chunk);
+								return fix3DPoints(tri, range, dx, dy, rsw, rsh, sz);
+							}
+						}));
+					}
+					for (final Map.Entry<Integer,Future<List<Point3f>>> e : fus.entrySet()) {
+						chunks.set(e.getKey(), e.getValue().get());
+					}
+				} catch (final InterruptedException ie) {
+					for (final Future<List<Point3f>> fu : fus.values()) fu.cancel(true);
+					this.chunks = null;
+					return null;
+				} finally {
+					exec.shutdown();
+				}
 
-				slice_index++;
-			}
+				int n = 0;
+				for (final List<Point3f> c : chunks) n += c.size();
+				// Copies, so that the kept chunks are not altered by whoever uses the mesh
+				final ArrayList<Point3f> list = new ArrayList<Point3f>(n);
+				for (final List<Point3f> c : chunks) {
+					for (final Point3f p : c) list.add(new Point3f(p));
+				}
+				return list;
 
-			// The last set of vertices to process:
-			// Do the last layer again. The last layer has two Z planes in which it has pixels:
-			try {
-				// Capture from last_section_index to last_section_index+1, inclusive
-				fix3DPoints(list, output, verts, last_layer.getZ() + last_layer.getThickness(), 0, slice_index, dx, dy, rsw, rsh, sz, 2);
-			} catch (Exception ee) {
-				IJError.print(ee);
+			} catch (Exception e) {
+				this.chunks = null;
+				e.printStackTrace();
 			}
+			return null;
+		}
+	}
 
-			//Utils.log("number of verts in output: " + output.size() + " mod 3: " + (output.size() % 3));
-
-
-			// debug:
-			//Utils.log2("Remaining p.z to process: ");
-			//for (final Float pz : ts) Utils.log2("remains:   z: " + pz);
-
-
-			// Handle potential errors:
-			if (0 != list.size() - output.size()) {
-				Utils.log2("Unprocessed/unused points: " + (list.size() - output.size()));
-				for (int i=0; i<verts.length; i++) {
-					if (null == verts[i]) {
-						Point3f p = (Point3f) list.get(i);
-						Utils.log2("verts[" + i + "] = " + p.x + ", " + p.y + ", " + p.z + "  p.z as int: " + ((int)(p.z + 0.05f)));
-					}
-				}
-				return new ArrayList<Point3f>(output.values());
-			} else {
-				return java.util.Arrays.asList(verts);
+	/** Run marching cubes over the slices from first to last, both inclusive.
+	 *  @return The triangles, with x,y in pixels of the volume and z in slice indices of the whole volume. */
+	static private List<Point3f> triangulate(final Map<Integer,Area> ma, final AffineTransform aff, final int w, final int h, final int first, final int last, final boolean first_chunk, final boolean last_chunk) {
+		// No zero-padding: Marching Cubes now can handle edges
+		final ShapeList<ByteType> shapeList = new ShapeListCached<ByteType>(new int[]{w, h, last - first + 1}, new ByteType(), 32);
+		final Image<ByteType> shapeListImage = new Image<ByteType>(shapeList, shapeList.getBackground(), "ShapeListContainer");
+		final ByteType intensity = new ByteType((byte)127); // 255 or -1 don't work !? So, giving the highest value (127) that is both a byte and an int.
+
+		for (int z=first; z<=last; z++) {
+			Area a = ma.get(z);
+			if (null == a) continue;
+			if (!aff.isIdentity()) {
+				a = M.areaInIntsByRounding(a.createTransformedArea(aff));
 			}
+			shapeList.addShape(a, intensity, new int[]{z - first});
+		}
 
-		} catch (Exception e) {
-			e.printStackTrace();
+		final List<Point3f> tri = new MCTriangulator().getTriangles(shapeListImage, 1, new float[3]); // origins at 0,0,0: uncalibrated
+
+		// Remove the caps at the seams, and shift to slice coordinates of the whole volume
+		final float top = last - first;
+		final ArrayList<Point3f> out = new ArrayList<Point3f>(tri.size());
+		for (int i=0; i<tri.size(); i+=3) {
+			final Point3f p1 = tri.get(i),
+			              p2 = tri.get(i+1),
+			              p3 = tri.get(i+2);
+			if (!first_chunk && p1.z <= 0.001f && p2.z <= 0.001f && p3.z <= 0.001f) continue;
+			if (!last_chunk && p1.z >= top - 0.001f && p2.z >= top - 0.001f && p3.z >= top - 0.001f) continue;
+			p1.z += first;
+			p2.z += first;
+			p3.z += first;
+			out.add(p1);
+			out.add(p2);
+			out.add(p3);
 		}
-		return null;
+		return out;
 	}
 
-	/**
-	 * @param list The original points
-	 * @param output The accumulated list of modified points to construct a mesh from
-	 * @param verts The array of vertices, each index is filled if the point has been processed already.
-	 * @param la_Z The Layer to process points for.
-	 * @param la_thickness the thickness of that layer
-	 * @param layer_index The stack slice index corresponding to the Layer @param la.
-	 */
-	static private final void fix3DPoints(final List<Point3f> list, final TreeMap<Integer,Point3f> output, final Point3f[] verts, final double la_z, final double la_thickness, final int layer_index, final float dx, final float dy, final float rsw, final float rsh, final double sz, final int n_slices) {
-		int fixed = 0;
-		// Find all pixels that belong to the layer, and transform them back:
-		for (int i=0; i<verts.length; i++) {
-			if (null != verts[i]) continue; // already processed! The unprocessed Z is merely coincident with a processed Z.
-			final Point3f p = list.get(i);
-			final int pz = (int)(p.z + 0.05f);
-			//final int pz = (int)(p.z + (0.5f * Math.signum(p.z)));
-			if ( pz >= layer_index && pz < layer_index + n_slices) {
+	/** Transform the vertices of the triangles from volume coordinates to calibrated world coordinates.
+	 *  The list of triangles has coordinates:
+	 *  - in x,y: in pixels, scaled by K = (1 / resample) * scale,
+	 *            translated by r.x, r.y (the top-left coordinate of this AreaList bounding box)
+	 *  - in z: in stack slice indices, from -1 (before the first layer) to depth + 1 (after the last layer).
+	 *  Triangles with any vertex outside of that range are dropped.
+	 *  @param range The layers of each slice index.
+	 *  @param dx,dy The x,y translation to correct each point by.
+	 *  @param rsw,rsh The resampling and calibration, but not scale.
+	 *  @param sz The scale and calibration in Z. */
+	static private final List<Point3f> fix3DPoints(final List<Point3f> list, final List<Layer> range, final float dx, final float dy, final float rsw, final float rsh, final double sz) {
+		final int depth = range.size();
+		final Layer first_layer = range.get(0),
+		            last_layer = range.get(depth - 1);
+		final ArrayList<Point3f> output = new ArrayList<Point3f>(list.size());
+		int unprocessed = 0;
+		for (int i=0; i<list.size(); i+=3) {
+			boolean ok = true;
+			for (int k=0; k<3; k++) {
+				final Point3f p = list.get(i+k);
+				final int pz = (int)(p.z + 0.05f);
+				double la_z, la_thickness;
+				int layer_index;
+				if (-1 == pz) {
+					// The first section generates vertices at -1 and 0
+					la_z = first_layer.getZ();
+					la_thickness = 0;
+					layer_index = -1;
+				} else if (pz >= 0 && pz < depth) {
+					final Layer la = range.get(pz);
+					la_z = la.getZ();
+					la_thickness = la.getThickness();
+					layer_index = pz;
+				} else if (pz >= depth && pz < depth + 2) {
+					// The last layer has two Z planes in which it has pixels
+					la_z = last_layer.getZ() + last_layer.getThickness();
+					la_thickness = 0;
+					layer_index = depth;
+				} else {
+					ok = false;
+					break;
+				}
 				// correct pixel position:
 				// -- The 'rsw','rsh' scales back to LayerSet coords
 				// -- The 'dx','dy' translates back to this AreaList bounding box
@@ -288,13 +319,15 @@ public final class AreaUtils {
 
 				// The Z is more complicated: the Z of the layer, scaled relative to the layer thickness
 				p.z = (float)((la_z + la_thickness * (p.z - layer_index)) * sz); // using pixelWidth, not pixelDepth!
-
-				verts[i] = p;
-				output.put(i, p);
-				fixed++;
 			}
+			if (ok) {
+				output.add(list.get(i));
+				output.add(list.get(i+1));
+				output.add(list.get(i+2));
+			} else unprocessed++;
 		}
-		//Utils.log("fix between " + layer_index + " and " + (layer_index + n_slices) + " (" + fixed + ")");
+		if (unprocessed > 0) Utils.log2("Unprocessed/unused triangles: " + unprocessed);
+		return output;
 	}
 
 	/** Extracts all non-background areas. */
@@ -368,6 +401,60 @@ public final class AreaUtils {
 		return map;
 	}
 
+	/** Return the Area of all pixels with a value of at least @param min, scanning line by line:
+	 *  a run of such pixels repeated over consecutive lines becomes one rectangle, and all rectangles
+	 *  are joined into an Area at once, which is much faster than ThresholdToSelection or than
+	 *  adding one Area per run.
+	 *  If @param cell is larger than 1, each square of cell x cell pixels is inside whole when any
+	 *  of its pixels is, for a simpler Area that contains the exact one. */
+	static public final Area maskToArea(final ImageProcessor ip, final float min, final int cell) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight(),
+		          cw = (width + cell - 1) / cell,
+		          ch = (height + cell - 1) / cell;
+		final boolean[] row = new boolean[cw];
+		// Runs as {first cell, last cell + 1, first line of cells}, in order of first cell
+		ArrayList<int[]> open = new ArrayList<int[]>(),
+		                 next = new ArrayList<int[]>();
+		final Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO);
+		for (int cy=0; cy<=ch; cy++) {
+			next.clear();
+			if (cy < ch) {
+				Arrays.fill(row, false);
+				for (int y=cy*cell, ye=Math.min(height, y+cell); y<ye; y++) {
+					for (int x=0, i=y*width; x<width; x++, i++) {
+						if (ip.getf(i) >= min) row[x / cell] = true;
+					}
+				}
+				for (int x=0; x<cw; ) {
+					if (!row[x]) {
+						x++;
+						continue;
+					}
+					final int x0 = x;
+					while (x < cw && row[x]) x++;
+					next.add(new int[]{x0, x, cy});
+				}
+			}
+			// Extend the runs of the previous line that repeat exactly, and close the others
+			for (int i=0, k=0; i<open.size(); i++) {
+				final int[] r = open.get(i);
+				while (k < next.size() && next.get(k)[0] < r[0]) k++;
+				if (k < next.size() && next.get(k)[0] == r[0] && next.get(k)[1] == r[1]) {
+					next.get(k)[2] = r[2];
+				} else {
+					final int x0 = r[0] * cell,
+					          y0 = r[2] * cell;
+					path.append(new Rectangle(x0, y0, Math.min(width, r[1] * cell) - x0, Math.min(height, cy * cell) - y0), false);
+				}
+			}
+			final ArrayList<int[]> tmp = open;
+			open = next;
+			next = tmp;
+		}
+		return new Area(path);
+	}
+
     static public Area infiniteArea()
     {
         final Path2D.Double path = new Path2D.Double();
@@ -498,7 +585,7 @@ public final class AreaUtils {
 		// TODO parallelize, which needs the means to call process() in parallel too--currently it cannot,
 		// the result would get overwritten.
 		
-		ExecutorService exec = Executors.newFixedThreadPool(Math.min(nInterpolates, Runtime.getRuntime().availableProcessors()));
+		ExecutorService exec = Utils.newFixedThreadPool(Math.min(nInterpolates, Runtime.getRuntime().availableProcessors()), "AreaUtils-interpolate");
 		ArrayList<Future<Area>> fus = new ArrayList<Future<Area>>();
 		
 		try {
@@ -112,9 +112,7 @@ public class CachingThread extends Thread
 		final Thread t = Thread.currentThread();
 		if (CachingThread.class.isAssignableFrom(t.getClass())) {
 			final CachingThread c = (CachingThread) t;
-			Object o = c.cacheBytes.getOrCreateArray(length);
-			System.out.println("instance of: " + o.getClass());
-			return (byte[]) o;
+			return c.cacheBytes.getOrCreateArray(length);
 		}
 		return new byte[length];
 	}
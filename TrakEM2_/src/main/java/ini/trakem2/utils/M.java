@@ -219,6 +219,35 @@ public final class M {
 		return 0 == b.width || 0 == b.height;
 	}
 
+	/** Test whether the areas are described by the exact same sequence of path segments,
+	 *  which is much cheaper than {@link Area#equals(Area)} but may return false for
+	 *  areas that cover the same region with a different outline. */
+	static public final boolean isIdentical(final Area a1, final Area a2) {
+		if (a1 == a2) return true;
+		if (null == a1 || null == a2) return false;
+		final PathIterator p1 = a1.getPathIterator(null),
+		                   p2 = a2.getPathIterator(null);
+		if (p1.getWindingRule() != p2.getWindingRule()) return false;
+		final double[] c1 = new double[6],
+		               c2 = new double[6];
+		for (; !p1.isDone() && !p2.isDone(); p1.next(), p2.next()) {
+			final int type = p1.currentSegment(c1);
+			if (type != p2.currentSegment(c2)) return false;
+			final int n;
+			switch (type) {
+				case PathIterator.SEG_MOVETO:
+				case PathIterator.SEG_LINETO: n = 2; break;
+				case PathIterator.SEG_QUADTO: n = 4; break;
+				case PathIterator.SEG_CUBICTO: n = 6; break;
+				default: n = 0; break;
+			}
+			for (int i=0; i<n; i++) {
+				if (c1[i] != c2[i]) return false;
+			}
+		}
+		return p1.isDone() && p2.isDone();
+	}
+
 	/** Test whether the areas intersect each other. */
 	static public final boolean intersects(final Area a1, final Area a2) {
 		final Area b = new Area(a1);
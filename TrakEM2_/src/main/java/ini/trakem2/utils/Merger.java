@@ -86,7 +86,28 @@ public class Merger {
 		}
 		zds2.removeAll(empty2);
 		
+		// Index the nodes of p2 by world coordinates, so that each Tree of p1 is compared
+		// only with the Trees of p2 that have at least one node at about the same place.
+		final NodeIndex index = new NodeIndex();
+		try {
+			ini.trakem2.parallel.Process.unbound(zds2,
+					new TaskFactory<ZDisplayable, Object>() {
+						@Override
+						public Object process(final ZDisplayable zd2) {
+							if (accepted.contains(zd2.getClass()) && zd2 instanceof Tree<?>) {
+								index.add((Tree<?>)zd2);
+							}
+							return null;
+						}
+					});
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+
 		final AtomicInteger counter = new AtomicInteger(0);
+		final AtomicInteger n_compared = new AtomicInteger(0);
+		final long start = System.currentTimeMillis();
+		final long[] last_report = new long[]{start};
 		
 		// For every Displayable in p1, find a corresponding Displayable in p2
 		// or at least one or more that are similar in that they have some nodes in common.
@@ -95,7 +116,9 @@ public class Merger {
 					new TaskFactory<ZDisplayable, Object>() {
 						@Override
 						public Object process(final ZDisplayable zd1) {
-							Utils.showProgress(counter.getAndIncrement() / (float)zds1.size());
+							final int count = counter.getAndIncrement();
+							Utils.showProgress(count / (float)zds1.size());
+							reportProgress(count, zds1.size(), n_compared.get(), start, last_report);
 							if (!accepted.contains(zd1.getClass())) {
 								Utils.log("Ignoring: [A] " + zd1);
 								return null;
@@ -107,10 +130,11 @@ public class Merger {
 								return null;
 							}
 							final List<Change> cs = new ArrayList<Change>();
-							for (final ZDisplayable zd2 : zds2) {
-								// Same class?
-								if (zd1.getClass() != zd2.getClass()) continue;
-								if (zd1 instanceof Tree<?> && zd2 instanceof Tree<?>) {
+							if (zd1 instanceof Tree<?>) {
+								for (final Tree<?> zd2 : index.candidates((Tree<?>)zd1)) {
+									// Same class?
+									if (zd1.getClass() != zd2.getClass()) continue;
+									n_compared.incrementAndGet();
 									Change c = compareTrees(zd1, zd2);
 									if (c.hasSimilarNodes()) {
 										cs.add(c);
@@ -140,6 +164,9 @@ public class Merger {
 		} catch (Exception e) {
 			IJError.print(e);
 		}
+
+		Utils.log("Compared " + zds1.size() + " objects against " + zds2.size() + " in " + (System.currentTimeMillis() - start) / 1000 + " s, with "
+				+ n_compared.get() + " full comparisons instead of up to " + ((long)zds1.size() * zds2.size()));
 		
 		Utils.showProgress(1); // reset
 
@@ -149,6 +176,97 @@ public class Merger {
 	}
 
 
+	/** Log progress and throughput at most every 5 seconds. */
+	static private final void reportProgress(final int count, final int total, final int n_compared, final long start, final long[] last_report) {
+		final long now = System.currentTimeMillis();
+		synchronized (last_report) {
+			if (now - last_report[0] < 5000) return;
+			last_report[0] = now;
+		}
+		final double seconds = (now - start) / 1000.0;
+		Utils.log("Compared " + count + "/" + total + " objects (" + (int)(count / seconds) + " per second), "
+				+ n_compared + " full comparisons so far");
+	}
+
+	/** Nodes of many Trees by world coordinates, hashed into cells much larger than the tolerance
+	 *  of {@link WNode#equals(Object)}. Nodes closer than that tolerance to the edge of a cell are
+	 *  looked up in the neighboring cells as well, so that no Tree with a node equal to a node of
+	 *  another Tree is missed. Hash collisions only add candidates. */
+	static private final class NodeIndex {
+		static private final double CELL = 1.0;
+		static private final double TOLERANCE = 0.01;
+
+		private final HashMap<Long,List<Tree<?>>> cells = new HashMap<Long,List<Tree<?>>>();
+
+		static private final long key(final long cx, final long cy, final long cz) {
+			return (cx * 73856093L) ^ (cy * 19349663L) ^ (cz * 83492791L);
+		}
+
+		static private final long cell(final double v) {
+			return (long)Math.floor(v / CELL);
+		}
+
+		void add(final Tree<?> t) {
+			final Node<?> root = t.getRoot();
+			if (null == root) return;
+			final HashSet<Long> keys = new HashSet<Long>();
+			for (final Node<?> nd : root.getSubtreeNodes()) {
+				final WNode w = new WNode(nd, t.getAffineTransform());
+				keys.add(key(cell(w.x), cell(w.y), cell(w.z)));
+			}
+			synchronized (cells) {
+				for (final Long k : keys) {
+					List<Tree<?>> l = cells.get(k);
+					if (null == l) {
+						l = new ArrayList<Tree<?>>(2);
+						cells.put(k, l);
+					}
+					l.add(t);
+				}
+			}
+		}
+
+		/** The Trees that may have a node equal to one of the nodes of t. */
+		Set<Tree<?>> candidates(final Tree<?> t) {
+			final Set<Tree<?>> found = new HashSet<Tree<?>>();
+			final Node<?> root = t.getRoot();
+			if (null == root) return found;
+			final HashSet<Long> keys = new HashSet<Long>();
+			final long[] cx = new long[2], cy = new long[2], cz = new long[2];
+			for (final Node<?> nd : root.getSubtreeNodes()) {
+				final WNode w = new WNode(nd, t.getAffineTransform());
+				final int nx = neighbors(w.x, cx),
+				          ny = neighbors(w.y, cy),
+				          nz = neighbors(w.z, cz);
+				for (int i=0; i<nx; i++)
+					for (int j=0; j<ny; j++)
+						for (int k=0; k<nz; k++)
+							keys.add(key(cx[i], cy[j], cz[k]));
+			}
+			synchronized (cells) {
+				for (final Long k : keys) {
+					final List<Tree<?>> l = cells.get(k);
+					if (null != l) found.addAll(l);
+				}
+			}
+			return found;
+		}
+
+		/** Fill c with the cell of v and, if v is within the tolerance of its edge, the neighboring cell. */
+		static private final int neighbors(final double v, final long[] c) {
+			c[0] = cell(v);
+			if (v - c[0] * CELL < TOLERANCE) {
+				c[1] = c[0] - 1;
+				return 2;
+			}
+			if ((c[0] + 1) * CELL - v < TOLERANCE) {
+				c[1] = c[0] + 1;
+				return 2;
+			}
+			return 1;
+		}
+	}
+
 	private static class Change {
 		ZDisplayable d1, d2;
 		/** If the title is different. */
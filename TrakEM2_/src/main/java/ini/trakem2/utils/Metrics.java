@@ -0,0 +1,374 @@
+package ini.trakem2.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/** Counters, histograms and gauges of loading, caching, mipmap generation and painting,
+ *  cheap enough to be always on: counters are striped over several cache lines so that
+ *  threads don't contend, and histograms have fixed log-linear buckets, with a relative
+ *  error of at most 1/16, so that recording a value is one increment.
+ *
+ *  Metrics are named with dots, like "cache.hits.level0". All of them are exposed through JMX,
+ *  as the attributes of the MBean "ini.trakem2:type=Metrics"; histograms as their count, mean,
+ *  50th, 90th and 99th percentiles and max. If the system property "trakem2.metrics.file" is set,
+ *  all metrics are also appended to that file every "trakem2.metrics.period" seconds (60 by default):
+ *  as one JSON object per line if the file name ends with ".json", otherwise as CSV lines of
+ *  time, name and value. */
+public final class Metrics {
+
+	private Metrics() {}
+
+	/** Power of two, at least twice the number of CPUs. */
+	static private final int STRIPES = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+	/** Longs per cache line: each stripe of a Counter in its own line. */
+	static private final int PAD = 8;
+
+	static private final int stripe() {
+		final long id = Thread.currentThread().getId();
+		return (int)((id * 0x9E3779B97F4A7C15L) >>> 40) & (STRIPES - 1);
+	}
+
+	/** A sum that many threads can add to at once. */
+	static public final class Counter {
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+		private Counter() {}
+		public final void inc() {
+			cells.incrementAndGet(stripe() * PAD);
+		}
+		public final void add(final long n) {
+			cells.addAndGet(stripe() * PAD, n);
+		}
+		public final long get() {
+			long sum = 0;
+			for (int i=0; i<STRIPES; i++) sum += cells.get(i * PAD);
+			return sum;
+		}
+	}
+
+	/** A value computed when read. */
+	static public interface Gauge {
+		public long get();
+	}
+
+	/** The distribution of non-negative values, such as durations in nanoseconds.
+	 *  Values under 16 have a bucket each; larger ones share a bucket with those of equal
+	 *  highest bit and next 4 bits. */
+	static public final class Histogram {
+		static private final int SUB = 16;
+		private final AtomicLongArray buckets = new AtomicLongArray(61 * SUB);
+		private final Counter count = new Counter(),
+		                      sum = new Counter();
+		private final AtomicLong max = new AtomicLong();
+		private Histogram() {}
+
+		static private final int index(final long v) {
+			if (v < SUB) return (int)Math.max(0, v);
+			final int e = 63 - Long.numberOfLeadingZeros(v);
+			return (e - 3) * SUB + (int)((v >>> (e - 4)) & (SUB - 1));
+		}
+		/** The smallest value of the bucket. */
+		static private final long lowest(final int index) {
+			if (index < SUB) return index;
+			final int e = index / SUB + 3;
+			return (long)(SUB + index % SUB) << (e - 4);
+		}
+
+		public final void record(final long v) {
+			buckets.incrementAndGet(index(v));
+			count.inc();
+			sum.add(v);
+			for (long m = max.get(); v > m && !max.compareAndSet(m, v); m = max.get());
+		}
+		/** Record the time elapsed since t0, as given by System.nanoTime(). */
+		public final void recordSince(final long t0) {
+			record(System.nanoTime() - t0);
+		}
+		public final long getCount() { return count.get(); }
+		public final long getMax() { return max.get(); }
+		public final double getMean() {
+			final long n = count.get();
+			return 0 == n ? 0 : sum.get() / (double)n;
+		}
+		/** @param q from 0 to 1.
+		 *  @return the smallest value of the bucket that holds the q-th quantile, or 0 if empty. */
+		public final long getPercentile(final double q) {
+			final int len = buckets.length();
+			long total = 0;
+			for (int i=0; i<len; i++) total += buckets.get(i);
+			if (0 == total) return 0;
+			final long target = Math.max(1, (long)Math.ceil(q * total));
+			long seen = 0;
+			for (int i=0; i<len; i++) {
+				seen += buckets.get(i);
+				if (seen >= target) return lowest(i);
+			}
+			return max.get();
+		}
+	}
+
+	/** Counter, Histogram or Gauge, by name. */
+	static private final ConcurrentHashMap<String,Object> registry = new ConcurrentHashMap<String,Object>();
+
+	/** Return the Counter of the given name, creating it if it doesn't exist. */
+	static public final Counter counter(final String name) {
+		final Object o = registry.get(name);
+		if (o instanceof Counter) return (Counter)o;
+		final Counter c = new Counter();
+		final Object previous = registry.putIfAbsent(name, c);
+		return null == previous ? c : (Counter)previous;
+	}
+
+	/** Counters named prefix + index, from 0 to n-1. */
+	static public final Counter[] counters(final String prefix, final int n) {
+		final Counter[] cs = new Counter[n];
+		for (int i=0; i<n; i++) cs[i] = counter(prefix + i);
+		return cs;
+	}
+
+	/** Return the Histogram of the given name, creating it if it doesn't exist. */
+	static public final Histogram histogram(final String name) {
+		final Object o = registry.get(name);
+		if (o instanceof Histogram) return (Histogram)o;
+		final Histogram h = new Histogram();
+		final Object previous = registry.putIfAbsent(name, h);
+		return null == previous ? h : (Histogram)previous;
+	}
+
+	/** Histograms named prefix + index, from 0 to n-1. */
+	static public final Histogram[] histograms(final String prefix, final int n) {
+		final Histogram[] hs = new Histogram[n];
+		for (int i=0; i<n; i++) hs[i] = histogram(prefix + i);
+		return hs;
+	}
+
+	/** Set the Gauge of the given name, replacing any previous one. */
+	static public final void gauge(final String name, final Gauge gauge) {
+		registry.put(name, gauge);
+	}
+
+	static public final void remove(final String name) {
+		registry.remove(name);
+	}
+
+	/** The executors registered under each name, which may be several. Held weakly. */
+	static private final Map<String,ArrayList<WeakReference<ThreadPoolExecutor>>> executors = new TreeMap<String,ArrayList<WeakReference<ThreadPoolExecutor>>>();
+
+	/** Add gauges "executor.<name>.queue" and "executor.<name>.active" for the number of tasks waiting and running
+	 *  in the executor, summed over all executors registered with the same name that have not been shut down. */
+	static public final void executor(final String name, final ThreadPoolExecutor exec) {
+		synchronized (executors) {
+			ArrayList<WeakReference<ThreadPoolExecutor>> list = executors.get(name);
+			if (null == list) {
+				final ArrayList<WeakReference<ThreadPoolExecutor>> l = list = new ArrayList<WeakReference<ThreadPoolExecutor>>();
+				executors.put(name, list);
+				gauge("executor." + name + ".queue", new Gauge() {
+					@Override
+					public long get() {
+						long n = 0;
+						for (final ThreadPoolExecutor e : live(l)) n += e.getQueue().size();
+						return n;
+					}
+				});
+				gauge("executor." + name + ".active", new Gauge() {
+					@Override
+					public long get() {
+						long n = 0;
+						for (final ThreadPoolExecutor e : live(l)) n += e.getActiveCount();
+						return n;
+					}
+				});
+			}
+			live(list); // drop dead ones
+			list.add(new WeakReference<ThreadPoolExecutor>(exec));
+		}
+	}
+
+	/** The executors of the list that are still in use, dropping the others from the list. */
+	static private final ArrayList<ThreadPoolExecutor> live(final ArrayList<WeakReference<ThreadPoolExecutor>> list) {
+		final ArrayList<ThreadPoolExecutor> a = new ArrayList<ThreadPoolExecutor>();
+		synchronized (executors) {
+			for (final Iterator<WeakReference<ThreadPoolExecutor>> it = list.iterator(); it.hasNext(); ) {
+				final ThreadPoolExecutor e = it.next().get();
+				if (null == e || e.isShutdown()) it.remove();
+				else a.add(e);
+			}
+		}
+		return a;
+	}
+
+	/** The current value of every metric, by name, with each Histogram as several values. */
+	static public final TreeMap<String,Number> snapshot() {
+		final TreeMap<String,Number> m = new TreeMap<String,Number>();
+		for (final Map.Entry<String,Object> e : registry.entrySet()) {
+			final String name = e.getKey();
+			final Object o = e.getValue();
+			if (o instanceof Counter) {
+				m.put(name, ((Counter)o).get());
+			} else if (o instanceof Histogram) {
+				final Histogram h = (Histogram)o;
+				m.put(name + ".count", h.getCount());
+				m.put(name + ".mean", h.getMean());
+				m.put(name + ".p50", h.getPercentile(0.5));
+				m.put(name + ".p90", h.getPercentile(0.9));
+				m.put(name + ".p99", h.getPercentile(0.99));
+				m.put(name + ".max", h.getMax());
+			} else {
+				try {
+					m.put(name, ((Gauge)o).get());
+				} catch (final Throwable t) {
+					// A gauge of something no longer there
+				}
+			}
+		}
+		return m;
+	}
+
+	/** One line per metric whose name starts with the prefix, for logging. */
+	static public final String report(final String prefix) {
+		final StringBuilder sb = new StringBuilder();
+		for (final Map.Entry<String,Number> e : snapshot().entrySet()) {
+			if (e.getKey().startsWith(prefix)) sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/** Append all metrics to the file: as one JSON object if its name ends with ".json", otherwise as CSV lines. */
+	static public final void dump(final File f) throws IOException {
+		final long now = System.currentTimeMillis();
+		final StringBuilder sb = new StringBuilder();
+		if (f.getName().toLowerCase().endsWith(".json")) {
+			sb.append("{\"time\":").append(now);
+			for (final Map.Entry<String,Number> e : snapshot().entrySet()) {
+				sb.append(",\"").append(e.getKey()).append("\":").append(e.getValue());
+			}
+			sb.append("}\n");
+		} else {
+			for (final Map.Entry<String,Number> e : snapshot().entrySet()) {
+				sb.append(now).append(',').append(e.getKey()).append(',').append(e.getValue()).append('\n');
+			}
+		}
+		final FileWriter w = new FileWriter(f, true);
+		try {
+			w.write(sb.toString());
+		} finally {
+			w.close();
+		}
+	}
+
+	static private ScheduledExecutorService dumper = null;
+
+	/** Append all metrics to the file every period seconds, instead of to any previous file. */
+	static public final synchronized void startDump(final File f, final long period) {
+		stopDump();
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "TrakEM2-metrics");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					dump(f);
+				} catch (final Throwable t) {
+					IJError.print(t);
+				}
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	static public final synchronized void stopDump() {
+		if (null != dumper) dumper.shutdownNow();
+		dumper = null;
+	}
+
+	/** Exposes all metrics as read-only attributes. */
+	static private final class MBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(final String name) throws AttributeNotFoundException {
+			final Number n = snapshot().get(name);
+			if (null == n) throw new AttributeNotFoundException(name);
+			return n;
+		}
+		@Override
+		public AttributeList getAttributes(final String[] names) {
+			final TreeMap<String,Number> m = snapshot();
+			final AttributeList list = new AttributeList();
+			for (final String name : names) {
+				final Number n = m.get(name);
+				if (null != n) list.add(new Attribute(name, n));
+			}
+			return list;
+		}
+		@Override
+		public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Read-only: " + attribute.getName());
+		}
+		@Override
+		public AttributeList setAttributes(final AttributeList attributes) {
+			return new AttributeList();
+		}
+		@Override
+		public Object invoke(final String action, final Object[] params, final String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(action));
+		}
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			final TreeMap<String,Number> m = snapshot();
+			final MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[m.size()];
+			int i = 0;
+			for (final Map.Entry<String,Number> e : m.entrySet()) {
+				attrs[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false);
+			}
+			return new MBeanInfo(Metrics.class.getName(), "TrakEM2 performance metrics", attrs, null, new MBeanOperationInfo[0], null);
+		}
+	}
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("ini.trakem2:type=Metrics"));
+		} catch (final Throwable t) {
+			// Already registered by another class loader, or no JMX
+			Utils.log2("Metrics: not exposed through JMX: " + t);
+		}
+		final String path = System.getProperty("trakem2.metrics.file");
+		if (null != path) {
+			long period = 60;
+			try {
+				period = Math.max(1, Long.parseLong(System.getProperty("trakem2.metrics.period", "60")));
+			} catch (final NumberFormatException nfe) {
+				Utils.log2("Metrics: invalid trakem2.metrics.period, using 60 seconds.");
+			}
+			startDump(new File(path), period);
+		}
+	}
+}
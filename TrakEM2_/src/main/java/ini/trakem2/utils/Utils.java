@@ -47,6 +47,7 @@ import ini.trakem2.display.Layer;
 import ini.trakem2.display.Pipe;
 import ini.trakem2.display.YesNoDialog;
 import ini.trakem2.imaging.FloatProcessorT2;
+import ini.trakem2.parallel.ExecutorProvider;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.plugin.TPlugIn;
 import ini.trakem2.tree.ProjectThing.Profile_List;
@@ -98,11 +99,8 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -1549,19 +1547,12 @@ public class Utils implements ij.plugin.PlugIn {
 	static public final ThreadPoolExecutor newFixedThreadPool(final String namePrefix) {
 		return newFixedThreadPool(Runtime.getRuntime().availableProcessors(), namePrefix);
 	}
+	/** Creates a new fixed thread pool of CPU-bound tasks, with the {@link ExecutorProvider.Priority} of the calling thread,
+	 *  which is {@link ExecutorProvider.Priority#BATCH} unless made by another pool or declared otherwise.
+	 *  See {@link ExecutorProvider#newExecutorService(String, int, ExecutorProvider.Priority, ExecutorProvider.Resource)}. */
 	static public final ThreadPoolExecutor newFixedThreadPool(final int n_proc, final String namePrefix) {
-		final ThreadPoolExecutor exec = (ThreadPoolExecutor) Executors.newFixedThreadPool(n_proc);
-		final AtomicInteger ai = new AtomicInteger(0);
-		exec.setThreadFactory(new ThreadFactory() {
-			public Thread newThread(final Runnable r) {
-				final ThreadGroup tg = Thread.currentThread().getThreadGroup();
-				final Thread t = new CachingThread(tg, r, new StringBuilder(null == namePrefix ? tg.getName() : namePrefix).append('-').append(ai.incrementAndGet()).toString());
-				t.setDaemon(true);
-				t.setPriority(Thread.NORM_PRIORITY);
-				return t;
-			}
-		});
-		return exec;
+		return ExecutorProvider.newExecutorService(null == namePrefix ? Thread.currentThread().getThreadGroup().getName() : namePrefix,
+				n_proc, ExecutorProvider.getPriority(), ExecutorProvider.Resource.CPU);
 	}
 	/** If both are null will throw an error. */
 	static public final boolean equalContent(final Collection<?> a, final Collection<?> b) {
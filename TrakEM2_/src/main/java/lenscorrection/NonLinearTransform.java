@@ -26,6 +26,8 @@ Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
  *  - improve image interpolation 				
  *  - apply and applyInPlace should use precalculated transform?
  *    (What about out of image range pixels?)
+ *    Instead, they evaluate the polynomial in Horner form, with the
+ *    normalization folded into the coefficients.
  *  																
  *  Author: Verena Kaynig						
  *  Kontakt: verena.kaynig@inf.ethz.ch	
@@ -51,6 +53,9 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.WeakHashMap;
 
 import Jama.Matrix;
 
@@ -60,7 +65,6 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 	private double[][] beta = null;
 	private double[] normMean = null;
 	private double[] normVar = null;
-	private double[][][] transField = null;
 	private int dimension = 0;
 	private int length = 0;
 	private int width = 0;
@@ -81,11 +85,25 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 			normMean[i] = 0;
 			normVar[i] = 1;
 		}
-		transField = null;
-		precalculated = false;
+		invalidate();
 	}
 
-	private boolean precalculated = false;
+	/** The canonical polynomial for the current coefficients, made on demand. */
+	private volatile Polynomial polynomial = null;
+
+	/** Must be called whenever beta, normMean, normVar, width or height change. */
+	private void invalidate(){
+		polynomial = null;
+	}
+
+	private Polynomial getPolynomial(){
+		Polynomial p = polynomial;
+		if (null == p){
+			p = Polynomial.intern(new Polynomial(dimension, beta, normMean, normVar, width, height));
+			polynomial = p;
+		}
+		return p;
+	}
 
 	public int getMinNumMatches()
 	{
@@ -269,6 +287,7 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 			height = Integer.parseInt(fields[c]); c++;
 			//System.out.println("c: " + c); 
 
+			invalidate();
 		}
 		else throw new NumberFormatException( "Inappropriate parameters for " + this.getClass().getCanonicalName() );
 	}
@@ -311,58 +330,20 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 
 	@Override
 	public float[] apply( final float[] location ){
-
-		final double[] position = {(double) location[0], (double) location[1]};
-		final double[] featureVector = kernelExpand(position);
-		final double[] newPosition = multiply(beta, featureVector);
-
-		final float[] newLocation = new float[2];
-		newLocation[0] = (float) newPosition[0];
-		newLocation[1] = (float) newPosition[1];
-
+		final float[] newLocation = location.clone();
+		applyInPlace(newLocation);
 		return newLocation;
 	}
 
 	@Override
 	public void applyInPlace( final float[] location ){
-		final double[] position = {(double) location[0], (double) location[1]};
-		final double[] featureVector = kernelExpand(position);
-		final double[] newPosition = multiply(beta, featureVector);
-
-		location[0] = (float) newPosition[0];
-		location[1] = (float) newPosition[1];
+		getPolynomial().applyInPlace(location);
 	}
 
+	/** Make the displacement field used by {@link #transform(ImageProcessor)}, if not made already
+	 *  for these coefficients by this or any other instance. */
 	void precalculateTransfom(){
-		transField = new double[width][height][2];
-		//double minX = width, minY = height, maxX = 0, maxY = 0;
-
-		for (int x=0; x<width; x++){
-			for (int y=0; y<height; y++){
-				final double[] position = {x,y};
-				final double[] featureVector = kernelExpand(position);
-				final double[] newPosition = multiply(beta, featureVector);
-
-				if ((newPosition[0] < 0) || (newPosition[0] >= width) ||
-						(newPosition[1] < 0) || (newPosition[1] >= height))
-				{
-					transField[x][y][0] = -1;
-					transField[x][y][1] = -1;
-					continue;
-				}
-
-				transField[x][y][0] = newPosition[0];
-				transField[x][y][1] = newPosition[1];
-
-				//minX = Math.min(minX, x);
-				//minY = Math.min(minY, y);
-				//maxX = Math.max(maxX, x);
-				//maxY = Math.max(maxY, y);
-
-			}
-		}
-
-		precalculated = true;
+		getPolynomial().getField();
 	}
 
 	public double[][] getCoefficients(){
@@ -380,6 +361,7 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 
 	public void setBeta(final double[][] b){
 		beta = b;
+		invalidate();
 		//FIXME: test if normMean and normVar are still valid for this beta
 	}
 
@@ -508,6 +490,7 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 				width = Integer.parseInt(line.substring(0, ind));
 				height = Integer.parseInt(line.substring(ind+4));
 				in.close();
+				invalidate();
 
 				print();
 			}
@@ -517,8 +500,7 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 	}
 
 	public ImageProcessor[] transform(final ImageProcessor ip){
-		if (!precalculated)
-			this.precalculateTransfom();
+		final float[] field = getPolynomial().getField();
 
 		final ImageProcessor newIp = ip.createProcessor(ip.getWidth(), ip.getHeight());
 		if (ip instanceof ColorProcessor) ip.max(0); 
@@ -526,10 +508,11 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 
 		for (int x=0; x < width; x++){
 			for (int y=0; y < height; y++){
-				if (transField[x][y][0] == -1){
+				final int i = (y * width + x) * 2;
+				if (Float.isNaN(field[i])){
 					continue;
 				}
-				newIp.set(x, y, (int) ip.getInterpolatedPixel((int)transField[x][y][0],(int)transField[x][y][1]));
+				newIp.set(x, y, (int) ip.getInterpolatedPixel((int)(x + field[i]),(int)(y + field[i+1])));
 				maskIp.set(x,y,255);
 			}
 		}
@@ -578,6 +561,7 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 	public double[][] kernelExpandMatrixNormalize(final double positions[][]){
 		normMean = new double[length];
 		normVar = new double[length];
+		invalidate();
 
 		for (int i=0; i < length; i++){
 			normMean[i] = 0;
@@ -823,14 +807,11 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 		return height;
 	}
 
-	/**
-	 * TODO Make this more efficient
-	 */
 	@Override
 	final public NonLinearTransform copy()
 	{
 		final NonLinearTransform t = new NonLinearTransform();
-		t.init( toDataString() );
+		t.set( this );
 		return t;
 	}
 
@@ -839,7 +820,6 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 		this.dimension = nlt.dimension;
 		this.height = nlt.height;
 		this.length = nlt.length;
-		this.precalculated = nlt.precalculated;
 		this.width = nlt.width;
 
 		/* arrays by deep cloning */
@@ -849,13 +829,134 @@ public class NonLinearTransform implements mpicbg.trakem2.transform.CoordinateTr
 
 		this.normMean = nlt.normMean.clone();
 		this.normVar = nlt.normVar.clone();
-		this.transField = new double[ nlt.transField.length ][][];
 
-		for ( int a = 0; a < nlt.transField.length; ++a )
+		/* same coefficients, same canonical polynomial and displacement field */
+		this.polynomial = nlt.polynomial;
+	}
+
+	/**
+	 * The polynomial of a {@link NonLinearTransform}, with the normalization of
+	 * the kernel expansion folded into the coefficients, evaluated in Horner form
+	 * without allocating.  Instances are immutable and interned, so that all
+	 * transforms with the same coefficients, such as the lens model shared by
+	 * all tiles of a montage, share one instance and its displacement field.
+	 */
+	static private final class Polynomial
+	{
+		static private final WeakHashMap< Polynomial, WeakReference< Polynomial > > canonical = new WeakHashMap< Polynomial, WeakReference< Polynomial > >();
+
+		static private Polynomial intern( final Polynomial p )
+		{
+			synchronized ( canonical )
+			{
+				final WeakReference< Polynomial > ref = canonical.get( p );
+				final Polynomial q = null == ref ? null : ref.get();
+				if ( null != q ) return q;
+				canonical.put( p, new WeakReference< Polynomial >( p ) );
+				return p;
+			}
+		}
+
+		private final int dimension, width, height;
+		/** Coefficients of x^p y^q at offset[q] + p, for each output coordinate. */
+		private final double[] cx, cy;
+		private final int[] offset;
+		private final int hash;
+		/** Displacement in x,y for each pixel, or NaN if mapped out of the image. */
+		private float[] field = null;
+
+		Polynomial( final int dimension, final double[][] beta, final double[] normMean, final double[] normVar, final int width, final int height )
+		{
+			this.dimension = dimension;
+			this.width = width;
+			this.height = height;
+			offset = new int[ dimension + 2 ];
+			for ( int q = 0; q <= dimension; ++q )
+				offset[ q + 1 ] = offset[ q ] + dimension - q + 1;
+			cx = new double[ offset[ dimension + 1 ] ];
+			cy = new double[ cx.length ];
+
+			// Same order of terms as kernelExpand: x^j * y^(i-j)
+			final int length = beta.length;
+			if ( length > 0 )
+			{
+				cx[ 0 ] = 100 * beta[ length - 1 ][ 0 ];
+				cy[ 0 ] = 100 * beta[ length - 1 ][ 1 ];
+			}
+			int k = 0;
+			for ( int i = 1; i <= dimension; ++i )
+			{
+				for ( int j = i; j >= 0; --j, ++k )
+				{
+					final int o = offset[ i - j ] + j;
+					cx[ o ] += beta[ k ][ 0 ] / normVar[ k ];
+					cy[ o ] += beta[ k ][ 1 ] / normVar[ k ];
+					cx[ 0 ] -= beta[ k ][ 0 ] * normMean[ k ] / normVar[ k ];
+					cy[ 0 ] -= beta[ k ][ 1 ] * normMean[ k ] / normVar[ k ];
+				}
+			}
+			hash = 31 * ( 31 * ( 31 * Arrays.hashCode( cx ) + Arrays.hashCode( cy ) ) + width ) + height;
+		}
+
+		final void applyInPlace( final float[] location )
+		{
+			final double x = location[ 0 ], y = location[ 1 ];
+			double rx = 0, ry = 0;
+			for ( int q = dimension; q >= 0; --q )
+			{
+				final int o = offset[ q ];
+				double sx = 0, sy = 0;
+				for ( int p = dimension - q; p >= 0; --p )
+				{
+					sx = sx * x + cx[ o + p ];
+					sy = sy * x + cy[ o + p ];
+				}
+				rx = rx * y + sx;
+				ry = ry * y + sy;
+			}
+			location[ 0 ] = ( float )rx;
+			location[ 1 ] = ( float )ry;
+		}
+
+		synchronized final float[] getField()
+		{
+			if ( null != field ) return field;
+			final float[] f = new float[ width * height * 2 ];
+			final float[] location = new float[ 2 ];
+			for ( int y = 0, i = 0; y < height; ++y )
+			{
+				for ( int x = 0; x < width; ++x, i += 2 )
+				{
+					location[ 0 ] = x;
+					location[ 1 ] = y;
+					applyInPlace( location );
+					if ( location[ 0 ] < 0 || location[ 0 ] >= width || location[ 1 ] < 0 || location[ 1 ] >= height )
+					{
+						f[ i ] = f[ i + 1 ] = Float.NaN;
+						continue;
+					}
+					f[ i ] = location[ 0 ] - x;
+					f[ i + 1 ] = location[ 1 ] - y;
+				}
+			}
+			field = f;
+			return f;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object o )
 		{
-			this.transField[ a ] = new double[ nlt.transField[ a ].length ][];
-			for ( int b = 0; b < nlt.transField[ a ].length; ++b )
-				this.transField[ a ][ b ] = nlt.transField[ a ][ b ].clone();
+			if ( this == o ) return true;
+			if ( !( o instanceof Polynomial ) ) return false;
+			final Polynomial p = ( Polynomial )o;
+			return hash == p.hash && dimension == p.dimension && width == p.width && height == p.height
+					&& Arrays.equals( cx, p.cx ) && Arrays.equals( cy, p.cy );
 		}
 	}
 }
@@ -12,7 +12,6 @@ import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Selection;
 import ini.trakem2.parallel.ExecutorProvider;
-import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
@@ -337,6 +336,12 @@ public class Align
 		public boolean filterOutliers = false;
 		public float meanFactor = 3.0f;
 		
+		/**
+		 * Solve the affine configuration with the {@link SparseAffineSolver}
+		 * before iterative optimization
+		 */
+		public boolean sparseSolver = false;
+		
 		@Override
 		public void addAlignmentFields( final GenericDialog gd )
 		{
@@ -348,6 +353,7 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addCheckbox( "use_sparse_solver", sparseSolver );
 		}
 		
 		@Override
@@ -359,6 +365,7 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			sparseSolver = gd.getNextBoolean();
 			
 			return !gd.invalidNumber();
 		}
@@ -372,6 +379,7 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addCheckbox( "use_sparse_solver", sparseSolver );
 		}
 		
 		@Override
@@ -383,6 +391,7 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			sparseSolver = gd.getNextBoolean();
 			
 			return !gd.invalidNumber();
 		}
@@ -417,6 +426,7 @@ public class Align
 			p.maxPlateauwidth = maxPlateauwidth;
 			p.filterOutliers = filterOutliers;
 			p.meanFactor = meanFactor;
+			p.sparseSolver = sparseSolver;
 			
 			return p;
 		}
@@ -434,7 +444,8 @@ public class Align
 	
 	final static public ParamOptimize paramOptimize = new ParamOptimize();
 	
-	final static private class Features implements Serializable
+	/** Serialized features of earlier versions, see {@link Util#deserializeFeatures(ini.trakem2.Project, Object, String, long)}. */
+	final static class Features implements Serializable
 	{
 		private static final long serialVersionUID = 2689219384710526198L;
 		
@@ -447,7 +458,8 @@ public class Align
 		}
 	}
 	
-	final static private class PointMatches implements Serializable
+	/** Serialized point matches of earlier versions, see {@link Util#deserializePointMatches(ini.trakem2.Project, Object, String, long, long)}. */
+	final static class PointMatches implements Serializable
 	{
 		private static final long serialVersionUID = -2564147268101223484L;
 		
@@ -692,13 +704,8 @@ public class Align
 	
 	final static protected boolean serializeFeatures( final Param p, final AbstractAffineTile2D< ? > t, final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
 		final Patch patch = t.getPatch();
-		final Loader loader = patch.getProject().getLoader();
-		final Features fe = new Features( p.sift, list );
-		return loader.serialize( fe, new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
+		return Util.serializeFeatures( patch.getProject(), p.sift, null, patch.getId(), f );
 	}
 
 	/**
@@ -707,26 +714,7 @@ public class Align
 	final static protected Collection< Feature > deserializeFeatures( final Param p, final AbstractAffineTile2D< ? > t )
 	{
 		final Patch patch = t.getPatch();
-		final Loader loader = patch.getProject().getLoader();
-
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
-		if ( null != ob )
-		{
-			try
-			{
-				final Features fe = ( Features )ob;
-				if ( p.sift.equals( fe.p ) && null != fe.p )
-				{
-					return fe.features;
-				}
-			}
-			catch ( final Exception e )
-			{
-				e.printStackTrace();
-			}
-		}
-		return null;
+		return Util.deserializeFeatures( patch.getProject(), p.sift, null, patch.getId() );
 	}
 	
 	
@@ -767,20 +755,9 @@ public class Align
 			final AbstractAffineTile2D< ? > t2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
-		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
-		PointMatch.flip( m, tsil );
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
-		final Loader loader = p1.getProject().getLoader();
-		return
-			loader.serialize(
-				new PointMatches( p, list ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( p, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p2.getId() ) + "_" + Long.toString( p1.getId() ), "pointmatches", ".ser" ) ).toString() );
+		return Util.serializePointMatches( p1.getProject(), p, null, p1.getId(), p2.getId(), m );
 	}
 	
 	
@@ -791,27 +768,7 @@ public class Align
 	{
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
-		final Loader loader = p1.getProject().getLoader();
-		
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" )
-				.append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() );
-		
-		if ( null != ob )
-		{
-			try
-			{
-				final PointMatches pm = ( PointMatches )ob;
-				if ( p.equals( pm.p ) && null != pm.p )
-				{
-					return pm.pointMatches;
-				}
-			}
-			catch ( final Exception e )
-			{
-				e.printStackTrace();
-			}
-		}
-		return null;
+		return Util.deserializePointMatches( p1.getProject(), p, null, p1.getId(), p2.getId() );
 	}
 	
 	
@@ -978,6 +935,7 @@ public class Align
 			final List< AbstractAffineTile2D< ? > > fixedTiles )
 	{
 		final TileConfiguration tc = new TileConfiguration();
+		tc.setSparseSolver( p.sparseSolver );
 		for ( final AbstractAffineTile2D< ? > t : tiles )
 			if ( t.getConnectedTiles().size() > 0 )
 				tc.addTile( t );
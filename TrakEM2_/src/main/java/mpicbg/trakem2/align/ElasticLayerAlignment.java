@@ -25,8 +25,10 @@ import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.VectorData;
 import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Rectangle;
@@ -38,7 +40,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -60,6 +65,7 @@ import mpicbg.models.Transforms;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.Vertex;
 import mpicbg.trakem2.align.concurrent.BlockMatchLayerCallable;
+import mpicbg.trakem2.align.concurrent.LayerImageCache;
 import mpicbg.trakem2.transform.MovingLeastSquaresTransform2;
 import mpicbg.trakem2.util.Triple;
 
@@ -481,15 +487,36 @@ public class ElasticLayerAlignment
                 new ArrayList<Future<BlockMatchLayerCallable.BlockMatchResults>>(pairs.size());
 
 		
+		/* free memory */
+		project.getLoader().releaseAll();
+
+		/* pairs with at least one layer not fixed need block matching */
+		final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > matchPairs =
+				new ArrayList< Triple< Integer, Integer, AbstractModel< ? > > >();
 		for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : pairs )
 		{
-			/* free memory */
-			project.getLoader().releaseAll();
-			
+			if ( !( fixedLayers.contains( layerRange.get( pair.a ) ) && fixedLayers.contains( layerRange.get( pair.b ) ) ) )
+				matchPairs.add( pair );
+		}
+
+		/* render each layer only once and ahead of block matching, unless
+		 * the callables are executed remotely */
+		final LayerImageCache imageCache;
+		if ( ExecutorProvider.getProvider().isLocal() )
+		{
+			int maxDistance = 0;
+			for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : matchPairs )
+				maxDistance = Math.max( maxDistance, Math.abs( pair.b - pair.a ) );
+			imageCache = new LayerImageCache( layerRange, matchPairs, box, param.layerScale, filter, maxDistance + 2 );
+		}
+		else
+			imageCache = null;
+
+		for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : matchPairs )
+		{
 			final SpringMesh m1 = meshes.get( pair.a );
 			final SpringMesh m2 = meshes.get( pair.b );
 
-
 			final ArrayList< Vertex > v1 = m1.getVertices();
 			final ArrayList< Vertex > v2 = m2.getVertices();
 
@@ -499,111 +526,116 @@ public class ElasticLayerAlignment
 			final boolean layer1Fixed = fixedLayers.contains(layer1);
 			final boolean layer2Fixed = fixedLayers.contains(layer2);
 
-
-			if ( !( layer1Fixed && layer2Fixed ) )
-			{
-                BlockMatchLayerCallable bmpc = new BlockMatchLayerCallable(
-                        pair,
-                        layerRange,
-                        layer1Fixed, layer2Fixed,
-                        filter,
-                        param,
-                        v1, v2,
-                        box);
-                futures.add(service.submit(bmpc));
-            }
+            final BlockMatchLayerCallable bmpc = new BlockMatchLayerCallable(
+                    pair,
+                    layerRange,
+                    layer1Fixed, layer2Fixed,
+                    filter,
+                    param,
+                    v1, v2,
+                    box,
+                    imageCache);
+            futures.add(service.submit(bmpc));
         }
 
-        for (final Future<BlockMatchLayerCallable.BlockMatchResults> future : futures)
+        try
         {
-            final BlockMatchLayerCallable.BlockMatchResults results = future.get();
-            final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
-            final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
-            final Tile< ? > t1 = tiles.get( pair.a );
-            final Tile< ? > t2 = tiles.get( pair.b );
-            final SpringMesh m1 = meshes.get( pair.a );
-            final SpringMesh m2 = meshes.get( pair.b );
-            final float springConstant  = 1.0f / ( pair.b - pair.a );
-            final boolean layer1Fixed = results.layer1Fixed;
-            final boolean layer2Fixed = results.layer2Fixed;
-
-            if (layer1Fixed)
-            {
-                initMeshes.fixTile( t1 );
-            }
-            else
+            for (final Future<BlockMatchLayerCallable.BlockMatchResults> future : futures)
             {
-                if ( param.useLocalSmoothnessFilter )
+                final BlockMatchLayerCallable.BlockMatchResults results = future.get();
+                final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
+                final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
+                final Tile< ? > t1 = tiles.get( pair.a );
+                final Tile< ? > t2 = tiles.get( pair.b );
+                final SpringMesh m1 = meshes.get( pair.a );
+                final SpringMesh m2 = meshes.get( pair.b );
+                final float springConstant  = 1.0f / ( pair.b - pair.a );
+                final boolean layer1Fixed = results.layer1Fixed;
+                final boolean layer2Fixed = results.layer2Fixed;
+
+                if (layer1Fixed)
                 {
-                    Utils.log( pair.a + " > " + pair.b + ": " + pm12.size() +
-                            " candidates passed local smoothness filter." );
+                    initMeshes.fixTile( t1 );
                 }
                 else
                 {
-                    Utils.log( pair.a + " > " + pair.b + ": found " + pm12.size() +
-                            " correspondences." );
-                }
+                    if ( param.useLocalSmoothnessFilter )
+                    {
+                        Utils.log( pair.a + " > " + pair.b + ": " + pm12.size() +
+                                " candidates passed local smoothness filter." );
+                    }
+                    else
+                    {
+                        Utils.log( pair.a + " > " + pair.b + ": found " + pm12.size() +
+                                " correspondences." );
+                    }
 
-                for ( final PointMatch pm : pm12 )
-                {
-                    final Vertex p1 = ( Vertex )pm.getP1();
-                    final Vertex p2 = new Vertex( pm.getP2() );
-                    p1.addSpring( p2, new Spring( 0, springConstant ) );
-                    m2.addPassiveVertex( p2 );
-                }
+                    for ( final PointMatch pm : pm12 )
+                    {
+                        final Vertex p1 = ( Vertex )pm.getP1();
+                        final Vertex p2 = new Vertex( pm.getP2() );
+                        p1.addSpring( p2, new Spring( 0, springConstant ) );
+                        m2.addPassiveVertex( p2 );
+                    }
 
-                /*
-                * adding Tiles to the initialing TileConfiguration, adding a Tile
-                * multiple times does not harm because the TileConfiguration is
-                * backed by a Set.
-                */
-                if ( pm12.size() > pair.c.getMinNumMatches() )
-                {
-                    initMeshes.addTile( t1 );
-                    initMeshes.addTile( t2 );
-                    t1.connect( t2, pm12 );
+                    /*
+                    * adding Tiles to the initialing TileConfiguration, adding a Tile
+                    * multiple times does not harm because the TileConfiguration is
+                    * backed by a Set.
+                    */
+                    if ( pm12.size() > pair.c.getMinNumMatches() )
+                    {
+                        initMeshes.addTile( t1 );
+                        initMeshes.addTile( t2 );
+                        t1.connect( t2, pm12 );
+                    }
                 }
-            }
 
 
-            if ( layer2Fixed )
-                initMeshes.fixTile( t2 );
-            else
-            {
-                if ( param.useLocalSmoothnessFilter )
-                {
-                    Utils.log( pair.a + " < " + pair.b + ": " + pm21.size() +
-                            " candidates passed local smoothness filter." );
-                }
+                if ( layer2Fixed )
+                    initMeshes.fixTile( t2 );
                 else
                 {
-                    Utils.log( pair.a + " < " + pair.b + ": found " + pm21.size() +
-                            " correspondences." );
-                }
+                    if ( param.useLocalSmoothnessFilter )
+                    {
+                        Utils.log( pair.a + " < " + pair.b + ": " + pm21.size() +
+                                " candidates passed local smoothness filter." );
+                    }
+                    else
+                    {
+                        Utils.log( pair.a + " < " + pair.b + ": found " + pm21.size() +
+                                " correspondences." );
+                    }
 
-                for ( final PointMatch pm : pm21 )
-                {
-                    final Vertex p1 = ( Vertex )pm.getP1();
-                    final Vertex p2 = new Vertex( pm.getP2() );
-                    p1.addSpring( p2, new Spring( 0, springConstant ) );
-                    m1.addPassiveVertex( p2 );
-                }
+                    for ( final PointMatch pm : pm21 )
+                    {
+                        final Vertex p1 = ( Vertex )pm.getP1();
+                        final Vertex p2 = new Vertex( pm.getP2() );
+                        p1.addSpring( p2, new Spring( 0, springConstant ) );
+                        m1.addPassiveVertex( p2 );
+                    }
 
-                /*
-                * adding Tiles to the initialing TileConfiguration, adding a Tile
-                * multiple times does not harm because the TileConfiguration is
-                * backed by a Set.
-                */
-                if ( pm21.size() > pair.c.getMinNumMatches() )
-                {
-                    initMeshes.addTile( t1 );
-                    initMeshes.addTile( t2 );
-                    t2.connect( t1, pm21 );
+                    /*
+                    * adding Tiles to the initialing TileConfiguration, adding a Tile
+                    * multiple times does not harm because the TileConfiguration is
+                    * backed by a Set.
+                    */
+                    if ( pm21.size() > pair.c.getMinNumMatches() )
+                    {
+                        initMeshes.addTile( t1 );
+                        initMeshes.addTile( t2 );
+                        t2.connect( t1, pm21 );
+                    }
                 }
-            }
 
-            Utils.log( pair.a + " <> " + pair.b + " spring constant = " + springConstant );
+                Utils.log( pair.a + " <> " + pair.b + " spring constant = " + springConstant );
 
+            }
+        }
+        finally
+        {
+            if ( null != imageCache )
+                imageCache.shutdown();
         }
 
         /* pre-align by optimizing a piecewise linear model */
@@ -793,33 +825,26 @@ public class ElasticLayerAlignment
 		 */
 		final List< Patch > patches = AlignmentUtils.filterPatches( layer, filter );
 		
-		final ArrayList< Thread > applyThreads = new ArrayList< Thread >( p.maxNumThreads );
 		final AtomicInteger ai = new AtomicInteger( 0 );
-		for ( int t = 0; t < p.maxNumThreads; ++t )
-		{
-			final Thread thread = new Thread(
-					new Runnable()
+		ExecutorProvider.runParallel(
+				Priority.BATCH,
+				p.maxNumThreads,
+				new Runnable()
+				{
+					@Override
+					final public void run()
 					{
-						@Override
-						final public void run()
+						try
 						{
-							try
-							{
-								for ( int i = ai.getAndIncrement(); i < patches.size() && !Thread.interrupted(); i = ai.getAndIncrement() )
-									mpicbg.trakem2.align.Util.applyLayerTransformToPatch( patches.get( i ), mlt.copy() );
-							}
-							catch ( final Exception e )
-							{
-								e.printStackTrace();
-							}
+							for ( int i = ai.getAndIncrement(); i < patches.size() && !Thread.interrupted(); i = ai.getAndIncrement() )
+								mpicbg.trakem2.align.Util.applyLayerTransformToPatch( patches.get( i ), mlt.copy() );
 						}
-					} );
-			applyThreads.add( thread );
-			thread.start();
-		}
-		
-		for ( final Thread thread : applyThreads )
-			thread.join();
+						catch ( final Exception e )
+						{
+							e.printStackTrace();
+						}
+					}
+				} );
 	}
 	
 	
@@ -918,7 +943,7 @@ public class ElasticLayerAlignment
 
         for ( int i = 0; i < layerRange.size(); ++i )
         {
-            final ArrayList< Thread > threads = new ArrayList< Thread >( param.maxNumThreads );
+            final ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >( param.maxNumThreads );
 
             final int sliceA = i;
             final Layer layerA = layerRange.get( i );
@@ -943,7 +968,7 @@ J:            {
 
                     final String layerNameB = layerName( layerB );
 
-                    final Thread thread = new Thread()
+                    final Runnable task = new Runnable()
                     {
                         @Override
                         public void run()
@@ -1063,30 +1088,25 @@ J:            {
                             }
                         }
                     };
-                    threads.add( thread );
-                    thread.start();
+                    tasks.add( Executors.callable( task ) );
                 }
 
                 try
                 {
-                    for ( final Thread thread : threads )
-                        thread.join();
+                    ExecutorProvider.invokeAll( Priority.BATCH, tasks );
                 }
                 catch ( final InterruptedException e )
                 {
                     Utils.log( "Establishing feature correspondences interrupted." );
-                    for ( final Thread thread : threads )
-                        thread.interrupt();
-                    try
-                    {
-                        for ( final Thread thread : threads )
-                            thread.join();
-                    }
-                    catch ( final InterruptedException f ) {}
                     return;
                 }
+                catch ( final ExecutionException e )
+                {
+                    /* pairs without a model count as failures below */
+                    IJError.print( e.getCause() );
+                }
 
-                threads.clear();
+                tasks.clear();
 
                 /* collect successfully matches pairs and break the search on gaps */
                 for ( int t = 0; t < models.size(); ++t )
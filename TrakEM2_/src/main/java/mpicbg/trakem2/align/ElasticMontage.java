@@ -26,6 +26,8 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Patch.PatchImage;
 import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Rectangle;
@@ -38,7 +40,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -288,7 +289,7 @@ public class ElasticMontage
 			final FloatArray2DSIFT.Param siftParam,
 			final boolean clearCache ) throws Exception
 	{
-		final ExecutorService exec = Executors.newFixedThreadPool( p.maxNumThreads );
+		final ExecutorService exec = ExecutorProvider.newExecutorService( "ElasticMontage-features", p.maxNumThreads, Priority.BATCH, Resource.CPU );
 		
 		/* extract features for all slices and store them to disk */
 		final AtomicInteger counter = new AtomicInteger( 0 );
@@ -0,0 +1,466 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Compact binary storage for {@link Feature Features} and
+ * {@link PointMatch PointMatches}, replacing Java serialization of the
+ * respective {@link Collection Collections}.
+ *
+ * All values are stored column-wise as float arrays, so that reading a file
+ * amounts to a handful of bulk copies out of a (memory-mapped, for large
+ * files) {@link ByteBuffer}.  Descriptors can optionally be quantized to one
+ * byte per value, scaled by the per-feature maximum, which shrinks feature
+ * files to about a quarter of their size.
+ *
+ * Each file carries the serialized key {@link Object} (typically the
+ * parameters that created the data) in its header, which is compared with
+ * {@link Object#equals(Object)} on reading, exactly as for the former
+ * serialized files.
+ */
+final public class FeatureStore
+{
+	/** "T2FT" */
+	final static private int MAGIC_FEATURES = 0x54324654;
+	/** "T2PM" */
+	final static private int MAGIC_POINTMATCHES = 0x5432504d;
+	final static private int VERSION = 1;
+
+	final static private int FLAG_QUANTIZED = 1;
+
+	/** Files smaller than this are read into the heap, larger files are memory-mapped. */
+	final static private long MMAP_THRESHOLD = 1024 * 1024;
+
+	/** File extension of binary feature and point match files. */
+	final static public String EXTENSION = ".bin";
+
+	/** Whether descriptors of newly stored {@link Feature Features} are
+	 * quantized to one byte per value. */
+	static public boolean quantizeDescriptors = false;
+
+	private FeatureStore() {}
+
+
+	/**
+	 * Write a {@link Collection} of {@link Feature Features} to path.
+	 *
+	 * @param path
+	 * @param key the {@link java.io.Serializable} key identifying the parameters
+	 * @param features
+	 * @param quantize store descriptors as bytes instead of floats
+	 * @return false on failure
+	 */
+	final static public boolean writeFeatures(
+			final String path,
+			final Object key,
+			final Collection< Feature > features,
+			final boolean quantize )
+	{
+		try
+		{
+			final byte[] k = keyBytes( key );
+			final int n = features.size();
+			final Feature[] fs = features.toArray( new Feature[ n ] );
+			final int dims = 0 == n ? 0 : fs[ 0 ].location.length;
+
+			int descriptorLength = 0 == n ? 0 : fs[ 0 ].descriptor.length;
+			long total = 0;
+			for ( final Feature f : fs )
+			{
+				if ( f.descriptor.length != descriptorLength ) descriptorLength = -1;
+				total += f.descriptor.length;
+			}
+
+			final long size =
+				4 * 7 + k.length +
+				( -1 == descriptorLength ? 4L * n : 0 ) +
+				4L * n * ( 2 + dims ) +
+				( quantize ? 4L * n + total : 4L * total );
+			if ( size > Integer.MAX_VALUE )
+			{
+				Utils.log2( "Too many features to store in " + path );
+				return false;
+			}
+
+			final ByteBuffer b = ByteBuffer.allocate( ( int )size );
+			b.putInt( MAGIC_FEATURES );
+			b.putInt( VERSION );
+			b.putInt( k.length );
+			b.put( k );
+			b.putInt( quantize ? FLAG_QUANTIZED : 0 );
+			b.putInt( n );
+			b.putInt( dims );
+			b.putInt( descriptorLength );
+			if ( -1 == descriptorLength )
+				for ( final Feature f : fs )
+					b.putInt( f.descriptor.length );
+
+			for ( final Feature f : fs ) b.putFloat( f.scale );
+			for ( final Feature f : fs ) b.putFloat( f.orientation );
+			for ( final Feature f : fs ) putFloats( b, f.location );
+			if ( quantize )
+			{
+				final float[] max = new float[ n ];
+				for ( int i = 0; i < n; ++i )
+				{
+					float m = 0;
+					for ( final float d : fs[ i ].descriptor )
+						if ( d > m ) m = d;
+					max[ i ] = m;
+				}
+				putFloats( b, max );
+				for ( int i = 0; i < n; ++i )
+				{
+					final float s = 0 == max[ i ] ? 0 : 255.0f / max[ i ];
+					for ( final float d : fs[ i ].descriptor )
+						b.put( ( byte )Math.round( Math.max( 0, d ) * s ) );
+				}
+			}
+			else
+				for ( final Feature f : fs ) putFloats( b, f.descriptor );
+
+			return write( b, path );
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+		}
+		return false;
+	}
+
+
+	/**
+	 * Read the {@link Feature Features} stored at path.
+	 *
+	 * @param path
+	 * @param key
+	 * @return null if there is no such file, if the file was stored with a
+	 *   key that does not {@link Object#equals(Object) equal} key, or on
+	 *   failure.
+	 */
+	final static public ArrayList< Feature > readFeatures( final String path, final Object key )
+	{
+		try
+		{
+			final ByteBuffer b = read( path );
+			if ( null == b ) return null;
+			if ( !checkHeader( b, MAGIC_FEATURES, key, path ) ) return null;
+
+			final int flags = b.getInt();
+			final int n = b.getInt();
+			final int dims = b.getInt();
+			final int descriptorLength = b.getInt();
+			final int[] lengths = new int[ n ];
+			int total = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				lengths[ i ] = -1 == descriptorLength ? b.getInt() : descriptorLength;
+				total += lengths[ i ];
+			}
+
+			final float[] scale = getFloats( b, n );
+			final float[] orientation = getFloats( b, n );
+			final float[] location = getFloats( b, n * dims );
+
+			final ArrayList< Feature > features = new ArrayList< Feature >( n );
+			if ( 0 != ( flags & FLAG_QUANTIZED ) )
+			{
+				final float[] max = getFloats( b, n );
+				final byte[] q = new byte[ total ];
+				b.get( q );
+				for ( int i = 0, o = 0; i < n; ++i )
+				{
+					final float s = max[ i ] / 255.0f;
+					final float[] d = new float[ lengths[ i ] ];
+					for ( int j = 0; j < d.length; ++j, ++o )
+						d[ j ] = ( q[ o ] & 0xff ) * s;
+					features.add( new Feature( scale[ i ], orientation[ i ], slice( location, i * dims, dims ), d ) );
+				}
+			}
+			else
+			{
+				final float[] descriptors = getFloats( b, total );
+				for ( int i = 0, o = 0; i < n; ++i )
+				{
+					features.add( new Feature( scale[ i ], orientation[ i ], slice( location, i * dims, dims ), slice( descriptors, o, lengths[ i ] ) ) );
+					o += lengths[ i ];
+				}
+			}
+			return features;
+		}
+		catch ( final Exception e )
+		{
+			Utils.log2( "Could not read features from " + path );
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+
+	/**
+	 * Write a {@link Collection} of {@link PointMatch PointMatches} to path.
+	 * Local and world coordinates of both {@link Point Points} and the
+	 * weights are stored.
+	 *
+	 * @param path
+	 * @param key
+	 * @param matches
+	 * @return false on failure
+	 */
+	final static public boolean writePointMatches(
+			final String path,
+			final Object key,
+			final Collection< PointMatch > matches )
+	{
+		try
+		{
+			final byte[] k = keyBytes( key );
+			final int n = matches.size();
+			final PointMatch[] pms = matches.toArray( new PointMatch[ n ] );
+			final int dims = 0 == n ? 0 : pms[ 0 ].getP1().getL().length;
+
+			int weightsLength = 0 == n ? 0 : pms[ 0 ].getWeights().length;
+			long total = 0;
+			for ( final PointMatch pm : pms )
+			{
+				if ( pm.getWeights().length != weightsLength ) weightsLength = -1;
+				total += pm.getWeights().length;
+			}
+
+			final long size =
+				4 * 6 + k.length +
+				( -1 == weightsLength ? 4L * n : 0 ) +
+				4L * ( 4L * n * dims + total );
+			if ( size > Integer.MAX_VALUE )
+			{
+				Utils.log2( "Too many point matches to store in " + path );
+				return false;
+			}
+
+			final ByteBuffer b = ByteBuffer.allocate( ( int )size );
+			b.putInt( MAGIC_POINTMATCHES );
+			b.putInt( VERSION );
+			b.putInt( k.length );
+			b.put( k );
+			b.putInt( n );
+			b.putInt( dims );
+			b.putInt( weightsLength );
+			if ( -1 == weightsLength )
+				for ( final PointMatch pm : pms )
+					b.putInt( pm.getWeights().length );
+
+			for ( final PointMatch pm : pms ) putFloats( b, pm.getP1().getL() );
+			for ( final PointMatch pm : pms ) putFloats( b, pm.getP1().getW() );
+			for ( final PointMatch pm : pms ) putFloats( b, pm.getP2().getL() );
+			for ( final PointMatch pm : pms ) putFloats( b, pm.getP2().getW() );
+			for ( final PointMatch pm : pms ) putFloats( b, pm.getWeights() );
+
+			return write( b, path );
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+		}
+		return false;
+	}
+
+
+	/**
+	 * Read the {@link PointMatch PointMatches} stored at path.
+	 *
+	 * @param path
+	 * @param key
+	 * @return null if there is no such file, if the file was stored with a
+	 *   key that does not {@link Object#equals(Object) equal} key, or on
+	 *   failure.
+	 */
+	final static public ArrayList< PointMatch > readPointMatches( final String path, final Object key )
+	{
+		try
+		{
+			final ByteBuffer b = read( path );
+			if ( null == b ) return null;
+			if ( !checkHeader( b, MAGIC_POINTMATCHES, key, path ) ) return null;
+
+			final int n = b.getInt();
+			final int dims = b.getInt();
+			final int weightsLength = b.getInt();
+			final int[] lengths = new int[ n ];
+			int total = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				lengths[ i ] = -1 == weightsLength ? b.getInt() : weightsLength;
+				total += lengths[ i ];
+			}
+
+			final float[] l1 = getFloats( b, n * dims );
+			final float[] w1 = getFloats( b, n * dims );
+			final float[] l2 = getFloats( b, n * dims );
+			final float[] w2 = getFloats( b, n * dims );
+			final float[] weights = getFloats( b, total );
+
+			final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( n );
+			for ( int i = 0, o = 0; i < n; ++i )
+			{
+				final int j = i * dims;
+				matches.add(
+						new PointMatch(
+								new Point( slice( l1, j, dims ), slice( w1, j, dims ) ),
+								new Point( slice( l2, j, dims ), slice( w2, j, dims ) ),
+								slice( weights, o, lengths[ i ] ) ) );
+				o += lengths[ i ];
+			}
+			return matches;
+		}
+		catch ( final Exception e )
+		{
+			Utils.log2( "Could not read point matches from " + path );
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+
+	final static private byte[] keyBytes( final Object key ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream( bytes );
+		out.writeObject( key );
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** Check magic number and version, and compare the stored key with key. */
+	final static private boolean checkHeader( final ByteBuffer b, final int magic, final Object key, final String path ) throws IOException, ClassNotFoundException
+	{
+		if ( b.getInt() != magic )
+		{
+			Utils.log2( "Not a TrakEM2 binary feature file: " + path );
+			return false;
+		}
+		if ( b.getInt() != VERSION )
+		{
+			Utils.log2( "Unsupported version of binary feature file: " + path );
+			return false;
+		}
+		final byte[] k = new byte[ b.getInt() ];
+		b.get( k );
+		final ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( k ) );
+		final Object storedKey = in.readObject();
+		in.close();
+		return null != storedKey && key.equals( storedKey );
+	}
+
+	final static private void putFloats( final ByteBuffer b, final float[] a )
+	{
+		b.asFloatBuffer().put( a );
+		b.position( b.position() + 4 * a.length );
+	}
+
+	final static private float[] getFloats( final ByteBuffer b, final int n )
+	{
+		final float[] a = new float[ n ];
+		b.asFloatBuffer().get( a );
+		b.position( b.position() + 4 * n );
+		return a;
+	}
+
+	final static private float[] slice( final float[] a, final int offset, final int length )
+	{
+		final float[] s = new float[ length ];
+		System.arraycopy( a, offset, s, 0, length );
+		return s;
+	}
+
+	/** Write the complete buffer to a temporary file next to path, then
+	 * rename it, so that concurrent readers never see a partial file. */
+	final static private boolean write( final ByteBuffer b, final String path ) throws IOException
+	{
+		final File file = new File( path );
+		final File fdir = file.getParentFile();
+		if ( null == fdir ) return false;
+		fdir.mkdirs();
+		if ( !fdir.exists() )
+		{
+			Utils.log2( "Could not create folder " + fdir.getAbsolutePath() );
+			return false;
+		}
+		final File tmp = new File( path + ".tmp" + Thread.currentThread().getId() );
+		final FileOutputStream out = new FileOutputStream( tmp );
+		try
+		{
+			final FileChannel ch = out.getChannel();
+			b.flip();
+			while ( b.hasRemaining() ) ch.write( b );
+		}
+		finally
+		{
+			out.close();
+		}
+		if ( file.exists() ) file.delete();
+		if ( !tmp.renameTo( file ) )
+		{
+			tmp.delete();
+			Utils.log2( "Could not write " + path );
+			return false;
+		}
+		return true;
+	}
+
+	/** Returns the contents of the file at path, memory-mapped if large, or null if it does not exist. */
+	final static private ByteBuffer read( final String path ) throws IOException
+	{
+		final File file = new File( path );
+		if ( !file.exists() ) return null;
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			final FileChannel ch = raf.getChannel();
+			final long size = ch.size();
+			if ( size >= MMAP_THRESHOLD )
+				return ch.map( FileChannel.MapMode.READ_ONLY, 0, size );
+			final ByteBuffer b = ByteBuffer.allocate( ( int )size );
+			while ( b.hasRemaining() && -1 != ch.read( b ) ) {}
+			b.flip();
+			return b;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
@@ -24,13 +24,22 @@ import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
 import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -38,7 +47,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import mpicbg.imagefeatures.Feature;
@@ -56,7 +64,6 @@ import mpicbg.models.PointMatch;
 import mpicbg.models.RigidModel2D;
 import mpicbg.models.SimilarityModel2D;
 import mpicbg.models.Tile;
-import mpicbg.models.TileConfiguration;
 import mpicbg.models.Transforms;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.trakem2.util.Triple;
@@ -77,6 +84,22 @@ public class RegularizedAffineLayerAlignment
 		public int regularizerIndex = 1;
 		public float lambda = 0.1f;
 		
+		/**
+		 * Solve with the {@link SparseAffineSolver} before iterative optimization
+		 */
+		public boolean sparseSolver = false;
+		
+		/**
+		 * Block-wise alignment: number of layers per independently solved
+		 * chunk, 0 to solve all layers at once
+		 */
+		public int chunkSize = 0;
+		
+		/**
+		 * Number of layers shared by consecutive chunks
+		 */
+		public int chunkOverlap = 10;
+		
 		public boolean setup( final Rectangle box )
 		{
 			if ( !setupSIFT( "Elastically align layers: " ) )
@@ -118,6 +141,10 @@ public class RegularizedAffineLayerAlignment
 			gdOptimize.addMessage( "Optimization:" );
 			gdOptimize.addNumericField( "maximal_iterations :", maxIterationsOptimize, 0 );
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthOptimize, 0 );
+			gdOptimize.addCheckbox( "use_sparse_solver", sparseSolver );
+			gdOptimize.addMessage( "Block-wise alignment of long series:" );
+			gdOptimize.addNumericField( "layers_per_chunk :", chunkSize, 0, 6, "(0 for all)" );
+			gdOptimize.addNumericField( "chunk_overlap :", chunkOverlap, 0, 6, "layers" );
 			//gdOptimize.addCheckbox( "filter outliers", filterOutliers );
 			//gdOptimize.addNumericField( "mean_factor :", meanFactor, 2 );
 			
@@ -130,6 +157,9 @@ public class RegularizedAffineLayerAlignment
 			regularize = gdOptimize.getNextBoolean();
 			maxIterationsOptimize = ( int )gdOptimize.getNextNumber();
 			maxPlateauwidthOptimize = ( int )gdOptimize.getNextNumber();
+			sparseSolver = gdOptimize.getNextBoolean();
+			chunkSize = ( int )gdOptimize.getNextNumber();
+			chunkOverlap = ( int )gdOptimize.getNextNumber();
 			
 			if ( regularize )
 			{
@@ -215,7 +245,7 @@ public class RegularizedAffineLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param p = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -244,6 +274,10 @@ public class RegularizedAffineLayerAlignment
 					regularizerIndex,
 					rejectIdentity,
 					visualize );
+			p.sparseSolver = sparseSolver;
+			p.chunkSize = chunkSize;
+			p.chunkOverlap = chunkOverlap;
+			return p;
 		}
 	}
 	
@@ -261,7 +295,6 @@ public class RegularizedAffineLayerAlignment
 	 * @param filter
 	 * @throws Exception
 	 */
-	@SuppressWarnings( { "rawtypes", "unchecked" } )
 	final public void exec(
 			final Param param,
 			final List< Layer > layerRange,
@@ -271,6 +304,62 @@ public class RegularizedAffineLayerAlignment
 			final boolean propagateTransformBefore,
 			final boolean propagateTransformAfter,
 			final Filter< Patch > filter ) throws Exception
+	{
+		final List< AffineTransform > affines;
+		if ( param.chunkSize > 0 && layerRange.size() > param.chunkSize )
+			affines = alignChunked( param, layerRange, fixedLayers, box, filter );
+		else
+			affines = align( param, layerRange, fixedLayers, box, filter, true );
+		
+		if ( null == affines )
+			return;
+		
+		if ( propagateTransformBefore || propagateTransformAfter )
+		{
+			final Layer first = layerRange.get( 0 );
+			final List< Layer > layers = first.getParent().getLayers();
+			if ( propagateTransformBefore )
+			{
+				final AffineTransform b = translateAffine( box, affines.get( 0 ) );
+				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
+				for ( int i = 0; i < firstLayerIndex; ++i )
+					applyTransformToLayer( layers.get( i ), b, filter );
+			}
+			if ( propagateTransformAfter )
+			{
+				final Layer last = layerRange.get( layerRange.size() - 1 );
+				final AffineTransform b = translateAffine( box, affines.get( affines.size() - 1 ) );
+				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
+				for ( int i = lastLayerIndex + 1; i < layers.size(); ++i )
+					applyTransformToLayer( layers.get( i ), b, filter );
+			}
+		}
+		for ( int i = 0; i < layerRange.size(); ++i )
+		{
+			final AffineTransform b = translateAffine( box, affines.get( i ) );
+			applyTransformToLayer( layerRange.get( i ), b, filter );
+		}
+			
+		Utils.log( "Done." );
+	}
+	
+	
+	/**
+	 * Align layerRange as one configuration, and return the
+	 * {@link AffineTransform} of each {@link Layer} relative to box, or null
+	 * if interrupted.
+	 * 
+	 * @param extractFeatures whether features still have to be extracted,
+	 *   otherwise they are expected in the feature cache
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	final protected List< AffineTransform > align(
+			final Param param,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Rectangle box,
+			final Filter< Patch > filter,
+			final boolean extractFeatures ) throws Exception
 	{
 		final double scale = Math.min( 1.0, Math.min( ( double )param.ppm.sift.maxOctaveSize / ( double )box.width, ( double )param.ppm.sift.maxOctaveSize / ( double )box.height ) );
 
@@ -295,13 +384,16 @@ public class RegularizedAffineLayerAlignment
 		
 		
 		/* extract and save features, overwrite cached files if requested */
-		try
+		if ( extractFeatures )
 		{
-			AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache, param.ppm.maxNumThreadsSift );
-		}
-		catch ( final Exception e )
-		{
-			return;
+			try
+			{
+				AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache, param.ppm.maxNumThreadsSift );
+			}
+			catch ( final Exception e )
+			{
+				return null;
+			}
 		}
 		
 		/* match and filter feature correspondences */
@@ -360,7 +452,7 @@ public class RegularizedAffineLayerAlignment
             {
                 future.cancel(true);
             }
-            return;
+            return null;
         }
 
         /* collect successfully matches pairs and break the search on gaps */
@@ -385,6 +477,7 @@ public class RegularizedAffineLayerAlignment
 
 		/* Optimization */
 		final TileConfiguration tileConfiguration = new TileConfiguration();
+		tileConfiguration.setSparseSolver( param.sparseSolver );
 		
 		for ( final Triple< Integer, Integer, Collection< PointMatch > > pair : pairs )
 		{
@@ -418,33 +511,297 @@ public class RegularizedAffineLayerAlignment
 		Utils.log( "  minimal displacement: " + String.format( "%.3f", tileConfiguration.getMinError() ) + "px" );
 		Utils.log( "  maximal displacement: " + String.format( "%.3f", tileConfiguration.getMaxError() ) + "px" );
 		
-		if ( propagateTransformBefore || propagateTransformAfter )
+		final ArrayList< AffineTransform > affines = new ArrayList< AffineTransform >();
+		for ( final Tile< ? > t : tiles )
+			affines.add( ( ( Affine2D< ? > )t.getModel() ).createAffine() );
+		return affines;
+	}
+	
+	/** Saved solution of one chunk of a block-wise alignment. */
+	final static private class ChunkCheckpoint implements Serializable
+	{
+		private static final long serialVersionUID = -3179466843384126406L;
+		
+		final byte[] key;
+		final double[][] matrices;
+		
+		ChunkCheckpoint( final byte[] key, final List< AffineTransform > affines )
 		{
-			final Layer first = layerRange.get( 0 );
-			final List< Layer > layers = first.getParent().getLayers();
-			if ( propagateTransformBefore )
+			this.key = key;
+			matrices = new double[ affines.size() ][ 6 ];
+			for ( int i = 0; i < matrices.length; ++i )
+				affines.get( i ).getMatrix( matrices[ i ] );
+		}
+		
+		List< AffineTransform > getAffines()
+		{
+			final ArrayList< AffineTransform > affines = new ArrayList< AffineTransform >( matrices.length );
+			for ( final double[] m : matrices )
+				affines.add( new AffineTransform( m ) );
+			return affines;
+		}
+	}
+	
+	final static private String checkpointPath( final List< Layer > chunkLayers )
+	{
+		final Loader loader = chunkLayers.get( 0 ).getProject().getLoader();
+		final String sid = chunkLayers.get( 0 ).getId() + "_" + chunkLayers.get( chunkLayers.size() - 1 ).getId();
+		return new StringBuilder( loader.getUNUIdFolder() )
+			.append( "align.chunks/" )
+			.append( FSLoader.createIdPath( sid, "chunk", ".ser" ) ).toString();
+	}
+	
+	/**
+	 * Everything the solution of a chunk depends on. The fields of the
+	 * parameters are written one by one, because those inherited from
+	 * {@link AbstractLayerAlignmentParam} are not serialized.
+	 * The number of threads, caching and visualization don't change the
+	 * solution and are left out.
+	 */
+	final static private byte[] checkpointKey(
+			final Param param,
+			final List< Layer > chunkLayers,
+			final Set< Layer > fixedLayers,
+			final Rectangle box ) throws IOException
+	{
+		final long[] ids = new long[ chunkLayers.size() ];
+		final boolean[] fixed = new boolean[ ids.length ];
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			ids[ i ] = chunkLayers.get( i ).getId();
+			fixed[ i ] = fixedLayers.contains( chunkLayers.get( i ) );
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		final FloatArray2DSIFT.Param sift = param.ppm.sift;
+		out.writeInt( sift.fdSize );
+		out.writeInt( sift.fdBins );
+		out.writeInt( sift.maxOctaveSize );
+		out.writeInt( sift.minOctaveSize );
+		out.writeInt( sift.steps );
+		out.writeFloat( sift.initialSigma );
+		out.writeFloat( param.ppm.rod );
+		out.writeFloat( param.maxEpsilon );
+		out.writeFloat( param.minInlierRatio );
+		out.writeInt( param.minNumInliers );
+		out.writeInt( param.expectedModelIndex );
+		out.writeBoolean( param.multipleHypotheses );
+		out.writeBoolean( param.rejectIdentity );
+		out.writeFloat( param.identityTolerance );
+		out.writeInt( param.maxNumNeighbors );
+		out.writeInt( param.maxNumFailures );
+		out.writeInt( param.desiredModelIndex );
+		out.writeInt( param.maxIterationsOptimize );
+		out.writeInt( param.maxPlateauwidthOptimize );
+		out.writeBoolean( param.regularize );
+		out.writeInt( param.regularizerIndex );
+		out.writeFloat( param.lambda );
+		out.writeBoolean( param.sparseSolver );
+		out.writeInt( box.x );
+		out.writeInt( box.y );
+		out.writeInt( box.width );
+		out.writeInt( box.height );
+		out.writeInt( ids.length );
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			out.writeLong( ids[ i ] );
+			out.writeBoolean( fixed[ i ] );
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Align overlapping chunks of {@link Param#chunkSize} layers
+	 * independently and in parallel, then stitch the chunks by optimizing
+	 * one model per chunk over the layers that consecutive chunks share.
+	 * Only the correspondences of the chunks in progress are held in memory.
+	 * 
+	 * The solution of each chunk is saved to the project folder, such that
+	 * an interrupted alignment resumes with the chunks that were not
+	 * finished.
+	 * 
+	 * @return the {@link AffineTransform} of each {@link Layer} relative to
+	 *   box, or null if interrupted.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	final protected List< AffineTransform > alignChunked(
+			final Param param,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Rectangle box,
+			final Filter< Patch > filter ) throws Exception
+	{
+		final int n = layerRange.size();
+		final int overlap = Math.max( 1, Math.min( param.chunkOverlap, param.chunkSize - 1 ) );
+		final int step = Math.max( 1, param.chunkSize - overlap );
+		
+		/* chunks as [first, last) */
+		final ArrayList< int[] > chunks = new ArrayList< int[] >();
+		for ( int first = 0; ; first += step )
+		{
+			final int last = Math.min( n, first + param.chunkSize );
+			chunks.add( new int[]{ first, last } );
+			if ( last == n ) break;
+		}
+		Utils.log( "Aligning " + n + " layers in " + chunks.size() + " chunks of " + param.chunkSize + " layers, overlapping by " + overlap + " layers." );
+		
+		/* extract and save features of all layers once */
+		final double scale = Math.min( 1.0, Math.min( ( double )param.ppm.sift.maxOctaveSize / ( double )box.width, ( double )param.ppm.sift.maxOctaveSize / ( double )box.height ) );
+		try
+		{
+			AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache, param.ppm.maxNumThreadsSift );
+		}
+		catch ( final Exception e )
+		{
+			return null;
+		}
+		
+		/* solve all chunks, sharing the threads among those solved at once */
+		final int parallelChunks = Math.max( 1, Math.min( chunks.size(), param.maxNumThreads ) );
+		final Param chunkParam = param.clone();
+		chunkParam.maxNumThreads = Math.max( 1, param.maxNumThreads / parallelChunks );
+		final ExecutorService chunkExec = ExecutorProvider.newExecutorService( "align-chunks", parallelChunks, Priority.BATCH, Resource.CPU );
+		final ArrayList< Future< List< AffineTransform > > > futures = new ArrayList< Future< List< AffineTransform > > >();
+		for ( int k = 0; k < chunks.size(); ++k )
+		{
+			final int chunkIndex = k;
+			final List< Layer > chunkLayers = layerRange.subList( chunks.get( k )[ 0 ], chunks.get( k )[ 1 ] );
+			futures.add( chunkExec.submit( new Callable< List< AffineTransform > >()
 			{
-				final AffineTransform b = translateAffine( box, ( ( Affine2D< ? > )tiles.get( 0 ).getModel() ).createAffine() );
-				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
-				for ( int i = 0; i < firstLayerIndex; ++i )
-					applyTransformToLayer( layers.get( i ), b, filter );
+				@Override
+				public List< AffineTransform > call() throws Exception
+				{
+					final Loader loader = chunkLayers.get( 0 ).getProject().getLoader();
+					final String path = checkpointPath( chunkLayers );
+					final byte[] key = checkpointKey( param, chunkLayers, fixedLayers, box );
+					final Object ob = loader.deserialize( path );
+					if ( ob instanceof ChunkCheckpoint && Arrays.equals( key, ( ( ChunkCheckpoint )ob ).key ) )
+					{
+						Utils.log( "Resuming with the saved alignment of chunk " + ( chunkIndex + 1 ) + "/" + chunks.size() + "." );
+						return ( ( ChunkCheckpoint )ob ).getAffines();
+					}
+					
+					Utils.log( "Aligning chunk " + ( chunkIndex + 1 ) + "/" + chunks.size() + "." );
+					final List< AffineTransform > affines = align( chunkParam, chunkLayers, fixedLayers, box, filter, false );
+					if ( null != affines && !loader.serialize( new ChunkCheckpoint( key, affines ), path ) )
+						Utils.log( "Could not save the alignment of chunk " + ( chunkIndex + 1 ) + "/" + chunks.size() + "." );
+					return affines;
+				}
+			} ) );
+		}
+		
+		final ArrayList< List< AffineTransform > > chunkAffines = new ArrayList< List< AffineTransform > >();
+		try
+		{
+			for ( final Future< List< AffineTransform > > future : futures )
+			{
+				final List< AffineTransform > affines = future.get();
+				if ( null == affines )
+					return null;
+				chunkAffines.add( affines );
 			}
-			if ( propagateTransformAfter )
+		}
+		catch ( final InterruptedException ie )
+		{
+			Utils.log( "Block-wise alignment interrupted, finished chunks are saved." );
+			return null;
+		}
+		finally
+		{
+			for ( final Future< List< AffineTransform > > future : futures )
+				future.cancel( true );
+			chunkExec.shutdownNow();
+		}
+		
+		/* stitch chunks by a grid of points in each shared layer */
+		final ArrayList< double[] > samples = new ArrayList< double[] >();
+		for ( int y = 0; y < 4; ++y )
+			for ( int x = 0; x < 4; ++x )
+				samples.add( new double[]{ box.width * ( x + 0.5 ) / 4, box.height * ( y + 0.5 ) / 4 } );
+		
+		final AbstractAffineModel2D< ? > m = ( AbstractAffineModel2D< ? > )Util.createModel( param.desiredModelIndex );
+		final ArrayList< Tile< ? > > chunkTiles = new ArrayList< Tile< ? > >();
+		for ( int k = 0; k < chunks.size(); ++k )
+			chunkTiles.add( new Tile( m.copy() ) );
+		
+		final TileConfiguration tileConfiguration = new TileConfiguration();
+		for ( int k = 1; k < chunks.size(); ++k )
+		{
+			final int[] a = chunks.get( k - 1 );
+			final int[] b = chunks.get( k );
+			final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+			final double[] pa = new double[ 2 ];
+			final double[] pb = new double[ 2 ];
+			for ( int i = b[ 0 ]; i < a[ 1 ]; ++i )
 			{
-				final Layer last = layerRange.get( layerRange.size() - 1 );
-				final AffineTransform b = translateAffine( box, ( ( Affine2D< ? > )tiles.get( tiles.size() - 1 ).getModel() ).createAffine() );
-				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
-				for ( int i = lastLayerIndex + 1; i < layers.size(); ++i )
-					applyTransformToLayer( layers.get( i ), b, filter );
+				final AffineTransform ta = chunkAffines.get( k - 1 ).get( i - a[ 0 ] );
+				final AffineTransform tb = chunkAffines.get( k ).get( i - b[ 0 ] );
+				for ( final double[] sample : samples )
+				{
+					ta.transform( sample, 0, pa, 0, 1 );
+					tb.transform( sample, 0, pb, 0, 1 );
+					matches.add( new PointMatch(
+							new Point( new float[]{ ( float )pb[ 0 ], ( float )pb[ 1 ] } ),
+							new Point( new float[]{ ( float )pa[ 0 ], ( float )pa[ 1 ] } ) ) );
+				}
 			}
+			tileConfiguration.addTile( chunkTiles.get( k - 1 ) );
+			tileConfiguration.addTile( chunkTiles.get( k ) );
+			chunkTiles.get( k ).connect( chunkTiles.get( k - 1 ), matches );
 		}
-		for ( int i = 0; i < layerRange.size(); ++i )
+		
+		/* chunks with fixed layers have been solved in the frame of those layers */
+		for ( int k = 0; k < chunks.size(); ++k )
 		{
-			final AffineTransform b = translateAffine( box, ( ( Affine2D< ? > )tiles.get( i ).getModel() ).createAffine() );
-			applyTransformToLayer( layerRange.get( i ), b, filter );
+			for ( final Layer layer : layerRange.subList( chunks.get( k )[ 0 ], chunks.get( k )[ 1 ] ) )
+			{
+				if ( fixedLayers.contains( layer ) )
+				{
+					tileConfiguration.fixTile( chunkTiles.get( k ) );
+					break;
+				}
+			}
 		}
-			
-		Utils.log( "Done." );
+		if ( tileConfiguration.getFixedTiles().isEmpty() )
+			tileConfiguration.fixTile( chunkTiles.get( 0 ) );
+		
+		tileConfiguration.preAlign();
+		tileConfiguration.optimize(
+				param.maxEpsilon,
+				param.maxIterationsOptimize,
+				param.maxPlateauwidthOptimize );
+		
+		Utils.log( new StringBuffer( "Successfully stitched " ).append( chunks.size() ).append( " chunks:" ).toString() );
+		Utils.log( "  average displacement: " + String.format( "%.3f", tileConfiguration.getError() ) + "px" );
+		Utils.log( "  maximal displacement: " + String.format( "%.3f", tileConfiguration.getMaxError() ) + "px" );
+		
+		/* take each layer from the chunk in which it is farthest from the boundaries */
+		final ArrayList< AffineTransform > affines = new ArrayList< AffineTransform >( n );
+		for ( int i = 0; i < n; ++i )
+		{
+			int best = 0, bestDistance = -1;
+			for ( int k = 0; k < chunks.size(); ++k )
+			{
+				final int[] c = chunks.get( k );
+				if ( i < c[ 0 ] || i >= c[ 1 ] ) continue;
+				final int d = Math.min( i - c[ 0 ], c[ 1 ] - 1 - i );
+				if ( d > bestDistance )
+				{
+					best = k;
+					bestDistance = d;
+				}
+			}
+			final AffineTransform t = ( ( Affine2D< ? > )chunkTiles.get( best ).getModel() ).createAffine();
+			t.concatenate( chunkAffines.get( best ).get( i - chunks.get( best )[ 0 ] ) );
+			affines.add( t );
+		}
+		
+		/* the saved chunks are obsolete once the result is applied */
+		for ( final int[] c : chunks )
+			new File( checkpointPath( layerRange.subList( c[ 0 ], c[ 1 ] ) ) ).delete();
+		
+		return affines;
 	}
 	
 	final static protected AffineTransform translateAffine( final Rectangle box, final AffineTransform affine )
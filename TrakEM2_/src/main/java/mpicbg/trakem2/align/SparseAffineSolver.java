@@ -0,0 +1,457 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.utils.Utils;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import mpicbg.models.Affine2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+
+/**
+ * Global least-squares solver for a configuration of {@link Tile Tiles}
+ * with affine models that are interconnected by
+ * {@link PointMatch PointMatches}.
+ *
+ * All point-match constraints are assembled into one sparse linear system,
+ * with one affine transformation per {@link Tile}, that is solved with a
+ * multithreaded block-Jacobi preconditioned conjugate gradient method.  The
+ * x and y rows of the affine transformations are independent, and share the
+ * same system matrix.  {@link Tile Tiles} that are fixed go into the right
+ * hand side; connected graphs without any fixed {@link Tile} get their first
+ * {@link Tile} fixed, because the affine system would otherwise collapse.
+ *
+ * The solution is transferred into the actual model of each {@link Tile} by
+ * {@link mpicbg.models.Model#fit(Collection) fitting} it to the solved
+ * positions of its own points, such that rigid, similarity and regularized
+ * ({@link mpicbg.models.InterpolatedAffineModel2D interpolated}) models
+ * receive their closest approximation of the affine solution.  Those are then
+ * expected to be refined by the iterative optimizer of
+ * {@link mpicbg.models.TileConfiguration}, that starts from a configuration
+ * with all large-scale error removed and needs only a few iterations.
+ */
+public class SparseAffineSolver
+{
+	/** Relative weight of the ridge that keeps under-constrained tiles at their current transformation. */
+	final static private double RIDGE = 1e-9;
+
+	final private List< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+	final private Set< Tile< ? > > fixedTiles = new HashSet< Tile< ? > >();
+	final private int numThreads;
+
+	/* index of each free tile in the system, -1 for fixed tiles */
+	final private Map< Tile< ? >, Integer > index = new HashMap< Tile< ? >, Integer >();
+	/* current affine of each tile as { m00, m01, m02, m10, m11, m12 } */
+	final private Map< Tile< ? >, double[] > affines = new HashMap< Tile< ? >, double[] >();
+
+	/* block sparse rows of the system matrix: column indices and 3x3 blocks */
+	private int[][] columns;
+	private double[][][] blocks;
+	private double[][] preconditioner;
+	/* right hand sides of the x and the y system, interleaved per free tile */
+	private double[] b;
+
+	private int iterations = 0;
+	private double residual = 0;
+
+	public SparseAffineSolver(
+			final Collection< ? extends Tile< ? > > tiles,
+			final Collection< ? extends Tile< ? > > fixedTiles,
+			final int numThreads )
+	{
+		this.tiles.addAll( tiles );
+		this.fixedTiles.addAll( fixedTiles );
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Whether all {@link Tile Tiles} have models that can be expressed as an
+	 * affine transformation.
+	 */
+	static public boolean canSolve( final Collection< ? extends Tile< ? > > tiles )
+	{
+		for ( final Tile< ? > t : tiles )
+			if ( !( t.getModel() instanceof Affine2D ) )
+				return false;
+		return true;
+	}
+
+	public int getIterations() { return iterations; }
+
+	/** Relative residual of the conjugate gradient solution. */
+	public double getResidual() { return residual; }
+
+	/**
+	 * Solve the configuration and update the models of all {@link Tile Tiles}
+	 * that are not fixed.
+	 *
+	 * @param maxIterations of the conjugate gradient method
+	 * @param tolerance relative residual at which to stop
+	 * @return false if any of the models is not affine, or if the models
+	 *   could not be updated.
+	 */
+	public boolean solve( final int maxIterations, final double tolerance ) throws InterruptedException
+	{
+		if ( !canSolve( tiles ) ) return false;
+
+		fixDisconnectedGraphs();
+		assemble();
+
+		final int n = b.length;
+		if ( 0 == n ) return true;
+
+		final double[] x = new double[ n ];
+		for ( final Tile< ? > t : tiles )
+		{
+			final Integer i = index.get( t );
+			if ( null == i ) continue;
+			final double[] a = affines.get( t );
+			System.arraycopy( a, 0, x, i * 6, 6 );
+		}
+
+		conjugateGradients( x, maxIterations, tolerance );
+
+		return update( x );
+	}
+
+	/** Fix the first tile of each connected graph that has no fixed tile. */
+	private void fixDisconnectedGraphs()
+	{
+		final Set< Tile< ? > > visited = new HashSet< Tile< ? > >();
+		for ( final Tile< ? > t : tiles )
+		{
+			if ( visited.contains( t ) ) continue;
+			boolean hasFixed = false;
+			final ArrayList< Tile< ? > > stack = new ArrayList< Tile< ? > >();
+			stack.add( t );
+			visited.add( t );
+			while ( !stack.isEmpty() )
+			{
+				final Tile< ? > s = stack.remove( stack.size() - 1 );
+				if ( fixedTiles.contains( s ) ) hasFixed = true;
+				for ( final Tile< ? > c : s.getConnectedTiles() )
+				{
+					if ( visited.add( c ) )
+						stack.add( c );
+				}
+			}
+			if ( !hasFixed )
+				fixedTiles.add( t );
+		}
+	}
+
+	final static private double[] affine( final Tile< ? > t )
+	{
+		final AffineTransform at = ( ( Affine2D< ? > )t.getModel() ).createAffine();
+		return new double[]{
+				at.getScaleX(), at.getShearX(), at.getTranslateX(),
+				at.getShearY(), at.getScaleY(), at.getTranslateY() };
+	}
+
+	/** Build the normal equations. */
+	private void assemble()
+	{
+		/* owner of each point, to identify the tile at the other end of a match */
+		final IdentityHashMap< Point, Tile< ? > > owner = new IdentityHashMap< Point, Tile< ? > >();
+		int n = 0;
+		for ( final Tile< ? > t : tiles )
+		{
+			affines.put( t, affine( t ) );
+			for ( final PointMatch m : t.getMatches() )
+				owner.put( m.getP1(), t );
+			if ( !fixedTiles.contains( t ) )
+				index.put( t, n++ );
+		}
+
+		columns = new int[ n ][];
+		blocks = new double[ n ][][];
+		preconditioner = new double[ n ][];
+		b = new double[ n * 6 ];
+
+		for ( final Tile< ? > t : tiles )
+		{
+			final Integer ii = index.get( t );
+			if ( null == ii ) continue;
+			final int i = ii;
+
+			final HashMap< Integer, double[] > row = new HashMap< Integer, double[] >();
+			final double[] diagonal = new double[ 9 ];
+			row.put( i, diagonal );
+
+			for ( final PointMatch m : t.getMatches() )
+			{
+				final Tile< ? > o = owner.get( m.getP2() );
+				if ( null == o ) continue;
+				final double w = m.getWeight();
+				final float[] p = m.getP1().getL();
+				final float[] q = m.getP2().getL();
+				final double[] pp = new double[]{ p[ 0 ], p[ 1 ], 1 };
+				final double[] qq = new double[]{ q[ 0 ], q[ 1 ], 1 };
+
+				addOuter( diagonal, w, pp, pp );
+
+				final Integer jj = index.get( o );
+				if ( null == jj )
+				{
+					/* fixed: known world coordinates go into the right hand side */
+					final double[] a = affines.get( o );
+					final double qx = a[ 0 ] * qq[ 0 ] + a[ 1 ] * qq[ 1 ] + a[ 2 ];
+					final double qy = a[ 3 ] * qq[ 0 ] + a[ 4 ] * qq[ 1 ] + a[ 5 ];
+					for ( int k = 0; k < 3; ++k )
+					{
+						b[ i * 6 + k ] += w * pp[ k ] * qx;
+						b[ i * 6 + 3 + k ] += w * pp[ k ] * qy;
+					}
+				}
+				else
+				{
+					double[] block = row.get( jj );
+					if ( null == block )
+					{
+						block = new double[ 9 ];
+						row.put( jj, block );
+					}
+					addOuter( block, -w, pp, qq );
+				}
+			}
+
+			/* ridge towards the current transformation, scaled by the magnitude of the diagonal */
+			final double ridge = RIDGE * ( diagonal[ 0 ] + diagonal[ 4 ] + diagonal[ 8 ] + 1 );
+			final double[] a = affines.get( t );
+			for ( int k = 0; k < 3; ++k )
+			{
+				diagonal[ k * 4 ] += ridge;
+				b[ i * 6 + k ] += ridge * a[ k ];
+				b[ i * 6 + 3 + k ] += ridge * a[ 3 + k ];
+			}
+
+			columns[ i ] = new int[ row.size() ];
+			blocks[ i ] = new double[ row.size() ][];
+			int k = 0;
+			for ( final Map.Entry< Integer, double[] > e : row.entrySet() )
+			{
+				columns[ i ][ k ] = e.getKey();
+				blocks[ i ][ k ] = e.getValue();
+				++k;
+			}
+			preconditioner[ i ] = invert3x3( diagonal );
+		}
+	}
+
+	final static private void addOuter( final double[] block, final double w, final double[] u, final double[] v )
+	{
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				block[ r * 3 + c ] += w * u[ r ] * v[ c ];
+	}
+
+	final static private double[] invert3x3( final double[] m )
+	{
+		final double
+			a = m[ 0 ], b = m[ 1 ], c = m[ 2 ],
+			d = m[ 3 ], e = m[ 4 ], f = m[ 5 ],
+			g = m[ 6 ], h = m[ 7 ], i = m[ 8 ];
+		final double det = a * ( e * i - f * h ) - b * ( d * i - f * g ) + c * ( d * h - e * g );
+		if ( 0 == det || Double.isNaN( det ) )
+			/* fall back to the inverse of the diagonal */
+			return new double[]{
+					0 == a ? 1 : 1 / a, 0, 0,
+					0, 0 == e ? 1 : 1 / e, 0,
+					0, 0, 0 == i ? 1 : 1 / i };
+		final double s = 1 / det;
+		return new double[]{
+				( e * i - f * h ) * s, ( c * h - b * i ) * s, ( b * f - c * e ) * s,
+				( f * g - d * i ) * s, ( a * i - c * g ) * s, ( c * d - a * f ) * s,
+				( d * h - e * g ) * s, ( b * g - a * h ) * s, ( a * e - b * d ) * s };
+	}
+
+	/** y = A x for both the x and the y system, in parallel over row chunks. */
+	private void multiply( final double[] x, final double[] y ) throws InterruptedException
+	{
+		final int n = columns.length;
+		final int chunk = Math.max( 256, ( n + numThreads - 1 ) / numThreads );
+		final ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for ( int start = 0; start < n; start += chunk )
+		{
+			final int first = start;
+			final int last = Math.min( n, start + chunk );
+			tasks.add( new Callable< Object >()
+			{
+				@Override
+				public Object call()
+				{
+					for ( int i = first; i < last; ++i )
+					{
+						final int[] cols = columns[ i ];
+						final double[][] bs = blocks[ i ];
+						double x0 = 0, x1 = 0, x2 = 0, y0 = 0, y1 = 0, y2 = 0;
+						for ( int k = 0; k < cols.length; ++k )
+						{
+							final double[] m = bs[ k ];
+							final int j = cols[ k ] * 6;
+							final double a = x[ j ], bb = x[ j + 1 ], c = x[ j + 2 ];
+							final double d = x[ j + 3 ], e = x[ j + 4 ], f = x[ j + 5 ];
+							x0 += m[ 0 ] * a + m[ 1 ] * bb + m[ 2 ] * c;
+							x1 += m[ 3 ] * a + m[ 4 ] * bb + m[ 5 ] * c;
+							x2 += m[ 6 ] * a + m[ 7 ] * bb + m[ 8 ] * c;
+							y0 += m[ 0 ] * d + m[ 1 ] * e + m[ 2 ] * f;
+							y1 += m[ 3 ] * d + m[ 4 ] * e + m[ 5 ] * f;
+							y2 += m[ 6 ] * d + m[ 7 ] * e + m[ 8 ] * f;
+						}
+						final int o = i * 6;
+						y[ o ] = x0;
+						y[ o + 1 ] = x1;
+						y[ o + 2 ] = x2;
+						y[ o + 3 ] = y0;
+						y[ o + 4 ] = y1;
+						y[ o + 5 ] = y2;
+					}
+					return null;
+				}
+			} );
+		}
+		if ( 1 == tasks.size() )
+		{
+			try { tasks.get( 0 ).call(); }
+			catch ( final Exception e ) { throw new RuntimeException( e ); }
+			return;
+		}
+		try { ExecutorProvider.invokeAll( Priority.BATCH, tasks ); }
+		catch ( final ExecutionException e ) { throw new RuntimeException( e.getCause() ); }
+		if ( Thread.currentThread().isInterrupted() )
+			throw new InterruptedException( "Sparse solver interrupted." );
+	}
+
+	/** z = M^-1 r with the block-Jacobi preconditioner. */
+	private void precondition( final double[] r, final double[] z )
+	{
+		for ( int i = 0; i < preconditioner.length; ++i )
+		{
+			final double[] m = preconditioner[ i ];
+			for ( int s = 0; s < 6; s += 3 )
+			{
+				final int o = i * 6 + s;
+				final double a = r[ o ], bb = r[ o + 1 ], c = r[ o + 2 ];
+				z[ o ] = m[ 0 ] * a + m[ 1 ] * bb + m[ 2 ] * c;
+				z[ o + 1 ] = m[ 3 ] * a + m[ 4 ] * bb + m[ 5 ] * c;
+				z[ o + 2 ] = m[ 6 ] * a + m[ 7 ] * bb + m[ 8 ] * c;
+			}
+		}
+	}
+
+	final static private double dot( final double[] a, final double[] b )
+	{
+		double s = 0;
+		for ( int i = 0; i < a.length; ++i )
+			s += a[ i ] * b[ i ];
+		return s;
+	}
+
+	private void conjugateGradients(
+			final double[] x,
+			final int maxIterations,
+			final double tolerance ) throws InterruptedException
+	{
+		final int n = x.length;
+		final double[] r = new double[ n ];
+		final double[] z = new double[ n ];
+		final double[] p = new double[ n ];
+		final double[] q = new double[ n ];
+
+		multiply( x, q );
+		for ( int i = 0; i < n; ++i )
+			r[ i ] = b[ i ] - q[ i ];
+		precondition( r, z );
+		System.arraycopy( z, 0, p, 0, n );
+
+		final double bNorm = Math.sqrt( dot( b, b ) );
+		final double norm = 0 == bNorm ? 1 : bNorm;
+		double rz = dot( r, z );
+		residual = Math.sqrt( dot( r, r ) ) / norm;
+
+		for ( iterations = 0; iterations < maxIterations && residual > tolerance; ++iterations )
+		{
+			multiply( p, q );
+			final double pq = dot( p, q );
+			if ( 0 == pq ) break;
+			final double alpha = rz / pq;
+			for ( int i = 0; i < n; ++i )
+			{
+				x[ i ] += alpha * p[ i ];
+				r[ i ] -= alpha * q[ i ];
+			}
+			residual = Math.sqrt( dot( r, r ) ) / norm;
+			precondition( r, z );
+			final double rzNew = dot( r, z );
+			final double beta = rzNew / rz;
+			rz = rzNew;
+			for ( int i = 0; i < n; ++i )
+				p[ i ] = z[ i ] + beta * p[ i ];
+		}
+	}
+
+	/**
+	 * Fit the model of each free tile to the solved world coordinates of its
+	 * points, and apply all models.
+	 */
+	private boolean update( final double[] x )
+	{
+		boolean success = true;
+		for ( final Tile< ? > t : tiles )
+		{
+			final Integer ii = index.get( t );
+			if ( null == ii ) continue;
+			final int o = ii * 6;
+			final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+			for ( final PointMatch m : t.getMatches() )
+			{
+				final float[] l = m.getP1().getL();
+				final float[] w = new float[]{
+						( float )( x[ o ] * l[ 0 ] + x[ o + 1 ] * l[ 1 ] + x[ o + 2 ] ),
+						( float )( x[ o + 3 ] * l[ 0 ] + x[ o + 4 ] * l[ 1 ] + x[ o + 5 ] ) };
+				matches.add( new PointMatch( new Point( l.clone() ), new Point( w ), m.getWeights() ) );
+			}
+			try
+			{
+				t.getModel().fit( matches );
+			}
+			catch ( final Exception e )
+			{
+				/* keep the current model */
+				success = false;
+			}
+		}
+		for ( final Tile< ? > t : tiles )
+			t.apply();
+		return success;
+	}
+}
@@ -1,13 +1,51 @@
 /**
- * 
+ *
  */
 package mpicbg.trakem2.align;
 
 import ij.IJ;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
 
 public class TileConfiguration extends mpicbg.models.TileConfiguration
 {
+	/**
+	 * Solve the configuration with the {@link SparseAffineSolver} first, and
+	 * only refine the result with the iterative optimizer.  Falls back to the
+	 * iterative optimizer alone if any model is not affine.
+	 */
+	protected boolean sparseSolver = false;
+
+	public void setSparseSolver( final boolean sparseSolver ){ this.sparseSolver = sparseSolver; }
+
+	public boolean isSparseSolver(){ return sparseSolver; }
+
 	@Override
 	protected void println( String s ){ IJ.log( s ); }
 
+	@Override
+	public void optimize(
+			final float maxAllowedError,
+			final int maxIterations,
+			final int maxPlateauwidth ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		if ( sparseSolver && SparseAffineSolver.canSolve( getTiles() ) )
+		{
+			final long t0 = System.currentTimeMillis();
+			final SparseAffineSolver solver = new SparseAffineSolver( getTiles(), getFixedTiles(), Runtime.getRuntime().availableProcessors() );
+			try
+			{
+				if ( solver.solve( Math.max( 1000, 10 * getTiles().size() ), 1e-10 ) )
+					println( "Sparse solver: " + solver.getIterations() + " iterations, relative residual " + solver.getResidual() + ", took " + ( System.currentTimeMillis() - t0 ) + " ms" );
+				else
+					println( "Sparse solver could not update all tiles, continuing with the iterative optimizer." );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		super.optimize( maxAllowedError, maxIterations, maxPlateauwidth );
+	}
 }
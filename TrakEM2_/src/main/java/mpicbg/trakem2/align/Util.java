@@ -27,6 +27,9 @@ import ini.trakem2.utils.Utils;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -80,7 +83,8 @@ public class Util
 	/**
 	 * Save a {@link Collection} of {@link Feature Features} to the TrakEM2
 	 * project folder.  The saved file contains a key {@link Object} which
-	 * may specify the properties of the {@link Feature} {@link Collection}. 
+	 * may specify the properties of the {@link Feature} {@link Collection}.
+	 * The file is written in the binary format of {@link FeatureStore}.
 	 *  
 	 * @param project
 	 * @param key
@@ -96,18 +100,13 @@ public class Util
 			final long id,
 			final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
-		
 		final String name = prefix == null ? "features" : prefix + ".features";
 		
-		final Loader loader = project.getLoader();
-		final Features fe = new Features( key, list );
-		return loader.serialize(
-				fe,
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+		return FeatureStore.writeFeatures(
+				featuresPath( project.getLoader(), name, id, FeatureStore.EXTENSION ),
+				key,
+				f,
+				FeatureStore.quantizeDescriptors );
 	}
 
 	
@@ -116,9 +115,12 @@ public class Util
 	 * TrakEM2 project folder.  The {@link Collection} is only returned if
 	 * <ol>
 	 * <li>the file as identified by project, prefix, and id exists and</li>
-	 * <li>its contained key {@link Object#equals(Object) equals} key.</li>
+	 * <li>its contained key {@link Object} {@link Object#equals(Object) equals} key.</li>
 	 * </ol>
 	 * 
+	 * Files written by Java serialization in earlier versions are read as
+	 * well, and are converted to the binary format on the fly.
+	 * 
 	 * @param project
 	 * @param key
 	 * @param prefix
@@ -135,34 +137,41 @@ public class Util
 		
 		final Loader loader = project.getLoader();
 
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
-		
-		if ( ob != null )
+		final String path = featuresPath( loader, name, id, FeatureStore.EXTENSION );
+		if ( new File( path ).exists() )
+			return FeatureStore.readFeatures( path, key );
+
+		/* migrate from a serialized file, if any */
+		final String legacyPath = featuresPath( loader, name, id, ".ser" );
+		final Object ob = loader.deserialize( legacyPath );
+		if ( null == ob ) return null;
+
+		Object legacyKey = null;
+		ArrayList< Feature > features = null;
+		if ( ob instanceof Features )
+		{
+			legacyKey = ( ( Features )ob ).key;
+			features = ( ( Features )ob ).features;
+		}
+		else if ( ob instanceof Align.Features )
 		{
-			try
-			{
-				final Features fe = ( Features )ob;
-//				Utils.log( fe.key == null ? "key is null" : key.equals( fe.key ) ? "key is equal" : "key is not equal" );
-				if ( fe.key != null && key.equals( fe.key ) )
-					return fe.features;
-			}
-			catch ( final Exception e )
-			{
-				Utils.log( "Exception during feature deserialization." );
-				e.printStackTrace();
-			}
+			legacyKey = ( ( Align.Features )ob ).p;
+			features = ( ( Align.Features )ob ).features;
 		}
 		else
-			Utils.log( "features file null" );
-		return null;
+			Utils.log( "Unknown serialized features in " + legacyPath );
+
+		if ( null == legacyKey || null == features ) return null;
+
+		if ( FeatureStore.writeFeatures( path, legacyKey, features, FeatureStore.quantizeDescriptors ) )
+			new File( legacyPath ).delete();
+
+		return key.equals( legacyKey ) ? features : null;
 	}
 	
 	/**
 	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided.
-	 * Creates two serialization files which is desperately required to clean
+	 * Creates two files which is desperately required to clean
 	 * up properly invalid serializations on change of a {@link Patch}.
 	 * 
 	 * @param p
@@ -179,8 +188,6 @@ public class Util
 			final long id2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
 		PointMatch.flip( m, tsil );
 		
@@ -188,19 +195,23 @@ public class Util
 		
 		final Loader loader = project.getLoader();
 		return
-			loader.serialize(
-				new PointMatches( key, list ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( key, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id2 ) + "_" + Long.toString( id1 ), name, ".ser" ) ).toString() );
+			FeatureStore.writePointMatches(
+				pointMatchesPath( loader, name, id1, id2, FeatureStore.EXTENSION ),
+				key,
+				m ) &&
+			FeatureStore.writePointMatches(
+				pointMatchesPath( loader, name, id2, id1, FeatureStore.EXTENSION ),
+				key,
+				tsil );
 	}
 	
 	
+	/**
+	 * Retrieve a {@link Collection} of {@link PointMatch PointMatches} from
+	 * the TrakEM2 project folder if its contained key {@link Object}
+	 * {@link Object#equals(Object) equals} key.  Serialized files of earlier
+	 * versions are converted to the binary format on the fly.
+	 */
 	final static protected ArrayList< PointMatch > deserializePointMatches(
 			final Project project,
 			final Object key,
@@ -212,26 +223,50 @@ public class Util
 		
 		final Loader loader = project.getLoader();
 		
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() );
-		
-		if ( null != ob )
+		final String path = pointMatchesPath( loader, name, id1, id2, FeatureStore.EXTENSION );
+		if ( new File( path ).exists() )
+			return FeatureStore.readPointMatches( path, key );
+
+		/* migrate from a serialized file, if any */
+		final String legacyPath = pointMatchesPath( loader, name, id1, id2, ".ser" );
+		final Object ob = loader.deserialize( legacyPath );
+		if ( null == ob ) return null;
+
+		Object legacyKey = null;
+		ArrayList< PointMatch > pointMatches = null;
+		if ( ob instanceof PointMatches )
+		{
+			legacyKey = ( ( PointMatches )ob ).key;
+			pointMatches = ( ( PointMatches )ob ).pointMatches;
+		}
+		else if ( ob instanceof Align.PointMatches )
 		{
-			try
-			{
-				final PointMatches pm = ( PointMatches )ob;
-				if ( pm.key != null && key.equals( pm.key ) )
-					return pm.pointMatches;
-			}
-			catch ( final Exception e )
-			{
-				Utils.log( "Exception during pointmatch deserialization." );
-				e.printStackTrace();
-			}
+			legacyKey = ( ( Align.PointMatches )ob ).p;
+			pointMatches = ( ( Align.PointMatches )ob ).pointMatches;
 		}
-		return null;
+		else
+			Utils.log( "Unknown serialized point matches in " + legacyPath );
+
+		if ( null == legacyKey || null == pointMatches ) return null;
+
+		if ( FeatureStore.writePointMatches( path, legacyKey, pointMatches ) )
+			new File( legacyPath ).delete();
+
+		return key.equals( legacyKey ) ? pointMatches : null;
+	}
+	
+	final static private String featuresPath( final Loader loader, final String name, final long id, final String extension )
+	{
+		return new StringBuilder( loader.getUNUIdFolder() )
+			.append( "features.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( id ), name, extension ) ).toString();
+	}
+	
+	final static private String pointMatchesPath( final Loader loader, final String name, final long id1, final long id2, final String extension )
+	{
+		return new StringBuilder( loader.getUNUIdFolder() )
+			.append( "pointmatches.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, extension ) ).toString();
 	}
 	
 	
@@ -244,14 +279,24 @@ public class Util
 	 * for creating a ColorProcessor.  This may change in the future as have
 	 * many things in the past.  This method is then the place to fix it. 
 	 * 
+	 * <p>ARGB {@link BufferedImage BufferedImages} are read straight from
+	 * their raster, without an intermediate ColorProcessor.</p>
+	 * 
 	 * @param input
 	 * @param output
 	 * @param alpha
 	 */
 	final static public void imageToFloatAndMask( final Image input, final FloatProcessor output, final FloatProcessor alpha )
 	{
-		final ColorProcessor cp = new ColorProcessor( input );
-		final int[] inputPixels = ( int[] )cp.getPixels();
+		final int[] inputPixels;
+		if ( input instanceof BufferedImage &&
+				BufferedImage.TYPE_INT_ARGB == ( ( BufferedImage )input ).getType() &&
+				( ( BufferedImage )input ).getRaster().getDataBuffer().getSize() == output.getWidth() * output.getHeight() )
+			inputPixels = ( ( DataBufferInt )( ( BufferedImage )input ).getRaster().getDataBuffer() ).getData();
+		else
+			inputPixels = ( int[] )new ColorProcessor( input ).getPixels();
+		final float[] outputPixels = ( float[] )output.getPixels();
+		final float[] alphaPixels = ( float[] )alpha.getPixels();
 		for ( int i = 0; i < inputPixels.length; ++i )
 		{
 			final int argb = inputPixels[ i ];
@@ -263,8 +308,8 @@ public class Util
 			final float v = ( r + g + b ) / ( float )3;
 			final float w = a / ( float )255;
 			
-			output.setf( i, v );
-			alpha.setf( i, w );
+			outputPixels[ i ] = v;
+			alphaPixels[ i ] = w;
 		}
 	}
 	
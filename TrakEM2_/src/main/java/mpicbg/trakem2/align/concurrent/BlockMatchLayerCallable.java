@@ -2,10 +2,10 @@ package mpicbg.trakem2.align.concurrent;
 
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
-import ini.trakem2.Project;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.Utils;
 import mpicbg.ij.blockmatching.BlockMatching;
 import mpicbg.models.AbstractModel;
 import mpicbg.models.ErrorStatistic;
@@ -65,6 +65,8 @@ public class BlockMatchLayerCallable implements
     private final Collection<? extends Point> v1, v2;
     private final Rectangle box;
     private final Triple<Integer, Integer, AbstractModel<?>> pair;
+    /* shared rendered layers, not available on remote nodes */
+    private transient LayerImageCache imageCache = null;
 
 
     public BlockMatchLayerCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
@@ -89,47 +91,93 @@ public class BlockMatchLayerCallable implements
         this.box = box;
     }
 
+    /**
+     * Block match with layer images taken from a {@link LayerImageCache}
+     * that renders each layer only once for all pairs.  Both layers of the
+     * pair are {@link LayerImageCache#release(int) released} when done.
+     * If this callable is serialized, the cache is lost and both layers are
+     * rendered as usual.
+     */
+    public BlockMatchLayerCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
+                                   final List<Layer> layerRange,
+                                   final boolean layer1Fixed,
+                                   final boolean layer2Fixed,
+                                   final Filter<Patch> filter,
+                                   final ElasticLayerAlignment.Param param,
+                                   final Collection<? extends Point> sourcePoints1,
+                                   final Collection<? extends Point> sourcePoints2,
+                                   final Rectangle box,
+                                   final LayerImageCache imageCache)
+    {
+        this(pair, layerRange, layer1Fixed, layer2Fixed, filter, param, sourcePoints1,
+                sourcePoints2, box);
+        this.imageCache = imageCache;
+    }
+
     @Override
     public BlockMatchResults call() throws Exception
     {
-        final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
-        final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
-        final Project project = layer1.getProject();
-
-        System.out.println("BMC rev 0: " + pair.a + " " + pair.b);
+        if (null == imageCache)
+        {
+            return match(render(layer1, box, param.layerScale, filter),
+                    render(layer2, box, param.layerScale, filter));
+        }
+        try
+        {
+            return match(imageCache.get(pair.a), imageCache.get(pair.b));
+        }
+        finally
+        {
+            imageCache.release(pair.a);
+            imageCache.release(pair.b);
+        }
+    }
 
-        final Image img1 = project.getLoader().getFlatAWTImage(
-                layer1,
+    /**
+     * Render the patches of a layer that pass filter into a float image and
+     * a float mask of its alpha channel.
+     */
+    static FloatProcessor[] render(final Layer layer,
+                                   final Rectangle box,
+                                   final float scale,
+                                   final Filter<Patch> filter)
+    {
+        final Image img = layer.getProject().getLoader().getFlatAWTImage(
+                layer,
                 box,
-                param.layerScale,
+                scale,
                 0xffffffff,
                 ImagePlus.COLOR_RGB,
                 Patch.class,
-                AlignmentUtils.filterPatches(layer1, filter),
+                AlignmentUtils.filterPatches( layer, filter ),
                 true,
                 new Color( 0x00ffffff, true ) );
 
-        final Image img2 = project.getLoader().getFlatAWTImage(
-                layer2,
-                box,
-                param.layerScale,
-                0xffffffff,
-                ImagePlus.COLOR_RGB,
-                Patch.class,
-                AlignmentUtils.filterPatches( layer2, filter ),
-                true,
-                new Color( 0x00ffffff, true ) );
+        final int width = img.getWidth( null );
+        final int height = img.getHeight( null );
 
-        final int width = img1.getWidth( null );
-        final int height = img1.getHeight( null );
+        final FloatProcessor ip = new FloatProcessor( width, height );
+        final FloatProcessor ipMask = new FloatProcessor( width, height );
+
+        mpicbg.trakem2.align.Util.imageToFloatAndMask( img, ip, ipMask );
+
+        return new FloatProcessor[]{ ip, ipMask };
+    }
+
+    private BlockMatchResults match(final FloatProcessor[] ips1, final FloatProcessor[] ips2) throws Exception
+    {
+        final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
+        final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
+
+        Utils.log2( "Block matching layers " + pair.a + " and " + pair.b );
 
         final AbstractModel< ? > localSmoothnessFilterModel =
                 Util.createModel(param.localModelIndex);
 
-        final FloatProcessor ip1 = new FloatProcessor( width, height );
-        final FloatProcessor ip2 = new FloatProcessor( width, height );
-        final FloatProcessor ip1Mask = new FloatProcessor( width, height );
-        final FloatProcessor ip2Mask = new FloatProcessor( width, height );
+        final FloatProcessor ip1 = ips1[ 0 ];
+        final FloatProcessor ip2 = ips2[ 0 ];
+        final FloatProcessor ip1Mask = ips1[ 1 ];
+        final FloatProcessor ip2Mask = ips2[ 1 ];
 
         final int blockRadius =
                 Math.max( 16, mpicbg.util.Util.roundPos( param.layerScale * param.blockRadius ) );
@@ -139,9 +187,6 @@ public class BlockMatchLayerCallable implements
         final float localRegionSigma = param.layerScale * param.localRegionSigma;
         final float maxLocalEpsilon = param.layerScale * param.maxLocalEpsilon;
 
-        mpicbg.trakem2.align.Util.imageToFloatAndMask( img1, ip1, ip1Mask );
-        mpicbg.trakem2.align.Util.imageToFloatAndMask( img2, ip2, ip2Mask );
-
         if (!layer1Fixed)
         {
 
@@ -0,0 +1,187 @@
+package mpicbg.trakem2.align.concurrent;
+
+import ij.process.FloatProcessor;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.ExecutorProvider.Priority;
+import ini.trakem2.parallel.ExecutorProvider.Resource;
+import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.Utils;
+import mpicbg.models.AbstractModel;
+import mpicbg.trakem2.util.Triple;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded sliding window of rendered layer images for block matching of
+ * consecutive layer pairs.  Each layer is rendered exactly once, in
+ * ascending order, by a background thread, into a float image and a mask
+ * as expected by {@link BlockMatchLayerCallable}.  A layer is dropped as
+ * soon as all pairs that reference it have {@link #release(int) released}
+ * it.  At most {@code windowSize} layers are held at any time; rendering of
+ * further layers waits until earlier ones are dropped.
+ *
+ * The window must span at least the largest index distance between the
+ * two layers of a pair plus one, and pairs must be processed in ascending
+ * order of their first layer, or rendering will wait forever.
+ */
+public class LayerImageCache
+{
+    final private List<Layer> layerRange;
+    final private Rectangle box;
+    final private float scale;
+    final private Filter<Patch> filter;
+
+    final private Semaphore permits;
+    final private ExecutorService renderer;
+    final private Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+    final private class Entry
+    {
+        int references = 0;
+        /* whether the rendering holds a slot of the window */
+        boolean acquired = false;
+        Future<FloatProcessor[]> future;
+    }
+
+    /**
+     * @param pairs all pairs that will be block matched, each of them must
+     *   {@link #release(int) release} both of its layers once done.
+     */
+    public LayerImageCache(final List<Layer> layerRange,
+                           final List<Triple<Integer, Integer, AbstractModel<?>>> pairs,
+                           final Rectangle box,
+                           final float scale,
+                           final Filter<Patch> filter,
+                           final int windowSize)
+    {
+        this.layerRange = layerRange;
+        this.box = box;
+        this.scale = scale;
+        this.filter = filter;
+        this.permits = new Semaphore(windowSize, true);
+        this.renderer = ExecutorProvider.newExecutorService("LayerImageCache-renderer", 1, Priority.BATCH, Resource.CPU);
+
+        final TreeSet<Integer> indices = new TreeSet<Integer>();
+        for (final Triple<Integer, Integer, AbstractModel<?>> pair : pairs)
+        {
+            indices.add(pair.a);
+            indices.add(pair.b);
+        }
+        for (final Integer index : indices)
+        {
+            entries.put(index, new Entry());
+        }
+        for (final Triple<Integer, Integer, AbstractModel<?>> pair : pairs)
+        {
+            ++entries.get(pair.a).references;
+            ++entries.get(pair.b).references;
+        }
+
+        /* submit all renderings in ascending order, each one waits for a free slot */
+        synchronized (entries)
+        {
+            for (final Integer index : indices)
+            {
+                final Entry entry = entries.get(index);
+                entry.future = renderer.submit(new Callable<FloatProcessor[]>()
+                {
+                    @Override
+                    public FloatProcessor[] call() throws Exception
+                    {
+                        permits.acquire();
+                        synchronized (entries)
+                        {
+                            if (entries.get(index) != entry)
+                            {
+                                /* released before it was rendered */
+                                permits.release();
+                                return null;
+                            }
+                            entry.acquired = true;
+                        }
+                        return render(layerRange.get(index));
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the image and the mask of the layer at index in the layer range,
+     * waiting for its rendering to finish.  The returned
+     * {@link FloatProcessor FloatProcessors} share their pixels with those of
+     * other callers, and must not be modified.
+     */
+    public FloatProcessor[] get(final int index) throws Exception
+    {
+        final Entry entry;
+        synchronized (entries)
+        {
+            entry = entries.get(index);
+        }
+        if (null == entry)
+        {
+            throw new IllegalArgumentException("Layer " + index + " is not part of any pair or was released.");
+        }
+        final FloatProcessor[] ips = entry.future.get();
+        return new FloatProcessor[]{
+                new FloatProcessor(ips[0].getWidth(), ips[0].getHeight(), (float[])ips[0].getPixels(), null),
+                new FloatProcessor(ips[1].getWidth(), ips[1].getHeight(), (float[])ips[1].getPixels(), null)};
+    }
+
+    /**
+     * Declare that one pair is done with the layer at index, dropping its
+     * images if no other pair needs them.
+     */
+    public void release(final int index)
+    {
+        synchronized (entries)
+        {
+            final Entry entry = entries.get(index);
+            if (null == entry || --entry.references > 0) return;
+            entries.remove(index);
+            if (entry.acquired)
+            {
+                permits.release();
+            }
+            else
+            {
+                entry.future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Stop rendering and drop all images.  Pairs still waiting for an image
+     * fail with a {@link java.util.concurrent.CancellationException}.
+     */
+    public void shutdown()
+    {
+        synchronized (entries)
+        {
+            for (final Entry entry : entries.values())
+            {
+                entry.future.cancel(true);
+            }
+            entries.clear();
+        }
+        renderer.shutdownNow();
+    }
+
+    private FloatProcessor[] render(final Layer layer)
+    {
+        final FloatProcessor[] ips = BlockMatchLayerCallable.render(layer, box, scale, filter);
+        Utils.log2("Rendered layer " + layer + " for block matching.");
+        return ips;
+    }
+}
@@ -0,0 +1,646 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.transform;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.utils.Metrics;
+
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TransformMesh;
+import mpicbg.util.Util;
+
+/**
+ * Renders the triangles of a {@link TransformMesh} into a target image.
+ *
+ * The triangles are binned into square tiles of the target, and the tiles
+ * are rendered in parallel, so that every pixel of the target is written by
+ * one thread only and each thread works on a small region at a time.  Within
+ * a tile, each triangle is rasterized row by row: the span of the row inside
+ * the triangle is computed from its edges, and the source coordinates are
+ * stepped along the span by the inverse affine of the triangle.  The pixels
+ * are copied by a {@link Sampler} specialized for the pixel type of source
+ * and target.
+ *
+ * The rasterizer depends only on the mesh and the size of the target and can
+ * be used to render any number of images; it has to be created anew when the
+ * mesh changes.
+ */
+public final class MeshRasterizer
+{
+	/** Width and height of the tiles the target is split into. */
+	static public final int TILE_SIZE = 128;
+
+	static private final Metrics.Histogram render_time = Metrics.histogram( "mesh.render.ns" );
+
+	/**
+	 * Copies a span of pixels of one row of the target from the source.
+	 */
+	static abstract public class Sampler
+	{
+		/**
+		 * @param x0 First pixel of the span in the target.
+		 * @param y Row of the span in the target.
+		 * @param n Number of pixels in the span.
+		 * @param sx Source x coordinate of the first pixel.
+		 * @param sy Source y coordinate of the first pixel.
+		 * @param dx Increment of sx from one pixel to the next.
+		 * @param dy Increment of sy from one pixel to the next.
+		 */
+		abstract public void span( int x0, int y, int n, double sx, double sy, double dx, double dy );
+	}
+
+	final private int width, height, tilesX, tilesY;
+	/** Vertices of each triangle in the target, as x, y for a, b and c. */
+	final private float[] vertices;
+	/** Inverse affine of each triangle, as m00, m10, m01, m11, m02, m12. */
+	final private double[] inverse;
+	/** Bounding box of each triangle in the target, as minX, minY, maxX, maxY. */
+	final private int[] bounds;
+	/** The triangles of tile i are bin[ binStart[ i ] ] to bin[ binStart[ i + 1 ] - 1 ]. */
+	final private int[] binStart, bin;
+
+	/**
+	 * @param mesh The mesh whose triangles to render.
+	 * @param width Width of the target.
+	 * @param height Height of the target.
+	 */
+	public MeshRasterizer( final TransformMesh mesh, final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+		this.tilesX = ( width + TILE_SIZE - 1 ) / TILE_SIZE;
+		this.tilesY = ( height + TILE_SIZE - 1 ) / TILE_SIZE;
+
+		final int size = mesh.getAV().size();
+		final float[] vertices = new float[ size * 6 ];
+		final double[] inverse = new double[ size * 6 ];
+		final int[] bounds = new int[ size * 4 ];
+		final double[] m = new double[ 6 ];
+		int n = 0;
+		for ( final Map.Entry< AffineModel2D, ArrayList< PointMatch > > e : mesh.getAV().entrySet() )
+		{
+			final ArrayList< PointMatch > pm = e.getValue();
+			float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE;
+			for ( int k = 0; k < 3; ++k )
+			{
+				final float[] w = pm.get( k ).getP2().getW();
+				minx = Math.min( minx, w[ 0 ] );
+				miny = Math.min( miny, w[ 1 ] );
+				maxx = Math.max( maxx, w[ 0 ] );
+				maxy = Math.max( maxy, w[ 1 ] );
+			}
+			final int minX = Math.max( 0, Util.roundPos( minx ) );
+			final int minY = Math.max( 0, Util.roundPos( miny ) );
+			final int maxX = Math.min( width - 1, Util.roundPos( maxx ) );
+			final int maxY = Math.min( height - 1, Util.roundPos( maxy ) );
+			if ( minX > maxX || minY > maxY ) continue;
+			try
+			{
+				e.getKey().createAffine().createInverse().getMatrix( m );
+			}
+			catch ( final NoninvertibleTransformException nte )
+			{
+				// No pixel of a degenerate triangle can be mapped back to the source
+				continue;
+			}
+			System.arraycopy( m, 0, inverse, n * 6, 6 );
+			for ( int k = 0; k < 3; ++k )
+			{
+				final float[] w = pm.get( k ).getP2().getW();
+				vertices[ n * 6 + k * 2 ] = w[ 0 ];
+				vertices[ n * 6 + k * 2 + 1 ] = w[ 1 ];
+			}
+			bounds[ n * 4 ] = minX;
+			bounds[ n * 4 + 1 ] = minY;
+			bounds[ n * 4 + 2 ] = maxX;
+			bounds[ n * 4 + 3 ] = maxY;
+			++n;
+		}
+		this.vertices = vertices;
+		this.inverse = inverse;
+		this.bounds = bounds;
+
+		// Counting sort of the triangles into the tiles they overlap
+		this.binStart = new int[ tilesX * tilesY + 1 ];
+		for ( int i = 0; i < n; ++i )
+		{
+			for ( int ty = bounds[ i * 4 + 1 ] / TILE_SIZE; ty <= bounds[ i * 4 + 3 ] / TILE_SIZE; ++ty )
+				for ( int tx = bounds[ i * 4 ] / TILE_SIZE; tx <= bounds[ i * 4 + 2 ] / TILE_SIZE; ++tx )
+					++binStart[ ty * tilesX + tx + 1 ];
+		}
+		for ( int t = 1; t < binStart.length; ++t )
+			binStart[ t ] += binStart[ t - 1 ];
+		this.bin = new int[ binStart[ binStart.length - 1 ] ];
+		final int[] next = Arrays.copyOf( binStart, binStart.length - 1 );
+		for ( int i = 0; i < n; ++i )
+		{
+			for ( int ty = bounds[ i * 4 + 1 ] / TILE_SIZE; ty <= bounds[ i * 4 + 3 ] / TILE_SIZE; ++ty )
+				for ( int tx = bounds[ i * 4 ] / TILE_SIZE; tx <= bounds[ i * 4 + 2 ] / TILE_SIZE; ++tx )
+					bin[ next[ ty * tilesX + tx ]++ ] = i;
+		}
+	}
+
+	/**
+	 * Render all triangles with the given samplers, using up to numThreads
+	 * threads: the calling one and those of the shared pool of its priority.
+	 * Each sampler is called in turn for every span; any may be null.
+	 * If outside is not null, the pixels covered by the mesh are set to 255.
+	 */
+	public void render( final Sampler image, final Sampler mask, final ByteProcessor outside, final int numThreads )
+	{
+		final long t0 = System.nanoTime();
+		final byte[] outsidePixels = null == outside ? null : ( byte[] )outside.getPixels();
+		final int nTiles = tilesX * tilesY;
+		final AtomicInteger nextTile = new AtomicInteger( 0 );
+		final Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for ( int t = nextTile.getAndIncrement(); t < nTiles && !Thread.currentThread().isInterrupted(); t = nextTile.getAndIncrement() )
+					renderTile( t, image, mask, outsidePixels );
+			}
+		};
+		try
+		{
+			ExecutorProvider.runParallel( Math.max( 1, Math.min( numThreads, nTiles ) ), task );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		render_time.recordSince( t0 );
+	}
+
+	private void renderTile( final int tile, final Sampler image, final Sampler mask, final byte[] outside )
+	{
+		final int tileMinX = ( tile % tilesX ) * TILE_SIZE;
+		final int tileMinY = ( tile / tilesX ) * TILE_SIZE;
+		final int tileMaxX = Math.min( width, tileMinX + TILE_SIZE ) - 1;
+		final int tileMaxY = Math.min( height, tileMinY + TILE_SIZE ) - 1;
+
+		for ( int b = binStart[ tile ]; b < binStart[ tile + 1 ]; ++b )
+		{
+			final int i = bin[ b ];
+			final int minX = Math.max( tileMinX, bounds[ i * 4 ] );
+			final int minY = Math.max( tileMinY, bounds[ i * 4 + 1 ] );
+			final int maxX = Math.min( tileMaxX, bounds[ i * 4 + 2 ] );
+			final int maxY = Math.min( tileMaxY, bounds[ i * 4 + 3 ] );
+
+			final int v = i * 6;
+			final float ax = vertices[ v ], ay = vertices[ v + 1 ];
+			final float bx = vertices[ v + 2 ], by = vertices[ v + 3 ];
+			final float cx = vertices[ v + 4 ], cy = vertices[ v + 5 ];
+			final double m00 = inverse[ v ], m10 = inverse[ v + 1 ],
+			             m01 = inverse[ v + 2 ], m11 = inverse[ v + 3 ],
+			             m02 = inverse[ v + 4 ], m12 = inverse[ v + 5 ];
+			// Twice the signed area: which side of the edges the inside is on
+			final double area = ( ( double )bx - ax ) * ( ( double )cy - ay ) - ( ( double )by - ay ) * ( ( double )cx - ax );
+
+			for ( int y = minY; y <= maxY; ++y )
+			{
+				int x0 = minX, x1 = maxX;
+				if ( 0 != area )
+				{
+					// Intersect the row with the half-planes of the three edges
+					double lo = minX, hi = maxX;
+					for ( int k = 0; k < 3; ++k )
+					{
+						final double px = vertices[ v + k * 2 ], py = vertices[ v + k * 2 + 1 ];
+						final int q = v + ( ( k + 1 ) % 3 ) * 2;
+						final double qx = vertices[ q ], qy = vertices[ q + 1 ];
+						// The edge function is ( qx - px ) * ( y - py ) - ( qy - py ) * ( x - px ), here as s * x + r
+						final double s = -( qy - py );
+						final double r = ( qx - px ) * ( y - py ) + ( qy - py ) * px;
+						final double sign = area > 0 ? s : -s;
+						if ( 0 == sign )
+						{
+							if ( ( area > 0 ? r : -r ) < 0 )
+							{
+								lo = 1;
+								hi = 0;
+							}
+						}
+						else if ( sign > 0 )
+							lo = Math.max( lo, -r / s );
+						else
+							hi = Math.min( hi, -r / s );
+					}
+					if ( lo > hi + 1 ) continue;
+					x0 = Math.max( minX, ( int )Math.ceil( lo ) );
+					x1 = Math.min( maxX, ( int )Math.floor( hi ) );
+					// Settle the rounding at both ends with the exact test
+					while ( x0 > minX && isInTriangle( ax, ay, bx, by, cx, cy, x0 - 1, y ) ) --x0;
+					while ( x1 < maxX && isInTriangle( ax, ay, bx, by, cx, cy, x1 + 1, y ) ) ++x1;
+				}
+				while ( x0 <= x1 && !isInTriangle( ax, ay, bx, by, cx, cy, x0, y ) ) ++x0;
+				while ( x1 >= x0 && !isInTriangle( ax, ay, bx, by, cx, cy, x1, y ) ) --x1;
+				if ( x0 > x1 ) continue;
+
+				final int n = x1 - x0 + 1;
+				final double sx = m00 * x0 + m01 * y + m02;
+				final double sy = m10 * x0 + m11 * y + m12;
+				if ( null != image ) image.span( x0, y, n, sx, sy, m00, m10 );
+				if ( null != mask ) mask.span( x0, y, n, sx, sy, m00, m10 );
+				if ( null != outside ) Arrays.fill( outside, y * width + x0, y * width + x1 + 1, ( byte )0xff );
+			}
+		}
+	}
+
+	/** Same test as {@link mpicbg.ij.TransformMeshMapping}, for pixels on the edges to be decided alike. */
+	static private final boolean isInTriangle(
+			final float ax, final float ay,
+			final float bx, final float by,
+			final float cx, final float cy,
+			final float tx, final float ty )
+	{
+		final boolean d;
+		{
+			final float x1 = bx - ax;
+			final float y1 = by - ay;
+			final float x2 = tx - ax;
+			final float y2 = ty - ay;
+			d = x1 * y2 - y1 * x2 < 0;
+		}
+		{
+			final float x1 = cx - bx;
+			final float y1 = cy - by;
+			final float x2 = tx - bx;
+			final float y2 = ty - by;
+			if ( d ^ x1 * y2 - y1 * x2 < 0 ) return false;
+		}
+		{
+			final float x1 = ax - cx;
+			final float y1 = ay - cy;
+			final float x2 = tx - cx;
+			final float y2 = ty - cy;
+			if ( d ^ x1 * y2 - y1 * x2 < 0 ) return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * A {@link Sampler} that copies from source to target, choosing the
+	 * nearest pixel or interpolating bilinearly.  Specialized for source and
+	 * target of the same type among 8-bit, 16-bit, float and RGB; any other
+	 * combination goes through the {@link ImageProcessor} methods, as does
+	 * bilinear interpolation at the borders of the source.
+	 * Interpolation assumes the source is set to {@link ImageProcessor#BILINEAR}.
+	 */
+	static public Sampler createSampler( final ImageProcessor source, final ImageProcessor target, final boolean interpolate )
+	{
+		if ( source instanceof ByteProcessor && target instanceof ByteProcessor )
+			return interpolate ? new ByteInterpolated( source, target ) : new ByteNearest( source, target );
+		if ( source instanceof ShortProcessor && target instanceof ShortProcessor )
+			return interpolate ? new ShortInterpolated( source, target ) : new ShortNearest( source, target );
+		if ( source instanceof FloatProcessor && target instanceof FloatProcessor )
+			return interpolate ? new FloatInterpolated( source, target ) : new FloatNearest( source, target );
+		if ( source instanceof ColorProcessor && target instanceof ColorProcessor )
+			return interpolate ? new RGBInterpolated( source, target ) : new RGBNearest( source, target );
+		return interpolate ? new GenericInterpolated( source, target ) : new GenericNearest( source, target );
+	}
+
+	/**
+	 * A {@link Sampler} that composes source over a 16-bit target, weighted by
+	 * alpha.  Source and alpha are sampled with their own interpolation methods.
+	 */
+	static public Sampler createAlphaSampler( final ShortProcessor source, final ByteProcessor alpha, final ShortProcessor target )
+	{
+		return new ShortAlpha( source, alpha, target );
+	}
+
+	static abstract private class ArraySampler extends Sampler
+	{
+		final ImageProcessor source;
+		final int sw, sh, tw;
+
+		ArraySampler( final ImageProcessor source, final ImageProcessor target )
+		{
+			this.source = source;
+			this.sw = source.getWidth();
+			this.sh = source.getHeight();
+			this.tw = target.getWidth();
+		}
+
+		/** Whether all four neighbours of the source coordinate are within the source. */
+		final boolean isInterior( final double sx, final double sy )
+		{
+			return sx >= 0 && sy >= 0 && sx < sw - 1 && sy < sh - 1;
+		}
+	}
+
+	/* Nearest neighbour, rounding like ( int )( t + 0.5f ) did; pixels outside the source are 0. */
+
+	static final private class ByteNearest extends ArraySampler
+	{
+		final byte[] s, t;
+		ByteNearest( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( byte[] )source.getPixels();
+			this.t = ( byte[] )target.getPixels();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				final int x = ( int )( sx + 0.5 ), yy = ( int )( sy + 0.5 );
+				t[ i ] = x >= 0 && x < sw && yy >= 0 && yy < sh ? s[ yy * sw + x ] : 0;
+			}
+		}
+	}
+
+	static final private class ShortNearest extends ArraySampler
+	{
+		final short[] s, t;
+		ShortNearest( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( short[] )source.getPixels();
+			this.t = ( short[] )target.getPixels();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				final int x = ( int )( sx + 0.5 ), yy = ( int )( sy + 0.5 );
+				t[ i ] = x >= 0 && x < sw && yy >= 0 && yy < sh ? s[ yy * sw + x ] : 0;
+			}
+		}
+	}
+
+	static final private class FloatNearest extends ArraySampler
+	{
+		final float[] s, t;
+		FloatNearest( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( float[] )source.getPixels();
+			this.t = ( float[] )target.getPixels();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				final int x = ( int )( sx + 0.5 ), yy = ( int )( sy + 0.5 );
+				t[ i ] = x >= 0 && x < sw && yy >= 0 && yy < sh ? s[ yy * sw + x ] : 0;
+			}
+		}
+	}
+
+	static final private class RGBNearest extends ArraySampler
+	{
+		final int[] s, t;
+		RGBNearest( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( int[] )source.getPixels();
+			this.t = ( int[] )target.getPixels();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				final int x = ( int )( sx + 0.5 ), yy = ( int )( sy + 0.5 );
+				t[ i ] = x >= 0 && x < sw && yy >= 0 && yy < sh ? s[ yy * sw + x ] : 0;
+			}
+		}
+	}
+
+	/* Bilinear, with the same arithmetic as ImageJ in the interior of the source. */
+
+	static final private class ByteInterpolated extends ArraySampler
+	{
+		final byte[] s, t;
+		ByteInterpolated( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( byte[] )source.getPixels();
+			this.t = ( byte[] )target.getPixels();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				if ( isInterior( sx, sy ) )
+				{
+					final int x = ( int )sx, yy = ( int )sy;
+					final double fx = sx - x, fy = sy - yy;
+					final int o = yy * sw + x;
+					final int ll = s[ o ] & 0xff, lr = s[ o + 1 ] & 0xff,
+					          ul = s[ o + sw ] & 0xff, ur = s[ o + sw + 1 ] & 0xff;
+					final double lower = ll + fx * ( lr - ll );
+					final double upper = ul + fx * ( ur - ul );
+					t[ i ] = ( byte )( int )( lower + fy * ( upper - lower ) + 0.5 );
+				}
+				else
+					t[ i ] = ( byte )source.getPixelInterpolated( sx, sy );
+			}
+		}
+	}
+
+	static final private class ShortInterpolated extends ArraySampler
+	{
+		final short[] s, t;
+		ShortInterpolated( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( short[] )source.getPixels();
+			this.t = ( short[] )target.getPixels();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				if ( isInterior( sx, sy ) )
+				{
+					final int x = ( int )sx, yy = ( int )sy;
+					final double fx = sx - x, fy = sy - yy;
+					final int o = yy * sw + x;
+					final int ll = s[ o ] & 0xffff, lr = s[ o + 1 ] & 0xffff,
+					          ul = s[ o + sw ] & 0xffff, ur = s[ o + sw + 1 ] & 0xffff;
+					final double lower = ll + fx * ( lr - ll );
+					final double upper = ul + fx * ( ur - ul );
+					t[ i ] = ( short )( int )( lower + fy * ( upper - lower ) + 0.5 );
+				}
+				else
+					t[ i ] = ( short )source.getPixelInterpolated( sx, sy );
+			}
+		}
+	}
+
+	static final private class FloatInterpolated extends ArraySampler
+	{
+		final float[] s, t;
+		FloatInterpolated( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( float[] )source.getPixels();
+			this.t = ( float[] )target.getPixels();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				if ( isInterior( sx, sy ) )
+				{
+					final int x = ( int )sx, yy = ( int )sy;
+					final double fx = sx - x, fy = sy - yy;
+					final int o = yy * sw + x;
+					final double ll = s[ o ], lr = s[ o + 1 ], ul = s[ o + sw ], ur = s[ o + sw + 1 ];
+					final double lower = ll + fx * ( lr - ll );
+					final double upper = ul + fx * ( ur - ul );
+					t[ i ] = ( float )( lower + fy * ( upper - lower ) );
+				}
+				else
+					t[ i ] = Float.intBitsToFloat( source.getPixelInterpolated( sx, sy ) );
+			}
+		}
+	}
+
+	static final private class RGBInterpolated extends ArraySampler
+	{
+		final int[] s, t;
+		RGBInterpolated( final ImageProcessor source, final ImageProcessor target )
+		{
+			super( source, target );
+			this.s = ( int[] )source.getPixels();
+			this.t = ( int[] )target.getPixels();
+		}
+
+		static private final int channel( final int ll, final int lr, final int ul, final int ur, final double fx, final double fy )
+		{
+			final double lower = ll + fx * ( lr - ll );
+			final double upper = ul + fx * ( ur - ul );
+			return ( int )( lower + fy * ( upper - lower ) + 0.5 );
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				if ( isInterior( sx, sy ) )
+				{
+					final int x = ( int )sx, yy = ( int )sy;
+					final double fx = sx - x, fy = sy - yy;
+					final int o = yy * sw + x;
+					final int ll = s[ o ], lr = s[ o + 1 ], ul = s[ o + sw ], ur = s[ o + sw + 1 ];
+					final int r = channel( ( ll >> 16 ) & 0xff, ( lr >> 16 ) & 0xff, ( ul >> 16 ) & 0xff, ( ur >> 16 ) & 0xff, fx, fy );
+					final int g = channel( ( ll >> 8 ) & 0xff, ( lr >> 8 ) & 0xff, ( ul >> 8 ) & 0xff, ( ur >> 8 ) & 0xff, fx, fy );
+					final int b = channel( ll & 0xff, lr & 0xff, ul & 0xff, ur & 0xff, fx, fy );
+					t[ i ] = 0xff000000 | ( r << 16 ) | ( g << 8 ) | b;
+				}
+				else
+					t[ i ] = source.getPixelInterpolated( sx, sy );
+			}
+		}
+	}
+
+	/* Any other combination of source and target. */
+
+	static final private class GenericNearest extends Sampler
+	{
+		final ImageProcessor source, target;
+		GenericNearest( final ImageProcessor source, final ImageProcessor target )
+		{
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int x = x0, end = x0 + n; x < end; ++x, sx += dx, sy += dy )
+				target.set( x, y, source.getPixel( ( int )( sx + 0.5 ), ( int )( sy + 0.5 ) ) );
+		}
+	}
+
+	static final private class GenericInterpolated extends Sampler
+	{
+		final ImageProcessor source, target;
+		GenericInterpolated( final ImageProcessor source, final ImageProcessor target )
+		{
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int x = x0, end = x0 + n; x < end; ++x, sx += dx, sy += dy )
+				target.set( x, y, source.getPixelInterpolated( sx, sy ) );
+		}
+	}
+
+	static final private class ShortAlpha extends Sampler
+	{
+		final ShortProcessor source;
+		final ByteProcessor alpha;
+		final short[] t;
+		final int tw;
+		ShortAlpha( final ShortProcessor source, final ByteProcessor alpha, final ShortProcessor target )
+		{
+			this.source = source;
+			this.alpha = alpha;
+			this.t = ( short[] )target.getPixels();
+			this.tw = target.getWidth();
+		}
+
+		@Override
+		final public void span( final int x0, final int y, final int n, double sx, double sy, final double dx, final double dy )
+		{
+			for ( int i = y * tw + x0, end = i + n; i < end; ++i, sx += dx, sy += dy )
+			{
+				final int a = alpha.getPixelInterpolated( sx, sy );
+				// Fully transparent source leaves the target as it was
+				if ( 0 == a ) continue;
+				final int is = source.getPixelInterpolated( sx, sy );
+				final int it = t[ i ] & 0xffff;
+				final double v = it + a / 255.0 * ( is - it );
+				t[ i ] = ( short )Math.max( 0, Math.min( 65535, Math.round( v ) ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.transform;
+
+import ini.trakem2.utils.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of {@link TransformMesh TransformMeshes}, shared by all users of
+ * structurally identical {@link CoordinateTransform CoordinateTransforms}.
+ * Meshes are keyed by the XML of the transform, the mesh resolution and the
+ * dimensions of the image, so that e.g. all tiles sharing one lens correction
+ * share one mesh.  The least recently used meshes are dropped when the
+ * estimated size of all cached meshes and their keys exceeds the budget.
+ *
+ * Cached meshes are shared and must not be modified.
+ *
+ * The use of the cache is published as the {@link Metrics} gauges
+ * "meshes.cache.*", and summarized by {@link #report()}.
+ */
+public final class TransformMeshCache
+{
+	static private final class Entry
+	{
+		final TransformMesh mesh;
+		final long bytes;
+		Entry( final TransformMesh mesh, final String key )
+		{
+			this.mesh = mesh;
+			// The key, with the XML of e.g. a non-linear transform, may be as large as the mesh
+			this.bytes = estimateBytes( mesh ) + 40 + 2L * key.length();
+		}
+	}
+
+	/** In access order, least recently used first. */
+	static private final LinkedHashMap< String, Entry > cache = new LinkedHashMap< String, Entry >( 64, 0.75f, true );
+
+	static private long budget = Runtime.getRuntime().maxMemory() / 32;
+	static private long bytes = 0;
+	static private long hits = 0;
+	static private long misses = 0;
+
+	private TransformMeshCache() {}
+
+	static
+	{
+		Metrics.gauge( "meshes.cache.hits", new Metrics.Gauge()
+		{
+			@Override
+			public long get()
+			{
+				return getHits();
+			}
+		} );
+		Metrics.gauge( "meshes.cache.misses", new Metrics.Gauge()
+		{
+			@Override
+			public long get()
+			{
+				return getMisses();
+			}
+		} );
+		Metrics.gauge( "meshes.cache.hit_rate_percent", new Metrics.Gauge()
+		{
+			@Override
+			public long get()
+			{
+				return Math.round( 100 * getHitRate() );
+			}
+		} );
+		Metrics.gauge( "meshes.cache.bytes", new Metrics.Gauge()
+		{
+			@Override
+			public long get()
+			{
+				return getBytes();
+			}
+		} );
+		Metrics.gauge( "meshes.cache.size", new Metrics.Gauge()
+		{
+			@Override
+			public long get()
+			{
+				synchronized ( cache ) { return cache.size(); }
+			}
+		} );
+	}
+
+	static public final String key( final CoordinateTransform ct, final int meshResolution, final int width, final int height )
+	{
+		return new StringBuilder( ct.toXML( "" ) )
+			.append( '\n' ).append( meshResolution )
+			.append( ' ' ).append( width )
+			.append( ' ' ).append( height ).toString();
+	}
+
+	/**
+	 * Return the cached mesh for the transform, mesh resolution and
+	 * dimensions, or make it and cache it.
+	 */
+	static public final TransformMesh get( final CoordinateTransform ct, final int meshResolution, final int width, final int height )
+	{
+		final String key = key( ct, meshResolution, width, height );
+		synchronized ( cache )
+		{
+			final Entry entry = cache.get( key );
+			if ( null != entry )
+			{
+				++hits;
+				return entry.mesh;
+			}
+			++misses;
+		}
+		// Make it outside the lock: concurrent misses for the same key make a mesh each, and one of them is kept
+		final Entry entry = new Entry( new TransformMesh( ct, meshResolution, width, height ), key );
+		synchronized ( cache )
+		{
+			final Entry previous = cache.put( key, entry );
+			if ( null != previous ) bytes -= previous.bytes;
+			bytes += entry.bytes;
+			enforce();
+		}
+		return entry.mesh;
+	}
+
+	/** Drop the mesh of the transform, if cached, such as when the transform of an image is replaced. */
+	static public final void invalidate( final CoordinateTransform ct, final int meshResolution, final int width, final int height )
+	{
+		final String key = key( ct, meshResolution, width, height );
+		synchronized ( cache )
+		{
+			final Entry entry = cache.remove( key );
+			if ( null != entry ) bytes -= entry.bytes;
+		}
+	}
+
+	static public final void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+			bytes = 0;
+		}
+	}
+
+	static public final void setBudget( final long budget )
+	{
+		synchronized ( cache )
+		{
+			TransformMeshCache.budget = Math.max( 0, budget );
+			enforce();
+		}
+	}
+
+	static public final long getBudget()
+	{
+		synchronized ( cache ) { return budget; }
+	}
+
+	/** Estimated bytes of all cached meshes, including their keys. */
+	static public final long getBytes()
+	{
+		synchronized ( cache ) { return bytes; }
+	}
+
+	static public final long getHits()
+	{
+		synchronized ( cache ) { return hits; }
+	}
+
+	static public final long getMisses()
+	{
+		synchronized ( cache ) { return misses; }
+	}
+
+	/** The fraction of requests served from the cache, or 0 if none yet. */
+	static public final double getHitRate()
+	{
+		synchronized ( cache )
+		{
+			final long n = hits + misses;
+			return 0 == n ? 0 : hits / ( double )n;
+		}
+	}
+
+	/** A one-line summary of the cache use, for logging. */
+	static public final String report()
+	{
+		synchronized ( cache )
+		{
+			return new StringBuilder( "TransformMeshCache: " )
+				.append( cache.size() ).append( " meshes, " )
+				.append( bytes / 1024 ).append( " kB of " ).append( budget / 1024 ).append( " kB, " )
+				.append( hits ).append( " hits, " ).append( misses ).append( " misses, hit rate " )
+				.append( ( int )( 100 * getHitRate() ) ).append( '%' ).toString();
+		}
+	}
+
+	/** Drop least recently used meshes until within budget. Call while synchronized on the cache. */
+	static private final void enforce()
+	{
+		for ( final Iterator< Entry > it = cache.values().iterator(); bytes > budget && it.hasNext(); )
+		{
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Approximate heap size: each triangle has an {@link mpicbg.models.AffineModel2D}
+	 * and a list of its vertices, and each vertex a PointMatch with two points.
+	 */
+	static private final long estimateBytes( final TransformMesh mesh )
+	{
+		return 256 + mesh.getAV().size() * 320L + mesh.getVA().size() * 240L;
+	}
+}
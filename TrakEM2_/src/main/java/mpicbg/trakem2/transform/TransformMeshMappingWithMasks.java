@@ -21,8 +21,6 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.PointMatch;
@@ -67,111 +65,6 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 		final public int getHeight(){ return ip.getHeight(); }
 	}
 	
-	final static private class MapTriangleThread extends Thread
-	{
-		final private AtomicInteger i;
-		final private List< AffineModel2D > triangles;
-		final private TransformMesh transform;
-		final ImageProcessorWithMasks source, target;
-		MapTriangleThread(
-				final AtomicInteger i,
-				final List< AffineModel2D > triangles,
-				final TransformMesh transform,
-				final ImageProcessorWithMasks source,
-				final ImageProcessorWithMasks target )
-		{
-			this.i = i;
-			this.triangles = triangles;
-			this.transform = transform;
-			this.source = source;
-			this.target = target;
-		}
-		
-		@Override
-		final public void run()
-		{
-			int k = i.getAndIncrement();
-			while ( !isInterrupted() && k < triangles.size() )
-			{
-				if ( source.mask == null )
-					mapTriangle( transform, triangles.get( k ), source.ip, target.ip, target.outside );
-				else
-					mapTriangle( transform, triangles.get( k ), source.ip, source.mask, target.ip, target.mask, target.outside );
-				k = i.getAndIncrement();
-			}
-		}
-	}
-	
-	final static private class MapTriangleInterpolatedThread extends Thread
-	{
-		final private AtomicInteger i;
-		final private List< AffineModel2D > triangles;
-		final private TransformMesh transform;
-		final ImageProcessorWithMasks source, target;
-		MapTriangleInterpolatedThread(
-				final AtomicInteger i,
-				final List< AffineModel2D > triangles,
-				final TransformMesh transform,
-				final ImageProcessorWithMasks source,
-				final ImageProcessorWithMasks target )
-		{
-			this.i = i;
-			this.triangles = triangles;
-			this.transform = transform;
-			this.source = source;
-			this.target = target;
-		}
-		
-		@Override
-		final public void run()
-		{
-			int k = i.getAndIncrement();
-			while ( !isInterrupted() && k < triangles.size() )
-			{
-				if ( source.mask == null )
-					mapTriangleInterpolated( transform, triangles.get( k ), source.ip, target.ip, target.outside );
-				else
-					mapTriangleInterpolated( transform, triangles.get( k ), source.ip, source.mask, target.ip, target.mask, target.outside );
-				k = i.getAndIncrement();
-			}
-		}
-	}
-	
-	final static private class MapShortAlphaTriangleThread extends Thread
-	{
-		final private AtomicInteger i;
-		final private List< AffineModel2D > triangles;
-		final private TransformMesh transform;
-		final ShortProcessor source, target;
-		final ByteProcessor alpha;
-		MapShortAlphaTriangleThread(
-				final AtomicInteger i,
-				final List< AffineModel2D > triangles,
-				final TransformMesh transform,
-				final ShortProcessor source,
-				final ByteProcessor alpha,
-				final ShortProcessor target )
-		{
-			this.i = i;
-			this.triangles = triangles;
-			this.transform = transform;
-			this.source = source;
-			this.alpha = alpha;
-			this.target = target;
-		}
-		
-		@Override
-		final public void run()
-		{
-			int k = i.getAndIncrement();
-			while ( !isInterrupted() && k < triangles.size() )
-			{
-				mapShortAlphaTriangle( transform, triangles.get( k ), source, alpha, target );
-				k = i.getAndIncrement();
-			}
-		}
-	}
-	
 	public TransformMeshMappingWithMasks( final T t )
 	{
 		super( t );
@@ -454,6 +347,10 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 	}
 	
 	
+	/**
+	 * Render source into target, with the {@link MeshRasterizer}, using up to
+	 * numThreads threads of the shared pool of the calling thread's priority.
+	 */
 	final public void map(
 			final ImageProcessorWithMasks source,
 			final ImageProcessorWithMasks target,
@@ -461,24 +358,11 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 	{
 		target.outside = new ByteProcessor( target.getWidth(), target.getHeight() );
 		
-		final List< AffineModel2D > l = new ArrayList< AffineModel2D >();
-		l.addAll( transform.getAV().keySet() );
-		final AtomicInteger i = new AtomicInteger( 0 );
-		final ArrayList< Thread > threads = new ArrayList< Thread >( numThreads );
-		for ( int k = 0; k < numThreads; ++k )
-		{
-			final Thread mtt = new MapTriangleThread( i, l, transform, source, target );
-			threads.add( mtt );
-			mtt.start();
-		}
-		for ( final Thread mtt : threads )
-		{
-			try
-			{
-				mtt.join();
-			}
-			catch ( final InterruptedException e ) {}
-		}
+		new MeshRasterizer( transform, target.getWidth(), target.getHeight() ).render(
+				MeshRasterizer.createSampler( source.ip, target.ip, false ),
+				source.mask == null || target.mask == null ? null : MeshRasterizer.createSampler( source.mask, target.mask, false ),
+				target.outside,
+				numThreads );
 	}
 	
 	final public void mapInterpolated(
@@ -491,24 +375,11 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 		if ( source.mask != null )
 			source.mask.setInterpolationMethod( ImageProcessor.BILINEAR );
 		
-		final List< AffineModel2D > l = new ArrayList< AffineModel2D >();
-		l.addAll( transform.getAV().keySet() );
-		final AtomicInteger i = new AtomicInteger( 0 );
-		final ArrayList< Thread > threads = new ArrayList< Thread >( numThreads );
-		for ( int k = 0; k < numThreads; ++k )
-		{
-			final Thread mtt = new MapTriangleInterpolatedThread( i, l, transform, source, target );
-			threads.add( mtt );
-			mtt.start();
-		}
-		for ( final Thread mtt : threads )
-		{
-			try
-			{
-				mtt.join();
-			}
-			catch ( final InterruptedException e ) {}
-		}
+		new MeshRasterizer( transform, target.getWidth(), target.getHeight() ).render(
+				MeshRasterizer.createSampler( source.ip, target.ip, true ),
+				source.mask == null || target.mask == null ? null : MeshRasterizer.createSampler( source.mask, target.mask, true ),
+				target.outside,
+				numThreads );
 	}
 	
 	final public void map(
@@ -542,24 +413,11 @@ public class TransformMeshMappingWithMasks< T extends TransformMesh > extends mp
 			final ShortProcessor target,
 			final int numThreads )
 	{
-		final List< AffineModel2D > l = new ArrayList< AffineModel2D >();
-		l.addAll( transform.getAV().keySet() );
-		final AtomicInteger i = new AtomicInteger( 0 );
-		final ArrayList< Thread > threads = new ArrayList< Thread >( numThreads );
-		for ( int k = 0; k < numThreads; ++k )
-		{
-			final Thread mtt = new MapShortAlphaTriangleThread( i, l, transform, source, alpha, target );
-			threads.add( mtt );
-			mtt.start();
-		}
-		for ( final Thread mtt : threads )
-		{
-			try
-			{
-				mtt.join();
-			}
-			catch ( final InterruptedException e ) {}
-		}
+		new MeshRasterizer( transform, target.getWidth(), target.getHeight() ).render(
+				MeshRasterizer.createAlphaSampler( source, alpha, target ),
+				null,
+				null,
+				numThreads );
 	}
 	
 	
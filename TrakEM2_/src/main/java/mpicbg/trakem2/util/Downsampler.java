@@ -21,6 +21,10 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.utils.CachingThread;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 
@@ -568,4 +572,425 @@ final public class Downsampler
 		}
 		return bOutside;
 	}
+
+	
+	
+	/**
+	 * Computes the rows of one level of a pyramid from two rows of the level
+	 * above, see {@link Downsampler#downsamplePyramid}.  Levels that are not
+	 * kept whole keep their last two rows in carry buffers, indexed by the
+	 * parity of the row.
+	 */
+	static abstract private class Cascade
+	{
+		/** Compute row y of level k from rows 2y and 2y + 1 of level k - 1. */
+		abstract void row( int k, int y );
+	}
+	
+	static final private class ByteCascade extends Cascade
+	{
+		final byte[][] levels;
+		final int[] w;
+		
+		ByteCascade( final byte[] source, final Entry[] entries, final int channel, final int[] w )
+		{
+			this.levels = new byte[ entries.length + 1 ][];
+			this.levels[ 0 ] = source;
+			for ( int k = 1; k < levels.length; ++k )
+				this.levels[ k ] = entries[ k - 1 ].data[ channel ];
+			this.w = w;
+		}
+		
+		@Override
+		final void row( final int k, final int y )
+		{
+			final byte[] a = levels[ k - 1 ];
+			final byte[] b = levels[ k ];
+			final int wa = w[ k - 1 ];
+			for ( int ya = 2 * y * wa, ya1 = ya + wa, xa = 0, ybxb = y * w[ k ], end = ybxb + w[ k ]; ybxb < end; xa += 2, ++ybxb )
+				b[ ybxb ] = ( byte )averageByte( ya + xa, ya + xa + 1, ya1 + xa, ya1 + xa + 1, a );
+		}
+	}
+	
+	static final private class OutsideCascade extends Cascade
+	{
+		final byte[][] levels;
+		final int[] w;
+		
+		OutsideCascade( final byte[] source, final Entry[] entries, final int channel, final int[] w )
+		{
+			this.levels = new byte[ entries.length + 1 ][];
+			this.levels[ 0 ] = source;
+			for ( int k = 1; k < levels.length; ++k )
+				this.levels[ k ] = entries[ k - 1 ].data[ channel ];
+			this.w = w;
+		}
+		
+		@Override
+		final void row( final int k, final int y )
+		{
+			final byte[] a = levels[ k - 1 ];
+			final byte[] b = levels[ k ];
+			final int wa = w[ k - 1 ];
+			for ( int ya = 2 * y * wa, ya1 = ya + wa, xa = 0, ybxb = y * w[ k ], end = ybxb + w[ k ]; ybxb < end; xa += 2, ++ybxb )
+				b[ ybxb ] = andByte( ya + xa, ya + xa + 1, ya1 + xa, ya1 + xa + 1, a ) == 0xff ? ( byte )-1 : 0;
+		}
+	}
+	
+	/** Alpha combined with outside: the outside mask is carried, only the alpha is kept. */
+	static final private class AlphaOutsideCascade extends Cascade
+	{
+		final byte[][] levels;
+		final byte[] outside;
+		final byte[][][] carry;
+		final int[] w;
+		
+		AlphaOutsideCascade( final byte[] alpha, final byte[] outside, final Entry[] entries, final int channel, final int[] w )
+		{
+			this.levels = new byte[ entries.length + 1 ][];
+			this.levels[ 0 ] = alpha;
+			this.carry = new byte[ entries.length + 1 ][][];
+			for ( int k = 1; k < levels.length; ++k )
+			{
+				this.levels[ k ] = entries[ k - 1 ].data[ channel ];
+				this.carry[ k ] = new byte[ 2 ][ w[ k ] ];
+			}
+			this.outside = outside;
+			this.w = w;
+		}
+		
+		@Override
+		final void row( final int k, final int y )
+		{
+			final byte[] o0, o1;
+			final int yo0, yo1;
+			if ( 1 == k )
+			{
+				o0 = o1 = outside;
+				yo0 = 2 * y * w[ 0 ];
+				yo1 = yo0 + w[ 0 ];
+			}
+			else
+			{
+				o0 = carry[ k - 1 ][ 0 ];
+				o1 = carry[ k - 1 ][ 1 ];
+				yo0 = yo1 = 0;
+			}
+			final byte[] a = levels[ k - 1 ];
+			final byte[] b = levels[ k ];
+			final byte[] ob = carry[ k ][ y & 1 ];
+			final int wa = w[ k - 1 ];
+			final int wb = w[ k ];
+			final int ya = 2 * y * wa;
+			final int ya1 = ya + wa;
+			final int yb = y * wb;
+			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
+			{
+				// -1 if all four are inside, 0 otherwise; without a branch
+				final int inside = -( ( ( o0[ yo0 + xa ] & o0[ yo0 + xa + 1 ] & o1[ yo1 + xa ] & o1[ yo1 + xa + 1 ] & 0xff ) + 1 ) >> 8 );
+				b[ yb + xb ] = ( byte )( averageByte( ya + xa, ya + xa + 1, ya1 + xa, ya1 + xa + 1, a ) & inside );
+				ob[ xb ] = ( byte )inside;
+			}
+		}
+	}
+	
+	static final private class ShortCascade extends Cascade
+	{
+		final short[] source;
+		final short[][][] carry;
+		final byte[][] bytes;
+		final int[] w;
+		/** The mapping of each 16-bit value to unsigned byte. */
+		final byte[] lut;
+		
+		ShortCascade( final ShortProcessor sp, final Entry[] entries, final int[] w, final byte[] lut )
+		{
+			this.source = ( short[] )sp.getPixels();
+			this.carry = new short[ entries.length + 1 ][][];
+			this.bytes = new byte[ entries.length + 1 ][];
+			for ( int k = 1; k < carry.length; ++k )
+			{
+				this.carry[ k ] = new short[ 2 ][ w[ k ] ];
+				this.bytes[ k ] = entries[ k - 1 ].data[ 0 ];
+			}
+			this.w = w;
+			this.lut = lut;
+		}
+		
+		/** The same mapping to unsigned byte as in {@link Downsampler#downsampleShort}. */
+		static byte[] createLut( final ShortProcessor sp )
+		{
+			final double min = sp.getMin();
+			final double scale = 255.0 / ( sp.getMax() - min );
+			final byte[] lut = new byte[ 0x10000 ];
+			for ( int s = 0; s < lut.length; ++s )
+			{
+				final int sb = ( int )( ( s - min ) * scale + 0.5 );
+				lut[ s ] = ( byte )( sb < 0 ? 0 : sb > 255 ? 255 : sb );
+			}
+			return lut;
+		}
+		
+		@Override
+		final void row( final int k, final int y )
+		{
+			final short[] a0, a1;
+			final int ya0, ya1;
+			if ( 1 == k )
+			{
+				a0 = a1 = source;
+				ya0 = 2 * y * w[ 0 ];
+				ya1 = ya0 + w[ 0 ];
+			}
+			else
+			{
+				a0 = carry[ k - 1 ][ 0 ];
+				a1 = carry[ k - 1 ][ 1 ];
+				ya0 = ya1 = 0;
+			}
+			final short[] b = carry[ k ][ y & 1 ];
+			final byte[] bBytes = bytes[ k ];
+			final int wb = w[ k ];
+			final int yb = y * wb;
+			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
+			{
+				final int s = (
+						( a0[ ya0 + xa ] & 0xffff ) +
+						( a0[ ya0 + xa + 1 ] & 0xffff ) +
+						( a1[ ya1 + xa ] & 0xffff ) +
+						( a1[ ya1 + xa + 1 ] & 0xffff ) ) / 4;
+				b[ xb ] = ( short )s;
+				bBytes[ yb + xb ] = lut[ s ];
+			}
+		}
+	}
+	
+	static final private class FloatCascade extends Cascade
+	{
+		final float[] source;
+		final float[][][] carry;
+		final byte[][] bytes;
+		final int[] w;
+		final double min, scale;
+		
+		FloatCascade( final FloatProcessor fp, final Entry[] entries, final int[] w )
+		{
+			this.source = ( float[] )fp.getPixels();
+			this.carry = new float[ entries.length + 1 ][][];
+			this.bytes = new byte[ entries.length + 1 ][];
+			for ( int k = 1; k < carry.length; ++k )
+			{
+				this.carry[ k ] = new float[ 2 ][ w[ k ] ];
+				this.bytes[ k ] = entries[ k - 1 ].data[ 0 ];
+			}
+			this.w = w;
+			this.min = fp.getMin();
+			this.scale = 255.0 / ( fp.getMax() - min );
+		}
+		
+		@Override
+		final void row( final int k, final int y )
+		{
+			final float[] a0, a1;
+			final int ya0, ya1;
+			if ( 1 == k )
+			{
+				a0 = a1 = source;
+				ya0 = 2 * y * w[ 0 ];
+				ya1 = ya0 + w[ 0 ];
+			}
+			else
+			{
+				a0 = carry[ k - 1 ][ 0 ];
+				a1 = carry[ k - 1 ][ 1 ];
+				ya0 = ya1 = 0;
+			}
+			final float[] b = carry[ k ][ y & 1 ];
+			final byte[] bBytes = bytes[ k ];
+			final int wb = w[ k ];
+			final int yb = y * wb;
+			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
+			{
+				final float s = (
+						a0[ ya0 + xa ] +
+						a0[ ya0 + xa + 1 ] +
+						a1[ ya1 + xa ] +
+						a1[ ya1 + xa + 1 ] ) / 4;
+				b[ xb ] = s;
+				final int sb = ( int )( ( s - min ) * scale + 0.5 );
+				bBytes[ yb + xb ] = ( byte )( sb < 0 ? 0 : sb > 255 ? 255 : sb );
+			}
+		}
+	}
+	
+	/** The first level is computed from the packed pixels, all others from the red, green and blue bytes. */
+	static final private class ColorCascade extends Cascade
+	{
+		final int[] source;
+		final byte[] r, g, b;
+		final ByteCascade red, green, blue;
+		final int[] w;
+		
+		ColorCascade( final ColorProcessor cp, final Entry[] entries, final int[] w )
+		{
+			this.source = ( int[] )cp.getPixels();
+			this.r = entries[ 0 ].data[ 0 ];
+			this.g = entries[ 0 ].data[ 1 ];
+			this.b = entries[ 0 ].data[ 2 ];
+			this.red = new ByteCascade( null, entries, 0, w );
+			this.green = new ByteCascade( null, entries, 1, w );
+			this.blue = new ByteCascade( null, entries, 2, w );
+			this.w = w;
+		}
+		
+		@Override
+		final void row( final int k, final int y )
+		{
+			if ( k > 1 )
+			{
+				red.row( k, y );
+				green.row( k, y );
+				blue.row( k, y );
+				return;
+			}
+			final int wa = w[ 0 ];
+			final int wb = w[ 1 ];
+			final int ya = 2 * y * wa;
+			final int ya1 = ya + wa;
+			final int yb = y * wb;
+			for ( int xa = 0, xb = 0; xb < wb; xa += 2, ++xb )
+			{
+				final int rgb1 = source[ ya + xa ];
+				final int rgb2 = source[ ya + xa + 1 ];
+				final int rgb3 = source[ ya1 + xa ];
+				final int rgb4 = source[ ya1 + xa + 1 ];
+				r[ yb + xb ] = ( byte )averageColorRed( rgb1, rgb2, rgb3, rgb4 );
+				g[ yb + xb ] = ( byte )averageColorGreen( rgb1, rgb2, rgb3, rgb4 );
+				b[ yb + xb ] = ( byte )averageColorBlue( rgb1, rgb2, rgb3, rgb4 );
+			}
+		}
+	}
+	
+	/** Images with fewer pixels are downsampled in the calling thread only. */
+	final static private int MIN_PARALLEL_PIXELS = 1 << 20;
+	
+	/**
+	 * Create all levels of a mipmap pyramid below an image and its masks in
+	 * one pass.  The same values result as from calling the methods above
+	 * level by level, that is, {@link #downsampleByteProcessor},
+	 * {@link #downsampleShort}, {@link #downsampleFloat} or
+	 * {@link #downsampleColor} for the image, and
+	 * {@link #downsampleAlphaAndOutside}, {@link #downsampleByteProcessor} or
+	 * {@link #downsampleOutside} for the masks.  Instead of whole intermediate
+	 * images, each level keeps only its last two rows, and each pair of rows
+	 * of a level is downsampled into the next level as soon as it is complete,
+	 * so that rows are read while they are still in the cache.  Large images
+	 * are split into bands of rows, one for each row of the smallest level,
+	 * which are downsampled in parallel.
+	 * 
+	 * The byte arrays of the levels are taken from the {@link CachingThread}
+	 * cache of the calling thread, if any.
+	 * 
+	 * @param ip the image at level 0, a {@link ByteProcessor},
+	 *   {@link ShortProcessor}, {@link FloatProcessor} or {@link ColorProcessor}
+	 * @param alpha alpha mask at level 0, already combined with the outside
+	 *   mask if any, or null
+	 * @param outside outside mask at level 0, or null
+	 * @param nLevels number of levels to create below level 0
+	 * @param numThreads
+	 * @return an {@link Entry} for each level from 1 to nLevels, with the
+	 *   image as unsigned byte, grey or red, green and blue, followed by the
+	 *   mask if there is any, or null if the type of ip is not supported
+	 */
+	final static public Entry[] downsamplePyramid(
+			final ImageProcessor ip,
+			final ByteProcessor alpha,
+			final ByteProcessor outside,
+			final int nLevels,
+			final int numThreads )
+	{
+		if ( !( ByteProcessor.class.isInstance( ip ) || ShortProcessor.class.isInstance( ip ) ||
+				FloatProcessor.class.isInstance( ip ) || ColorProcessor.class.isInstance( ip ) ) )
+			return null;
+		
+		final int[] w = new int[ nLevels + 1 ];
+		final int[] h = new int[ nLevels + 1 ];
+		w[ 0 ] = ip.getWidth();
+		h[ 0 ] = ip.getHeight();
+		for ( int k = 1; k <= nLevels; ++k )
+		{
+			w[ k ] = w[ k - 1 ] / 2;
+			h[ k ] = h[ k - 1 ] / 2;
+		}
+		
+		final int nImageChannels = ColorProcessor.class.isInstance( ip ) ? 3 : 1;
+		final int nChannels = nImageChannels + ( null == alpha && null == outside ? 0 : 1 );
+		final Entry[] entries = new Entry[ nLevels ];
+		for ( int k = 1; k <= nLevels; ++k )
+			entries[ k - 1 ] = new Entry( w[ k ], h[ k ], CachingThread.getOrCreateByteArray( nChannels, w[ k ] * h[ k ] ) );
+		if ( 0 == nLevels )
+			return entries;
+		
+		// Bands of rows, each starting at a row of the smallest level
+		final int unit = 1 << nLevels;
+		final int nUnits = Math.max( 1, h[ 0 ] / unit );
+		final int nThreads = w[ 0 ] * h[ 0 ] < MIN_PARALLEL_PIXELS ? 1 : Math.max( 1, Math.min( numThreads, nUnits ) );
+		final int bandRows = unit * Math.max( 1, nUnits / ( 4 * nThreads ) );
+		final int nBands = ( h[ 0 ] + bandRows - 1 ) / bandRows;
+		final AtomicInteger nextBand = new AtomicInteger( 0 );
+		final byte[] lut = ShortProcessor.class.isInstance( ip ) ? ShortCascade.createLut( ( ShortProcessor )ip ) : null;
+		
+		final Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final Cascade image;
+				if ( ByteProcessor.class.isInstance( ip ) )
+					image = new ByteCascade( ( byte[] )ip.getPixels(), entries, 0, w );
+				else if ( ShortProcessor.class.isInstance( ip ) )
+					image = new ShortCascade( ( ShortProcessor )ip, entries, w, lut );
+				else if ( FloatProcessor.class.isInstance( ip ) )
+					image = new FloatCascade( ( FloatProcessor )ip, entries, w );
+				else
+					image = new ColorCascade( ( ColorProcessor )ip, entries, w );
+				
+				final Cascade mask;
+				if ( null != alpha && null != outside )
+					mask = new AlphaOutsideCascade( ( byte[] )alpha.getPixels(), ( byte[] )outside.getPixels(), entries, nImageChannels, w );
+				else if ( null != alpha )
+					mask = new ByteCascade( ( byte[] )alpha.getPixels(), entries, nImageChannels, w );
+				else if ( null != outside )
+					mask = new OutsideCascade( ( byte[] )outside.getPixels(), entries, nImageChannels, w );
+				else
+					mask = null;
+				
+				for ( int band = nextBand.getAndIncrement(); band < nBands; band = nextBand.getAndIncrement() )
+				{
+					if ( Thread.currentThread().isInterrupted() ) return;
+					final int y1 = Math.min( h[ 0 ], ( band + 1 ) * bandRows );
+					for ( int y = band * bandRows; y + 1 < y1; y += 2 )
+					{
+						// Each odd row completes a pair, to be downsampled into the next level
+						for ( int k = 1, yk = y >> 1; k <= nLevels; ++k, yk >>= 1 )
+						{
+							image.row( k, yk );
+							if ( null != mask ) mask.row( k, yk );
+							if ( 0 == ( yk & 1 ) ) break;
+						}
+					}
+				}
+			}
+		};
+		
+		try
+		{
+			ExecutorProvider.runParallel( nThreads, task );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		return entries;
+	}
 }
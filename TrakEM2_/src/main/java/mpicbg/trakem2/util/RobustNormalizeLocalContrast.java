@@ -20,12 +20,12 @@ import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ini.trakem2.parallel.ExecutorProvider;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import mpicbg.ij.integral.BlockStatistics;
 import mpicbg.ij.plugin.RemoveOutliers;
@@ -148,8 +148,7 @@ public class RobustNormalizeLocalContrast
 		final int w = mean.getWidth();
 		final int h = mean.getHeight();
 		
-		final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
-		final ArrayList< Future< ? > > tasks = new ArrayList< Future< ? > >();
+		final ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
 		
 		/* the big inside */
 		for ( int y = 1; y < h; ++y )
@@ -157,7 +156,7 @@ public class RobustNormalizeLocalContrast
 			final int ya = y - 1;
 			final int yb = y;
 			
-			tasks.add( exec.submit( new Runnable()
+			tasks.add( Executors.callable( new Runnable()
 			{
 				final public void run()
 				{
@@ -199,26 +198,21 @@ public class RobustNormalizeLocalContrast
 			} ) );
 		}
 		
-		for ( Future< ? > task : tasks )
+		/* in the shared pool, within the CPU budget */
+		try
 		{
-			try
-			{
-				task.get();
-			}
-			catch ( InterruptedException e )
-			{
-				exec.shutdownNow();
-				return;
-			}
-			catch ( ExecutionException e )
-			{
-				exec.shutdownNow();
-				return;
-			}
+			ExecutorProvider.invokeAll( ExecutorProvider.getPriority(), tasks );
+		}
+		catch ( InterruptedException e )
+		{
+			return;
+		}
+		catch ( ExecutionException e )
+		{
+			return;
 		}
 		
 		tasks.clear();
-		exec.shutdown();
 		
 		/* top and bottom */
 		for ( int x = 1; x < w; ++x )
@@ -386,19 +386,20 @@ public class Editions {
 		vs1.resample(delta, with_source);
 		vs2.resample(delta, with_source);
 		// fetch the optimal matrix
-		final double[][] matrix = findMinimumEditDistance();
+		final double[] matrix = findMinimumEditDistance();
 
 		final int n = vs1.length();
 		final int m = vs2.length();
+		final int w = m + 1; // width of the matrix
 
-		this.distance = matrix[n][m];
+		this.distance = matrix[n * w + m];
 
 		// let's see the matrix
 		/*
 		final StringBuffer sb = new StringBuffer();
 		for (int f=0; f<n+1; f++) {
 			for (int g=0; g<m+1; g++) {
-				sb.append(matrix[f][g]).append('\t');
+				sb.append(matrix[f * w + g]).append('\t');
 			}
 			sb.append('\n');
 		}
@@ -423,13 +424,13 @@ public class Editions {
 				ed_length += 20;
 			}
 			// find next i, j and the type of transform:
-			if (error > Math.abs(matrix[i][j] - matrix[i-1][j] - delta)) {
+			if (error > Math.abs(matrix[i * w + j] - matrix[(i-1) * w + j] - delta)) {
 				// a deletion:
 				editions[next][0] = DELETION;
 				editions[next][1] = i;
 				editions[next][2] = j;
 				i = i-1;
-			} else if (error > Math.abs(matrix[i][j] - matrix[i][j-1] - delta)) {
+			} else if (error > Math.abs(matrix[i * w + j] - matrix[i * w + j - 1] - delta)) {
 				// an insertion:
 				editions[next][0] = INSERTION;
 				editions[next][1] = i;
@@ -486,7 +487,7 @@ public class Editions {
 		} else {
 			//simply reorder in place
 			int[] temp;
-			for (i=0; i<next; i++) {
+			for (i=0; i<next/2; i++) {
 				temp = editions[i];
 				editions[i] = editions[next -1 -i];
 				editions[next -1 -i] = temp;
@@ -508,100 +509,39 @@ public class Editions {
 		return editions2;
 	}
 
-	/** Convenient tuple to store the statting index and the matrix for that index.*/
-	private class MinDist {
-		int min_j;
-		double min_dist;
-		double[][] matrix;
-		double[][] matrix_e;
-	}
-
-	private double[][] findMinimumEditDistance() {
-		int j, i;
-		int min_j = 0;
-		final int n = vs1.length();
-		final int m = vs2.length();
-		// allocate the first matrix
-		final double[][] matrix1 = new double[n+1][m+1];
-		// make the first element be i*delta
-		for (i=0; i < n +1; i++) {
-			matrix1[i][0] = i * delta * WD;
-		}
-		// fill first column
-		for (j=0; j < m + 1; j++) {
-			matrix1[0][j] = j * delta * WI;
-		}
+	/** Returns the matrix of edit distances, of (n+1) rows of (m+1) values, as a flat array. */
+	private double[] findMinimumEditDistance() {
 		// return the matrix made matching point 0 of both curves, if the curve is open.
 		if (!closed) {
-			return findEditMatrix(0, matrix1);
+			return findEditMatrix(0, null);
 		}
 
 		// else try every point in the second curve to see which one is the best possible match.
-
-		// allocate the second matrix
-		final double[][] matrix2 = new double[n+1][m+1];
-		/// fill top row values for the second matrix
-		for (i=0; i < n +1; i++) {
-			matrix2[i][0] = i * delta;
-		}
-		// make the first j row be j * delta
-		for (j=0; j < m + 1; j++) {
-			matrix2[0][j] = j * delta;
-		}
-
-		// the current, editable
-		double[][] matrix_e = matrix1;
-
-
-		// the one to keep
-		double[][] matrix = null;
+		// Only the distance is needed for each trial, which is computed keeping two rows of the matrix only.
 
 		// The algorithm to find the starting point, based on vector string distance:
 		/*
 		// find the minimum distance
 		for (j=0; j<m; j++) {
 			// get the distance starting at 0 in p1 and at j in p2:
-			matrix_e = findEditMatrix(j, matrix_e);
-
-			// last element of the matrix is the string distance between p1 and p2
-			if (matrix_e[n][m] < min_dist) {
+			final double dist = findEditDistance(j, rows);
+			if (dist < min_dist) {
 				// record values
-				min_dist = matrix_e[n][m];
+				min_dist = dist;
 				min_j = j;
-				// record new one
-				matrix = matrix_e;
-				// swap editable matrix
-				if (matrix1 == matrix_e) { // compare the addresses of the arrays.
-					matrix_e = matrix2;
-				} else {
-					matrix_e = matrix1;
-				}
 			}
-			// else nothing needs to be needed, the current editable matrix remains the same.
 		}
 		*/
 
 		// A 'divide and conquer' approach: much faster, based on the fact that the distances always make a valey when plotted
 		// Find the value of one every 10% of points. Then find those intervals with the lowest starting and ending values, and then look for 50% intervals inside those, and so on, until locking into the lowest value. It will save about 80% or more of all computations.
-		MinDist min_data = new MinDist();
-		min_data.min_j = -1;
-		min_data.min_dist = Double.MAX_VALUE;
-		min_data.matrix = matrix2;
-		min_data.matrix_e = matrix1;
+		final int m = vs2.length();
+		final MinDist min_data = findMinDist(0, m-1, (int)Math.ceil(m * 0.1), new MinDist(), new double[2 * (m + 1)]);
 
-		min_data = findMinDist(0, m-1, (int)Math.ceil(m * 0.1), min_data);
-
-		min_j = min_data.min_j;
-		matrix = min_data.matrix;
-		matrix_e = min_data.matrix_e;
-
-		// free the current editable matrix. The other one is returned below and will be free elsewhere after usage.
-		if (matrix != matrix_e) {
-			matrix_e = null;
-		} else {
-			System.out.println("\nERROR: matrix is matrix_e unexpectedly");
-		}
+		final int min_j = min_data.min_j;
 
+		// The full matrix, only for the best starting point
+		final double[] matrix = findEditMatrix(min_j, null);
 
 		// Reorder the second array, so that min_j is index zero (i.e. simply making both curves start at points that are closest to each other in terms of curve similarity).
 		if (0 != min_j) {
@@ -612,13 +552,14 @@ public class Editions {
 		return matrix;
 	}
 
-	/** Returns the same instance of MinDist given as a parameter (so it has to be non-null). */
-	private MinDist findMinDist(int first, int last, int interval_length, final MinDist result) {
-		double[][] matrix = result.matrix;
-		double[][] matrix_e = result.matrix_e;
-		double[][] matrix1 = matrix_e;
-		double[][] matrix2 = matrix;
+	/** Convenient tuple to store the starting index and its distance.*/
+	static private final class MinDist {
+		int min_j = -1;
+		double min_dist = Double.MAX_VALUE;
+	}
 
+	/** Returns the same instance of MinDist given as a parameter (so it has to be non-null). */
+	private MinDist findMinDist(int first, int last, int interval_length, final MinDist result, final double[] rows) {
 		// the iterator over p2
 		int j;
 
@@ -632,7 +573,6 @@ public class Editions {
 		}
 
 		// gather data
-		final int n = vs1.length();
 		final int m = vs2.length();
 		int min_j = result.min_j;
 		double min_dist = result.min_dist;
@@ -644,22 +584,11 @@ public class Editions {
 				j = j - m;
 			}
 			// don't do some twice: TODO this setup does not save the case when the computation was done not in the previous iteration but before.
-			if (j == result.min_j) {
-				matrix_e = result.matrix_e;
-			} else {
-				matrix_e = findEditMatrix(j, matrix_e);
-			}
-			if (matrix_e[n][m] < min_dist) {
+			final double dist = j == result.min_j ? result.min_dist : findEditDistance(j, rows);
+			if (dist < min_dist) {
 				// record values
 				min_j = j;
-				matrix = matrix_e;
-				min_dist = matrix[n][m];
-				// swap editable matrix
-				if (matrix_e == matrix1) { // compare the addresses of the arrays.
-					matrix_e = matrix2;
-				} else {
-					matrix_e = matrix1;
-				}
+				min_dist = dist;
 			}
 			// advance iterator
 			if (length -1 != k && k + interval_length >= length) {
@@ -673,8 +602,6 @@ public class Editions {
 		// pack result:
 		result.min_j = min_j;
 		result.min_dist = min_dist;
-		result.matrix = matrix;
-		result.matrix_e = matrix_e;
 
 		if (1 == interval_length) {
 			// done!
@@ -692,55 +619,106 @@ public class Editions {
 			}
 			// recurse, with half the interval length
 			interval_length = (int)Math.ceil(interval_length / 2.0f);
-			return findMinDist(first, last, interval_length, result);
+			return findMinDist(first, last, interval_length, result, rows);
 		}
 	}
 
-	/** Generate the matrix between vs1 and vs2. The lower right value of the matrix is the Levenshtein's distance between the two strings of vectors. @param delta is the desired point interdistance. @param first is the first index of vs2  to be matched with index zero of vs1. @param matrix is optional, for recyclying. */
-	private double[][] findEditMatrix(final int first, double[][] matrix_) {
+	/** Cost of matching element i of vs1 with element j of vs2. */
+	private final double mutationCost(final int i, final int j, final int n, final int m) {
+		if (i == n || j == m) return 0;
+		//dx = v_x1[i] - v_x2[j];
+		//dy = v_y1[i] - v_y2[j];
+		return WM * vs1.getDiffVectorLength(i, j, vs2); //  Math.sqrt(dx*dx + dy*dy); // the vector length is the hypothenusa.
+	}
+
+	/** The cost of two paths through the matrix: all mutations from the start and then all insertions or deletions,
+	 *  and all insertions or deletions from the start and then all mutations. The distance can't be larger. */
+	private final double upperBound(final int n, final int m) {
+		final int k = Math.min(n, m);
+		final double indels = n > m ? (n - m) * delta : (m - n) * delta;
+		double head = indels * (n > m ? WD : WI), // mutations first, then along the last row or column
+		       tail = indels;                     // along the first row or column, then mutations
+		for (int i=1; i<=k; i++) {
+			head += mutationCost(i, i, n, m);
+			tail += mutationCost(n - k + i, m - k + i, n, m);
+		}
+		return Math.min(head, tail);
+	}
+
+	/** Returns the band of the matrix, as the range of i - j, outside of which every path through a cell costs more than
+	 *  the {@link #upperBound(int, int)}, and thus can't be optimal; or null if the band covers the whole matrix.
+	 *  Each insertion or deletion costs at least delta times the smallest of 1 and the weights (the first row and
+	 *  column cost delta per element), and a path through cell (i,j) needs at least |i - j| + |(n - m) - (i - j)| of them.
+	 *  @param tracing whether the matrix will be traced back, which, because the traceback identifies insertions and
+	 *  deletions by a cost of delta, only follows optimal paths--and thus stays within the band--when their weights are 1. */
+	private final int[] findBand(final int n, final int m, final boolean tracing) {
+		if (tracing && !(1 == WI && 1 == WD)) return null;
+		final double c = delta * Math.min(1, Math.min(WI, WD));
+		if (!(c > 0) || WM < 0 || n < 2 || m < 2) return null;
+		final double s = upperBound(n, m) / c;
+		final int d = n - m;
+		if (Double.isNaN(s) || s >= n + m) return null;
+		// One more than strictly needed, for numerical safety
+		final int e = (int)Math.floor((s - Math.abs(d)) / 2) + 1;
+		final int lo = Math.min(0, d) - e,
+		          hi = Math.max(0, d) + e;
+		// Covers the whole matrix when row n starts at column 1 and row 1 ends at column m
+		if (hi >= n - 1 && lo <= 1 - m) return null;
+		return new int[]{lo, hi};
+	}
+
+	/** Generate the matrix between vs1 and vs2, as a flat array of (n+1) rows of (m+1) values. The lower right value
+	 *  of the matrix is the Levenshtein's distance between the two strings of vectors. @param delta is the desired point
+	 *  interdistance. @param first is the first index of vs2  to be matched with index zero of vs1. @param matrix is
+	 *  optional, for recyclying.
+	 *  Cells that can't be on an optimal path are not computed, and are infinite when next to computed ones. */
+	private double[] findEditMatrix(final int first, double[] matrix_) {
 
 		final int n = vs1.length();
 		final int m = vs2.length();
+		final int w = m + 1;
 
-		if (null == matrix_) matrix_ =  new double[n+1][m+1];
-		final double[][] matrix = matrix_;
+		if (null == matrix_) matrix_ = new double[(n+1) * w];
+		final double[] matrix = matrix_;
 
 		int i=0, j=0;
 		for (; i < n +1; i++) {
-			matrix[i][0] = i * delta;
+			matrix[i * w] = i * delta;
 		}
 		for (; j < m +1; j++) {
-			matrix[0][j] = j * delta;
+			matrix[j] = j * delta;
 		}
+		final int[] band = findBand(n, m, true);
 		// as optimized in the findEditMatrix in CurveMorphing_just_C.c
-		double[] mati;
-		double[] mat1;
+		final double cost_d = WD * delta,
+		             cost_i = WI * delta;
 		double fun1, fun2, fun3;
-		//double dx, dy;
 		for (i=1; i < n +1; i++) {
-			mati = matrix[i];
-			mat1 = matrix[i-1];
-			for (j=1; j < m +1; j++) {
+			final int row = i * w,
+			          row1 = row - w;
+			int jlo = 1,
+			    jhi = m;
+			if (null != band) {
+				jlo = Math.max(1, i - band[1]);
+				jhi = Math.min(m, i - band[0]);
+				if (jlo > 1) matrix[row + jlo - 1] = Double.POSITIVE_INFINITY;
+				if (jhi < m) matrix[row + jhi + 1] = Double.POSITIVE_INFINITY;
+			}
+			for (j=jlo; j <= jhi; j++) {
 				// cost deletion:
-				fun1 = mat1[j] + WD * delta; // matrix[i-1][j] + delta
+				fun1 = matrix[row1 + j] + cost_d; // matrix[i-1][j] + delta
 				// cost insertion:
-				fun2 = mati[j-1] + WI * delta; // matrix[i][j-1] + delta
+				fun2 = matrix[row + j - 1] + cost_i; // matrix[i][j-1] + delta
 				// cost mutation:
-				if (i == n || j == m) {
-					fun3 = mat1[j-1]; // matrix[i-1][j-1]
-				} else {
-					//dx = v_x1[i] - v_x2[j];
-					//dy = v_y1[i] - v_y2[j];
-					fun3 = mat1[j-1] + WM * vs1.getDiffVectorLength(i, j, vs2); //  Math.sqrt(dx*dx + dy*dy); // the vector length is the hypothenusa.
-				}
+				fun3 = matrix[row1 + j - 1] + mutationCost(i, j, n, m); // matrix[i-1][j-1]
 				// insert the lowest value in the matrix.
 				// since most are mutations, start with fun3:
 				if (fun3 <= fun1 && fun3 <= fun2) {
-					mati[j] = fun3;//matrix[i][jj] = fun3;
+					matrix[row + j] = fun3;
 				} else if (fun1 <= fun2 && fun1 <= fun3) {
-					mati[j] = fun1;//matrix[i][jj] = fun1;
+					matrix[row + j] = fun1;
 				} else {
-					mati[j] = fun2;//matrix[i][jj] = fun2;
+					matrix[row + j] = fun2;
 				}
 			}
 		}
@@ -748,6 +726,51 @@ public class Editions {
 		return matrix;
 	}
 
+	/** Same as the lower right value of {@link #findEditMatrix(int, double[])}, keeping only two rows of the matrix
+	 *  in @param rows, of length 2 * (m+1). */
+	private double findEditDistance(final int first, final double[] rows) {
+
+		final int n = vs1.length();
+		final int m = vs2.length();
+		final int w = m + 1;
+
+		for (int j=0; j < m +1; j++) {
+			rows[j] = j * delta;
+		}
+		final int[] band = findBand(n, m, false);
+		final double cost_d = WD * delta,
+		             cost_i = WI * delta;
+		double fun1, fun2, fun3;
+		for (int i=1; i < n +1; i++) {
+			// alternate the two rows
+			final int row = (i & 1) * w,
+			          row1 = w - row;
+			rows[row] = i * delta;
+			int jlo = 1,
+			    jhi = m;
+			if (null != band) {
+				jlo = Math.max(1, i - band[1]);
+				jhi = Math.min(m, i - band[0]);
+				if (jlo > 1) rows[row + jlo - 1] = Double.POSITIVE_INFINITY;
+				if (jhi < m) rows[row + jhi + 1] = Double.POSITIVE_INFINITY;
+			}
+			for (int j=jlo; j <= jhi; j++) {
+				fun1 = rows[row1 + j] + cost_d;
+				fun2 = rows[row + j - 1] + cost_i;
+				fun3 = rows[row1 + j - 1] + mutationCost(i, j, n, m);
+				if (fun3 <= fun1 && fun3 <= fun2) {
+					rows[row + j] = fun3;
+				} else if (fun1 <= fun2 && fun1 <= fun3) {
+					rows[row + j] = fun1;
+				} else {
+					rows[row + j] = fun2;
+				}
+			}
+		}
+
+		return rows[(n & 1) * w + m];
+	}
+
 	/** Get the sequence of editions and matches in three lines, like:
 	 *  vs1: 1 2 3 4 5 6     7 8 9
 	 *       M M D M M M I I M M M 
@@ -0,0 +1,155 @@
+package test;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.Blending;
+import ini.trakem2.imaging.SeamBlending;
+import mpicbg.trakem2.transform.RigidModel2D;
+import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshCache;
+
+import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Test that {@link Blending} and {@link SeamBlending} find the right pixels of an image with a
+ *  coordinate transform whose mesh bounding box does not start at 0,0: the weights must be
+ *  those of the original image coordinates, computed here without going through the mesh. */
+public class TestBlendingCoordinateTransform
+{
+	static public final void main(String[] args) {
+		File folder = null;
+		Project project = null;
+		try {
+			ControlWindow.setGUIEnabled(false);
+			folder = File.createTempFile("trakem2-test-", "");
+			folder.delete();
+			folder.mkdirs();
+			final String storage_folder = folder.getAbsolutePath().replace('\\', '/') + "/";
+			project = Project.newFSProject("blank", null, storage_folder, false);
+			final Layer layer = new Layer(project, 0, 1, project.getRootLayerSet());
+			project.getRootLayerSet().add(layer);
+
+			final int ow = 200, oh = 150;
+			final Patch q = newPatch(project, layer, storage_folder, "q", 300, 300, new AffineTransform());
+			final AffineTransform before = new AffineTransform();
+			before.translate(50, 30);
+			final Patch p = newPatch(project, layer, storage_folder, "p", ow, oh, before);
+
+			// Rotation about the origin: the mesh bounding box has a negative x
+			final RigidModel2D ct = new RigidModel2D();
+			ct.init("0.3 0 0");
+			p.setCoordinateTransform(ct);
+			final TransformMesh mesh = TransformMeshCache.get(p.getCoordinateTransform(), p.getMeshResolution(), ow, oh);
+			System.out.println("mesh bounding box: " + mesh.getBoundingBox());
+
+			final Method intersects = Blending.class.getDeclaredMethod("intersects", float[].class, Patch.class, TransformMesh.class);
+			intersects.setAccessible(true);
+			final Method computeWeight = Blending.class.getDeclaredMethod("computeWeight", float.class, float.class, int.class, int.class);
+			computeWeight.setAccessible(true);
+
+			int nErrors = 0;
+
+			// Blending.intersects: world coordinates of original pixels of p must give back their weight
+			final float[] fo = new float[2];
+			for (int y=5; y<oh-5; y+=7) {
+				for (int x=5; x<ow-5; x+=7) {
+					fo[0] = x;
+					fo[1] = y;
+					ct.applyInPlace(fo);
+					final double[] po = new double[]{fo[0], fo[1]};
+					before.transform(po, 0, po, 0, 1);
+					fo[0] = (float)po[0];
+					fo[1] = (float)po[1];
+					final float w = (Float)intersects.invoke(null, fo, p, mesh);
+					final float expected = (Float)computeWeight.invoke(null, (float)x, (float)y, ow, oh);
+					if (Math.abs(w - expected) > 1e-3) {
+						if (nErrors < 10) System.out.println("ERROR with intersects at " + x + ", " + y + ": " + w + " != " + expected);
+						++nErrors;
+					}
+				}
+			}
+
+			// SeamBlending: the weight of p over q at each grid sample of the full-size image
+			final Method computeWeights = SeamBlending.class.getDeclaredMethod("computeWeights", Patch.class, List.class, int.class, int.class);
+			computeWeights.setAccessible(true);
+			final List<Patch> under = new ArrayList<Patch>();
+			under.add(q);
+			final int iw = (int)p.getWidth(),
+			          ih = (int)p.getHeight();
+			final Object weights = computeWeights.invoke(null, p, under, iw, ih);
+			final int nx = getField(weights, "nx"),
+			          ny = getField(weights, "ny");
+			final Field fgrid = weights.getClass().getDeclaredField("grid");
+			fgrid.setAccessible(true);
+			final float[] grid = (float[])fgrid.get(weights);
+			final AffineTransform at = p.getAffineTransform();
+			final AffineTransform before_inverse = before.createInverse();
+			for (int gy=0; gy<ny; gy++) {
+				for (int gx=0; gx<nx; gx++) {
+					final double[] po = new double[]{gx * (iw - 1) / (double)(nx - 1) * p.getWidth() / iw,
+					                                 gy * (ih - 1) / (double)(ny - 1) * p.getHeight() / ih};
+					at.transform(po, 0, po, 0, 1);
+					final double[] world = po.clone();
+					// Original image coordinates of p, via the affine before the coordinate transform
+					before_inverse.transform(po, 0, po, 0, 1);
+					fo[0] = (float)po[0];
+					fo[1] = (float)po[1];
+					ct.applyInverseInPlace(fo);
+					if (fo[0] < 1 || fo[1] < 1 || fo[0] > ow - 1 || fo[1] > oh - 1) continue; // near or beyond the edges of the mesh
+					final float self = (Float)computeWeight.invoke(null, fo[0], fo[1], ow, oh);
+					final float other = (Float)computeWeight.invoke(null, (float)world[0], (float)world[1], 300, 300);
+					final float expected = self / (self + other);
+					final float w = grid[gy * nx + gx];
+					if (Math.abs(w - expected) > 1e-3) {
+						if (nErrors < 10) System.out.println("ERROR with seam weight at " + gx + ", " + gy + ": " + w + " != " + expected);
+						++nErrors;
+					}
+				}
+			}
+
+			System.out.println(0 == nErrors ? "OK" : nErrors + " errors");
+		} catch (Throwable t) {
+			t.printStackTrace();
+		} finally {
+			if (null != project) project.destroy();
+			if (null != folder) delete(folder);
+		}
+	}
+
+	static private final Patch newPatch(final Project project, final Layer layer, final String folder, final String title,
+			final int width, final int height, final AffineTransform at) {
+		final String path = folder + title + ".tif";
+		final ByteProcessor bp = new ByteProcessor(width, height);
+		bp.setValue(128);
+		bp.fill();
+		new FileSaver(new ImagePlus(title, bp)).saveAsTiff(path);
+		final Patch patch = new Patch(project, title, width, height, width, height,
+				ImagePlus.GRAY8, 1.0f, Color.yellow, false, 0, 255, at, path);
+		layer.add(patch, false);
+		return patch;
+	}
+
+	static private final int getField(final Object ob, final String name) throws Exception {
+		final Field f = ob.getClass().getDeclaredField(name);
+		f.setAccessible(true);
+		return f.getInt(ob);
+	}
+
+	static private final void delete(final File f) {
+		final File[] files = f.listFiles();
+		if (null != files) {
+			for (final File c : files) delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,86 @@
+package test;
+
+import ini.trakem2.display.Layer;
+import mpicbg.trakem2.align.RegularizedAffineLayerAlignment;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Test that the key of the saved solutions of chunks of the block-wise layer alignment
+ *  changes with every parameter that changes the solution, including those inherited
+ *  from {@link mpicbg.trakem2.align.AbstractLayerAlignmentParam}, and only with those. */
+public class TestChunkCheckpointKey
+{
+	static private Method checkpointKey;
+
+	static public final void main(String[] args) {
+		try {
+			checkpointKey = RegularizedAffineLayerAlignment.class.getDeclaredMethod("checkpointKey",
+					RegularizedAffineLayerAlignment.Param.class, List.class, Set.class, Rectangle.class);
+			checkpointKey.setAccessible(true);
+
+			final byte[] key = key(new RegularizedAffineLayerAlignment.Param());
+			int nErrors = 0;
+
+			for (int i=0; ; i++) {
+				final RegularizedAffineLayerAlignment.Param p = new RegularizedAffineLayerAlignment.Param();
+				final String field;
+				switch (i) {
+					case 0: field = "ppm.sift.fdSize"; p.ppm.sift.fdSize += 1; break;
+					case 1: field = "ppm.sift.fdBins"; p.ppm.sift.fdBins += 1; break;
+					case 2: field = "ppm.sift.maxOctaveSize"; p.ppm.sift.maxOctaveSize *= 2; break;
+					case 3: field = "ppm.sift.minOctaveSize"; p.ppm.sift.minOctaveSize *= 2; break;
+					case 4: field = "ppm.sift.steps"; p.ppm.sift.steps += 1; break;
+					case 5: field = "ppm.sift.initialSigma"; p.ppm.sift.initialSigma += 0.1f; break;
+					case 6: field = "ppm.rod"; p.ppm.rod -= 0.01f; break;
+					case 7: field = "maxEpsilon"; p.maxEpsilon += 1; break;
+					case 8: field = "minInlierRatio"; p.minInlierRatio += 0.1f; break;
+					case 9: field = "minNumInliers"; p.minNumInliers += 1; break;
+					case 10: field = "expectedModelIndex"; p.expectedModelIndex = 0; break;
+					case 11: field = "multipleHypotheses"; p.multipleHypotheses = !p.multipleHypotheses; break;
+					case 12: field = "rejectIdentity"; p.rejectIdentity = !p.rejectIdentity; break;
+					case 13: field = "identityTolerance"; p.identityTolerance += 1; break;
+					case 14: field = "maxNumNeighbors"; p.maxNumNeighbors += 1; break;
+					case 15: field = "maxNumFailures"; p.maxNumFailures += 1; break;
+					case 16: field = "desiredModelIndex"; p.desiredModelIndex = 0; break;
+					case 17: field = "maxIterationsOptimize"; p.maxIterationsOptimize += 1; break;
+					case 18: field = "maxPlateauwidthOptimize"; p.maxPlateauwidthOptimize += 1; break;
+					case 19: field = "regularize"; p.regularize = !p.regularize; break;
+					case 20: field = "regularizerIndex"; p.regularizerIndex = 0; break;
+					case 21: field = "lambda"; p.lambda += 0.1f; break;
+					case 22: field = "sparseSolver"; p.sparseSolver = !p.sparseSolver; break;
+					default: field = null;
+				}
+				if (null == field) break;
+				if (Arrays.equals(key, key(p))) {
+					System.out.println("ERROR: the key doesn't change with " + field);
+					++nErrors;
+				}
+			}
+
+			// Parameters that don't change the solution
+			final RegularizedAffineLayerAlignment.Param p = new RegularizedAffineLayerAlignment.Param();
+			p.maxNumThreads += 1;
+			p.ppm.maxNumThreadsSift += 1;
+			p.ppm.clearCache = !p.ppm.clearCache;
+			p.visualize = !p.visualize;
+			if (!Arrays.equals(key, key(p))) {
+				System.out.println("ERROR: the key changes with the number of threads, caching or visualization");
+				++nErrors;
+			}
+
+			System.out.println(0 == nErrors ? "OK" : nErrors + " errors");
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+
+	static private final byte[] key(final RegularizedAffineLayerAlignment.Param p) throws Exception {
+		return (byte[])checkpointKey.invoke(null, p, new ArrayList<Layer>(), new HashSet<Layer>(), new Rectangle(0, 0, 1000, 1000));
+	}
+}
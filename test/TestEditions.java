@@ -0,0 +1,179 @@
+package test;
+
+import ini.trakem2.vector.Editions;
+import ini.trakem2.vector.VectorString;
+import ini.trakem2.vector.VectorString2D;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Test that the banded {@link Editions} matrix and the distance computed keeping two rows only
+ *  give the same distance and editions as the full matrix, computed here as Editions used to. */
+public class TestEditions
+{
+	/** Insertion, deletion and mutation weights. The last two have WI != WD, for which the matrix is not banded when traced. */
+	static private final double[][] WEIGHTS = {{1, 1, 1}, {1.1, 1.1, 1}, {1, 1, 0.5}, {1, 2, 1}, {1.5, 0.5, 1}};
+
+	static public final void main(String[] args) {
+		try {
+			final Method findEditMatrix = Editions.class.getDeclaredMethod("findEditMatrix", int.class, double[].class);
+			final Method findEditDistance = Editions.class.getDeclaredMethod("findEditDistance", int.class, double[].class);
+			final Method findBand = Editions.class.getDeclaredMethod("findBand", int.class, int.class, boolean.class);
+			findEditMatrix.setAccessible(true);
+			findEditDistance.setAccessible(true);
+			findBand.setAccessible(true);
+
+			final Random rnd = new Random(69);
+			int nErrors = 0,
+			    nBanded = 0,
+			    nTests = 0;
+
+			for (int trial=0; trial<200; trial++) {
+				final double[] ws = WEIGHTS[trial % WEIGHTS.length];
+				final boolean closed = 1 == (trial / WEIGHTS.length) % 2;
+				final double delta = 1 + rnd.nextDouble() * 2;
+				// Half of the pairs are similar, for a narrow band, and half unrelated
+				final double[][] p1 = randomWalk(10 + rnd.nextInt(80), rnd);
+				final double[][] p2 = 0 == trial % 4 ? randomWalk(10 + rnd.nextInt(80), rnd) : perturb(p1, rnd);
+				final VectorString2D vs1 = new VectorString2D(p1[0], p1[1], 0, closed),
+				                     vs2 = new VectorString2D(p2[0], p2[1], 0, closed);
+
+				final Editions e = new Editions(vs1, vs2, delta, closed, ws[0], ws[1], ws[2]);
+				++nTests;
+
+				// The strings are resampled, and vs2 reordered when closed, by the constructor
+				final VectorString v1 = e.getVS1(),
+				                   v2 = e.getVS2();
+				final int n = v1.length(),
+				          m = v2.length();
+				final double[][] full = fullMatrix(v1, v2, delta, ws[0], ws[1], ws[2]);
+				final String what = "trial " + trial + " (n=" + n + ", m=" + m + ", closed=" + closed + ", weights=" + Arrays.toString(ws) + ")";
+
+				if (e.getDistance() != full[n][m]) {
+					System.out.println("ERROR distance in " + what + ": " + e.getDistance() + " != " + full[n][m]);
+					++nErrors;
+				}
+				if (!closed && !Arrays.deepEquals(e.getEditions(), trace(full, n, m, delta))) {
+					System.out.println("ERROR editions in " + what);
+					++nErrors;
+				}
+
+				final double two_rows = (Double)findEditDistance.invoke(e, 0, new double[2 * (m + 1)]);
+				if (two_rows != full[n][m]) {
+					System.out.println("ERROR two-row distance in " + what + ": " + two_rows + " != " + full[n][m]);
+					++nErrors;
+				}
+				if (null != findBand.invoke(e, n, m, false)) ++nBanded;
+
+				final double[] matrix = (double[])findEditMatrix.invoke(e, 0, null);
+				if (matrix[n * (m + 1) + m] != full[n][m]) {
+					System.out.println("ERROR banded distance in " + what + ": " + matrix[n * (m + 1) + m] + " != " + full[n][m]);
+					++nErrors;
+				}
+				if (ws[0] != ws[1]) {
+					// Unbanded: every cell as before
+					if (null != findBand.invoke(e, n, m, true)) {
+						System.out.println("ERROR banded traced matrix with WI != WD in " + what);
+						++nErrors;
+					}
+					for (int i=0; i<=n; i++) {
+						for (int j=0; j<=m; j++) {
+							if (matrix[i * (m + 1) + j] != full[i][j]) {
+								System.out.println("ERROR unbanded matrix at " + i + ", " + j + " in " + what);
+								++nErrors;
+								i = n;
+								break;
+							}
+						}
+					}
+				}
+			}
+
+			System.out.println(nBanded + " of " + nTests + " comparisons were banded");
+			if (0 == nBanded) {
+				System.out.println("ERROR no comparison was banded");
+				++nErrors;
+			}
+			System.out.println(0 == nErrors ? "OK" : nErrors + " errors");
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+
+	/** The matrix of edit distances, as computed before it was banded. */
+	static private final double[][] fullMatrix(final VectorString vs1, final VectorString vs2, final double delta, final double wi, final double wd, final double wm) {
+		final int n = vs1.length(),
+		          m = vs2.length();
+		final double[][] matrix = new double[n+1][m+1];
+		for (int i=0; i<n+1; i++) matrix[i][0] = i * delta;
+		for (int j=0; j<m+1; j++) matrix[0][j] = j * delta;
+		for (int i=1; i<n+1; i++) {
+			for (int j=1; j<m+1; j++) {
+				final double fun1 = matrix[i-1][j] + wd * delta,
+				             fun2 = matrix[i][j-1] + wi * delta,
+				             fun3 = i == n || j == m ? matrix[i-1][j-1]
+				                                     : matrix[i-1][j-1] + wm * vs1.getDiffVectorLength(i, j, vs2);
+				if (fun3 <= fun1 && fun3 <= fun2) matrix[i][j] = fun3;
+				else if (fun1 <= fun2 && fun1 <= fun3) matrix[i][j] = fun1;
+				else matrix[i][j] = fun2;
+			}
+		}
+		return matrix;
+	}
+
+	/** The editions read from the full matrix, in the same way as {@link Editions}. */
+	static private final int[][] trace(final double[][] matrix, final int n, final int m, final double delta) {
+		final int[][] ed = new int[n + m + 2][];
+		int next = 0,
+		    i = n,
+		    j = m;
+		while (0 != i && 0 != j) {
+			if (0.0000001 > Math.abs(matrix[i][j] - matrix[i-1][j] - delta)) {
+				ed[next++] = new int[]{Editions.DELETION, i, j};
+				i--;
+			} else if (0.0000001 > Math.abs(matrix[i][j] - matrix[i][j-1] - delta)) {
+				ed[next++] = new int[]{Editions.INSERTION, i, j};
+				j--;
+			} else {
+				ed[next++] = new int[]{Editions.MUTATION, i, j};
+				i--;
+				j--;
+			}
+		}
+		if (0 != j) for (int k=j; k>-1; k--) ed[next++] = new int[]{Editions.INSERTION, 0, k};
+		if (0 != i) for (int k=i; k>-1; k--) ed[next++] = new int[]{Editions.DELETION, k, 0};
+		final int[][] editions = new int[next][];
+		for (int k=0; k<next; k++) editions[k] = ed[next - 1 - k];
+		return editions;
+	}
+
+	static private final double[][] randomWalk(final int length, final Random rnd) {
+		final double[] x = new double[length],
+		               y = new double[length];
+		double angle = rnd.nextDouble() * 2 * Math.PI;
+		for (int i=1; i<length; i++) {
+			angle += (rnd.nextDouble() - 0.5);
+			final double step = 1 + rnd.nextDouble() * 3;
+			x[i] = x[i-1] + Math.cos(angle) * step;
+			y[i] = y[i-1] + Math.sin(angle) * step;
+		}
+		return new double[][]{x, y};
+	}
+
+	/** A copy with some noise, and a few points dropped or added at the ends. */
+	static private final double[][] perturb(final double[][] p, final Random rnd) {
+		final int first = rnd.nextInt(4),
+		          extra = rnd.nextInt(4);
+		final int length = p[0].length - first + extra;
+		final double[] x = new double[length],
+		               y = new double[length];
+		for (int i=0; i<length; i++) {
+			final int k = Math.min(p[0].length - 1, first + i);
+			final double over = Math.max(0, first + i - (p[0].length - 1)) * 2;
+			x[i] = p[0][k] + over + (rnd.nextDouble() - 0.5) * 0.5;
+			y[i] = p[1][k] + (rnd.nextDouble() - 0.5) * 0.5;
+		}
+		return new double[][]{x, y};
+	}
+}
@@ -0,0 +1,246 @@
+package test;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.align.Align;
+import mpicbg.trakem2.transform.MeshRasterizer;
+import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Test that {@link TransformMeshMappingWithMasks#map} and {@link TransformMeshMappingWithMasks#mapInterpolated},
+ *  which render with the {@link MeshRasterizer}, give the same images, masks and outside masks as the per-triangle
+ *  mapTriangle* methods, for a non-linear mesh and 8-bit, 16-bit, float and RGB images, with and without masks.
+ *  Source coordinates are stepped in double precision by the rasterizer, and were computed in float per pixel:
+ *  nearest neighbour may then pick another pixel where a coordinate is within a rounding error of a half pixel,
+ *  and interpolated values may differ by rounding. */
+public class TestMeshRasterizer
+{
+	static private final int SW = 301, SH = 257;
+
+	static private final Class<?>[] PLAIN = {mpicbg.models.TransformMesh.class, AffineModel2D.class,
+		ImageProcessor.class, ImageProcessor.class, ByteProcessor.class};
+	static private final Class<?>[] MASKED = {mpicbg.models.TransformMesh.class, AffineModel2D.class,
+		ImageProcessor.class, ImageProcessor.class, ImageProcessor.class, ImageProcessor.class, ByteProcessor.class};
+
+	static private int nErrors = 0;
+
+	static public final void main(String[] args) {
+		try {
+			final Random rnd = new Random(49);
+
+			// A moving least squares warp of a few control points: the triangles of the mesh all differ
+			final ArrayList<PointMatch> matches = new ArrayList<PointMatch>();
+			for (int i=0; i<6; i++) {
+				final float x = rnd.nextFloat() * SW,
+				            y = rnd.nextFloat() * SH;
+				matches.add(new PointMatch(new Point(new float[]{x, y}),
+				                           new Point(new float[]{x + (rnd.nextFloat() - 0.5f) * 40, y + (rnd.nextFloat() - 0.5f) * 40})));
+			}
+			final TransformMesh mesh = new TransformMesh(Align.createMLST(matches, 1.0f), 32, SW, SH);
+			final Rectangle box = mesh.getBoundingBox();
+			// Smaller than the mesh, for triangles to be clipped at the right and bottom
+			final int tw = box.width - 3,
+			          th = box.height - 3;
+			System.out.println("mesh bounding box: " + box + ", " + mesh.getAV().size() + " triangles");
+
+			final TransformMeshMappingWithMasks<TransformMesh> mapping = new TransformMeshMappingWithMasks<TransformMesh>(mesh);
+			final float[][] coords = sourceCoordinates(mesh, tw, th);
+
+			final Method mapTriangle = TransformMeshMappingWithMasks.class.getDeclaredMethod("mapTriangle", PLAIN),
+			             mapTriangleInterpolated = TransformMeshMappingWithMasks.class.getDeclaredMethod("mapTriangleInterpolated", PLAIN),
+			             mapTriangleMasked = TransformMeshMappingWithMasks.class.getDeclaredMethod("mapTriangle", MASKED),
+			             mapTriangleInterpolatedMasked = TransformMeshMappingWithMasks.class.getDeclaredMethod("mapTriangleInterpolated", MASKED),
+			             mapShortAlphaTriangle = TransformMeshMappingWithMasks.class.getDeclaredMethod("mapShortAlphaTriangle",
+			                     mpicbg.models.TransformMesh.class, AffineModel2D.class, ShortProcessor.class, ByteProcessor.class, ShortProcessor.class);
+			mapTriangle.setAccessible(true);
+			mapTriangleInterpolated.setAccessible(true);
+			mapTriangleMasked.setAccessible(true);
+			mapTriangleInterpolatedMasked.setAccessible(true);
+			mapShortAlphaTriangle.setAccessible(true);
+
+			for (int type=0; type<4; type++) {
+				for (int k=0; k<4; k++) {
+					final boolean interpolate = 1 == (k & 1),
+					              masked = 2 == (k & 2);
+					final ImageProcessor source = randomImage(type, SW, SH, rnd);
+					final ByteProcessor sourceMask = masked ? (ByteProcessor)randomImage(0, SW, SH, rnd) : null;
+					final String what = source.getClass().getSimpleName() + (interpolate ? ", interpolated" : ", nearest") + (masked ? ", with masks" : "");
+
+					// With the rasterizer, on several threads
+					final ImageProcessorWithMasks s = new ImageProcessorWithMasks(source, sourceMask, null);
+					final ImageProcessorWithMasks t = new ImageProcessorWithMasks(source.createProcessor(tw, th), masked ? new ByteProcessor(tw, th) : null, null);
+					if (interpolate) mapping.mapInterpolated(s, t, 4);
+					else mapping.map(s, t, 4);
+
+					// Triangle by triangle, in the order of the mesh
+					final ImageProcessor target = source.createProcessor(tw, th);
+					final ByteProcessor targetMask = masked ? new ByteProcessor(tw, th) : null;
+					final ByteProcessor outside = new ByteProcessor(tw, th);
+					if (interpolate) {
+						source.setInterpolationMethod(ImageProcessor.BILINEAR);
+						if (masked) sourceMask.setInterpolationMethod(ImageProcessor.BILINEAR);
+					}
+					for (final AffineModel2D ai : mesh.getAV().keySet()) {
+						if (masked) (interpolate ? mapTriangleInterpolatedMasked : mapTriangleMasked).invoke(null, mesh, ai, source, sourceMask, target, targetMask, outside);
+						else (interpolate ? mapTriangleInterpolated : mapTriangle).invoke(null, mesh, ai, source, target, outside);
+					}
+
+					compare("image", what, t.ip, target, coords, interpolate);
+					if (masked) compare("mask", what, t.mask, targetMask, coords, interpolate);
+					compare("outside", what, t.outside, outside, null, false);
+				}
+			}
+
+			// Alpha composition of 16-bit images over a 16-bit target
+			final ShortProcessor source = (ShortProcessor)randomImage(1, SW, SH, rnd);
+			final ByteProcessor alpha = (ByteProcessor)randomImage(0, SW, SH, rnd);
+			// Fully transparent and opaque regions
+			alpha.setValue(0);
+			alpha.setRoi(0, 0, SW / 3, SH);
+			alpha.fill();
+			alpha.setValue(255);
+			alpha.setRoi(2 * SW / 3, 0, SW - 2 * SW / 3, SH);
+			alpha.fill();
+			alpha.resetRoi();
+			source.setInterpolationMethod(ImageProcessor.BILINEAR);
+			alpha.setInterpolationMethod(ImageProcessor.BILINEAR);
+			final ShortProcessor background = (ShortProcessor)randomImage(1, tw, th, rnd);
+			final ShortProcessor composed = (ShortProcessor)background.duplicate(),
+			                     expected = (ShortProcessor)background.duplicate();
+			mapping.map(source, alpha, composed, 4);
+			for (final AffineModel2D ai : mesh.getAV().keySet()) {
+				mapShortAlphaTriangle.invoke(null, mesh, ai, source, alpha, expected);
+			}
+			compare("image", "alpha composition", composed, expected, coords, true);
+
+			System.out.println(0 == nErrors ? "OK" : nErrors + " errors");
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+
+	/** Random pixels: 8-bit, 12-bit in a 16-bit image, float in [0, 1) and RGB, for type 0 to 3. */
+	static private final ImageProcessor randomImage(final int type, final int w, final int h, final Random rnd) {
+		switch (type) {
+			case 0:
+				final byte[] b = new byte[w * h];
+				rnd.nextBytes(b);
+				return new ByteProcessor(w, h, b, null);
+			case 1:
+				final short[] s = new short[w * h];
+				for (int i=0; i<s.length; i++) s[i] = (short)rnd.nextInt(4096);
+				return new ShortProcessor(w, h, s, null);
+			case 2:
+				final float[] f = new float[w * h];
+				for (int i=0; i<f.length; i++) f[i] = rnd.nextFloat();
+				return new FloatProcessor(w, h, f, null);
+			default:
+				final int[] c = new int[w * h];
+				for (int i=0; i<c.length; i++) c[i] = rnd.nextInt() & 0xffffff;
+				return new ColorProcessor(w, h, c);
+		}
+	}
+
+	/** Compare every pixel of the rendered image with the expected one. Where the source coordinates are known,
+	 *  nearest neighbour may differ only next to a half pixel, and interpolated values by one unit of rounding,
+	 *  or 1e-4 for float images. */
+	static private final void compare(final String which, final String what, final ImageProcessor ip, final ImageProcessor expected, final float[][] coords, final boolean interpolate) {
+		final int w = expected.getWidth();
+		int n = 0,
+		    nTolerated = 0;
+		for (int y=0; y<expected.getHeight(); y++) {
+			for (int x=0; x<w; x++) {
+				if (equal(ip, expected, x, y, 0)) continue;
+				final int i = y * w + x;
+				final boolean tolerated = null != coords && !Float.isNaN(coords[0][i])
+				        && (interpolate ? equal(ip, expected, x, y, 1)
+				                        : nearHalf(coords[0][i]) || nearHalf(coords[1][i]));
+				if (tolerated) {
+					++nTolerated;
+					continue;
+				}
+				if (n < 10) System.out.println("ERROR " + which + " of " + what + " at " + x + ", " + y + ": " + ip.getf(x, y) + " != " + expected.getf(x, y));
+				++n;
+			}
+		}
+		if (nTolerated > 0) System.out.println(which + " of " + what + ": " + nTolerated + " pixels differ by rounding");
+		nErrors += n;
+	}
+
+	static private final boolean equal(final ImageProcessor ip, final ImageProcessor expected, final int x, final int y, final int tolerance) {
+		if (expected instanceof FloatProcessor) {
+			return Math.abs(ip.getf(x, y) - expected.getf(x, y)) <= tolerance * 1e-4f;
+		}
+		final int a = ip.getPixel(x, y),
+		          b = expected.getPixel(x, y);
+		if (expected instanceof ColorProcessor) {
+			for (int shift=0; shift<24; shift+=8) {
+				if (Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)) > tolerance) return false;
+			}
+			return true;
+		}
+		return Math.abs(a - b) <= tolerance;
+	}
+
+	/** Whether rounding the coordinate t as ( int )( t + 0.5f ) may give either of two pixels. */
+	static private final boolean nearHalf(final float t) {
+		final double d = t + 0.5 - Math.floor(t + 0.5);
+		return d < 1e-3 || d > 1 - 1e-3;
+	}
+
+	/** The source coordinates of every pixel of a w x h target, computed per pixel as the mapTriangle* methods do,
+	 *  with the last triangle of the mesh that covers it; NaN where no triangle does. */
+	static private final float[][] sourceCoordinates(final TransformMesh mesh, final int w, final int h) throws Exception {
+		final float[][] coords = new float[2][w * h];
+		Arrays.fill(coords[0], Float.NaN);
+		Arrays.fill(coords[1], Float.NaN);
+		final float[] t = new float[2];
+		for (final AffineModel2D ai : mesh.getAV().keySet()) {
+			final ArrayList<PointMatch> pm = mesh.getAV().get(ai);
+			final float[] a = pm.get(0).getP2().getW(),
+			              b = pm.get(1).getP2().getW(),
+			              c = pm.get(2).getP2().getW();
+			final int minX = Math.max(0, (int)(Math.min(a[0], Math.min(b[0], c[0])) + 0.5f)),
+			          minY = Math.max(0, (int)(Math.min(a[1], Math.min(b[1], c[1])) + 0.5f)),
+			          maxX = Math.min(w - 1, (int)(Math.max(a[0], Math.max(b[0], c[0])) + 0.5f)),
+			          maxY = Math.min(h - 1, (int)(Math.max(a[1], Math.max(b[1], c[1])) + 0.5f));
+			for (int y=minY; y<=maxY; y++) {
+				for (int x=minX; x<=maxX; x++) {
+					if (!isInTriangle(a[0], a[1], b[0], b[1], c[0], c[1], x, y)) continue;
+					t[0] = x;
+					t[1] = y;
+					try {
+						ai.applyInverseInPlace(t);
+					} catch (Exception e) {
+						continue;
+					}
+					coords[0][y * w + x] = t[0];
+					coords[1][y * w + x] = t[1];
+				}
+			}
+		}
+		return coords;
+	}
+
+	/** The test of {@link mpicbg.ij.TransformMeshMapping}. */
+	static private final boolean isInTriangle(final float ax, final float ay, final float bx, final float by,
+	                                          final float cx, final float cy, final float tx, final float ty) {
+		final boolean d = (bx - ax) * (ty - ay) - (by - ay) * (tx - ax) < 0;
+		if (d ^ (cx - bx) * (ty - by) - (cy - by) * (tx - bx) < 0) return false;
+		if (d ^ (ax - cx) * (ty - cy) - (ay - cy) * (tx - cx) < 0) return false;
+		return true;
+	}
+}